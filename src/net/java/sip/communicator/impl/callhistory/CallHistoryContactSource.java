@@ -104,6 +104,19 @@ public class CallHistoryContactSource
          */
         Iterator<CallRecord> recordsIter = null;
 
+        /**
+         * Whether the initial records of the <tt>callHistoryQuery</tt> are
+         * being delivered, in which case a change of its status is only
+         * reported once they all have been.
+         */
+        private boolean deliveringInitialRecords = false;
+
+        /**
+         * The status the <tt>callHistoryQuery</tt> changed to while its
+         * initial records were being delivered, or <tt>-1</tt>.
+         */
+        private int pendingStatus = -1;
+
         /**
          * Creates an instance of <tt>CallHistoryContactQuery</tt> by specifying
          * the list of call records results.
@@ -132,6 +145,10 @@ public class CallHistoryContactSource
         {
             if(callHistoryQuery != null)
             {
+                synchronized (this)
+                {
+                    deliveringInitialRecords = true;
+                }
                 callHistoryQuery.addQueryListener(new CallHistoryQueryListener()
                 {
                     public void callRecordReceived(CallRecordEvent event)
@@ -149,6 +166,14 @@ public class CallHistoryContactSource
                     public void queryStatusChanged(
                         CallHistoryQueryStatusEvent event)
                     {
+                        synchronized (CallHistoryContactQuery.this)
+                        {
+                            if (deliveringInitialRecords)
+                            {
+                                pendingStatus = event.getEventType();
+                                return;
+                            }
+                        }
                         status = event.getEventType();
                         fireQueryStatusEvent(status);
                     }
@@ -164,6 +189,22 @@ public class CallHistoryContactSource
                 sourceContacts.add(contact);
                 fireQueryEvent(contact); 
             }
+
+            // a query found through an index is completed as soon as the
+            // listener is added, report it after delivering its records
+            int newStatus;
+
+            synchronized (this)
+            {
+                deliveringInitialRecords = false;
+                newStatus = pendingStatus;
+                pendingStatus = -1;
+            }
+            if (newStatus != -1)
+            {
+                status = newStatus;
+                fireQueryStatusEvent(status);
+            }
         }
         
         /**
@@ -0,0 +1,391 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.callhistory;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * An in-memory index of the call history records by the normalized addresses
+ * of their peers, which lets the <tt>CallHistoryServiceImpl</tt> find the
+ * calls of a peer or of a contact without scanning the whole call history.
+ * <p>
+ * The index is built by a thread of its own the first time it is needed, by
+ * reading the call history once, and is then kept up to date by the service
+ * as it writes calls. It holds the history records and not
+ * <tt>CallRecord</tt>s, so that its results are converted the same way as
+ * those read from the history.
+ */
+class CallHistoryPeerIndex
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(CallHistoryPeerIndex.class);
+
+    /**
+     * The prefixes of the URIs stripped from peer addresses.
+     */
+    private static final String[] URI_SCHEMES
+        = { "sip:", "sips:", "tel:", "xmpp:" };
+
+    /**
+     * The characters stripped from phone numbers.
+     */
+    private static final String PHONE_NUMBER_SEPARATORS = " ()-./";
+
+    /**
+     * The name of the field holding the peer addresses of a call.
+     */
+    private final String peersField;
+
+    /**
+     * The delimiter of the peer addresses of a call.
+     */
+    private final String delimiter;
+
+    /**
+     * The history records by the normalized addresses of their peers, in
+     * the order they have been written.
+     */
+    private final Map<String, List<HistoryRecord>> records
+        = new HashMap<String, List<HistoryRecord>>();
+
+    /**
+     * Whether the history has been read into the index.
+     */
+    private volatile boolean built = false;
+
+    /**
+     * Whether a thread is reading the history into the index.
+     */
+    private final AtomicBoolean building = new AtomicBoolean();
+
+    /**
+     * The lock notified when a thread has stopped building the index.
+     */
+    private final Object buildLock = new Object();
+
+    /**
+     * Creates an empty index.
+     *
+     * @param peersField the name of the field holding the peer addresses of
+     * a call
+     * @param delimiter the delimiter of the peer addresses of a call
+     */
+    CallHistoryPeerIndex(String peersField, String delimiter)
+    {
+        this.peersField = peersField;
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Returns whether the history has been read into the index.
+     *
+     * @return whether the history has been read into the index
+     */
+    boolean isBuilt()
+    {
+        return built;
+    }
+
+    /**
+     * Starts reading the call history into the index in a thread of its own,
+     * unless it has already been read or is being read.
+     *
+     * @param history the call history
+     */
+    void buildInBackground(final History history)
+    {
+        if (built || !building.compareAndSet(false, true))
+            return;
+
+        Thread thread = new Thread("CallHistoryPeerIndex")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    build(history);
+                }
+                catch (RuntimeException ex)
+                {
+                    logger.error("Could not index the call history", ex);
+                }
+                finally
+                {
+                    building.set(false);
+                    synchronized (buildLock)
+                    {
+                        buildLock.notifyAll();
+                    }
+                }
+            }
+        };
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for the index to be built, starting to build it in the
+     * background if needed.
+     *
+     * @param history the call history
+     * @param timeout the maximum time to wait in milliseconds
+     * @return <tt>true</tt> if the index has been built, <tt>false</tt> if
+     * building it failed or took too long or the current thread was
+     * interrupted
+     */
+    boolean awaitBuilt(History history, long timeout)
+    {
+        buildInBackground(history);
+
+        long end = System.currentTimeMillis() + timeout;
+
+        synchronized (buildLock)
+        {
+            while (!built && building.get())
+            {
+                long wait = end - System.currentTimeMillis();
+
+                if (wait <= 0)
+                    break;
+                try
+                {
+                    buildLock.wait(wait);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Reads the call history into the index, unless it has already been.
+     *
+     * @param history the call history
+     */
+    synchronized void build(History history)
+    {
+        if (built)
+            return;
+
+        QueryResultSet<HistoryRecord> rs
+            = history.getReader().findByEndDate(new Date(Long.MAX_VALUE));
+
+        while (rs.hasNext())
+            addRecord(rs.next());
+        built = true;
+    }
+
+    /**
+     * Drops the contents of the index, which will be built again when it is
+     * used next.
+     */
+    synchronized void clear()
+    {
+        records.clear();
+        built = false;
+    }
+
+    /**
+     * Indexes a record which has been written to the call history. Does
+     * nothing if the index has not been built yet, as it will read the
+     * record when it is.
+     *
+     * @param record the written record
+     */
+    synchronized void recordWritten(HistoryRecord record)
+    {
+        if (built)
+            addRecord(record);
+    }
+
+    /**
+     * Adds a record to the lists of its peers.
+     *
+     * @param record the record
+     */
+    private void addRecord(HistoryRecord record)
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (!peersField.equals(names[i]) || (values[i] == null))
+                continue;
+
+            StringTokenizer peers = new StringTokenizer(values[i], delimiter);
+            while (peers.hasMoreTokens())
+            {
+                String address = normalizeAddress(peers.nextToken());
+                List<HistoryRecord> peerRecords = records.get(address);
+
+                if (peerRecords == null)
+                {
+                    peerRecords = new ArrayList<HistoryRecord>(1);
+                    records.put(address, peerRecords);
+                }
+                // a peer may appear more than once in a call
+                if (peerRecords.isEmpty()
+                        || peerRecords.get(peerRecords.size() - 1) != record)
+                    peerRecords.add(record);
+            }
+        }
+    }
+
+    /**
+     * Returns the most recent records of calls with the given peers.
+     *
+     * @param addresses the addresses of the peers
+     * @param count the maximum number of records to return
+     * @return the records, most recent first
+     */
+    synchronized List<HistoryRecord> findByAddresses(
+            Collection<String> addresses, int count)
+    {
+        Set<HistoryRecord> found = newIdentitySet();
+
+        for (String address : addresses)
+        {
+            List<HistoryRecord> peerRecords
+                = records.get(normalizeAddress(address));
+
+            if (peerRecords != null)
+                found.addAll(peerRecords);
+        }
+        return getMostRecent(found, count);
+    }
+
+    /**
+     * Returns the most recent records of calls with peers whose normalized
+     * address contains the normalized form of the given string.
+     *
+     * @param keyword the string to search for in the peer addresses
+     * @param count the maximum number of records to return
+     * @return the records, most recent first
+     */
+    synchronized List<HistoryRecord> findByKeyword(String keyword, int count)
+    {
+        String normalizedKeyword = normalizeAddress(keyword);
+        Set<HistoryRecord> found = newIdentitySet();
+
+        for (Map.Entry<String, List<HistoryRecord>> entry : records.entrySet())
+        {
+            if (entry.getKey().contains(normalizedKeyword))
+                found.addAll(entry.getValue());
+        }
+        return getMostRecent(found, count);
+    }
+
+    /**
+     * Creates a set of records comparing them by identity, as a call with
+     * several peers is found through each of them.
+     *
+     * @return an empty set comparing records by identity
+     */
+    private static Set<HistoryRecord> newIdentitySet()
+    {
+        return Collections.newSetFromMap(
+                new IdentityHashMap<HistoryRecord, Boolean>());
+    }
+
+    /**
+     * Sorts records, most recent first, and keeps the first of them.
+     *
+     * @param found the records
+     * @param count the maximum number of records to keep
+     * @return the most recent records
+     */
+    private static List<HistoryRecord> getMostRecent(
+            Collection<HistoryRecord> found, int count)
+    {
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>(found);
+
+        Collections.sort(result, new Comparator<HistoryRecord>()
+        {
+            public int compare(HistoryRecord r1, HistoryRecord r2)
+            {
+                return r2.getTimestamp().compareTo(r1.getTimestamp());
+            }
+        });
+        if (result.size() > count)
+            result = new ArrayList<HistoryRecord>(result.subList(0, count));
+        return result;
+    }
+
+    /**
+     * Normalizes a peer or contact address: lower case, without URI scheme
+     * and parameters and, for phone numbers, without separators.
+     *
+     * @param address the address
+     * @return the normalized address
+     */
+    static String normalizeAddress(String address)
+    {
+        String normalized = address.trim().toLowerCase();
+
+        for (String scheme : URI_SCHEMES)
+        {
+            if (normalized.startsWith(scheme))
+            {
+                normalized = normalized.substring(scheme.length());
+                break;
+            }
+        }
+
+        int params = normalized.indexOf(';');
+        if (params != -1)
+            normalized = normalized.substring(0, params);
+
+        if (isPhoneNumber(normalized))
+        {
+            StringBuilder digits = new StringBuilder(normalized.length());
+
+            for (int i = 0; i < normalized.length(); i++)
+            {
+                char c = normalized.charAt(i);
+
+                if (PHONE_NUMBER_SEPARATORS.indexOf(c) == -1)
+                    digits.append(c);
+            }
+            normalized = digits.toString();
+        }
+        return normalized;
+    }
+
+    /**
+     * Determines whether an address is a phone number: it has no domain and
+     * no letters.
+     *
+     * @param address the lower case address
+     * @return <tt>true</tt> if <tt>address</tt> is a phone number
+     */
+    private static boolean isPhoneNumber(String address)
+    {
+        for (int i = 0; i < address.length(); i++)
+        {
+            char c = address.charAt(i);
+
+            if ((c == '@') || Character.isLetter(c))
+                return false;
+        }
+        return true;
+    }
+}
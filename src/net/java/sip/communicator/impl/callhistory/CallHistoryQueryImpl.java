@@ -28,6 +28,12 @@ public class CallHistoryQueryImpl
 
     private final HistoryQuery historyQuery;
 
+    /**
+     * The query string of a query whose records were all found when it was
+     * created, or <tt>null</tt> if it is based on a <tt>HistoryQuery</tt>.
+     */
+    private final String queryString;
+
     /**
      * Creates an instance of <tt>CallHistoryQueryImpl</tt> by specifying the
      * underlying <tt>HistoryQuery</tt>.
@@ -36,6 +42,7 @@ public class CallHistoryQueryImpl
     public CallHistoryQueryImpl(HistoryQuery query)
     {
         this.historyQuery = query;
+        this.queryString = null;
 
         historyQuery.addHistoryRecordsListener(new HistoryQueryListener()
         {
@@ -68,12 +75,27 @@ public class CallHistoryQueryImpl
         }
     }
 
+    /**
+     * Creates an instance of <tt>CallHistoryQueryImpl</tt> whose records have
+     * all been found already, e.g. through an index.
+     * @param queryString the query string this query was created for
+     * @param callRecords the records found
+     */
+    public CallHistoryQueryImpl(String queryString,
+                                Collection<CallRecord> callRecords)
+    {
+        this.historyQuery = null;
+        this.queryString = queryString;
+        this.callRecords.addAll(callRecords);
+    }
+
     /**
      * Cancels this query.
      */
     public void cancel()
     {
-        historyQuery.cancel();
+        if (historyQuery != null)
+            historyQuery.cancel();
     }
 
     /**
@@ -104,6 +126,13 @@ public class CallHistoryQueryImpl
         {
             queryListeners.add(l);
         }
+
+        // a query found through an index is already completed, tell the
+        // listener it will not receive more records
+        if (historyQuery == null)
+            l.queryStatusChanged(
+                new CallHistoryQueryStatusEvent(
+                        this, HistoryQueryStatusEvent.QUERY_COMPLETED));
     }
 
     /**
@@ -159,6 +188,8 @@ public class CallHistoryQueryImpl
      */
     public String getQueryString()
     {
-        return historyQuery.getQueryString();
+        return (historyQuery == null)
+            ? queryString
+            : historyQuery.getQueryString();
     }
 }
@@ -75,6 +75,19 @@ public class CallHistoryServiceImpl
 
     private HistoryReader historyReader;
 
+    /**
+     * The records of the default call history by the addresses of their
+     * peers.
+     */
+    private final CallHistoryPeerIndex peerIndex
+        = new CallHistoryPeerIndex(STRUCTURE_NAMES[4], DELIM);
+
+    /**
+     * The maximum time in milliseconds <tt>findLast(MetaContact, int)</tt>
+     * waits for the index of the call history by peer address to be built.
+     */
+    private static final long PEER_INDEX_BUILD_TIMEOUT = 30000;
+
     /**
      * Returns the underlying history service.
      * @return the underlying history service
@@ -253,7 +266,30 @@ public class CallHistoryServiceImpl
     public Collection<CallRecord> findLast(MetaContact contact, int count)
         throws RuntimeException
     {
-        throw new UnsupportedOperationException("Not implemented yet!");
+        List<CallRecord> result = new ArrayList<CallRecord>();
+        try
+        {
+            List<String> addresses = new ArrayList<String>();
+            Iterator<Contact> contacts = contact.getContacts();
+            while (contacts.hasNext())
+                addresses.add(contacts.next().getAddress());
+
+            CallHistoryPeerIndex index = getPeerIndex(true);
+
+            if (index == null)
+            {
+                logger.warn("The call history is not indexed yet");
+                return result;
+            }
+            for (HistoryRecord hr : index.findByAddresses(addresses, count))
+                result.add(convertHistoryRecordToCallRecord(hr));
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not read history", ex);
+        }
+
+        return result;
     }
 
     /**
@@ -301,15 +337,30 @@ public class CallHistoryServiceImpl
 
         try
         {
-            // the default ones
-            History history = this.getHistory(null, null);
-            InteractiveHistoryReader historyReader
-                = history.getInteractiveReader();
-            HistoryQuery historyQuery
-                = historyReader.findByKeyword(
-                    address, "callParticipantIDs", recordCount);
+            CallHistoryPeerIndex index = getPeerIndex(false);
 
-            callQuery = new CallHistoryQueryImpl(historyQuery);
+            if (index == null)
+            {
+                // search the history until the index is built
+                History history = this.getHistory(null, null);
+                InteractiveHistoryReader historyReader
+                    = history.getInteractiveReader();
+                HistoryQuery historyQuery
+                    = historyReader.findByKeyword(
+                        address, "callParticipantIDs", recordCount);
+
+                callQuery = new CallHistoryQueryImpl(historyQuery);
+            }
+            else
+            {
+                List<CallRecord> callRecords = new ArrayList<CallRecord>();
+
+                for (HistoryRecord hr
+                        : index.findByKeyword(address, recordCount))
+                    callRecords.add(convertHistoryRecordToCallRecord(hr));
+
+                callQuery = new CallHistoryQueryImpl(address, callRecords);
+            }
         }
         catch (IOException ex)
         {
@@ -319,6 +370,34 @@ public class CallHistoryServiceImpl
         return callQuery;
     }
 
+    /**
+     * Returns the index of the default call history by peer address. The
+     * first time, the history is read into it by a thread of its own.
+     *
+     * @param wait <tt>true</tt> to wait for the index to be built,
+     * <tt>false</tt> to return at once
+     * @return the index of the default call history by peer address, or
+     * <tt>null</tt> if it has not been built yet
+     * @throws IOException if the history cannot be read
+     */
+    private CallHistoryPeerIndex getPeerIndex(boolean wait)
+        throws IOException
+    {
+        if (!peerIndex.isBuilt())
+        {
+            History history = this.getHistory(null, null);
+
+            if (!wait)
+            {
+                peerIndex.buildInBackground(history);
+                return null;
+            }
+            if (!peerIndex.awaitBuilt(history, PEER_INDEX_BUILD_TIMEOUT))
+                return null;
+        }
+        return peerIndex;
+    }
+
     /**
      * Returns the history by specified local and remote contact
      * if one of them is null the default is used
@@ -705,7 +784,7 @@ public class CallHistoryServiceImpl
                 callPeerStates.append(item.getState().getStateString());
             }
 
-            historyWriter.addRecord(new String[] {
+            String[] values = new String[] {
                     callRecord.getSourceCall().getProtocolProvider()
                         .getAccountID().getAccountUniqueID(),
                     sdf.format(callRecord.getStartTime()),
@@ -716,9 +795,20 @@ public class CallHistoryServiceImpl
                     callPeerEndTime.toString(),
                     callPeerStates.toString(),
                     String.valueOf(callRecord.getEndReason()),
-                    callPeerNames.toString()},
-                    new Date());    // this date is when the history
-                                    // record is written
+                    callPeerNames.toString()};
+            // this date is when the history record is written
+            Date timestamp = new Date();
+
+            // the index reads the history when it is built, so it must not
+            // be built between the write and the update of the index
+            synchronized (peerIndex)
+            {
+                historyWriter.addRecord(values, timestamp);
+
+                if ((source == null) && (destination == null))
+                    peerIndex.recordWritten(
+                        new HistoryRecord(STRUCTURE_NAMES, values, timestamp));
+            }
         }
         catch (IOException e)
         {
@@ -756,6 +846,7 @@ public class CallHistoryServiceImpl
             if (this.historyService == hService)
             {
                 this.historyService = null;
+                peerIndex.clear();
 
                 if (logger.isDebugEnabled())
                     logger.debug("History service unregistered.");
@@ -11,15 +11,22 @@ import java.io.*;
 import java.sql.*;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.fileaccess.*;
 import org.jitsi.util.*;
 
+import net.java.sip.communicator.util.PropertyNameTrie;
+
 import com.google.common.collect.*;
 
 /**
  * Implementation of the {@link ConfigurationService} based on JDBC.
+ * <p>
+ * The stored properties are loaded into memory once and all reads are served
+ * from there without locking. Changes update the memory copy right away and
+ * are written to the database in batches by a background thread.
  * 
  * @author Ingo Bauersachs
  */
@@ -76,14 +83,55 @@ public final class JdbcConfigService
     private SetMultimap<String, PropertyChangeListener> listeners
         = HashMultimap.create();
 
+    /**
+     * The time in milliseconds the database writer waits for more changes
+     * before writing a batch.
+     */
+    private static final long WRITE_DELAY = 100;
+
+    /**
+     * The maximum time in milliseconds the database writer waits before
+     * retrying to write changes which it failed to write.
+     */
+    private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+    /**
+     * The properties stored in the database.
+     */
+    private final ConcurrentMap<String, String> properties
+        = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The names of the stored properties indexed by their segments for the
+     * prefix and suffix queries.
+     */
+    private final PropertyNameTrie propertyNames = new PropertyNameTrie();
+
+    /**
+     * The changes not yet written to the database in the order they were
+     * made, a <tt>null</tt> value stands for a removed property.
+     */
+    private final Map<String, String> pendingWrites
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * The thread writing changes to the database, <tt>null</tt> while there
+     * is nothing to write.
+     */
+    private Thread writerThread;
+
+    /**
+     * Guards the connection and the prepared statements, which are used
+     * by the writer thread.
+     */
+    private final Object dbLock = new Object();
+
     /**
      * Connection to the JDBC database.
      */
     private Connection connection;
 
     // SQL statements for queries against the database
-    private PreparedStatement selectExact;
-    private PreparedStatement selectLike;
     private PreparedStatement selectAll;
     private PreparedStatement insertOrUpdate;
     private PreparedStatement delete;
@@ -116,9 +164,18 @@ public final class JdbcConfigService
             migrate = true;
         }
 
-        // open the connection
+        // open the connection and load the stored properties
         Class.forName("org.hsqldb.jdbc.JDBCDriver");
-        checkConnection();
+        synchronized (dbLock)
+        {
+            checkConnection();
+            ResultSet q = this.selectAll.executeQuery();
+            while (q.next())
+            {
+                properties.put(q.getString(1), q.getString(2));
+                propertyNames.add(q.getString(1));
+            }
+        }
 
         // then do the actual migration
         if (migrate)
@@ -126,14 +183,12 @@ public final class JdbcConfigService
             Properties p = new Properties();
             p.load(new FileInputStream(oldProps));
 
-            this.connection.setAutoCommit(false);
             for (Map.Entry<Object, Object> e : p.entrySet())
             {
                 this.setProperty(e.getKey().toString(), e.getValue(), false);
             }
 
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
+            writePendingChanges();
         }
 
         // and finally load the (mandatory) system properties
@@ -178,10 +233,6 @@ public final class JdbcConfigService
             + "k LONGVARCHAR UNIQUE, v LONGVARCHAR"
             + ")");
 
-        this.selectExact = this.connection.prepareStatement(
-            "SELECT v FROM Props WHERE k=?");
-        this.selectLike = this.connection.prepareStatement(
-            "SELECT k, v FROM Props WHERE k LIKE ?");
         this.selectAll = this.connection.prepareStatement(
             "SELECT k, v FROM Props");
         this.insertOrUpdate = this.connection.prepareStatement(
@@ -241,29 +292,24 @@ public final class JdbcConfigService
                 return;
             }
 
-            try
-            {
-                this.checkConnection();
-                Object oldValue = this.getProperty(propertyName);
-                this.fireVetoableChange(propertyName, oldValue, property);
-                if (property == null)
-                {
-                    this.delete.setString(1, propertyName);
-                    this.delete.execute();
-                }
-                else
-                {
-                    this.insertOrUpdate.setString(1, propertyName);
-                    this.insertOrUpdate.setString(2, property.toString());
-                    this.insertOrUpdate.execute();
-                }
+            Object oldValue = this.getProperty(propertyName);
+            this.fireVetoableChange(propertyName, oldValue, property);
 
-                this.fireChange(propertyName, oldValue, property);
+            String value = null;
+            if (property == null)
+            {
+                properties.remove(propertyName);
+                propertyNames.remove(propertyName);
             }
-            catch (SQLException e)
+            else
             {
-                throw new RuntimeException(e);
+                value = property.toString();
+                properties.put(propertyName, value);
+                propertyNames.add(propertyName);
             }
+            queueWrite(propertyName, value);
+
+            this.fireChange(propertyName, oldValue, property);
         }
     }
 
@@ -277,21 +323,10 @@ public final class JdbcConfigService
     @Override
     public synchronized void setProperties(Map<String, Object> properties)
     {
-        try
+        // the changes end up in the same database batch
+        for (Map.Entry<String, Object> e : properties.entrySet())
         {
-            checkConnection();
-            this.connection.setAutoCommit(false);
-            for (Map.Entry<String, Object> e : properties.entrySet())
-            {
-                this.setProperty(e.getKey(), e.getValue(), false);
-            }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
-        }
-        catch (SQLException e1)
-        {
-            throw new RuntimeException(e1);
+            this.setProperty(e.getKey(), e.getValue(), false);
         }
     }
 
@@ -303,7 +338,7 @@ public final class JdbcConfigService
      * .lang.String)
      */
     @Override
-    public synchronized Object getProperty(String propertyName)
+    public Object getProperty(String propertyName)
     {
         Object value = immutableDefaultProperties.get(propertyName);
         if (value != null)
@@ -311,22 +346,7 @@ public final class JdbcConfigService
             return value;
         }
 
-        try
-        {
-            this.checkConnection();
-            this.selectExact.setString(1, propertyName);
-            ResultSet q = this.selectExact.executeQuery();
-            if (q.next())
-            {
-                value = q.getString(1);
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        value = properties.get(propertyName);
         if (value != null)
         {
             return value;
@@ -373,20 +393,7 @@ public final class JdbcConfigService
         List<String> data = new ArrayList<String>(
             immutableDefaultProperties.keySet());
         data.addAll(defaultProperties.keySet());
-        try
-        {
-            this.checkConnection();
-            ResultSet q = this.selectAll.executeQuery();
-            while (q.next())
-            {
-                data.add(q.getString(1));
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
+        data.addAll(properties.keySet());
 
         return data;
     }
@@ -402,44 +409,7 @@ public final class JdbcConfigService
     public List<String> getPropertyNamesByPrefix(String prefix,
         boolean exactPrefixMatch)
     {
-        try
-        {
-            List<String> resultSet = new ArrayList<String>(50);
-            this.checkConnection();
-            this.selectLike.setString(1, prefix + "%");
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if(ix == -1)
-                {
-                    continue;
-                }
-
-                String keyPrefix = key.substring(0, ix);
-                if(exactPrefixMatch)
-                {
-                    if(prefix.equals(keyPrefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-                else
-                {
-                    if(keyPrefix.startsWith(prefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-            }
-
-            return resultSet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return propertyNames.getNamesByPrefix(prefix, exactPrefixMatch);
     }
 
     /*
@@ -452,26 +422,7 @@ public final class JdbcConfigService
     @Override
     public List<String> getPropertyNamesBySuffix(String suffix)
     {
-        try
-        {
-            List<String> resultKeySet = new ArrayList<String>(20);
-            this.checkConnection();
-            this.selectLike.setString(1, "%" + suffix);
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if (ix != -1 && suffix.equals(key.substring(ix + 1)))
-                    resultKeySet.add(key);
-            }
-
-            return resultKeySet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return propertyNames.getNamesBySuffix(suffix);
     }
 
     /*
@@ -689,17 +640,31 @@ public final class JdbcConfigService
     @Override
     public void storeConfiguration() throws IOException
     {
-        try
-        {
-            this.connection.close();
-        }
-        catch (SQLException e)
+        SQLException failure = writePendingChanges();
+
+        synchronized (dbLock)
         {
-            logger.error(e);
+            if (this.connection != null)
+            {
+                try
+                {
+                    this.connection.close();
+                }
+                catch (SQLException e)
+                {
+                    logger.error(e);
+                }
+                finally
+                {
+                    this.connection = null;
+                }
+            }
         }
-        finally
+
+        if (failure != null)
         {
-            this.connection = null;
+            throw new IOException(
+                "Could not write the properties to the database", failure);
         }
     }
 
@@ -720,19 +685,30 @@ public final class JdbcConfigService
      * ()
      */
     @Override
-    public void purgeStoredConfiguration()
+    public synchronized void purgeStoredConfiguration()
     {
-        try
+        synchronized (pendingWrites)
         {
-            this.checkConnection();
-            Statement st = this.connection.createStatement();
-            st.executeUpdate("TRUNCATE TABLE Props");
+            pendingWrites.clear();
         }
-        catch (SQLException e)
+
+        synchronized (dbLock)
         {
-            logger.error(e);
-            throw new RuntimeException(e);
+            try
+            {
+                this.checkConnection();
+                Statement st = this.connection.createStatement();
+                st.executeUpdate("TRUNCATE TABLE Props");
+            }
+            catch (SQLException e)
+            {
+                logger.error(e);
+                throw new RuntimeException(e);
+            }
         }
+
+        properties.clear();
+        propertyNames.clear();
     }
 
     /*
@@ -774,6 +750,174 @@ public final class JdbcConfigService
     }
     
 
+    /**
+     * Queues a change to be written to the database, replacing an earlier
+     * change of the same property which was not written yet.
+     *
+     * @param propertyName the name of the changed property
+     * @param value the new value or <tt>null</tt> if the property was removed
+     */
+    private void queueWrite(String propertyName, String value)
+    {
+        synchronized (pendingWrites)
+        {
+            pendingWrites.remove(propertyName);
+            pendingWrites.put(propertyName, value);
+
+            if (writerThread == null)
+            {
+                writerThread = new Thread("JdbcConfigServiceWriter")
+                {
+                    @Override
+                    public void run()
+                    {
+                        runWriter();
+                    }
+                };
+                writerThread.setDaemon(true);
+                writerThread.start();
+            }
+        }
+    }
+
+    /**
+     * Writes the queued changes after giving more changes the chance to join
+     * the batch, until there are no more changes. Changes which could not be
+     * written are retried after a delay which doubles with each failure.
+     */
+    private void runWriter()
+    {
+        long delay = WRITE_DELAY;
+
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+            }
+
+            if (writePendingChanges() == null)
+                delay = WRITE_DELAY;
+            else
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+
+            synchronized (pendingWrites)
+            {
+                if (pendingWrites.isEmpty())
+                {
+                    writerThread = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all queued changes to the database in a single transaction. If
+     * the transaction fails, the changes are queued again unless newer
+     * changes of the same properties have been queued meanwhile.
+     *
+     * @return the <tt>SQLException</tt> which prevented the changes from
+     * being written or <tt>null</tt> if they were written
+     */
+    private SQLException writePendingChanges()
+    {
+        synchronized (dbLock)
+        {
+            Map<String, String> batch;
+            synchronized (pendingWrites)
+            {
+                if (pendingWrites.isEmpty())
+                {
+                    return null;
+                }
+
+                batch = new LinkedHashMap<String, String>(pendingWrites);
+                pendingWrites.clear();
+            }
+
+            try
+            {
+                this.checkConnection();
+                this.connection.setAutoCommit(false);
+                try
+                {
+                    for (Map.Entry<String, String> e : batch.entrySet())
+                    {
+                        if (e.getValue() == null)
+                        {
+                            this.delete.setString(1, e.getKey());
+                            this.delete.execute();
+                        }
+                        else
+                        {
+                            this.insertOrUpdate.setString(1, e.getKey());
+                            this.insertOrUpdate.setString(2, e.getValue());
+                            this.insertOrUpdate.execute();
+                        }
+                    }
+
+                    this.connection.commit();
+                }
+                finally
+                {
+                    this.connection.setAutoCommit(true);
+                }
+            }
+            catch (SQLException e)
+            {
+                logger.error("Could not write " + batch.size()
+                    + " properties to the database", e);
+                rollback();
+                requeueWrites(batch);
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rolls back the current transaction, if any, after a failed write.
+     */
+    private void rollback()
+    {
+        try
+        {
+            if (this.connection != null && !this.connection.isClosed())
+                this.connection.rollback();
+        }
+        catch (SQLException e)
+        {
+            logger.debug("Could not roll back the failed write", e);
+        }
+    }
+
+    /**
+     * Queues changes which could not be written ahead of the changes queued
+     * since, skipping the properties which have been changed again.
+     *
+     * @param batch the changes which could not be written
+     */
+    private void requeueWrites(Map<String, String> batch)
+    {
+        synchronized (pendingWrites)
+        {
+            Map<String, String> newer
+                = new LinkedHashMap<String, String>(pendingWrites);
+
+            pendingWrites.clear();
+            for (Map.Entry<String, String> e : batch.entrySet())
+            {
+                if (!newer.containsKey(e.getKey()))
+                    pendingWrites.put(e.getKey(), e.getValue());
+            }
+            pendingWrites.putAll(newer);
+        }
+    }
+
     /**
      * Loads the specified default properties maps from the Jitsi installation
      * directory. Typically this file is to be called for the default properties
@@ -10,6 +10,9 @@ import java.io.*;
 import java.util.*;
 
 import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactlist.event.*;
@@ -22,6 +25,7 @@ import org.jitsi.util.xml.*;
 import org.jitsi.util.xml.XMLUtils;
 import org.osgi.framework.*;
 import org.w3c.dom.*;
+import org.xml.sax.*;
 
 /**
  * The class handles read / write operations over the file where a persistent
@@ -38,6 +42,14 @@ import org.w3c.dom.*;
  * belonging to this new provider. Unresolved proto groups and contacts will be
  * created for every one of them.
  * <p>
+ * Modifications of the meta contact list are not written by rewriting the
+ * whole file. Every event is turned into a change record holding the new
+ * state of the meta contact or group it concerns, records for the same
+ * element are coalesced for a short while and then appended to a journal
+ * next to the contact list file. The journal is folded into the contact list
+ * file (a checkpoint) once it grows larger than the file itself, on shutdown
+ * and after it has been replayed on startup.
+ * <p>
  *
  * @author Emil Ivov
  */
@@ -56,10 +68,25 @@ public class MclStorageManager
 
     /**
      * Indicates whether there has been a change since the last time we stored
-     * this contact list. Used by the storage methods.
+     * this contact list which cannot be expressed as a journal record, so the
+     * whole contact list has to be stored. Used by the storage methods.
      */
     private boolean isModified = false;
 
+    /**
+     * The journal records which have not been written yet, by the meta UID
+     * of the element they concern and in the order of their last
+     * modification. Only the latest record of an element is kept.
+     */
+    private final Map<String, String> pendingRecords
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * The time of the oldest modification which has not been written yet or
+     * <tt>-1</tt> if there is none.
+     */
+    private long firstPendingModification = -1;
+
     /**
      * A currently valid reference to the OSGI bundle context,
      */
@@ -93,6 +120,17 @@ public class MclStorageManager
      */
     private FailSafeTransaction contactlistTrans = null;
 
+    /**
+     * A reference to the journal holding the modifications made since the
+     * contact list file was last written.
+     */
+    private File journalFile = null;
+
+    /**
+     * The transformer writing journal records.
+     */
+    private Transformer recordTransformer = null;
+
     /**
      * A reference to the MetaContactListServiceImpl that created and started
      * us.
@@ -105,6 +143,62 @@ public class MclStorageManager
      */
     private static final String DEFAULT_FILE_NAME = "contactlist.xml";
 
+    /**
+     * The suffix appended to the name of the contact list file to get the
+     * name of its journal.
+     */
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    /**
+     * The number of milliseconds modifications are collected for before they
+     * are written, so that bursts of events such as a roster synchronization
+     * are written at once and with a single record per modified element.
+     */
+    private static final long COALESCING_WINDOW = 1000;
+
+    /**
+     * The size in bytes below which the journal is never folded into the
+     * contact list file. Above it, the journal is folded as soon as it grows
+     * larger than the contact list file.
+     */
+    private static final long MIN_CHECKPOINT_JOURNAL_SIZE = 64 * 1024;
+
+    /**
+     * The name of the journal record holding the new state of a meta
+     * contact.
+     */
+    private static final String PUT_CONTACT_RECORD_NAME = "put-contact";
+
+    /**
+     * The name of the journal record telling that a meta contact was
+     * removed.
+     */
+    private static final String REMOVE_CONTACT_RECORD_NAME = "remove-contact";
+
+    /**
+     * The name of the journal record holding the new state of a meta contact
+     * group and all its contents.
+     */
+    private static final String PUT_GROUP_RECORD_NAME = "put-group";
+
+    /**
+     * The name of the journal record holding the new name of a meta contact
+     * group.
+     */
+    private static final String RENAME_GROUP_RECORD_NAME = "rename-group";
+
+    /**
+     * The name of the journal record telling that a meta contact group was
+     * removed.
+     */
+    private static final String REMOVE_GROUP_RECORD_NAME = "remove-group";
+
+    /**
+     * The name of the journal record attribute holding the meta UID of the
+     * parent group of a meta contact or group.
+     */
+    private static final String PARENT_ATTR_NAME = "parent";
+
     /**
      * The name of the node that represents the contact list root.
      */
@@ -326,6 +420,22 @@ public class MclStorageManager
             logger.error("The contactlist file can't be found", e);
         }
 
+        journalFile = new File(contactlistFile.getParentFile(),
+            contactlistFile.getName() + JOURNAL_FILE_SUFFIX);
+
+        try
+        {
+            recordTransformer
+                = TransformerFactory.newInstance().newTransformer();
+            recordTransformer.setOutputProperty(
+                OutputKeys.OMIT_XML_DECLARATION, "yes");
+            recordTransformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        }
+        catch (TransformerConfigurationException ex)
+        {
+            throw new XMLException("Failed to create a journal writer", ex);
+        }
+
         try
         {
             // load the contact list
@@ -338,6 +448,9 @@ public class MclStorageManager
                 contactListDocument = builder.newDocument();
                 initVirginDocument(mclServImpl, contactListDocument);
 
+                // a journal without its contact list is of no use
+                journalFile.delete();
+
                 // write the contact list so that it is there for the parser
                 storeContactList0();
             }
@@ -346,6 +459,12 @@ public class MclStorageManager
                 try
                 {
                     contactListDocument = builder.parse(contactlistFile);
+
+                    // bring in the modifications made since the last time
+                    // the file was written, they'll be folded into the file
+                    // by the storage thread.
+                    if (replayJournal(builder))
+                        isModified = true;
                 }
                 catch (Throwable ex)
                 {
@@ -357,6 +476,7 @@ public class MclStorageManager
                     contactlistFile.createNewFile();
                     contactListDocument = builder.newDocument();
                     initVirginDocument(mclServImpl, contactListDocument);
+                    journalFile.delete();
 
                     // write the contact list so that it is there for the parser
                     storeContactList0();
@@ -389,10 +509,251 @@ public class MclStorageManager
                 return;
 
             this.isModified = true;
+            scheduleStorage0();
+        }
+    }
+
+    /**
+     * Schedules the writing of the current state of a meta contact to the
+     * journal.
+     *
+     * @param metaContactNode the node of the modified meta contact
+     * @throws IOException if writing fails.
+     */
+    private void scheduleMetaContactStorage(Element metaContactNode)
+        throws IOException
+    {
+        // the meta contact node is in the child contacts node of its group
+        Element groupNode
+            = (Element) metaContactNode.getParentNode().getParentNode();
+
+        Element record
+            = contactListDocument.createElement(PUT_CONTACT_RECORD_NAME);
+
+        record.setAttribute(PARENT_ATTR_NAME,
+            groupNode.getAttribute(GROUP_UID_ATTR_NAME));
+        record.appendChild(metaContactNode.cloneNode(true));
+
+        scheduleRecordStorage(
+            metaContactNode.getAttribute(UID_ATTR_NAME), record);
+    }
+
+    /**
+     * Schedules the writing of the removal of a meta contact to the journal.
+     *
+     * @param metaContactUID the meta UID of the removed meta contact
+     * @throws IOException if writing fails.
+     */
+    private void scheduleMetaContactRemoval(String metaContactUID)
+        throws IOException
+    {
+        Element record
+            = contactListDocument.createElement(REMOVE_CONTACT_RECORD_NAME);
+
+        record.setAttribute(UID_ATTR_NAME, metaContactUID);
+
+        scheduleRecordStorage(metaContactUID, record);
+    }
+
+    /**
+     * Schedules the writing of the current state of a meta contact group,
+     * including its subgroups and child contacts, to the journal. The root
+     * group is the whole contact list, so the file is rewritten instead.
+     *
+     * @param metaGroupNode the node of the modified meta contact group
+     * @throws IOException if writing fails.
+     */
+    private void scheduleMetaContactGroupStorage(Element metaGroupNode)
+        throws IOException
+    {
+        // the group node is in the subgroups node of its parent group
+        Node parentGroupNode = metaGroupNode.getParentNode().getParentNode();
+
+        if (!(parentGroupNode instanceof Element)
+            || !GROUP_NODE_NAME.equals(parentGroupNode.getNodeName()))
+        {
+            scheduleContactListStorage();
+            return;
+        }
+
+        Element record
+            = contactListDocument.createElement(PUT_GROUP_RECORD_NAME);
+
+        record.setAttribute(PARENT_ATTR_NAME,
+            ((Element) parentGroupNode).getAttribute(GROUP_UID_ATTR_NAME));
+        record.appendChild(metaGroupNode.cloneNode(true));
+
+        scheduleRecordStorage(
+            metaGroupNode.getAttribute(GROUP_UID_ATTR_NAME), record);
+    }
+
+    /**
+     * Schedules the writing of the new name of a meta contact group to the
+     * journal.
+     *
+     * @param metaGroupNode the node of the renamed meta contact group
+     * @throws IOException if writing fails.
+     */
+    private void scheduleMetaContactGroupRename(Element metaGroupNode)
+        throws IOException
+    {
+        String uid = metaGroupNode.getAttribute(GROUP_UID_ATTR_NAME);
+
+        synchronized (contactListRWLock)
+        {
+            // a pending record of the whole group has to carry the new name
+            // rather than be replaced by the rename
+            if (pendingRecords.containsKey(uid))
+            {
+                scheduleMetaContactGroupStorage(metaGroupNode);
+                return;
+            }
+        }
+
+        Element record
+            = contactListDocument.createElement(RENAME_GROUP_RECORD_NAME);
+
+        record.setAttribute(UID_ATTR_NAME, uid);
+        record.setAttribute(GROUP_NAME_ATTR_NAME,
+            metaGroupNode.getAttribute(GROUP_NAME_ATTR_NAME));
+
+        scheduleRecordStorage(uid, record);
+    }
+
+    /**
+     * Schedules the writing of the removal of a meta contact group to the
+     * journal.
+     *
+     * @param metaGroupUID the meta UID of the removed meta contact group
+     * @throws IOException if writing fails.
+     */
+    private void scheduleMetaContactGroupRemoval(String metaGroupUID)
+        throws IOException
+    {
+        Element record
+            = contactListDocument.createElement(REMOVE_GROUP_RECORD_NAME);
+
+        record.setAttribute(UID_ATTR_NAME, metaGroupUID);
+
+        scheduleRecordStorage(metaGroupUID, record);
+    }
+
+    /**
+     * Queues a journal record, replacing any pending record of the same
+     * element, and wakes the storage thread up.
+     *
+     * @param uid the meta UID of the element the record is about
+     * @param record the record
+     * @throws IOException if the record cannot be serialized.
+     */
+    private void scheduleRecordStorage(String uid, Element record)
+        throws IOException
+    {
+        String line = toJournalLine(record);
+
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            // the records are written in the order of the last modification
+            // of their elements
+            pendingRecords.remove(uid);
+            pendingRecords.put(uid, line);
+            scheduleStorage0();
+        }
+    }
+
+    /**
+     * Notes the time of the first modification since the last write and
+     * wakes the storage thread up. Must be called while holding
+     * <tt>contactListRWLock</tt>.
+     */
+    private void scheduleStorage0()
+    {
+        if (firstPendingModification == -1)
+        {
+            firstPendingModification = System.currentTimeMillis();
             contactListRWLock.notifyAll();
         }
     }
 
+    /**
+     * Serializes a journal record on a single line, so that a record torn by
+     * a crash cannot be mistaken for a valid one.
+     *
+     * @param record the record
+     * @return the line of the record
+     * @throws IOException if the record cannot be serialized.
+     */
+    private String toJournalLine(Element record)
+        throws IOException
+    {
+        StringWriter writer = new StringWriter();
+
+        try
+        {
+            synchronized (recordTransformer)
+            {
+                recordTransformer.transform(
+                    new DOMSource(record), new StreamResult(writer));
+            }
+        }
+        catch (TransformerException ex)
+        {
+            throw new IOException("Failed to serialize " + record.getNodeName()
+                + " record: " + ex.getMessage());
+        }
+
+        // line breaks only appear in text and attribute values
+        return writer.toString().replace("\r", "&#13;").replace("\n", "&#10;");
+    }
+
+    /**
+     * Writes the modifications made since the last write, either by
+     * appending them to the journal or, if the whole contact list has to be
+     * stored or the journal has grown larger than the contact list file, by
+     * writing the contact list file. Must be called while holding
+     * <tt>contactListRWLock</tt>.
+     *
+     * @throws IOException in case writing fails.
+     */
+    private void storeModifications0() throws IOException
+    {
+        if (isModified
+            || journalFile.length()
+                > Math.max(MIN_CHECKPOINT_JOURNAL_SIZE,
+                           contactlistFile.length()))
+        {
+            storeContactList0();
+            return;
+        }
+
+        if (logger.isTraceEnabled())
+            logger.trace("Appending " + pendingRecords.size()
+                + " records to the contact list journal.");
+
+        Writer writer
+            = new OutputStreamWriter(
+                    new FileOutputStream(journalFile, true), "UTF-8");
+
+        try
+        {
+            for (String line : pendingRecords.values())
+            {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        pendingRecords.clear();
+        firstPendingModification = -1;
+    }
+
     /**
      * Writes the contact list on the hard disk.
      *
@@ -432,13 +793,192 @@ public class MclStorageManager
             {
                 logger.error("the contactlist file is missing", e);
             }
+
+            // the file now holds everything the journal did. the records are
+            // idempotent so a crash before the journal is gone is harmless.
+            if (journalFile.exists() && !journalFile.delete())
+                logger.error("Failed to delete the contact list journal "
+                    + journalFile);
+            pendingRecords.clear();
+            firstPendingModification = -1;
+            isModified = false;
+        }
+    }
+
+    /**
+     * Applies the records of the journal to the freshly parsed contact list
+     * document. A record which cannot be parsed, i.e. the last one if it was
+     * being written when the application died, ends the replay.
+     *
+     * @param builder the builder to parse the records with
+     * @return <tt>true</tt> if any record was applied
+     */
+    private boolean replayJournal(DocumentBuilder builder)
+    {
+        if (!journalFile.exists())
+            return false;
+
+        int count = 0;
+
+        try
+        {
+            BufferedReader reader
+                = new BufferedReader(
+                        new InputStreamReader(
+                                new FileInputStream(journalFile), "UTF-8"));
+
+            try
+            {
+                String line;
+
+                while ((line = reader.readLine()) != null)
+                {
+                    if (line.length() == 0)
+                        continue;
+
+                    Element record;
+
+                    try
+                    {
+                        record
+                            = builder.parse(new InputSource(
+                                    new StringReader(line)))
+                                .getDocumentElement();
+                    }
+                    catch (SAXException ex)
+                    {
+                        logger.warn("Ignoring the rest of the contact list "
+                            + "journal after a damaged record", ex);
+                        break;
+                    }
+
+                    applyRecord((Element) contactListDocument.importNode(
+                        record, true));
+                    count++;
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to read the contact list journal", ex);
+        }
+
+        if (logger.isInfoEnabled())
+            logger.info("Replayed " + count
+                + " records of the contact list journal.");
+
+        return count > 0;
+    }
+
+    /**
+     * Applies a journal record to the contact list document. Records hold
+     * the new state of the elements they concern, so applying one twice is
+     * harmless.
+     *
+     * @param record the record, imported in the contact list document
+     */
+    private void applyRecord(Element record)
+    {
+        String name = record.getNodeName();
+
+        if (PUT_CONTACT_RECORD_NAME.equals(name)
+            || PUT_GROUP_RECORD_NAME.equals(name))
+        {
+            boolean isGroup = PUT_GROUP_RECORD_NAME.equals(name);
+            Element node = XMLUtils.findChild(record,
+                isGroup ? GROUP_NODE_NAME : META_CONTACT_NODE_NAME);
+
+            if (node == null)
+                return;
+
+            // drop the former state of the element and of all elements the
+            // record contains, wherever they are now.
+            removeNodes(node, META_CONTACT_NODE_NAME, UID_ATTR_NAME);
+            removeNodes(node, GROUP_NODE_NAME, GROUP_UID_ATTR_NAME);
+
+            // the parent may be a group which was added later on, its own
+            // record then brings this element back.
+            Element parentNode = findMetaContactGroupNode(
+                record.getAttribute(PARENT_ATTR_NAME));
+
+            if (parentNode == null)
+                return;
+
+            Element containerNode = XMLUtils.findChild(parentNode,
+                isGroup ? SUBGROUPS_NODE_NAME : CHILD_CONTACTS_NODE_NAME);
+
+            if (containerNode != null)
+                containerNode.appendChild(node);
+        }
+        else if (REMOVE_CONTACT_RECORD_NAME.equals(name))
+        {
+            Element node
+                = findMetaContactNode(record.getAttribute(UID_ATTR_NAME));
+
+            if (node != null)
+                node.getParentNode().removeChild(node);
+        }
+        else if (REMOVE_GROUP_RECORD_NAME.equals(name))
+        {
+            Element node
+                = findMetaContactGroupNode(record.getAttribute(UID_ATTR_NAME));
+
+            if (node != null)
+                node.getParentNode().removeChild(node);
+        }
+        else if (RENAME_GROUP_RECORD_NAME.equals(name))
+        {
+            Element node
+                = findMetaContactGroupNode(record.getAttribute(UID_ATTR_NAME));
+
+            if (node != null)
+                node.setAttribute(GROUP_NAME_ATTR_NAME,
+                    record.getAttribute(GROUP_NAME_ATTR_NAME));
+        }
+        else
+            logger.warn("Unknown contact list journal record " + name);
+    }
+
+    /**
+     * Removes from the contact list document the nodes having the same name
+     * and UID as <tt>node</tt> or any of its descendants.
+     *
+     * @param node the node whose UIDs are looked for
+     * @param nodeName the name of the nodes to remove
+     * @param uidAttrName the name of the attribute holding the UID
+     */
+    private void removeNodes(Element node, String nodeName,
+                             String uidAttrName)
+    {
+        List<Element> nodes = new ArrayList<Element>();
+
+        if (nodeName.equals(node.getNodeName()))
+            nodes.add(node);
+
+        NodeList descendants = node.getElementsByTagName(nodeName);
+        for (int i = 0; i < descendants.getLength(); i++)
+            nodes.add((Element) descendants.item(i));
+
+        Element root = (Element) contactListDocument.getFirstChild();
+
+        for (Element n : nodes)
+        {
+            Element existing = XMLUtils.locateElement(root, nodeName,
+                uidAttrName, n.getAttribute(uidAttrName));
+
+            if (existing != null)
+                existing.getParentNode().removeChild(existing);
         }
     }
 
     /**
      * Launches a separate thread that waits on the contact list rw lock and
-     * when notified stores the contact list in case there have been
-     * modifications since last time it saved.
+     * when notified stores the modifications of the contact list, once they
+     * have been coalesced for <tt>COALESCING_WINDOW</tt> milliseconds.
      */
     private void launchStorageThread()
     {
@@ -453,12 +993,25 @@ public class MclStorageManager
                     {
                         while (isStarted())
                         {
-                            contactListRWLock.wait(5000);
-                            if (isModified)
+                            long wait = 5000;
+
+                            if (isModified || !pendingRecords.isEmpty())
                             {
-                                storeContactList0();
-                                isModified = false;
+                                if (firstPendingModification == -1)
+                                    firstPendingModification
+                                        = System.currentTimeMillis();
+
+                                wait = firstPendingModification
+                                    + COALESCING_WINDOW
+                                    - System.currentTimeMillis();
+                                if (wait <= 0)
+                                {
+                                    storeModifications0();
+                                    continue;
+                                }
                             }
+
+                            contactListRWLock.wait(wait);
                         }
                     }
                 }
@@ -487,21 +1040,25 @@ public class MclStorageManager
             if (!isStarted())
                 return;
 
-            started = false;
-
             // make sure everyone gets released after we finish.
             contactListRWLock.notifyAll();
 
-            // write the contact list ourselves before we go out..
+            // write the contact list ourselves before we go out, folding in
+            // the journal if there is one.
             try
             {
-                storeContactList0();
+                if (isModified
+                    || !pendingRecords.isEmpty()
+                    || journalFile.length() > 0)
+                    storeContactList0();
             }
             catch (IOException ex)
             {
                 logger
                     .debug("Failed to store contact list before stopping", ex);
             }
+
+            started = false;
         }
     }
 
@@ -1256,7 +1813,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(metaContactElement);
         }
         catch (IOException ex)
         {
@@ -1310,7 +1867,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactGroupStorage(newGroupElement);
         }
         catch (IOException ex)
         {
@@ -1349,7 +1906,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactGroupRemoval(
+                evt.getSourceMetaContactGroup().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1408,7 +1966,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1494,7 +2052,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactRemoval(
+                evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1549,7 +2108,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1589,7 +2148,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1735,7 +2294,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1777,7 +2336,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(oldMcNode);
         }
         catch (IOException ex)
         {
@@ -1845,7 +2404,7 @@ public class MclStorageManager
 
             try
             {
-                scheduleContactListStorage();
+                scheduleMetaContactGroupStorage(newGroupElement);
             }
             catch (IOException ex)
             {
@@ -1859,16 +2418,19 @@ public class MclStorageManager
                     "Writing CL failed after adding contact " + mcGroup,
                     ex);
             }
-            break;
+            return;
         case MetaContactGroupEvent.META_CONTACT_GROUP_RENAMED:
             mcGroupNode
                 .setAttribute(GROUP_NAME_ATTR_NAME, mcGroup.getGroupName());
             break;
+        default:
+            // nothing we store has changed
+            return;
         }
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactGroupRename(mcGroupNode);
         }
         catch (IOException ex)
         {
@@ -1910,7 +2472,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(mcNode);
         }
         catch (IOException ex)
         {
@@ -1968,7 +2530,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(oldMcNode);
+            scheduleMetaContactStorage(newMcNode);
         }
         catch (IOException ex)
         {
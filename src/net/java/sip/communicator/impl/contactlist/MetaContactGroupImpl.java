@@ -699,6 +699,8 @@ public class MetaContactGroupImpl
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+
+        mclServiceImpl.getIndex().metaContactAdded(metaContact);
     }
 
     /**
@@ -756,6 +758,8 @@ public class MetaContactGroupImpl
     {
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
+
+        mclServiceImpl.getIndex().metaContactRemoved(metaContact);
     }
 
     /**
@@ -846,6 +850,19 @@ public class MetaContactGroupImpl
         return this.subgroups.contains(group);
     }
 
+    /**
+     * Returns true if and only if <tt>protoGroup</tt> is one of the protocol
+     * specific groups merged in this <tt>MetaContactGroup</tt>.
+     * @param protoGroup the <tt>ContactGroup</tt> whose relation to this group
+     * we'd like to determine.
+     * @return <tt>true</tt> if <tt>protoGroup</tt> is merged in this group
+     * and <tt>false</tt> otherwise.
+     */
+    boolean containsContactGroup(ContactGroup protoGroup)
+    {
+        return this.protoGroups.contains(protoGroup);
+    }
+
 
     /**
      * Returns an <tt>java.util.Iterator</tt> over the sub groups that this
@@ -938,6 +955,8 @@ public class MetaContactGroupImpl
     void addProtoGroup( ContactGroup protoGroup)
     {
         protoGroups.add(protoGroup);
+
+        mclServiceImpl.getIndex().protoGroupAdded(this, protoGroup);
     }
 
     /**
@@ -949,6 +968,8 @@ public class MetaContactGroupImpl
     void removeProtoGroup( ContactGroup protoGroup)
     {
         protoGroups.remove(protoGroup);
+
+        mclServiceImpl.getIndex().protoGroupRemoved(this, protoGroup);
     }
 
     /**
@@ -966,6 +987,9 @@ public class MetaContactGroupImpl
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        mclServiceImpl.getIndex().metaGroupAdded(
+            (MetaContactGroupImpl) subgroup);
     }
 
     /**
@@ -979,7 +1003,10 @@ public class MetaContactGroupImpl
             (MetaContactGroupImpl)subgroupsOrderedCopy.get(index);
 
         if (subgroups.remove(subgroup))
+        {
             subgroup.parentMetaContactGroup = null;
+            mclServiceImpl.getIndex().metaGroupRemoved(subgroup);
+        }
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
@@ -994,7 +1021,17 @@ public class MetaContactGroupImpl
      */
     boolean removeSubgroup(MetaContactGroup group)
     {
-        return subgroups.remove(group);
+        if (!subgroups.remove(group))
+            return false;
+
+        // the parent stays set because the listeners of the removal event,
+        // fired after this method returns, look the group up under it
+        subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
+
+        mclServiceImpl.getIndex().metaGroupRemoved(
+            (MetaContactGroupImpl) group);
+
+        return true;
     }
 
     /**
@@ -687,7 +687,11 @@ public class MetaContactImpl
             }
 
             if (parentGroup != null)
+            {
                 parentGroup.lightAddMetaContact(this);
+                parentGroup.getMclServiceImpl().getIndex()
+                    .protoContactAdded(this, contact);
+            }
 
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
@@ -780,7 +784,11 @@ public class MetaContactImpl
             }
 
             if (parentGroup != null)
+            {
                 parentGroup.lightAddMetaContact(this);
+                parentGroup.getMclServiceImpl().getIndex()
+                    .protoContactRemoved(this, contact);
+            }
 
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
@@ -821,6 +829,7 @@ public class MetaContactImpl
             {
                 contactsIter.remove();
                 modified = true;
+                protoContactRemoved(contact);
             }
         }
 
@@ -854,6 +863,7 @@ public class MetaContactImpl
             {
                 contactsIter.remove();
                 modified = true;
+                protoContactRemoved(contact);
             }
         }
 
@@ -867,6 +877,21 @@ public class MetaContactImpl
     }
 
 
+    /**
+     * Drops <tt>contact</tt>, which has just been removed from this meta
+     * contact, from the index of the contact list.
+     *
+     * @param contact the removed protocol contact
+     */
+    private void protoContactRemoved(Contact contact)
+    {
+        MetaContactGroupImpl parentGroup = this.parentGroup;
+
+        if (parentGroup != null)
+            parentGroup.getMclServiceImpl().getIndex()
+                .protoContactRemoved(this, contact);
+    }
+
     /**
      * Sets <tt>parentGroup</tt> as a parent of this meta contact. Do not
      * call this method with a null argument even if a group is removing
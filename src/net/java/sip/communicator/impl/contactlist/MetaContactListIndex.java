@@ -0,0 +1,244 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Hash indexes over the meta contact list, which let the
+ * <tt>MetaContactListServiceImpl</tt> find the <tt>MetaContact</tt> of a
+ * protocol contact, the <tt>MetaContact</tt> with a given UID and the
+ * <tt>MetaContactGroup</tt> of a protocol group without walking the whole
+ * tree for every presence, message or subscription event.
+ * <p>
+ * The index is updated by the <tt>MetaContactImpl</tt> and
+ * <tt>MetaContactGroupImpl</tt> methods which attach and detach meta
+ * contacts, meta groups and their protocol contacts and groups, so moves and
+ * merges, which are made of such detach and attach steps, keep it current.
+ * Entries are only removed if they still point to the detached element, so a
+ * move racing with a removal cannot drop the entry of the new location.
+ * <p>
+ * The index is a cache of the tree rather than its replacement: the service
+ * checks every hit against the tree and falls back to walking it on a miss.
+ */
+class MetaContactListIndex
+{
+    /**
+     * The meta contacts by the keys of their protocol contacts, see
+     * {@link #contactKey(String, String)}.
+     */
+    private final ConcurrentMap<String, MetaContactImpl> byContact
+        = new ConcurrentHashMap<String, MetaContactImpl>();
+
+    /**
+     * The meta contacts by their meta UIDs.
+     */
+    private final ConcurrentMap<String, MetaContactImpl> byMetaUID
+        = new ConcurrentHashMap<String, MetaContactImpl>();
+
+    /**
+     * The meta groups by the identities of their protocol groups. Protocol
+     * groups may be renamed, which changes the hash code of some
+     * implementations, so they are not used as hash keys.
+     */
+    private final Map<ContactGroup, MetaContactGroupImpl> byContactGroup
+        = new IdentityHashMap<ContactGroup, MetaContactGroupImpl>();
+
+    /**
+     * Returns the indexed meta contact holding the protocol contact with the
+     * given address and account.
+     *
+     * @param contactAddress the address of the protocol contact
+     * @param accountID the unique ID of the account of the protocol contact
+     * @return the indexed meta contact or <tt>null</tt>
+     */
+    MetaContactImpl getMetaContact(String contactAddress, String accountID)
+    {
+        return byContact.get(contactKey(contactAddress, accountID));
+    }
+
+    /**
+     * Returns the indexed meta contact with the given UID.
+     *
+     * @param metaUID the meta UID
+     * @return the indexed meta contact or <tt>null</tt>
+     */
+    MetaContactImpl getMetaContact(String metaUID)
+    {
+        return byMetaUID.get(metaUID);
+    }
+
+    /**
+     * Returns the indexed meta group merging the given protocol group.
+     *
+     * @param protoGroup the protocol group
+     * @return the indexed meta group or <tt>null</tt>
+     */
+    MetaContactGroupImpl getMetaContactGroup(ContactGroup protoGroup)
+    {
+        synchronized (byContactGroup)
+        {
+            return byContactGroup.get(protoGroup);
+        }
+    }
+
+    /**
+     * Indexes a meta contact which has been attached to a meta group,
+     * together with its protocol contacts.
+     *
+     * @param metaContact the attached meta contact
+     */
+    void metaContactAdded(MetaContactImpl metaContact)
+    {
+        byMetaUID.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            protoContactAdded(metaContact, contacts.next());
+    }
+
+    /**
+     * Drops a meta contact which has been detached from its meta group,
+     * together with its protocol contacts.
+     *
+     * @param metaContact the detached meta contact
+     */
+    void metaContactRemoved(MetaContactImpl metaContact)
+    {
+        byMetaUID.remove(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            protoContactRemoved(metaContact, contacts.next());
+    }
+
+    /**
+     * Indexes a protocol contact which has been merged into a meta contact.
+     *
+     * @param metaContact the meta contact
+     * @param protoContact the protocol contact
+     */
+    void protoContactAdded(MetaContactImpl metaContact, Contact protoContact)
+    {
+        byContact.put(contactKey(protoContact), metaContact);
+    }
+
+    /**
+     * Drops a protocol contact which has been removed from a meta contact.
+     *
+     * @param metaContact the meta contact
+     * @param protoContact the protocol contact
+     */
+    void protoContactRemoved(MetaContactImpl metaContact, Contact protoContact)
+    {
+        byContact.remove(contactKey(protoContact), metaContact);
+    }
+
+    /**
+     * Indexes a meta group which has been attached to the tree, together
+     * with its protocol groups, meta contacts and subgroups.
+     *
+     * @param metaGroup the attached meta group
+     */
+    void metaGroupAdded(MetaContactGroupImpl metaGroup)
+    {
+        Iterator<ContactGroup> protoGroups = metaGroup.getContactGroups();
+        while (protoGroups.hasNext())
+            protoGroupAdded(metaGroup, protoGroups.next());
+
+        Iterator<MetaContact> metaContacts = metaGroup.getChildContacts();
+        while (metaContacts.hasNext())
+            metaContactAdded((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
+        while (subgroups.hasNext())
+            metaGroupAdded((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Drops a meta group which has been detached from the tree, together
+     * with its protocol groups, meta contacts and subgroups.
+     *
+     * @param metaGroup the detached meta group
+     */
+    void metaGroupRemoved(MetaContactGroupImpl metaGroup)
+    {
+        Iterator<ContactGroup> protoGroups = metaGroup.getContactGroups();
+        while (protoGroups.hasNext())
+            protoGroupRemoved(metaGroup, protoGroups.next());
+
+        Iterator<MetaContact> metaContacts = metaGroup.getChildContacts();
+        while (metaContacts.hasNext())
+            metaContactRemoved((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
+        while (subgroups.hasNext())
+            metaGroupRemoved((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Indexes a protocol group which has been merged into a meta group.
+     *
+     * @param metaGroup the meta group
+     * @param protoGroup the protocol group
+     */
+    void protoGroupAdded(MetaContactGroupImpl metaGroup,
+                         ContactGroup protoGroup)
+    {
+        synchronized (byContactGroup)
+        {
+            byContactGroup.put(protoGroup, metaGroup);
+        }
+    }
+
+    /**
+     * Drops a protocol group which has been removed from a meta group.
+     *
+     * @param metaGroup the meta group
+     * @param protoGroup the protocol group
+     */
+    void protoGroupRemoved(MetaContactGroupImpl metaGroup,
+                           ContactGroup protoGroup)
+    {
+        synchronized (byContactGroup)
+        {
+            if (byContactGroup.get(protoGroup) == metaGroup)
+                byContactGroup.remove(protoGroup);
+        }
+    }
+
+    /**
+     * Returns the key of a protocol contact in {@link #byContact}.
+     *
+     * @param protoContact the protocol contact
+     * @return the key of <tt>protoContact</tt>
+     */
+    static String contactKey(Contact protoContact)
+    {
+        return contactKey(
+            protoContact.getAddress(),
+            protoContact.getProtocolProvider().getAccountID()
+                .getAccountUniqueID());
+    }
+
+    /**
+     * Returns the key of the protocol contact with the given address and
+     * account in {@link #byContact}.
+     *
+     * @param contactAddress the address of the protocol contact
+     * @param accountID the unique ID of the account of the protocol contact
+     * @return the key of the protocol contact
+     */
+    static String contactKey(String contactAddress, String accountID)
+    {
+        return accountID + '\u0000' + contactAddress;
+    }
+}
@@ -50,6 +50,13 @@ public class MetaContactListServiceImpl
     private final Map<String, ProtocolProviderService> currentlyInstalledProviders
         = new Hashtable<String, ProtocolProviderService>();
 
+    /**
+     * The hash indexes answering the lookups of meta contacts and groups by
+     * protocol contact, protocol group and meta UID. Must be created before
+     * the root group.
+     */
+    private final MetaContactListIndex index = new MetaContactListIndex();
+
     /**
      * The root of the meta contact list.
      */
@@ -1619,7 +1626,20 @@ public class MetaContactListServiceImpl
     public MetaContactGroup findMetaContactGroupByContactGroup
         (ContactGroup contactGroup)
     {
-        return rootMetaGroup.findMetaContactGroupByContactGroup(contactGroup);
+        MetaContactGroupImpl metaGroup
+            = index.getMetaContactGroup(contactGroup);
+
+        if (metaGroup != null
+            && metaGroup.containsContactGroup(contactGroup)
+            && isInContactList(metaGroup))
+            return metaGroup;
+
+        metaGroup
+            = rootMetaGroup.findMetaContactGroupByContactGroup(contactGroup);
+        if (metaGroup != null)
+            index.protoGroupAdded(metaGroup, contactGroup);
+
+        return metaGroup;
     }
 
     /**
@@ -1637,7 +1657,18 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
-        return rootMetaGroup.findMetaContactByContact(contact);
+        String address = contact.getAddress();
+        ProtocolProviderService provider = contact.getProtocolProvider();
+        MetaContactImpl metaContact
+            = index.getMetaContact(
+                    address, provider.getAccountID().getAccountUniqueID());
+
+        if (metaContact != null
+            && metaContact.getContact(address, provider) != null
+            && isInContactList(metaContact))
+            return metaContact;
+
+        return reindex(rootMetaGroup.findMetaContactByContact(contact));
     }
 
     /**
@@ -1660,8 +1691,16 @@ public class MetaContactListServiceImpl
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress
-                                                      , accountID);
+        MetaContactImpl metaContact
+            = index.getMetaContact(contactAddress, accountID);
+
+        if (metaContact != null
+            && metaContact.getContact(contactAddress, accountID) != null
+            && isInContactList(metaContact))
+            return metaContact;
+
+        return reindex(rootMetaGroup.findMetaContactByContact(contactAddress
+                                                              , accountID));
     }
 
     /**
@@ -1674,8 +1713,73 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
+        MetaContactImpl metaContact = index.getMetaContact(metaContactID);
+
+        if (metaContact != null && isInContactList(metaContact))
+            return metaContact;
+
+        return reindex(rootMetaGroup.findMetaContactByMetaUID(metaContactID));
+    }
+
+    /**
+     * Returns the indexes of this contact list, which are kept up to date by
+     * the <tt>MetaContactImpl</tt> and <tt>MetaContactGroupImpl</tt>
+     * instances of the list.
+     *
+     * @return the indexes of this contact list
+     */
+    MetaContactListIndex getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Indexes a meta contact found by walking the tree, which the index
+     * missed, e.g. because one of its protocol contacts changed its address.
+     *
+     * @param metaContact the found meta contact or <tt>null</tt>
+     * @return <tt>metaContact</tt>
+     */
+    private MetaContact reindex(MetaContact metaContact)
+    {
+        if (metaContact != null)
+            index.metaContactAdded((MetaContactImpl) metaContact);
+
+        return metaContact;
+    }
+
+    /**
+     * Determines whether <tt>metaContact</tt> is currently attached to this
+     * contact list, as the index may still hold meta contacts which have
+     * been removed.
+     *
+     * @param metaContact the meta contact to check
+     * @return <tt>true</tt> if <tt>metaContact</tt> is in a group of this
+     * contact list
+     */
+    private boolean isInContactList(MetaContactImpl metaContact)
+    {
+        MetaContactGroupImpl parentGroup = metaContact.getParentGroup();
+
+        return parentGroup != null && isInContactList(parentGroup);
+    }
+
+    /**
+     * Determines whether <tt>metaGroup</tt> is currently attached to this
+     * contact list, i.e. whether its ancestors lead to the root group.
+     *
+     * @param metaGroup the meta group to check
+     * @return <tt>true</tt> if <tt>metaGroup</tt> is the root group or one
+     * of its descendants
+     */
+    private boolean isInContactList(MetaContactGroupImpl metaGroup)
+    {
+        MetaContactGroup group = metaGroup;
+
+        while (group.getParentMetaContactGroup() != null)
+            group = group.getParentMetaContactGroup();
 
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+        return group == rootMetaGroup;
     }
 
     /**
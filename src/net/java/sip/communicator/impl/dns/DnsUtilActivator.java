@@ -111,6 +111,14 @@ public class DnsUtilActivator
         if(Logger.getLogger("org.xbill").isTraceEnabled())
             Options.set("verbose", "1");
 
+        // answers saved without DNSSEC would not have been validated
+        if(!getConfigurationService().getBoolean(
+                CustomResolver.PNAME_DNSSEC_RESOLVER_ENABLED,
+                CustomResolver.PDEFAULT_DNSSEC_RESOLVER_ENABLED))
+        {
+            DnsCache.load();
+        }
+
         if(loadDNSProxyForward())
         {
             // dns is forced to go through a proxy so skip any further settings
@@ -242,6 +250,9 @@ public class DnsUtilActivator
             logger.info(sb.toString());
         }
 
+        // the answers may differ on the new network, resolve them again
+        DnsCache.invalidate();
+
         // now reset an eventually present custom resolver
         if(Lookup.getDefaultResolver() instanceof CustomResolver)
         {
@@ -262,7 +273,7 @@ public class DnsUtilActivator
     }
 
     /**
-     * Doesn't do anything.
+     * Saves the DNS cache.
      *
      * @param context The execution context of the bundle being stopped.
      * @throws Exception If this method throws an exception, the bundle is
@@ -273,6 +284,7 @@ public class DnsUtilActivator
     public void stop(BundleContext context)
         throws Exception
     {
+        DnsCache.save();
     }
 
     /**
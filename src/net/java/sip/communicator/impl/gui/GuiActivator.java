@@ -145,6 +145,9 @@ public class GuiActivator implements BundleActivator
 
         ConfigurationUtils.loadGuiConfigurations();
 
+        // The link previews resolved in the previous sessions.
+        LinkMetadataCache.load();
+
         try
         {
             alertUIService = new AlertUIServiceImpl();
@@ -229,6 +232,8 @@ public class GuiActivator implements BundleActivator
 
         bContext.removeServiceListener(uiService);
         alertUIService.dispose();
+
+        LinkMetadataCache.save();
     }
 
     /**
@@ -86,6 +86,38 @@ public class ChatConversationPanel
     private static final Pattern DIV_PATTERN =
             Pattern.compile("(<div[^>]*>)(.*)(</div>)", Pattern.DOTALL);
 
+    /**
+     * The maximum number of messages the replacements in which are kept in
+     * {@link #replacedMessages}.
+     */
+    private static final int REPLACED_MESSAGES_CACHE_SIZE = 512;
+
+    /**
+     * The results of the replacements in the most recently processed messages
+     * by message ID. Allows corrected messages and reloaded history pages to
+     * reuse the results of the replacements in the messages which have not
+     * changed. Shared by all instances because the history and the chat
+     * windows display the same messages.
+     */
+    private static final Map<String, ReplacedMessage> replacedMessages
+        = new LinkedHashMap<String, ReplacedMessage>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, ReplacedMessage> eldest)
+            {
+                return size() > REPLACED_MESSAGES_CACHE_SIZE;
+            }
+        };
+
+    /**
+     * The prefix of the kinds of the <tt>LinkMetadataCache</tt> entries
+     * holding the previews of the links matched by the replacement sources.
+     */
+    private static final String PREVIEW_METADATA_KIND = "preview/";
+
     /**
      * List for observing text messages.
      */
@@ -867,7 +899,8 @@ public class ChatConversationPanel
             {
                 String newMessage = (String) get();
 
-                if (newMessage != null && !newMessage.equals(chatString))
+                if (newMessage != null && !newMessage.equals(chatString)
+                        && showPreview != null)
                 {
                     showPreview.getMsgIDToChatString().put(
                         messageID, newMessage);
@@ -878,7 +911,10 @@ public class ChatConversationPanel
                         try
                         {
                             Element elem = document.getElement(messageID);
-                            document.setOuterHTML(elem, newMessage);
+
+                            // the message may have been removed meanwhile
+                            if (elem != null)
+                                document.setOuterHTML(elem, newMessage);
                         }
                         catch (BadLocationException ex)
                         {
@@ -905,6 +941,65 @@ public class ChatConversationPanel
                     = cfg.getBoolean(
                             ReplacementProperty.REPLACEMENT_PROPOSAL,
                             true);
+                boolean isSmileyEnabled
+                    = cfg.getBoolean(
+                            ReplacementProperty.getPropertyName("SMILEY"),
+                            true);
+                Collection<ReplacementService> sources
+                    = GuiActivator.getReplacementSources().values();
+                ReplacementMatcher matcher
+                    = ReplacementMatcher.getInstance(sources);
+
+                /*
+                 * The output depends on the configuration as well so it is
+                 * part of what a cached result has to agree on.
+                 */
+                StringBuilder settings = new StringBuilder(contentType);
+                Set<ReplacementService> enabledSources
+                    = new HashSet<ReplacementService>();
+
+                settings.append(isEnabled ? 'T' : 'F')
+                    .append(isProposalEnabled ? 'T' : 'F')
+                    .append(isSmileyEnabled ? 'T' : 'F');
+                for (ReplacementService source : sources)
+                {
+                    boolean isEnabledForSource
+                        = cfg.getBoolean(
+                            ReplacementProperty.getPropertyName(
+                                source.getSourceName()), true);
+
+                    if (isEnabledForSource)
+                        enabledSources.add(source);
+                    settings.append(isEnabledForSource ? 'T' : 'F');
+                }
+
+                ReplacedMessage replacedMessage
+                    = new ReplacedMessage(
+                            chatString,
+                            settings.toString(),
+                            matcher);
+                ReplacedMessage cachedMessage;
+
+                synchronized (replacedMessages)
+                {
+                    cachedMessage = replacedMessages.get(messageID);
+                }
+                if ((cachedMessage != null)
+                        && cachedMessage.isResultOf(replacedMessage))
+                {
+                    ShowPreviewDialog showPreview
+                        = ChatConversationPanel.this.showPreview;
+
+                    if (showPreview != null)
+                    {
+                        showPreview.getMsgIDandPositionToLink().putAll(
+                                cachedMessage.msgIDandPositionToLink);
+                        showPreview.getLinkToReplacement().putAll(
+                                cachedMessage.linkToReplacement);
+                    }
+                    return cachedMessage.result;
+                }
+
                 Matcher divMatcher = DIV_PATTERN.matcher(chatString);
                 String openingTag = "";
                 String msgStore = chatString;
@@ -917,86 +1012,94 @@ public class ChatConversationPanel
                 }
 
                 int linkCounter = 0;
-                for (Map.Entry<String, ReplacementService> entry
-                        : GuiActivator.getReplacementSources().entrySet())
+                boolean isPending = false;
+                LinkMetadataCache.Listener pendingPreviewListener
+                    = new PendingPreviewListener(
+                            messageID,
+                            chatString,
+                            contentType);
+                ReplacementMatcher.Scan m = matcher.scan(msgStore);
+                StringBuilder msgBuff = new StringBuilder();
+                int startPos = 0;
+
+                while (m.find())
                 {
-                    ReplacementService source = entry.getValue();
+                    msgBuff.append(msgStore, startPos, m.start());
+                    startPos = m.end();
 
+                    ReplacementService source = m.getSource();
                     boolean isSmiley
                         = source instanceof SmiliesReplacementService;
                     boolean isDirectImage
                         = source instanceof DirectImageReplacementService;
                     boolean isEnabledForSource
-                        = cfg.getBoolean(
-                            ReplacementProperty.getPropertyName(
-                                source.getSourceName()), true);
+                        = enabledSources.contains(source);
 
-                    String sourcePattern = source.getPattern();
-                    Pattern p
-                        = Pattern.compile(
-                                sourcePattern,
-                                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-                    Matcher m = p.matcher(msgStore);
-                    StringBuilder msgBuff = new StringBuilder();
-                    int startPos = 0;
+                    String group = m.group();
+                    String temp;
+                    boolean isPreviewable = false;
 
-                    while (m.find())
+                    if (isSmiley
+                            || (isDirectImage
+                                && !(isEnabled && isEnabledForSource)))
                     {
-                        msgBuff.append(msgStore.substring(startPos, m.start()));
-                        startPos = m.end();
+                        // No network I/O is needed.
+                        temp = source.getReplacement(group);
+                    }
+                    else
+                    {
+                        LinkMetadataCache.Metadata metadata
+                            = LinkMetadataCache.get(
+                                    PREVIEW_METADATA_KIND
+                                        + source.getSourceName(),
+                                    group,
+                                    new PreviewResolver(source),
+                                    pendingPreviewListener);
+
+                        if (metadata == null)
+                        {
+                            /*
+                             * Show the link until its preview is resolved
+                             * and the message is processed again.
+                             */
+                            isPending = true;
+                            msgBuff.append(group);
+                            continue;
+                        }
+                        isPreviewable = (metadata.thumbnailUrl != null);
+                        temp = isPreviewable ? metadata.thumbnailUrl : group;
+                    }
 
-                        String group = m.group();
-                        String temp = source.getReplacement(group);
-                        String group0 = m.group(0);
+                    String group0 = group;
 
-                        if(!temp.equals(group0) || isDirectImage)
+                    if(!temp.equals(group0) || isDirectImage)
+                    {
+                        if (isSmiley)
                         {
-                            if (isSmiley)
+                            if (isSmileyEnabled)
                             {
-                                if (cfg.getBoolean(ReplacementProperty.
-                                                    getPropertyName("SMILEY"),
-                                                    true))
-                                {
-                                    msgBuff.append(
-                                            ChatHtmlUtils.createEndPlainTextTag(
-                                                    contentType));
-                                    msgBuff.append("<IMG SRC=\"");
-                                    msgBuff.append(temp);
-                                    msgBuff.append("\" BORDER=\"0\" ALT=\"");
-                                    msgBuff.append(group0);
-                                    msgBuff.append("\"></IMG>");
-                                    msgBuff.append(
-                                        ChatHtmlUtils.createStartPlainTextTag(
-                                            contentType));
-                                }
-                                else
-                                {
-                                    msgBuff.append(group);
-                                }
+                                msgBuff.append(
+                                        ChatHtmlUtils.createEndPlainTextTag(
+                                                contentType));
+                                msgBuff.append("<IMG SRC=\"");
+                                msgBuff.append(temp);
+                                msgBuff.append("\" BORDER=\"0\" ALT=\"");
+                                msgBuff.append(group0);
+                                msgBuff.append("\"></IMG>");
+                                msgBuff.append(
+                                    ChatHtmlUtils.createStartPlainTextTag(
+                                        contentType));
                             }
-                            else if (isEnabled && isEnabledForSource)
+                            else
                             {
-                                if (isDirectImage)
-                                {
-                                    DirectImageReplacementService service
-                                        = (DirectImageReplacementService)source;
-                                    if (service.isDirectImage(group)
-                                        && service.getImageSize(group) != -1)
-                                    {
-                                        msgBuff.append(
-                                            "<IMG HEIGHT=\"90\" "
-                                            + "WIDTH=\"120\" SRC=\"");
-                                        msgBuff.append(temp);
-                                        msgBuff.append("\" BORDER=\"0\" ALT=\"");
-                                        msgBuff.append(group0);
-                                        msgBuff.append("\"></IMG>");
-                                    }
-                                    else
-                                    {
-                                        msgBuff.append(group);
-                                    }
-                                }
-                                else
+                                msgBuff.append(group);
+                            }
+                        }
+                        else if (isEnabled && isEnabledForSource)
+                        {
+                            if (isDirectImage)
+                            {
+                                if (isPreviewable)
                                 {
                                     msgBuff.append(
                                         "<IMG HEIGHT=\"90\" "
@@ -1006,48 +1109,71 @@ public class ChatConversationPanel
                                     msgBuff.append(group0);
                                     msgBuff.append("\"></IMG>");
                                 }
-                            }
-                            else if (isProposalEnabled)
-                            {
-                                msgBuff.append(group);
-                                msgBuff.append(
-                                    "</A> <A href=\"jitsi://"
-                                     + showPreview.getClass().getName()
-                                     + "/SHOWPREVIEW?" + messageID + "#"
-                                     + linkCounter + "\">"
-                                     + GuiActivator.getResources().
-                                     getI18NString("service.gui.SHOW_PREVIEW"));
-
-                                showPreview.getMsgIDandPositionToLink()
-                                    .put(
-                                        messageID + "#" + linkCounter++, group);
-                                showPreview.getLinkToReplacement()
-                                    .put(
-                                        group, temp);
+                                else
+                                {
+                                    msgBuff.append(group);
+                                }
                             }
                             else
                             {
-                                msgBuff.append(group);
+                                msgBuff.append(
+                                    "<IMG HEIGHT=\"90\" "
+                                    + "WIDTH=\"120\" SRC=\"");
+                                msgBuff.append(temp);
+                                msgBuff.append("\" BORDER=\"0\" ALT=\"");
+                                msgBuff.append(group0);
+                                msgBuff.append("\"></IMG>");
                             }
                         }
+                        else if (isProposalEnabled)
+                        {
+                            msgBuff.append(group);
+                            msgBuff.append(
+                                "</A> <A href=\"jitsi://"
+                                 + ShowPreviewDialog.class.getName()
+                                 + "/SHOWPREVIEW?" + messageID + "#"
+                                 + linkCounter + "\">"
+                                 + GuiActivator.getResources().
+                                 getI18NString("service.gui.SHOW_PREVIEW"));
+
+                            replacedMessage.msgIDandPositionToLink.put(
+                                    messageID + "#" + linkCounter++, group);
+                            replacedMessage.linkToReplacement.put(group, temp);
+                        }
                         else
                         {
                             msgBuff.append(group);
                         }
                     }
+                    else
+                    {
+                        msgBuff.append(group);
+                    }
+                }
 
-                    msgBuff.append(msgStore.substring(startPos));
+                msgBuff.append(msgStore.substring(startPos));
 
-                    /*
-                     * replace the msgStore variable with the current replaced
-                     * message before next iteration
-                     */
-                    String msgBuffString = msgBuff.toString();
+                replacedMessage.result
+                    = openingTag + msgBuff.toString() + closingTag;
 
-                    if (!msgBuffString.equals(msgStore))
-                        msgStore = msgBuffString;
+                ShowPreviewDialog showPreview
+                    = ChatConversationPanel.this.showPreview;
+
+                if (showPreview != null)
+                {
+                    showPreview.getMsgIDandPositionToLink().putAll(
+                            replacedMessage.msgIDandPositionToLink);
+                    showPreview.getLinkToReplacement().putAll(
+                            replacedMessage.linkToReplacement);
                 }
-                return openingTag + msgStore + closingTag;
+                if (!isPending)
+                {
+                    synchronized (replacedMessages)
+                    {
+                        replacedMessages.put(messageID, replacedMessage);
+                    }
+                }
+                return replacedMessage.result;
             }
         };
         worker.start();
@@ -1858,26 +1984,24 @@ public class ChatConversationPanel
                 + " " + message.substring(4))
                 + endHeaderTag;
 
-        Map<String, ReplacementService> listSources =
-            GuiActivator.getReplacementSources();
-        for (ReplacementService source : listSources.values())
+        ReplacementMatcher.Scan m
+            = ReplacementMatcher
+                .getInstance(GuiActivator.getReplacementSources().values())
+                    .scanSmileys(chatString);
+        StringBuilder msgBuff = new StringBuilder();
+        int startPos = 0;
+
+        // Surround all smilies with <plaintext> tags.
+        while (m.find())
         {
-            boolean isSmiley = source instanceof SmiliesReplacementService;
-            if (!isSmiley)
-            {
-                continue;
-            }
-            String sourcePattern = source.getPattern();
-            Pattern p =
-                Pattern.compile(sourcePattern, Pattern.CASE_INSENSITIVE
-                    | Pattern.DOTALL);
-            Matcher m = p.matcher(chatString);
-            // Surround all smilies with <plaintext> tags.
-            chatString = m.replaceAll(
-                    ChatHtmlUtils.createStartPlainTextTag(contentType)
-                    + "$0"
-                    + ChatHtmlUtils.createEndPlainTextTag(contentType));
+            msgBuff.append(chatString, startPos, m.start());
+            startPos = m.end();
+            msgBuff.append(ChatHtmlUtils.createStartPlainTextTag(contentType))
+                .append(m.group())
+                .append(ChatHtmlUtils.createEndPlainTextTag(contentType));
         }
+        msgBuff.append(chatString.substring(startPos));
+        chatString = msgBuff.toString();
         return chatString;
     }
 
@@ -2253,4 +2377,203 @@ public class ChatConversationPanel
             } catch(Throwable t){}
         }
     }
+
+    /**
+     * The result of the replacements in a message together with what it has
+     * been computed from.
+     */
+    private static class ReplacedMessage
+    {
+        /**
+         * The message string the replacements have been made in.
+         */
+        private final String chatString;
+
+        /**
+         * The content type and the replacement configuration the replacements
+         * have been made with.
+         */
+        private final String settings;
+
+        /**
+         * The <tt>ReplacementMatcher</tt> which has found the replaced
+         * strings.
+         */
+        private final ReplacementMatcher matcher;
+
+        /**
+         * The links in the message for which a preview has been proposed by
+         * message ID and link position.
+         */
+        final Map<String, String> msgIDandPositionToLink
+            = new HashMap<String, String>();
+
+        /**
+         * The replacements of the links for which a preview has been
+         * proposed.
+         */
+        final Map<String, String> linkToReplacement
+            = new HashMap<String, String>();
+
+        /**
+         * The message string with the replacements made.
+         */
+        String result;
+
+        /**
+         * Initializes a new <tt>ReplacedMessage</tt> instance.
+         *
+         * @param chatString the message string the replacements are made in
+         * @param settings the content type and the replacement configuration
+         * the replacements are made with
+         * @param matcher the <tt>ReplacementMatcher</tt> which finds the
+         * replaced strings
+         */
+        ReplacedMessage(
+                String chatString,
+                String settings,
+                ReplacementMatcher matcher)
+        {
+            this.chatString = chatString;
+            this.settings = settings;
+            this.matcher = matcher;
+        }
+
+        /**
+         * Determines whether the result of this instance is the result of
+         * the replacements described by a specific <tt>ReplacedMessage</tt>.
+         *
+         * @param replacedMessage the <tt>ReplacedMessage</tt> describing the
+         * replacements to be made
+         * @return <tt>true</tt> if the result of this instance may be used
+         * instead of making the replacements described by
+         * <tt>replacedMessage</tt>; otherwise, <tt>false</tt>
+         */
+        boolean isResultOf(ReplacedMessage replacedMessage)
+        {
+            return (result != null)
+                && (matcher == replacedMessage.matcher)
+                && settings.equals(replacedMessage.settings)
+                && chatString.equals(replacedMessage.chatString);
+        }
+    }
+
+    /**
+     * Resolves the preview of a link matched by a <tt>ReplacementService</tt>
+     * in the background. The preview is stored as the thumbnail URL of the
+     * link's metadata, or no thumbnail URL if the link cannot be previewed.
+     */
+    private static class PreviewResolver
+        implements LinkMetadataCache.Resolver
+    {
+        /**
+         * The <tt>ReplacementService</tt> which has matched the link.
+         */
+        private final ReplacementService source;
+
+        /**
+         * Initializes a new <tt>PreviewResolver</tt> instance.
+         *
+         * @param source the <tt>ReplacementService</tt> which has matched the
+         * links to be resolved
+         */
+        PreviewResolver(ReplacementService source)
+        {
+            this.source = source;
+        }
+
+        /**
+         * Gets the replacement of a link from {@link #source}, after checking
+         * that the resource of a direct image link is an image small enough
+         * to be previewed.
+         *
+         * @param link the link
+         * @return the metadata of <tt>link</tt>
+         */
+        public LinkMetadataCache.Metadata resolve(String link)
+        {
+            if (source instanceof DirectImageReplacementService)
+            {
+                DirectImageReplacementService service
+                    = (DirectImageReplacementService) source;
+
+                if (!service.isPreviewableImage(link))
+                    return new LinkMetadataCache.Metadata(-1, null, null);
+            }
+            return
+                new LinkMetadataCache.Metadata(
+                        -1,
+                        null,
+                        source.getReplacement(link));
+        }
+    }
+
+    /**
+     * Processes the replacements in a message again once the preview of a
+     * link in it, which was not available when it was first processed, has
+     * been resolved.
+     */
+    private class PendingPreviewListener
+        implements LinkMetadataCache.Listener
+    {
+        /**
+         * The ID of the message element.
+         */
+        private final String messageID;
+
+        /**
+         * The message string the replacements are made in.
+         */
+        private final String chatString;
+
+        /**
+         * The content type of the message.
+         */
+        private final String contentType;
+
+        /**
+         * Whether the message has been processed again. The message is
+         * processed again only once per listener, whatever the number of its
+         * links the previews of which have been resolved.
+         */
+        private boolean processed = false;
+
+        /**
+         * Initializes a new <tt>PendingPreviewListener</tt> instance.
+         *
+         * @param messageID the ID of the message element
+         * @param chatString the message string the replacements are made in
+         * @param contentType the content type of the message
+         */
+        PendingPreviewListener(
+                String messageID,
+                String chatString,
+                String contentType)
+        {
+            this.messageID = messageID;
+            this.chatString = chatString;
+            this.contentType = contentType;
+        }
+
+        /**
+         * Processes the message again, unless it has already been or this
+         * panel has been disposed.
+         *
+         * @param link the link the preview of which has been resolved
+         * @param metadata the metadata holding the preview of <tt>link</tt>
+         */
+        public void metadataResolved(
+                String link,
+                LinkMetadataCache.Metadata metadata)
+        {
+            synchronized (this)
+            {
+                if (processed)
+                    return;
+                processed = true;
+            }
+            if (showPreview != null)
+                processReplacement(messageID, chatString, contentType);
+        }
+    }
 }
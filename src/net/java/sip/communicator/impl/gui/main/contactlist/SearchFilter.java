@@ -30,7 +30,13 @@ public class SearchFilter
     protected String filterString;
 
     /**
-     * The pattern to filter.
+     * The lower case string, which we're searching.
+     */
+    private String lowerCaseFilterString;
+
+    /**
+     * The pattern to filter, compiled when it is first needed by a contact
+     * source.
      */
     protected Pattern filterPattern;
 
@@ -111,7 +117,7 @@ public class SearchFilter
             // First add the MetaContactListSource
             filterQuery.addContactQuery(defaultQuery);
             
-            mclSource.startQuery(defaultQuery, filterPattern);
+            mclSource.startQuery(defaultQuery, filterString);
         }
         else if (sourceContactList.getDefaultFilter()
                     .equals(TreeContactList.historyFilter))
@@ -184,7 +190,7 @@ public class SearchFilter
         if (sourceService instanceof ExtendedContactSourceService)
             contactQuery
                 = ((ExtendedContactSourceService) sourceService)
-                    .createContactQuery(filterPattern);
+                    .createContactQuery(getFilterPattern());
         else
             contactQuery = sourceService.createContactQuery(filterString);
 
@@ -240,20 +246,39 @@ public class SearchFilter
      */
     public void setFilterString(String filter)
     {
-        // First escape all special characters from the given filter string.
         this.filterString = filter;
+        this.lowerCaseFilterString
+            = (filter == null) ? null : filter.toLowerCase();
+
+        // The pattern is only needed by the extended contact sources, we
+        // don't compile it on each key typed in the search field.
+        this.filterPattern = null;
+    }
 
-        // Then create the pattern.
-        // By default, case-insensitive matching assumes that only characters
-        // in the US-ASCII charset are being matched, that's why we use
-        // the UNICODE_CASE flag to enable unicode case-insensitive matching.
-        // Sun Bug ID: 6486934 "RegEx case_insensitive match is broken"
-        this.filterPattern
+    /**
+     * Returns the pattern corresponding to the filter string, compiling it
+     * if it hasn't been yet.
+     * @return the pattern corresponding to the filter string
+     */
+    protected Pattern getFilterPattern()
+    {
+        if ((filterPattern == null) && (filterString != null))
+        {
+            // First escape all special characters from the given filter
+            // string, then create the pattern.
+            // By default, case-insensitive matching assumes that only
+            // characters in the US-ASCII charset are being matched, that's
+            // why we use the UNICODE_CASE flag to enable unicode
+            // case-insensitive matching.
+            // Sun Bug ID: 6486934 "RegEx case_insensitive match is broken"
+            filterPattern
                 = Pattern.compile(
                         Pattern.quote(filterString),
                         Pattern.MULTILINE
                             | Pattern.CASE_INSENSITIVE
                             | Pattern.UNICODE_CASE);
+        }
+        return filterPattern;
     }
 
     /**
@@ -264,8 +289,8 @@ public class SearchFilter
      */
     private boolean isMatching(String text)
     {
-        if (filterPattern != null)
-            return filterPattern.matcher(text).find();
+        if (lowerCaseFilterString != null)
+            return text.toLowerCase().contains(lowerCaseFilterString);
 
         return true;
     }
@@ -10,7 +10,6 @@ import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
 import java.util.List;
-import java.util.regex.*;
 
 import javax.swing.*;
 
@@ -68,6 +67,12 @@ public class MetaContactListSource
      */
     private static final int INITIAL_CONTACT_COUNT = 30;
 
+    /**
+     * The index of the meta contacts searched by <tt>startQuery</tt>.
+     */
+    private final MetaContactSearchIndex searchIndex
+        = new MetaContactSearchIndex();
+
     /**
      * The list of action buttons for this meta contact.
      */
@@ -184,24 +189,49 @@ public class MetaContactListSource
     }
 
     /**
-     * Starts the query.
-     * 
-     * @param filterPattern the pattern to filter through
+     * Starts the query. The matching meta contacts are found through the
+     * search index, which only checks the previous results when the filter
+     * string extends the previous one.
+     *
+     * @param filterString the string to filter through
      * @param query the query to be started
      */
     public void startQuery(final MetaContactQuery query,
-        final Pattern filterPattern)
+        final String filterString)
     {
         new Thread()
         {
             @Override
             public void run()
             {
+                searchIndex.build(GuiActivator.getContactListService());
+
+                List<MetaContact> metaContacts
+                    = searchIndex.find(filterString, query);
                 int resultCount = 0;
-                queryMetaContactSource( filterPattern,
-                        GuiActivator.getContactListService().getRoot(),
-                        query,
-                        resultCount);
+
+                for (MetaContact metaContact : metaContacts)
+                {
+                    if (query.isCanceled())
+                        break;
+
+                    MetaContactGroup parentGroup
+                        = metaContact.getParentMetaContactGroup();
+
+                    // The contact has been removed in the meantime.
+                    if (parentGroup == null)
+                        continue;
+
+                    resultCount++;
+
+                    if (resultCount <= INITIAL_CONTACT_COUNT)
+                    {
+                        addMatchingContact(metaContact, parentGroup);
+                        query.setInitialResultCount(resultCount);
+                    }
+                    else
+                        query.fireQueryEvent(metaContact);
+                }
 
                 if (!query.isCanceled())
                     query.fireQueryEvent(
@@ -214,146 +244,43 @@ public class MetaContactListSource
     }
 
     /**
-     * Filters the children in the given <tt>MetaContactGroup</tt> to match the
-     * given <tt>filterPattern</tt> and stores the result in the given
-     * <tt>treeModel</tt>.
-     * @param filterPattern the pattern to filter through
-     * @param parentGroup the <tt>MetaContactGroup</tt> to filter
-     * @param query the object that tracks the query
-     * @param resultCount the initial result count we would insert directly to
-     * the contact list without firing events
+     * Adds a meta contact matching a query directly to the contact list,
+     * creating its UI contact and the UI group of its parent if needed.
+     *
+     * @param metaContact the matching <tt>MetaContact</tt>
+     * @param parentGroup the parent group of <tt>metaContact</tt>
      */
-    public void queryMetaContactSource(Pattern filterPattern,
-                                        MetaContactGroup parentGroup,
-                                        MetaContactQuery query,
-                                        int resultCount)
+    private void addMatchingContact(MetaContact metaContact,
+                                    MetaContactGroup parentGroup)
     {
-        Iterator<MetaContact> childContacts = parentGroup.getChildContacts();
-
-        while (childContacts.hasNext() && !query.isCanceled())
+        UIGroup uiGroup = null;
+        if (!MetaContactListSource.isRootGroup(parentGroup))
         {
-            MetaContact metaContact = childContacts.next();
-
-            if (isMatching(filterPattern, metaContact))
+            synchronized (parentGroup)
             {
-                resultCount++;
-
-                if (resultCount <= INITIAL_CONTACT_COUNT)
-                {
-                    UIGroup uiGroup = null;
-                    if (!MetaContactListSource.isRootGroup(parentGroup))
-                    {
-                        synchronized (parentGroup)
-                        {
-                            uiGroup = MetaContactListSource
-                                .getUIGroup(parentGroup);
-                            if (uiGroup == null)
-                                uiGroup = MetaContactListSource
-                                    .createUIGroup(parentGroup);
-                        }
-                    }
-
-                    UIContact newUIContact;
-                    synchronized (metaContact)
-                    {
-                        newUIContact 
-                            = MetaContactListSource.getUIContact(metaContact);
-    
-                        if (newUIContact == null)
-                        {
-                            newUIContact
-                                = MetaContactListSource
-                                    .createUIContact(metaContact);
-                        }
-                        
-                        GuiActivator.getContactList().addContact(
-                            newUIContact,
-                            uiGroup,
-                            true,
-                            true);
-                    }
-                    
-                    query.setInitialResultCount(resultCount);
-                }
-                else
-                {
-                    query.fireQueryEvent(metaContact);
-                }
+                uiGroup = MetaContactListSource.getUIGroup(parentGroup);
+                if (uiGroup == null)
+                    uiGroup = MetaContactListSource.createUIGroup(parentGroup);
             }
         }
 
-        // If in the meantime the query is canceled we return here.
-        if(query.isCanceled())
-            return;
-
-        Iterator<MetaContactGroup> subgroups = parentGroup.getSubgroups();
-        while (subgroups.hasNext() && !query.isCanceled())
-        {
-            MetaContactGroup subgroup = subgroups.next();
-
-            queryMetaContactSource(filterPattern, subgroup, query, resultCount);
-        }
-    }
-
-    /**
-     * Checks if the given <tt>metaContact</tt> is matching the given
-     * <tt>filterPattern</tt>.
-     * A <tt>MetaContact</tt> would be matching the filter if one of the
-     * following is true:<br>
-     * - its display name contains the filter string
-     * - at least one of its child protocol contacts has a display name or an
-     * address that contains the filter string.
-     * @param filterPattern the filter pattern to check for matches
-     * @param metaContact the <tt>MetaContact</tt> to check
-     * @return <tt>true</tt> to indicate that the given <tt>metaContact</tt> is
-     * matching the current filter, otherwise returns <tt>false</tt>
-     */
-    private boolean isMatching(Pattern filterPattern, MetaContact metaContact)
-    {
-        Matcher matcher = filterPattern.matcher(metaContact.getDisplayName());
-
-        if(matcher.find())
-            return true;
-
-        Iterator<Contact> contacts = metaContact.getContacts();
-        while (contacts.hasNext())
+        synchronized (metaContact)
         {
-            Contact contact = contacts.next();
-
-            matcher = filterPattern.matcher(contact.getDisplayName());
-
-            if (matcher.find())
-                return true;
-
-            matcher = filterPattern.matcher(contact.getAddress());
-
-            if (matcher.find())
-                return true;
-        }
-        return false;
-    }
-
-    /**
-     * Checks if the given <tt>metaGroup</tt> is matching the current filter. A
-     * group is matching the current filter only if it contains at least one
-     * child <tt>MetaContact</tt>, which is matching the current filter.
-     * @param filterPattern the filter pattern to check for matches
-     * @param metaGroup the <tt>MetaContactGroup</tt> to check
-     * @return <tt>true</tt> to indicate that the given <tt>metaGroup</tt> is
-     * matching the current filter, otherwise returns <tt>false</tt>
-     */
-    public boolean isMatching(Pattern filterPattern, MetaContactGroup metaGroup)
-    {
-        Iterator<MetaContact> contacts = metaGroup.getChildContacts();
+            UIContact newUIContact
+                = MetaContactListSource.getUIContact(metaContact);
 
-        while (contacts.hasNext())
-        {
-            MetaContact metaContact = contacts.next();
+            if (newUIContact == null)
+            {
+                newUIContact
+                    = MetaContactListSource.createUIContact(metaContact);
+            }
 
-            if (isMatching(filterPattern, metaContact))
-                return true;
+            GuiActivator.getContactList().addContact(
+                newUIContact,
+                uiGroup,
+                true,
+                true);
         }
-        return false;
     }
 
     public void contactPresenceStatusChanged(
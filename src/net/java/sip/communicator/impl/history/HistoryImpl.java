@@ -7,16 +7,12 @@
 package net.java.sip.communicator.impl.history;
 
 import java.io.*;
-import java.security.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
 import net.java.sip.communicator.util.*;
 
-import org.jitsi.util.xml.XMLUtils;
-import org.w3c.dom.*;
-
 /**
  * @author Alexander Pelov
  * @author Yana Stamcheva
@@ -26,11 +22,6 @@ public class HistoryImpl
 {
     private static Logger log = Logger.getLogger(HistoryImpl.class);
 
-    /**
-     * The supported filetype.
-     */
-    public static final String SUPPORTED_FILETYPE = "xml";
-
     private HistoryID id;
 
     private HistoryRecordStructure historyRecordStructure;
@@ -48,8 +39,15 @@ public class HistoryImpl
 
     private HistoryWriter writer;
 
-    private SortedMap<String, Object> historyDocuments
-        = new TreeMap<String, Object>();
+    /**
+     * The storage backend holding the records of this history.
+     */
+    private final HistoryStorage storage;
+
+    /**
+     * The index of the words in the records of this history.
+     */
+    private final HistoryKeywordIndex keywordIndex;
 
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
@@ -81,7 +79,9 @@ public class HistoryImpl
             this.reader = null;
             this.writer = null;
 
-            this.reloadDocumentList();
+            this.storage = historyServiceImpl.createStorage(directory);
+            this.keywordIndex = new HistoryKeywordIndex(this.storage);
+            this.storage.setStorageListener(this.keywordIndex);
         } finally {
             log.logExit();
         }
@@ -125,7 +125,7 @@ public class HistoryImpl
             log.debug("Could not create new history structure");
         }
     }
-    public HistoryReader getReader()
+    public synchronized HistoryReader getReader()
     {
         if (this.reader == null)
         {
@@ -143,14 +143,14 @@ public class HistoryImpl
      * <tt>HistoryQueryListener</tt>.
      * @return an object that can be used to read and query this history
      */
-    public InteractiveHistoryReader getInteractiveReader()
+    public synchronized InteractiveHistoryReader getInteractiveReader()
     {
         if (interactiveReader == null)
             interactiveReader = new InteractiveHistoryReaderImpl(this);
         return interactiveReader;
     }
 
-    public HistoryWriter getWriter()
+    public synchronized HistoryWriter getWriter()
     {
         if (writer == null)
             writer = new HistoryWriterImpl(this);
@@ -162,268 +162,42 @@ public class HistoryImpl
         return this.historyServiceImpl;
     }
 
-    void reloadDocumentList()
+    /**
+     * Returns the storage backend holding the records of this history.
+     * @return the storage backend of this history
+     */
+    HistoryStorage getStorage()
     {
-        synchronized (this.historyDocuments)
-        {
-            this.historyDocuments.clear();
-
-            File[] files = this.directory.listFiles();
-            // TODO: Assert: Assert.assertNonNull(files, "The list of files
-            // should be non-null.");
-
-            for (int i = 0; i < files.length; i++)
-            {
-                if (!files[i].isDirectory())
-                {
-                    String filename = files[i].getName();
-
-                    if (filename.endsWith(SUPPORTED_FILETYPE))
-                    {
-                        this.historyDocuments.put(filename, files[i]);
-                    }
-                }
-            }
-        }
+        return this.storage;
     }
 
-    protected Document createDocument(String filename)
+    /**
+     * Returns the index of the words in the records of this history.
+     * @return the keyword index of this history
+     */
+    HistoryKeywordIndex getKeywordIndex()
     {
-        Document retVal = null;
-
-        synchronized (this.historyDocuments)
-        {
-            if (this.historyDocuments.containsKey(filename))
-            {
-                retVal = getDocumentForFile(filename);
-            } else {
-                retVal = this.historyServiceImpl.getDocumentBuilder()
-                        .newDocument();
-                retVal.appendChild(retVal.createElement("history"));
-
-                this.historyDocuments.put(filename, retVal);
-            }
-        }
-
-        return retVal;
+        return this.keywordIndex;
     }
 
-    protected void writeFile(String filename) throws InvalidParameterException,
-            IOException {
-        File file = new File(this.directory, filename);
-
-        synchronized (this.historyDocuments)
-        {
-            if (!this.historyDocuments.containsKey(filename))
-            {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
-            }
-
-            Object obj = this.historyDocuments.get(filename);
-
-            if (obj instanceof Document)
-            {
-                Document doc = (Document) obj;
-
-                synchronized (doc)
-                {
-                    XMLUtils.writeXML(doc, file);
-                }
-            }
-        }
-    }
-
-    protected void writeFile(String filename, Document doc)
-        throws InvalidParameterException, IOException
+    void reloadDocumentList()
     {
-        File file = new File(this.directory, filename);
-
-        synchronized (this.historyDocuments)
-        {
-            if (!this.historyDocuments.containsKey(filename))
-            {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
-            }
-
-            synchronized (doc)
-            {
-                XMLUtils.writeXML(doc, file);
-            }
-        }
+        this.storage.reload();
     }
 
     protected Iterator<String> getFileList()
     {
-        return this.historyDocuments.keySet().iterator();
-    }
-
-    protected Document getDocumentForFile(String filename)
-            throws InvalidParameterException, RuntimeException {
-        Document retVal = null;
-
-        synchronized (this.historyDocuments)
-        {
-            if (!this.historyDocuments.containsKey(filename))
-            {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
-            }
-
-            Object obj = this.historyDocuments.get(filename);
-            if (obj instanceof Document)
-            {
-                // Document already loaded. Use it directly
-                retVal = (Document) obj;
-            } else if (obj instanceof File)
-            {
-                File file = (File) obj;
-
-                try {
-                    retVal = this.historyServiceImpl.parse(file);
-                } catch (Exception e)
-                {
-//                    throw new RuntimeException("Error occured while "
-//                            + "parsing XML document.", e);
-//                    log.error("Error occured while parsing XML document.", e);
-                    log.error("Error occured while parsing XML document.", e);
-
-                    // will try to fix the xml file
-                    retVal = getFixedDocument(file);
-
-                    // if is not fixed return
-                    if(retVal == null)
-                        return null;
-                }
-
-                // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
-            } else {
-                // TODO: Assert: Assert.fail("Internal error - the data type " +
-                // "should be either Document or File.");
-            }
-        }
-
-        return retVal;
-    }
-
-    /**
-     * Methods trying to fix histry xml files if corrupted
-     */
-    /**
-     * Returns the fixed document as xml Document
-     * if file cannot be fixed return null
-     *
-     * @param file File the file trying to fix
-     * @return Document the fixed doc
-     */
-    public Document getFixedDocument(File file)
-    {
-        log.info("Will try to fix file : " + file);
-        StringBuffer resultDocStr = new StringBuffer("<history>");
-
-        try
-        {
-            BufferedReader inReader = new BufferedReader(new FileReader(file));
-            String line = null;
-            while ( (line = inReader.readLine()) != null)
-            {
-                // find the next start of record node
-                if (line.indexOf("<record") == -1)
-                {
-                    continue;
-                }
-
-                String record = getRecordNodeString(line, inReader).toString();
-
-                if (record != null && isValidXML(record))
-                {
-                    resultDocStr.append(record);
-                }
-            }
-        }
-        catch (Exception ex1)
-        {
-            log.error("File cannot be fixed. Erro reading! " +
-                      ex1.getLocalizedMessage());
-        }
-
-        resultDocStr.append("</history>");
-
-        try
-        {
-            Document result =
-                this.historyServiceImpl.parse(new ByteArrayInputStream(
-                    resultDocStr.toString().getBytes("UTF-8")));
-
-            // parsing is ok . lets overwrite with correct values
-            log.trace("File fixed will write to disk!");
-            XMLUtils.writeXML(result, file);
-
-            return result;
-        }
-        catch (Exception ex)
-        {
-            System.out.println("again cannot parse " + ex.getMessage());
-            return null;
-        }
-    }
-
-    /**
-     * Returns the string containing the record node from the xml -
-     * the supplied Reader
-     * @param startingLine String
-     * @param inReader BufferedReader
-     * @return StringBuffer
-     */
-    private StringBuffer getRecordNodeString(
-        String startingLine, BufferedReader inReader)
-    {
-        try
-        {
-            StringBuffer result = new StringBuffer(startingLine);
-
-            String line = null;
-            while ( (line = inReader.readLine()) != null)
-            {
-                // find the next start of record node
-                if (line.indexOf("</record>") != -1)
-                {
-                    result.append(line);
-                    break;
-                }
-                result.append(line);
-            }
-
-            return result;
-        }
-        catch (IOException ex)
-        {
-            log.info("Error reading record " + ex.getLocalizedMessage());
-            return null;
-        }
+        return this.storage.getFileList();
     }
 
     /**
-     * Checks whether the given xml is valid
-     * @param str String
-     * @return boolean
+     * Returns the records stored in the given file of this history.
+     * @param filename the name of the file as returned by
+     * <tt>getFileList()</tt>
+     * @return the records of the file or <tt>null</tt> if it cannot be read
      */
-    private boolean isValidXML(String str)
+    protected List<HistoryRecord> getRecordsForFile(String filename)
     {
-        try
-        {
-            this.historyServiceImpl.parse(
-                new ByteArrayInputStream(str.getBytes("UTF-8")));
-        }
-        catch (Exception ex)
-        {
-            log.error("not valid xml " + str + " " + ex.getMessage());
-            return false;
-        }
-
-        return true;
+        return this.storage.getRecords(filename);
     }
 }
@@ -0,0 +1,488 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * An in-memory inverted index of the words in the fields of a history, used
+ * to find the records which may contain given keywords without reading every
+ * record of the history.
+ * <p>
+ * Values are split into words (maximal runs of letters and digits) which are
+ * case-folded character by character. A field is indexed the first time it is
+ * searched, by reading all records of the history, and is then kept up to date
+ * through the <tt>HistoryStorageListener</tt> callbacks of the storage.
+ * <p>
+ * Keyword searches match substrings, so the index only yields candidates: a
+ * record containing a keyword contains, for every word of the keyword, an
+ * indexed word containing that word. The readers verify the candidates with
+ * the exact matching rules. Keywords without any letter or digit cannot be
+ * answered by the index. The indexed words are found through a sorted map of
+ * their suffixes, so that the words containing a word are those of the
+ * suffixes starting with it.
+ */
+class HistoryKeywordIndex
+    implements HistoryStorageListener
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryKeywordIndex.class);
+
+    /**
+     * The storage of the indexed history.
+     */
+    private final HistoryStorage storage;
+
+    /**
+     * The indexed fields mapped to their word postings.
+     */
+    private final Map<String, FieldIndex> fields
+        = new HashMap<String, FieldIndex>();
+
+    /**
+     * The ids of the files of the history, assigned in the order they are
+     * indexed.
+     */
+    private final Map<String, Integer> fileIds
+        = new HashMap<String, Integer>();
+
+    /**
+     * The names of the files by their ids.
+     */
+    private final List<String> fileNames = new ArrayList<String>();
+
+    /**
+     * The file id of every indexed record by record id.
+     */
+    private final IntList recordFiles = new IntList();
+
+    /**
+     * The position in its file of every indexed record by record id.
+     */
+    private final IntList recordPositions = new IntList();
+
+    /**
+     * The record ids by file id and position, used to find the id of an
+     * updated record.
+     */
+    private final Map<Long, Integer> recordIds = new HashMap<Long, Integer>();
+
+    /**
+     * Creates the index of the history kept in <tt>storage</tt>.
+     *
+     * @param storage the storage of the history
+     */
+    HistoryKeywordIndex(HistoryStorage storage)
+    {
+        this.storage = storage;
+    }
+
+    /**
+     * Returns the files and positions of the records whose <tt>field</tt>
+     * may contain all <tt>keywords</tt>, indexing the field first if needed.
+     *
+     * @param field the searched field
+     * @param keywords the keywords
+     * @return the positions of the candidate records by file name, or
+     * <tt>null</tt> if the index cannot answer the query and all records
+     * have to be checked
+     */
+    synchronized Map<String, BitSet> findCandidates(String field,
+                                                    String[] keywords)
+    {
+        List<String> words = new ArrayList<String>();
+        for (String keyword : keywords)
+        {
+            List<String> keywordWords = tokenize(keyword);
+
+            // no letters or digits, the index knows nothing about it
+            if (keywordWords.isEmpty())
+                return null;
+            words.addAll(keywordWords);
+        }
+
+        FieldIndex fieldIndex = fields.get(field);
+        if (fieldIndex == null)
+            fieldIndex = buildField(field);
+
+        BitSet candidates = null;
+        for (String word : words)
+        {
+            BitSet matches = new BitSet(recordFiles.size());
+
+            fieldIndex.addMatches(word, matches);
+
+            if (candidates == null)
+                candidates = matches;
+            else
+                candidates.and(matches);
+
+            if (candidates.isEmpty())
+                break;
+        }
+
+        Map<String, BitSet> result = new HashMap<String, BitSet>();
+        for (int id = candidates.nextSetBit(0);
+                id >= 0;
+                id = candidates.nextSetBit(id + 1))
+        {
+            String filename = fileNames.get(recordFiles.get(id));
+            BitSet positions = result.get(filename);
+
+            if (positions == null)
+            {
+                positions = new BitSet();
+                result.put(filename, positions);
+            }
+            positions.set(recordPositions.get(id));
+        }
+
+        return result;
+    }
+
+    /**
+     * Indexes <tt>field</tt> in all records of the history.
+     *
+     * @param field the field to index
+     * @return the index of the field
+     */
+    private FieldIndex buildField(String field)
+    {
+        long start = System.currentTimeMillis();
+        FieldIndex fieldIndex = new FieldIndex();
+        fields.put(field, fieldIndex);
+
+        boolean firstField = recordFiles.size() == 0;
+        Iterator<String> files = storage.getFileList();
+
+        while (files.hasNext())
+        {
+            String filename = files.next();
+            List<HistoryRecord> records = storage.getRecords(filename);
+
+            if (records == null)
+                continue;
+
+            for (int i = 0; i < records.size(); i++)
+            {
+                int id = firstField
+                    ? addRecordId(filename, i)
+                    : getRecordId(filename, i);
+
+                if (id != -1)
+                    index(fieldIndex, field, id, records.get(i));
+            }
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Indexed field " + field + " of "
+                + recordFiles.size() + " records in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        return fieldIndex;
+    }
+
+    /**
+     * Indexes the newly added record in all indexed fields.
+     *
+     * @param filename the name of the file the record was written to
+     * @param position the position of the record in the file
+     * @param record the record
+     */
+    public synchronized void recordAdded(String filename, int position,
+                                         HistoryRecord record)
+    {
+        // nothing indexed yet, the record will be read when a field is
+        if (fields.isEmpty())
+            return;
+
+        int id = addRecordId(filename, position);
+
+        for (Map.Entry<String, FieldIndex> e : fields.entrySet())
+            index(e.getValue(), e.getKey(), id, record);
+    }
+
+    /**
+     * Indexes the new values of an updated record. Words of the old values
+     * stay in the index, which is harmless as candidates are verified.
+     *
+     * @param filename the name of the file holding the record
+     * @param position the position of the record in the file
+     * @param record the record with its new values
+     */
+    public synchronized void recordUpdated(String filename, int position,
+                                           HistoryRecord record)
+    {
+        int id = getRecordId(filename, position);
+
+        if (id == -1)
+            return;
+
+        for (Map.Entry<String, FieldIndex> e : fields.entrySet())
+            index(e.getValue(), e.getKey(), id, record);
+    }
+
+    /**
+     * Drops the whole index, it is rebuilt from the files on the next
+     * search.
+     */
+    public synchronized void recordsRelocated()
+    {
+        fields.clear();
+        fileIds.clear();
+        fileNames.clear();
+        recordFiles.clear();
+        recordPositions.clear();
+        recordIds.clear();
+    }
+
+    /**
+     * Assigns an id to the record at the given position of the given file.
+     *
+     * @param filename the name of the file
+     * @param position the position of the record in the file
+     * @return the id of the record
+     */
+    private int addRecordId(String filename, int position)
+    {
+        Integer fileId = fileIds.get(filename);
+
+        if (fileId == null)
+        {
+            fileId = fileNames.size();
+            fileIds.put(filename, fileId);
+            fileNames.add(filename);
+        }
+
+        int id = recordFiles.size();
+        recordFiles.add(fileId);
+        recordPositions.add(position);
+        recordIds.put(recordKey(fileId, position), id);
+
+        return id;
+    }
+
+    /**
+     * Returns the id of the record at the given position of the given file.
+     *
+     * @param filename the name of the file
+     * @param position the position of the record in the file
+     * @return the id of the record or <tt>-1</tt> if it is not indexed
+     */
+    private int getRecordId(String filename, int position)
+    {
+        Integer fileId = fileIds.get(filename);
+
+        if (fileId == null)
+            return -1;
+
+        Integer id = recordIds.get(recordKey(fileId, position));
+
+        return (id == null) ? -1 : id;
+    }
+
+    private static Long recordKey(int fileId, int position)
+    {
+        return (((long) fileId) << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Adds the words of the value of <tt>field</tt> in <tt>record</tt> to
+     * <tt>fieldIndex</tt>.
+     *
+     * @param fieldIndex the index of the field
+     * @param field the field
+     * @param id the id of the record
+     * @param record the record
+     */
+    private static void index(FieldIndex fieldIndex, String field,
+                              int id, HistoryRecord record)
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] == null
+                || !field.equals(HistoryWriterImpl.stripCDataSuffix(names[i])))
+                continue;
+
+            for (String word : tokenize(values[i]))
+                fieldIndex.add(word, id);
+        }
+    }
+
+    /**
+     * Splits <tt>s</tt> into its maximal runs of letters and digits, each
+     * lower-cased character by character so that a substring of <tt>s</tt>
+     * always maps to a substring of the folded words.
+     *
+     * @param s the string to split
+     * @return the folded words of <tt>s</tt>
+     */
+    static List<String> tokenize(String s)
+    {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        int length = s.length();
+
+        for (int i = 0; i <= length; i++)
+        {
+            char c = (i < length) ? s.charAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c))
+                word.append(Character.toLowerCase(c));
+            else if (word.length() > 0)
+            {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+
+        return words;
+    }
+
+    /**
+     * The postings of the words of an indexed field and the sorted suffixes
+     * of these words.
+     */
+    private static class FieldIndex
+    {
+        /**
+         * The ids of the records containing each word.
+         */
+        private final Map<String, IntList> postings
+            = new HashMap<String, IntList>();
+
+        /**
+         * The suffixes of the words mapped to the word they are a suffix of
+         * or, if they are a suffix of several words, to the list of these
+         * words.
+         */
+        private final NavigableMap<String, Object> suffixes
+            = new TreeMap<String, Object>();
+
+        /**
+         * Posts a word of a record.
+         *
+         * @param word the word
+         * @param id the id of the record
+         */
+        void add(String word, int id)
+        {
+            IntList ids = postings.get(word);
+
+            if (ids == null)
+            {
+                ids = new IntList();
+                postings.put(word, ids);
+                for (int i = 0; i < word.length(); i++)
+                    addSuffix(word.substring(i), word);
+            }
+            // a word repeated in the same record is posted once
+            if (ids.size() == 0 || ids.get(ids.size() - 1) != id)
+                ids.add(id);
+        }
+
+        /**
+         * Maps a suffix to one more word.
+         *
+         * @param suffix the suffix of <tt>word</tt>
+         * @param word the word
+         */
+        @SuppressWarnings("unchecked")
+        private void addSuffix(String suffix, String word)
+        {
+            Object words = suffixes.get(suffix);
+
+            if (words == null)
+                suffixes.put(suffix, word);
+            else if (words instanceof String)
+            {
+                List<String> list = new ArrayList<String>(2);
+
+                list.add((String) words);
+                list.add(word);
+                suffixes.put(suffix, list);
+            }
+            else
+                ((List<String>) words).add(word);
+        }
+
+        /**
+         * Adds the ids of the records containing a word which contains a
+         * specific word to a set.
+         *
+         * @param word the contained word
+         * @param matches the set to add the ids of the records to
+         */
+        @SuppressWarnings("unchecked")
+        void addMatches(String word, BitSet matches)
+        {
+            // the suffixes starting with word sort right after it
+            for (Object words
+                    : suffixes.subMap(
+                            word, true,
+                            word + Character.MAX_VALUE, false)
+                        .values())
+            {
+                if (words instanceof String)
+                    postings.get(words).addTo(matches);
+                else
+                {
+                    for (String w : (List<String>) words)
+                        postings.get(w).addTo(matches);
+                }
+            }
+        }
+    }
+
+    /**
+     * A growable list of primitive <tt>int</tt>s.
+     */
+    private static class IntList
+    {
+        private int[] values = new int[4];
+
+        private int size = 0;
+
+        void add(int value)
+        {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int get(int index)
+        {
+            return values[index];
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        void clear()
+        {
+            values = new int[4];
+            size = 0;
+        }
+
+        void addTo(BitSet set)
+        {
+            for (int i = 0; i < size; i++)
+                set.set(values[i]);
+        }
+    }
+}
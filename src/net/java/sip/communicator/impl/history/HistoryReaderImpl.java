@@ -6,10 +6,6 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 import java.util.regex.*;
 
@@ -17,9 +13,12 @@ import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.w3c.dom.*;
-
 /**
+ * Queries the records of a history. Queries do not lock the reader or the
+ * history: they work on a snapshot of the file list and read every file
+ * through the storage, so they run concurrently with each other and with
+ * the writer. Records appended during a query may or may not be returned.
+ *
  * @author Alexander Pelov
  * @author Damian Minkov
  * @author Yana Stamcheva
@@ -55,7 +54,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByStartDate(
+    public QueryResultSet<HistoryRecord> findByStartDate(
                                                                 Date startDate)
             throws RuntimeException
     {
@@ -72,7 +71,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
         throws RuntimeException
     {
         return find(null, endDate, null, null, false);
@@ -89,7 +88,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate)
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate)
             throws RuntimeException
     {
         return find(startDate, endDate, null, null, false);
@@ -105,7 +104,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByKeyword(String keyword, String field)
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword, String field)
         throws RuntimeException
     {
         return findByKeywords(new String[] { keyword }, field);
@@ -121,7 +120,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByKeywords(String[] keywords, String field)
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords, String field)
             throws RuntimeException
     {
             return find(null, null, keywords, field, false);
@@ -140,7 +139,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate,
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate,
             String[] keywords, String field) throws UnsupportedOperationException
     {
         return find(startDate, endDate, keywords, field, false);
@@ -155,7 +154,7 @@ public class HistoryReaderImpl
      * @return QueryResultSet
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet<HistoryRecord> findLast(int count) throws RuntimeException
+    public QueryResultSet<HistoryRecord> findLast(int count) throws RuntimeException
     {
         // the files are supposed to be ordered from oldest to newest
         Vector<String> filelist =
@@ -166,90 +165,17 @@ public class HistoryReaderImpl
         int leftCount = count;
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        HistoryStorage storage = this.historyImpl.getStorage();
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile--;
-                continue;
-            }
-
-            // will get nodes and construct a List of nodes
-            // so we can easyly get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
+            // only the needed records at the end of the file are read
+            List<HistoryRecord> records = storage.getRecordsBefore(
+                filelist.get(currentFile), null, leftCount);
 
-            List<Node> lNodes = null;
-
-            if (nodes.size() > leftCount)
+            if(records != null)
             {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
-            }
-            else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
-
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
-            {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue == null)
-                            continue;
-
-                        nameVals.add(propertyNode.getNodeName());
-                        nameVals.add(nodeValue.getNodeValue());
-                    }
-                }
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
+                result.addAll(records);
+                leftCount -= records.size();
             }
 
             currentFile--;
@@ -269,7 +195,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByKeyword(String keyword, String field,
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword, String field,
                                         boolean caseSensitive)
         throws RuntimeException
     {
@@ -287,7 +213,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByKeywords(String[] keywords, String field,
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords, String field,
                                          boolean caseSensitive)
         throws RuntimeException
     {
@@ -308,7 +234,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate,
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate,
                                        String[] keywords, String field,
                                        boolean caseSensitive)
         throws UnsupportedOperationException
@@ -336,81 +262,16 @@ public class HistoryReaderImpl
         int leftCount = count;
         int currentFile = 0;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        HistoryStorage storage = this.historyImpl.getStorage();
         while(leftCount > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            List<HistoryRecord> records = storage.getRecordsAfter(
+                filelist.get(currentFile), date, leftCount);
 
-            if(doc == null)
+            if(records != null)
             {
-                currentFile++;
-                continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
-            {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
+                result.addAll(records);
+                leftCount -= records.size();
             }
 
             currentFile++;
@@ -440,80 +301,16 @@ public class HistoryReaderImpl
 
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        HistoryStorage storage = this.historyImpl.getStorage();
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            List<HistoryRecord> records = storage.getRecordsBefore(
+                filelist.get(currentFile), date, leftCount);
 
-            if(doc == null)
+            if(records != null)
             {
-                currentFile--;
-                continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
-            {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
+                result.addAll(records);
+                leftCount -= records.size();
             }
 
             currentFile--;
@@ -547,53 +344,49 @@ public class HistoryReaderImpl
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        Map<String, BitSet> candidates
+            = findCandidates(this.historyImpl, keywords, field);
+
         Iterator<String> fileIterator = filelist.iterator();
         while (fileIterator.hasNext())
         {
             String filename = fileIterator.next();
+            BitSet positions = null;
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
+            if(candidates != null)
+            {
+                positions = candidates.get(filename);
 
-            if(doc == null)
-                continue;
+                // no record of the file contains the keywords
+                if(positions == null)
+                {
+                    currentProgress += fileProgressStep;
+                    fireProgressStateChanged(
+                        startDate, endDate, keywords, (int)currentProgress);
+                    continue;
+                }
+            }
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            List<HistoryRecord> records
+                = this.historyImpl.getRecordsForFile(filename);
+
+            if(records == null)
+                continue;
 
             double nodesProgressStep = fileProgressStep;
 
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
+            if(records.size() != 0)
+                nodesProgressStep = fileProgressStep / records.size();
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            for (int i = 0; i < records.size(); i++)
             {
-                node = nodes.item(i);
+                HistoryRecord record = records.get(i);
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
+                if((positions == null || positions.get(i))
+                    && isInPeriod(record.getTimestamp(), startDate, endDate)
+                    && filterByKeyword(record, keywords, field, caseSensitive))
                 {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
-
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
-
-                    if(record != null)
-                    {
-                        result.add(record);
-                    }
+                    result.add(record);
                 }
 
                 currentProgress += nodesProgressStep;
@@ -614,6 +407,26 @@ public class HistoryReaderImpl
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
+    /**
+     * Looks up the records which may match a keyword query in the keyword
+     * index of <tt>history</tt>.
+     *
+     * @param history the searched history
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field to search in or <tt>null</tt>
+     * @return the positions of the candidate records by file name or
+     * <tt>null</tt> if all records have to be checked
+     */
+    static Map<String, BitSet> findCandidates(HistoryImpl history,
+                                              String[] keywords,
+                                              String field)
+    {
+        if(keywords == null || keywords.length == 0 || field == null)
+            return null;
+
+        return history.getKeywordIndex().findCandidates(field, keywords);
+    }
+
     /**
      * Evaluetes does <tt>timestamp</tt> is in the given time period.
      *
@@ -642,73 +455,35 @@ public class HistoryReaderImpl
     }
 
     /**
-     * If there is keyword restriction and doesn't match the conditions
-     * return null. Otherwise return the HistoryRecord corresponding the
-     * given nodes.
+     * Checks whether <tt>record</tt> matches the keyword restriction if there
+     * is any.
      *
-     * @param propertyNodes NodeList
-     * @param timestamp Date
+     * @param record the record to check
      * @param keywords String[]
      * @param field String
      * @param caseSensitive boolean
-     * @return HistoryRecord
+     * @return <tt>true</tt> if there is no keyword restriction or the value
+     * of <tt>field</tt> contains all <tt>keywords</tt>
      */
-    static HistoryRecord filterByKeyword(   NodeList propertyNodes,
-                                            Date timestamp,
-                                            String[] keywords,
-                                            String field,
-                                            boolean caseSensitive)
+    static boolean filterByKeyword( HistoryRecord record,
+                                    String[] keywords,
+                                    String field,
+                                    boolean caseSensitive)
     {
-        ArrayList<String> nameVals = new ArrayList<String>();
-        int len = propertyNodes.getLength();
-        boolean targetNodeFound = false;
-        for (int j = 0; j < len; j++)
-        {
-            Node propertyNode = propertyNodes.item(j);
-            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-            {
-                String nodeName = propertyNode.getNodeName();
-
-                Node nestedNode = propertyNode.getFirstChild();
-
-                if(nestedNode == null)
-                    continue;
-
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
-
-                if(field != null && field.equals(nodeName))
-                {
-                    targetNodeFound = true;
-
-                    if(!matchKeyword(nodeValue, keywords, caseSensitive))
-                        return null; // doesn't match the given keyword(s)
-                                    // so return nothing
-                }
-
-                nameVals.add(nodeName);
-                // Get nested TEXT node's value
-                nameVals.add(nodeValue);
-
-            }
-        }
-
-        // if we need to find a particular record but the target node is not
-        // present skip this record
-        if(keywords != null && keywords.length > 0 && !targetNodeFound)
-        {
-            return null;
-        }
+        if(keywords == null || keywords.length == 0)
+            return true;
 
-        String[] propertyNames = new String[nameVals.size() / 2];
-        String[] propertyValues = new String[propertyNames.length];
+        String[] propertyNames = record.getPropertyNames();
+        String[] propertyValues = record.getPropertyValues();
         for (int j = 0; j < propertyNames.length; j++)
         {
-            propertyNames[j] = nameVals.get(j * 2);
-            propertyValues[j] = nameVals.get(j * 2 + 1);
+            if(field != null && field.equals(propertyNames[j]))
+                return matchKeyword(propertyValues[j], keywords, caseSensitive);
         }
 
-        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+        // if we need to find a particular record but the target node is not
+        // present skip this record
+        return false;
     }
 
     /**
@@ -798,18 +573,16 @@ public class HistoryReaderImpl
 
             return result;
         }
-        // first convert all files to long
-        TreeSet<Long> files = new TreeSet<Long>();
+        // first convert all files to long, keeping their names as the
+        // storages use different extensions
+        TreeMap<Long, String> files = new TreeMap<Long, String>();
         while (filelist.hasNext())
         {
             String filename = filelist.next();
 
-            files.add(
-                Long.parseLong(filename.substring(0, filename.length() - 4)));
+            files.put(getFileTimestamp(filename), filename);
         }
 
-        TreeSet<Long> resultAsLong = new TreeSet<Long>();
-
         // Temporary fix of a NoSuchElementException
         if(files.size() == 0)
         {
@@ -830,46 +603,39 @@ public class HistoryReaderImpl
             endLong = endDate.getTime();
 
         // get all records inclusive the one before the startdate
-        for(Long f : files)
-        {
-            if(startLong <= f
-               && f <= endLong)
-            {
-                resultAsLong.add(f);
-            }
-        }
+        SortedMap<Long, String> resultAsLong
+            = new TreeMap<Long, String>(
+                    files.subMap(startLong, true, endLong, true));
 
         // get the subset before the start date, to get its last element
         // if exists
-        if(!files.isEmpty() && files.first() <= startLong)
-        {
-            SortedSet<Long> setBeforeTheInterval =
-                files.subSet(files.first(), true, startLong, true);
-            if(!setBeforeTheInterval.isEmpty())
-                resultAsLong.add(setBeforeTheInterval.last());
-        }
+        Map.Entry<Long, String> beforeTheInterval
+            = files.floorEntry(startLong);
+        if(beforeTheInterval != null)
+            resultAsLong.put(
+                beforeTheInterval.getKey(), beforeTheInterval.getValue());
 
-        Vector<String> result = new Vector<String>();
+        Vector<String> result = new Vector<String>(resultAsLong.values());
 
-        Iterator<Long> iter = resultAsLong.iterator();
-        while (iter.hasNext())
-        {
-            Long item = iter.next();
-            result.add(item.toString() + ".xml");
-        }
+        if(reverseOrder)
+            Collections.reverse(result);
 
-        Collections.sort(result, new Comparator<String>() {
+        return result;
+    }
 
-            public int compare(String o1, String o2)
-            {
-                if(reverseOrder)
-                    return o2.compareTo(o1);
-                else
-                    return o1.compareTo(o2);
-            }
-        });
+    /**
+     * Returns the timestamp a history file is named after, i.e. the name of
+     * the file without its extension.
+     *
+     * @param filename the name of the file
+     * @return the timestamp of the first record of the file
+     */
+    static long getFileTimestamp(String filename)
+    {
+        int dot = filename.lastIndexOf('.');
 
-        return result;
+        return Long.parseLong(
+            (dot == -1) ? filename : filename.substring(0, dot));
     }
 
     private void fireProgressStateChanged(Date startDate, Date endDate,
@@ -917,11 +683,10 @@ public class HistoryReaderImpl
     }
 
     /**
-     * Count the number of messages that a search will return
-     * Actually only the last file is parsed and its nodes are counted.
-     * We accept that the other files are full with max records,
-     * this way we escape parsing all files which will significantly
-     * slow the process and for one search will parse the files twice.
+     * Count the number of messages that a search will return.
+     * The storage of the history either knows the exact count or estimates
+     * it without parsing all files, which would significantly slow the
+     * process and for one search would parse the files twice.
      *
      * @return the number of searched messages
      * @throws UnsupportedOperationException
@@ -931,28 +696,7 @@ public class HistoryReaderImpl
     public int countRecords()
         throws UnsupportedOperationException
     {
-        int result = 0;
-        String lastFile = null;
-        Iterator<String> filelistIter = this.historyImpl.getFileList();
-        while (filelistIter.hasNext())
-        {
-            lastFile = filelistIter.next();
-            result += HistoryWriterImpl.MAX_RECORDS_PER_FILE;
-        }
-
-        if(lastFile == null)
-            return result;
-
-        Document doc = this.historyImpl.getDocumentForFile(lastFile);
-
-        if(doc == null)
-            return result;
-
-        NodeList nodes = doc.getElementsByTagName("record");
-
-        result += nodes.getLength();
-
-        return result;
+        return this.historyImpl.getStorage().countRecords();
     }
 
     /**
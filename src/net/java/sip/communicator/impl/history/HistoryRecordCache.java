@@ -0,0 +1,318 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A cache of the parsed records of history files shared by all histories of
+ * a <tt>HistoryServiceImpl</tt>. The cache is bounded both by the number of
+ * files and by the estimated heap size of the cached records; when either
+ * bound is exceeded the least recently used files are evicted.
+ * <p>
+ * Records are kept as <tt>HistoryRecord</tt>s sharing a single property name
+ * array per distinct record structure, which is much smaller than the DOM the
+ * records were parsed from.
+ * <p>
+ * Each entry carries a stamp identifying the version of the file it was read
+ * from. A lookup only hits if the caller presents the stamp of the current
+ * version, so a reader racing with a writer can never cache stale records.
+ */
+class HistoryRecordCache
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryRecordCache.class);
+
+    /**
+     * The estimated fixed heap cost of a cached record.
+     */
+    private static final int RECORD_OVERHEAD = 64;
+
+    /**
+     * The estimated fixed heap cost of a cached property value.
+     */
+    private static final int VALUE_OVERHEAD = 48;
+
+    /**
+     * The maximum number of cached files.
+     */
+    private final int maxFiles;
+
+    /**
+     * The maximum estimated size in bytes of all cached records.
+     */
+    private final long maxSize;
+
+    /**
+     * The cached files in access order.
+     */
+    private final LinkedHashMap<File, Entry> entries
+        = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+
+    /**
+     * The shared property name arrays.
+     */
+    private final Map<List<String>, String[]> namePool
+        = new HashMap<List<String>, String[]>();
+
+    /**
+     * The estimated size in bytes of all cached records.
+     */
+    private long size = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    /**
+     * Creates a cache with the given bounds.
+     *
+     * @param maxFiles the maximum number of cached files, <tt>0</tt>
+     * disables the cache
+     * @param maxSize the maximum estimated size in bytes of cached records
+     */
+    HistoryRecordCache(int maxFiles, long maxSize)
+    {
+        this.maxFiles = maxFiles;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached records of <tt>file</tt>.
+     *
+     * @param file the history file
+     * @param stamp the current version of the file
+     * @return the unmodifiable list of cached records or <tt>null</tt> if the
+     * file is not cached or was cached at another version
+     */
+    synchronized List<HistoryRecord> get(File file, long stamp)
+    {
+        Entry entry = entries.get(file);
+
+        if (entry == null || entry.stamp != stamp)
+        {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.records;
+    }
+
+    /**
+     * Caches the records of <tt>file</tt>, evicting least recently used
+     * files if needed.
+     *
+     * @param file the history file
+     * @param records the records of the file
+     * @param stamp the version of the file, taken before reading it
+     * @return the cached, unmodifiable list of records which callers should
+     * use instead of <tt>records</tt>
+     */
+    synchronized List<HistoryRecord> put(File file,
+                                         List<HistoryRecord> records,
+                                         long stamp)
+    {
+        if (maxFiles <= 0)
+            return Collections.unmodifiableList(records);
+
+        List<HistoryRecord> compact
+            = new ArrayList<HistoryRecord>(records.size());
+        long entrySize = 0;
+
+        for (HistoryRecord record : records)
+        {
+            String[] names = internNames(record.getPropertyNames());
+
+            compact.add(new HistoryRecord(names, record.getPropertyValues(),
+                record.getTimestamp()));
+
+            entrySize += RECORD_OVERHEAD;
+            for (String value : record.getPropertyValues())
+            {
+                if (value != null)
+                    entrySize += VALUE_OVERHEAD + 2L * value.length();
+            }
+        }
+
+        List<HistoryRecord> result = Collections.unmodifiableList(compact);
+
+        if (entrySize > maxSize)
+            return result;
+
+        Entry old = entries.put(file, new Entry(result, entrySize, stamp));
+        if (old != null)
+            size -= old.size;
+        size += entrySize;
+
+        evict();
+
+        return result;
+    }
+
+    /**
+     * Removes <tt>file</tt> from the cache, called when the file changes or
+     * goes away to free the memory early.
+     *
+     * @param file the history file
+     */
+    synchronized void invalidate(File file)
+    {
+        Entry old = entries.remove(file);
+
+        if (old != null)
+            size -= old.size;
+    }
+
+    /**
+     * Removes all files from the cache.
+     */
+    synchronized void clear()
+    {
+        entries.clear();
+        namePool.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of lookups which found the file in the cache.
+     *
+     * @return the number of cache hits
+     */
+    synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups which did not find the file in the
+     * cache.
+     *
+     * @return the number of cache misses
+     */
+    synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of files evicted because a bound was exceeded.
+     *
+     * @return the number of evictions
+     */
+    synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    /**
+     * Returns the estimated size in bytes of all cached records.
+     *
+     * @return the estimated size of the cache
+     */
+    synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns a short summary of the cache statistics.
+     *
+     * @return a short summary of the cache statistics
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "HistoryRecordCache[files=" + entries.size()
+            + ", size=" + size
+            + ", hits=" + hits
+            + ", misses=" + misses
+            + ", evictions=" + evictions + "]";
+    }
+
+    /**
+     * Evicts least recently used files until both bounds are respected.
+     */
+    private void evict()
+    {
+        Iterator<Map.Entry<File, Entry>> iter = entries.entrySet().iterator();
+
+        while ((entries.size() > maxFiles || size > maxSize) && iter.hasNext())
+        {
+            Map.Entry<File, Entry> eldest = iter.next();
+
+            size -= eldest.getValue().size;
+            iter.remove();
+            evictions++;
+
+            if (logger.isTraceEnabled())
+                logger.trace("Evicted " + eldest.getKey() + " " + this);
+        }
+
+        // the pool only grows with the number of distinct structures but
+        // drop it with the last file so it does not outlive its use
+        if (entries.isEmpty())
+            namePool.clear();
+    }
+
+    /**
+     * Returns the shared instance of the given property names.
+     *
+     * @param names the property names of a record
+     * @return an equal, shared array
+     */
+    private String[] internNames(String[] names)
+    {
+        List<String> key = Arrays.asList(names);
+        String[] shared = namePool.get(key);
+
+        if (shared == null)
+        {
+            namePool.put(key, names);
+            shared = names;
+        }
+
+        return shared;
+    }
+
+    /**
+     * A cached file.
+     */
+    private static class Entry
+    {
+        /**
+         * The records of the file.
+         */
+        final List<HistoryRecord> records;
+
+        /**
+         * The estimated size of the records.
+         */
+        final long size;
+
+        /**
+         * The version of the file the records were read from.
+         */
+        final long stamp;
+
+        Entry(List<HistoryRecord> records, long size, long stamp)
+        {
+            this.records = records;
+            this.size = size;
+            this.stamp = stamp;
+        }
+    }
+}
@@ -0,0 +1,816 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A single append-only file of a <tt>SegmentedHistoryStorage</tt>.
+ * <p>
+ * A segment starts with a fixed size header holding the minimum and maximum
+ * record timestamp and the record count, followed by length-prefixed binary
+ * records:
+ * <pre>
+ * header: magic(4) version(2) flags(2) minTimestamp(8) maxTimestamp(8)
+ *         count(4) reserved(4)
+ * record: length(4) crc32(4) payload(length)
+ * payload: timestamp(8) propertyCount(2)
+ *          { nameLength(2) name(UTF-8) valueLength(4) value(UTF-8) }*
+ * </pre>
+ * Appending a record writes the record at the end of the file and rewrites
+ * the header in place, so its cost depends only on the size of the record.
+ * A record which was not completely written (e.g. because of a crash) fails
+ * its length or checksum validation and is cut off the next time the segment
+ * is opened.
+ * <p>
+ * The offsets and timestamps of the records are kept in a
+ * <tt>HistorySegmentIndex</tt> which is persisted in a sidecar file when the
+ * segment is sealed, so opening a sealed segment only reads its header and
+ * reading the records around a date only reads those records.
+ */
+class HistorySegment
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(HistorySegment.class);
+
+    /**
+     * The extension of segment files.
+     */
+    static final String EXTENSION = "seg";
+
+    /**
+     * The magic number identifying segment files ("JHS1").
+     */
+    private static final int MAGIC = 0x4A485331;
+
+    /**
+     * The version of the segment format.
+     */
+    private static final short VERSION = 1;
+
+    /**
+     * The size of the segment header in bytes.
+     */
+    static final int HEADER_SIZE = 32;
+
+    /**
+     * The size of the length and checksum prefix of each record.
+     */
+    private static final int RECORD_PREFIX_SIZE = 8;
+
+    /**
+     * The maximum accepted size of a single record, guards against reading
+     * garbage as a huge length.
+     */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The source of segment versions, shared by all segments so that a
+     * rewritten segment never reuses the version of the segment it
+     * replaces.
+     */
+    private static final AtomicLong versions = new AtomicLong();
+
+    /**
+     * The file of this segment.
+     */
+    private final File file;
+
+    /**
+     * The timestamp of the oldest record in this segment.
+     */
+    private volatile long minTimestamp = Long.MAX_VALUE;
+
+    /**
+     * The timestamp of the newest record in this segment.
+     */
+    private volatile long maxTimestamp = Long.MIN_VALUE;
+
+    /**
+     * The number of records in this segment.
+     */
+    private volatile int count = 0;
+
+    /**
+     * The number of valid bytes in the file of this segment.
+     */
+    private volatile long length = HEADER_SIZE;
+
+    /**
+     * Changes whenever records are appended to this segment.
+     */
+    private volatile long version = versions.incrementAndGet();
+
+    /**
+     * The index of this segment. Held softly as it can always be reloaded
+     * from the sidecar file or rebuilt from the segment.
+     */
+    private SoftReference<HistorySegmentIndex> indexRef = null;
+
+    /**
+     * Whether the file of this segment was rewritten or deleted and this
+     * object no longer describes its content. Readers check it after
+     * reading, so they never hold a lock while reading the file.
+     */
+    private volatile boolean replaced = false;
+
+    /**
+     * Creates a segment object for the given file. The file is neither read
+     * nor created, see {@link #create()} and {@link #open()}.
+     *
+     * @param file the file of the segment
+     */
+    HistorySegment(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Returns the file of this segment.
+     *
+     * @return the file of this segment
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Returns the file name of this segment.
+     *
+     * @return the file name of this segment
+     */
+    String getName()
+    {
+        return file.getName();
+    }
+
+    /**
+     * Returns the timestamp of the oldest record in this segment.
+     *
+     * @return the timestamp of the oldest record in this segment
+     */
+    long getMinTimestamp()
+    {
+        return minTimestamp;
+    }
+
+    /**
+     * Returns the timestamp of the newest record in this segment.
+     *
+     * @return the timestamp of the newest record in this segment
+     */
+    long getMaxTimestamp()
+    {
+        return maxTimestamp;
+    }
+
+    /**
+     * Returns the number of records in this segment.
+     *
+     * @return the number of records in this segment
+     */
+    int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the number of valid bytes in the file of this segment.
+     *
+     * @return the number of valid bytes in the file of this segment
+     */
+    long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the current version of this segment. The version changes
+     * whenever records are appended and is used to validate the records
+     * cached for this segment.
+     *
+     * @return the current version of this segment
+     */
+    long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Creates the file of this segment with an empty header.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    synchronized void create()
+        throws IOException
+    {
+        getIndexFile().delete();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(0);
+            writeHeader(raf);
+        }
+        finally
+        {
+            raf.close();
+        }
+        length = HEADER_SIZE;
+        indexRef = new SoftReference<HistorySegmentIndex>(
+            new HistorySegmentIndex(
+                SegmentedHistoryStorage.MAX_RECORDS_PER_SEGMENT, HEADER_SIZE));
+    }
+
+    /**
+     * Returns the sidecar file holding the index of this segment.
+     *
+     * @return the index file of this segment
+     */
+    File getIndexFile()
+    {
+        return new File(file.getPath() + HistorySegmentIndex.EXTENSION);
+    }
+
+    /**
+     * Opens an existing segment. If the index sidecar matches the segment
+     * only the header is read; otherwise all records are scanned, the file
+     * is truncated after the last complete record and the sidecar is
+     * rewritten.
+     *
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    synchronized void open()
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC)
+                throw new IOException("Not a history segment: " + file);
+
+            short formatVersion = raf.readShort();
+            if (formatVersion > VERSION)
+                throw new IOException("Unsupported segment version "
+                    + formatVersion + ": " + file);
+            raf.readShort();
+
+            long fileLength = raf.length();
+
+            if (HistorySegmentIndex.readSegmentLength(getIndexFile())
+                    == fileLength)
+            {
+                // sealed and indexed, the header is up to date
+                minTimestamp = raf.readLong();
+                maxTimestamp = raf.readLong();
+                count = raf.readInt();
+                length = fileLength;
+                return;
+            }
+
+            HistorySegmentIndex index = scan(raf, fileLength);
+
+            minTimestamp = Long.MAX_VALUE;
+            maxTimestamp = Long.MIN_VALUE;
+            for (int i = 0; i < index.size(); i++)
+            {
+                long ts = index.getTimestamp(i);
+                if (ts < minTimestamp)
+                    minTimestamp = ts;
+                if (ts > maxTimestamp)
+                    maxTimestamp = ts;
+            }
+            count = index.size();
+            length = index.getEnd();
+            indexRef = new SoftReference<HistorySegmentIndex>(index);
+
+            // drop a partially written tail and fix the header if it was
+            // not updated after the last append
+            if (fileLength != length)
+                raf.setLength(length);
+            writeHeader(raf);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        writeIndex();
+    }
+
+    /**
+     * Scans the records of the segment up to <tt>fileLength</tt> and builds
+     * their index. Stops at the first incomplete or corrupted record.
+     *
+     * @param raf the file of this segment
+     * @param fileLength the number of bytes to scan
+     * @return the index of the valid records
+     * @throws IOException if reading fails
+     */
+    private static HistorySegmentIndex scan(RandomAccessFile raf,
+                                            long fileLength)
+        throws IOException
+    {
+        HistorySegmentIndex index = new HistorySegmentIndex(
+            SegmentedHistoryStorage.MAX_RECORDS_PER_SEGMENT, HEADER_SIZE);
+        long pos = HEADER_SIZE;
+        byte[] buf = new byte[256];
+        CRC32 crc = new CRC32();
+
+        while (pos + RECORD_PREFIX_SIZE <= fileLength)
+        {
+            raf.seek(pos);
+            int recLen = raf.readInt();
+            int recCrc = raf.readInt();
+
+            if (recLen < 10
+                    || recLen > MAX_RECORD_SIZE
+                    || pos + RECORD_PREFIX_SIZE + recLen > fileLength)
+                break;
+
+            if (buf.length < recLen)
+                buf = new byte[recLen];
+            raf.readFully(buf, 0, recLen);
+
+            crc.reset();
+            crc.update(buf, 0, recLen);
+            if ((int) crc.getValue() != recCrc)
+                break;
+
+            long end = pos + RECORD_PREFIX_SIZE + recLen;
+            index.add(readLong(buf, 0), (int) pos, end);
+            pos = end;
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns the index of this segment, loading it from the sidecar file or
+     * rebuilding it from the segment if it is not in memory.
+     *
+     * @return the index of this segment
+     * @throws IOException if the segment cannot be read
+     */
+    synchronized HistorySegmentIndex getIndex()
+        throws IOException
+    {
+        HistorySegmentIndex index
+            = (indexRef == null) ? null : indexRef.get();
+
+        if (index != null)
+            return index;
+
+        index = HistorySegmentIndex.read(getIndexFile(), length);
+
+        if (index == null)
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                index = scan(raf, Math.min(length, raf.length()));
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        indexRef = new SoftReference<HistorySegmentIndex>(index);
+        return index;
+    }
+
+    /**
+     * Persists the index of this segment in its sidecar file. Called when
+     * the segment is sealed, i.e. no more records will be appended to it.
+     */
+    synchronized void writeIndex()
+    {
+        try
+        {
+            getIndex().write(getIndexFile());
+        }
+        catch (IOException e)
+        {
+            // the index will be rebuilt from the segment when needed
+            logger.warn("Cannot write history index " + getIndexFile(), e);
+        }
+    }
+
+    /**
+     * Deletes the file of this segment and its index.
+     *
+     * @return <tt>true</tt> if the segment file was deleted
+     */
+    synchronized boolean delete()
+    {
+        getIndexFile().delete();
+        return file.delete();
+    }
+
+    /**
+     * Appends the given records to the end of this segment.
+     *
+     * @param records the records to append
+     * @throws IOException if writing fails
+     */
+    synchronized void append(List<HistoryRecord> records)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long newMin = minTimestamp;
+        long newMax = maxTimestamp;
+        int[] recordEnds = new int[records.size()];
+        int i = 0;
+
+        for (HistoryRecord record : records)
+        {
+            encode(record, bytes);
+            recordEnds[i++] = bytes.size();
+
+            long ts = record.getTimestamp().getTime();
+            if (ts < newMin)
+                newMin = ts;
+            if (ts > newMax)
+                newMax = ts;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.seek(length);
+            raf.write(bytes.toByteArray());
+
+            length += bytes.size();
+            count += records.size();
+            minTimestamp = newMin;
+            maxTimestamp = newMax;
+            version = versions.incrementAndGet();
+
+            writeHeader(raf);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        HistorySegmentIndex index
+            = (indexRef == null) ? null : indexRef.get();
+        if (index != null)
+        {
+            long start = length - bytes.size();
+            long recordStart = start;
+            for (i = 0; i < recordEnds.length; i++)
+            {
+                index.add(records.get(i).getTimestamp().getTime(),
+                    (int) recordStart, start + recordEnds[i]);
+                recordStart = start + recordEnds[i];
+            }
+        }
+    }
+
+    /**
+     * Reads all records of this segment.
+     *
+     * @return the records of this segment in the order they were written
+     * @throws IOException if reading fails
+     */
+    List<HistoryRecord> readRecords()
+        throws IOException
+    {
+        long validLength = getLength();
+        byte[] data = new byte[(int) validLength];
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            validLength = Math.min(validLength, raf.length());
+            raf.readFully(data, 0, (int) validLength);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        return decode(data, HEADER_SIZE, (int) validLength);
+    }
+
+    /**
+     * Reads the last <tt>count</tt> records with a timestamp before
+     * <tt>date</tt>. Only the index lookup is done under the lock of this
+     * segment, records appended meanwhile are not seen.
+     *
+     * @param date the date before which records are returned or
+     * <tt>null</tt>
+     * @param count the maximum number of records to return
+     * @return the records or <tt>null</tt> if the records of this segment
+     * are not in timestamp order and the index cannot be searched
+     * @throws IOException if reading fails
+     */
+    List<HistoryRecord> readRecordsBefore(Date date, int count)
+        throws IOException
+    {
+        long start;
+        long end;
+        synchronized (this)
+        {
+            HistorySegmentIndex index = getIndex();
+
+            if (!index.isSorted())
+                return null;
+
+            int to = (date == null)
+                ? index.size() : index.lowerBound(date.getTime());
+
+            start = index.getOffset(Math.max(0, to - count));
+            end = index.getOffset(to);
+        }
+
+        return readRange(start, end);
+    }
+
+    /**
+     * Reads the first <tt>count</tt> records with a timestamp not before
+     * <tt>date</tt>. Only the index lookup is done under the lock of this
+     * segment, records appended meanwhile are not seen.
+     *
+     * @param date the date from which records are returned or <tt>null</tt>
+     * @param count the maximum number of records to return
+     * @return the records or <tt>null</tt> if the records of this segment
+     * are not in timestamp order and the index cannot be searched
+     * @throws IOException if reading fails
+     */
+    List<HistoryRecord> readRecordsAfter(Date date, int count)
+        throws IOException
+    {
+        long start;
+        long end;
+        synchronized (this)
+        {
+            HistorySegmentIndex index = getIndex();
+
+            if (!index.isSorted())
+                return null;
+
+            int from = (date == null) ? 0 : index.lowerBound(date.getTime());
+
+            start = index.getOffset(from);
+            end = index.getOffset(Math.min(index.size(), from + count));
+        }
+
+        return readRange(start, end);
+    }
+
+    /**
+     * Reads and decodes the records stored between <tt>start</tt> and
+     * <tt>end</tt>.
+     *
+     * @param start the offset of the first record
+     * @param end the offset following the last record
+     * @return the records
+     * @throws IOException if reading fails
+     */
+    private List<HistoryRecord> readRange(long start, long end)
+        throws IOException
+    {
+        if (start >= end)
+            return new ArrayList<HistoryRecord>();
+
+        byte[] data = new byte[(int) (end - start)];
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            raf.seek(start);
+            raf.readFully(data);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * Marks this segment as replaced: its file is about to be rewritten or
+     * deleted and reads which overlap with that have to be retried.
+     */
+    void markReplaced()
+    {
+        replaced = true;
+    }
+
+    /**
+     * Returns whether the file of this segment was rewritten or deleted.
+     *
+     * @return whether the file of this segment was rewritten or deleted
+     */
+    boolean isReplaced()
+    {
+        return replaced;
+    }
+
+    /**
+     * Decodes the records stored in <tt>data</tt> between <tt>offset</tt>
+     * and <tt>end</tt>, stopping at the first invalid record.
+     *
+     * @param data the bytes of a segment
+     * @param offset the offset of the first record
+     * @param end the end of the valid data
+     * @return the decoded records
+     */
+    static List<HistoryRecord> decode(byte[] data, int offset, int end)
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        CRC32 crc = new CRC32();
+        int pos = offset;
+
+        while (pos + RECORD_PREFIX_SIZE <= end)
+        {
+            int recLen = readInt(data, pos);
+            int recCrc = readInt(data, pos + 4);
+            int start = pos + RECORD_PREFIX_SIZE;
+
+            if (recLen < 10 || recLen > end - start)
+                break;
+
+            crc.reset();
+            crc.update(data, start, recLen);
+            if ((int) crc.getValue() != recCrc)
+                break;
+
+            records.add(decodePayload(data, start));
+
+            pos = start + recLen;
+        }
+
+        return records;
+    }
+
+    /**
+     * Decodes a single record payload.
+     *
+     * @param data the bytes holding the payload
+     * @param start the offset of the payload
+     * @return the decoded record
+     */
+    private static HistoryRecord decodePayload(byte[] data, int start)
+    {
+        int pos = start;
+        long ts = readLong(data, pos);
+        pos += 8;
+        int propCount = readShort(data, pos);
+        pos += 2;
+
+        String[] names = new String[propCount];
+        String[] values = new String[propCount];
+
+        for (int i = 0; i < propCount; i++)
+        {
+            int nameLen = readShort(data, pos);
+            pos += 2;
+            names[i] = utf8(data, pos, nameLen);
+            pos += nameLen;
+
+            int valueLen = readInt(data, pos);
+            pos += 4;
+            values[i] = utf8(data, pos, valueLen);
+            pos += valueLen;
+        }
+
+        return new HistoryRecord(names, values, new Date(ts));
+    }
+
+    /**
+     * Encodes <tt>record</tt> with its length and checksum prefix. Properties
+     * without a value are skipped and the <tt>_CDATA</tt> suffix is removed
+     * from property names, as the XML storage does.
+     *
+     * @param record the record to encode
+     * @param out the stream to write the encoded record to
+     */
+    static void encode(HistoryRecord record, ByteArrayOutputStream out)
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        DataOutputStream dout = new DataOutputStream(payload);
+
+        try
+        {
+            int propCount = 0;
+            for (int i = 0; i < names.length; i++)
+            {
+                if (values[i] != null)
+                    propCount++;
+            }
+
+            dout.writeLong(record.getTimestamp().getTime());
+            dout.writeShort(propCount);
+
+            for (int i = 0; i < names.length; i++)
+            {
+                if (values[i] == null)
+                    continue;
+
+                byte[] name = HistoryWriterImpl.stripCDataSuffix(names[i])
+                    .getBytes("UTF-8");
+                byte[] value = values[i].getBytes("UTF-8");
+
+                dout.writeShort(name.length);
+                dout.write(name);
+                dout.writeInt(value.length);
+                dout.write(value);
+            }
+            dout.flush();
+
+            CRC32 crc = new CRC32();
+            byte[] payloadBytes = payload.toByteArray();
+            crc.update(payloadBytes);
+
+            DataOutputStream recOut = new DataOutputStream(out);
+            recOut.writeInt(payloadBytes.length);
+            recOut.writeInt((int) crc.getValue());
+            recOut.write(payloadBytes);
+            recOut.flush();
+        }
+        catch (IOException e)
+        {
+            // cannot happen with in-memory streams
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the header of this segment at the start of <tt>raf</tt>.
+     *
+     * @param raf the file of this segment
+     * @throws IOException if writing fails
+     */
+    private void writeHeader(RandomAccessFile raf)
+        throws IOException
+    {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+        DataOutputStream out = new DataOutputStream(header);
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(0);
+        out.writeLong(minTimestamp);
+        out.writeLong(maxTimestamp);
+        out.writeInt(count);
+        out.writeInt(0);
+        out.flush();
+
+        raf.seek(0);
+        raf.write(header.toByteArray());
+    }
+
+    private static String utf8(byte[] data, int offset, int len)
+    {
+        try
+        {
+            return new String(data, offset, len, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int readShort(byte[] b, int off)
+    {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int off)
+    {
+        return ((b[off] & 0xFF) << 24)
+            | ((b[off + 1] & 0xFF) << 16)
+            | ((b[off + 2] & 0xFF) << 8)
+            | (b[off + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] b, int off)
+    {
+        return (((long) readInt(b, off)) << 32)
+            | (readInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+}
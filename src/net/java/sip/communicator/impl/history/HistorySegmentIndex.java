@@ -0,0 +1,292 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The timestamp index of a <tt>HistorySegment</tt>: the timestamp and file
+ * offset of every record of the segment in the order they were written. The
+ * index lets readers locate the records around a date by binary search and
+ * read only the bytes of the records they return.
+ * <p>
+ * The index of a segment is persisted next to it in a sidecar file named
+ * after the segment with the {@link #EXTENSION} appended:
+ * <pre>
+ * magic(4) segmentLength(8) count(4) { timestamp(8) offset(4) }*
+ * </pre>
+ * The sidecar is only trusted if the length it records matches the length
+ * of the segment.
+ */
+class HistorySegmentIndex
+{
+    /**
+     * The extension of index sidecar files.
+     */
+    static final String EXTENSION = ".idx";
+
+    /**
+     * The magic number identifying index files ("JHI1").
+     */
+    private static final int MAGIC = 0x4A484931;
+
+    /**
+     * The timestamps of the records.
+     */
+    private long[] timestamps;
+
+    /**
+     * The offsets of the records in the segment file.
+     */
+    private int[] offsets;
+
+    /**
+     * The number of indexed records.
+     */
+    private int size = 0;
+
+    /**
+     * The end offset of the last indexed record.
+     */
+    private long end;
+
+    /**
+     * Whether the timestamps are in ascending order, which is the case
+     * unless records with older timestamps (e.g. offline messages) were
+     * appended after newer ones.
+     */
+    private boolean sorted = true;
+
+    /**
+     * Creates an empty index for records starting at <tt>start</tt>.
+     *
+     * @param capacity the initial capacity
+     * @param start the offset of the first record
+     */
+    HistorySegmentIndex(int capacity, long start)
+    {
+        capacity = Math.max(capacity, 16);
+        this.timestamps = new long[capacity];
+        this.offsets = new int[capacity];
+        this.end = start;
+    }
+
+    /**
+     * Adds a record to the index.
+     *
+     * @param timestamp the timestamp of the record
+     * @param offset the offset of the record
+     * @param recordEnd the offset following the record
+     */
+    void add(long timestamp, int offset, long recordEnd)
+    {
+        if (size == timestamps.length)
+        {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+
+        if (size > 0 && timestamp < timestamps[size - 1])
+            sorted = false;
+
+        timestamps[size] = timestamp;
+        offsets[size] = offset;
+        size++;
+        end = recordEnd;
+    }
+
+    /**
+     * Returns the number of indexed records.
+     *
+     * @return the number of indexed records
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the end offset of the last indexed record.
+     *
+     * @return the end offset of the last indexed record
+     */
+    long getEnd()
+    {
+        return end;
+    }
+
+    /**
+     * Returns whether the timestamps of the records are ascending.
+     *
+     * @return whether the timestamps of the records are ascending
+     */
+    boolean isSorted()
+    {
+        return sorted;
+    }
+
+    /**
+     * Returns the timestamp of the record at <tt>index</tt>.
+     *
+     * @param index the index of the record
+     * @return the timestamp of the record
+     */
+    long getTimestamp(int index)
+    {
+        return timestamps[index];
+    }
+
+    /**
+     * Returns the offset of the record at <tt>index</tt>, or the end of the
+     * indexed records if <tt>index</tt> equals the size of the index.
+     *
+     * @param index the index of the record
+     * @return the offset of the record
+     */
+    long getOffset(int index)
+    {
+        return (index == size) ? end : offsets[index];
+    }
+
+    /**
+     * Returns the index of the first record with a timestamp not before
+     * <tt>timestamp</tt>. Only meaningful if the index {@link #isSorted()}.
+     *
+     * @param timestamp the timestamp to search for
+     * @return the index of the first record at or after <tt>timestamp</tt>,
+     * or the size of the index if there is none
+     */
+    int lowerBound(long timestamp)
+    {
+        int lo = 0;
+        int hi = size;
+
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+
+            if (timestamps[mid] < timestamp)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Writes this index to <tt>file</tt> through a temporary file.
+     *
+     * @param file the sidecar file
+     * @throws IOException if writing fails
+     */
+    void write(File file)
+        throws IOException
+    {
+        File tmp = new File(file.getPath() + SegmentedHistoryStorage.TEMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeLong(end);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++)
+            {
+                out.writeLong(timestamps[i]);
+                out.writeInt(offsets[i]);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        SegmentedHistoryStorage.replaceFile(tmp, file);
+    }
+
+    /**
+     * Returns the segment length recorded in the sidecar <tt>file</tt>
+     * without loading the index.
+     *
+     * @param file the sidecar file
+     * @return the recorded segment length or <tt>-1</tt> if the file does
+     * not exist or is not an index
+     */
+    static long readSegmentLength(File file)
+    {
+        if (!file.isFile())
+            return -1;
+
+        try
+        {
+            DataInputStream in
+                = new DataInputStream(new FileInputStream(file));
+            try
+            {
+                return (in.readInt() == MAGIC) ? in.readLong() : -1;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Loads the index stored in <tt>file</tt> if it matches a segment of
+     * the given length.
+     *
+     * @param file the sidecar file
+     * @param segmentLength the current length of the segment
+     * @return the index or <tt>null</tt> if the file does not exist, cannot
+     * be read or belongs to another version of the segment
+     */
+    static HistorySegmentIndex read(File file, long segmentLength)
+    {
+        if (!file.isFile())
+            return null;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (in.readInt() != MAGIC || in.readLong() != segmentLength)
+                    return null;
+
+                int count = in.readInt();
+                HistorySegmentIndex index
+                    = new HistorySegmentIndex(count, HistorySegment.HEADER_SIZE);
+
+                for (int i = 0; i < count; i++)
+                {
+                    long ts = in.readLong();
+                    int offset = in.readInt();
+
+                    index.add(ts, offset, segmentLength);
+                }
+
+                return index;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+}
@@ -39,6 +39,62 @@ public class HistoryServiceImpl
      */
     public static final String DATA_FILE = "dbstruct.dat";
 
+    /**
+     * The name of the configuration property selecting the storage format of
+     * histories. One of {@link #STORAGE_FORMAT_SEGMENTED} (the default) or
+     * {@link #STORAGE_FORMAT_XML}.
+     */
+    public static final String STORAGE_FORMAT_PROPERTY
+        = "net.java.sip.communicator.impl.history.STORAGE_FORMAT";
+
+    /**
+     * The value of {@link #STORAGE_FORMAT_PROPERTY} selecting the append-only
+     * <tt>SegmentedHistoryStorage</tt>.
+     */
+    public static final String STORAGE_FORMAT_SEGMENTED = "segmented";
+
+    /**
+     * The value of {@link #STORAGE_FORMAT_PROPERTY} selecting the legacy
+     * <tt>XmlHistoryStorage</tt>.
+     */
+    public static final String STORAGE_FORMAT_XML = "xml";
+
+    /**
+     * The name of the configuration property holding the interval in
+     * milliseconds between two compactions of the history storages.
+     */
+    public static final String COMPACTION_INTERVAL_PROPERTY
+        = "net.java.sip.communicator.impl.history.COMPACTION_INTERVAL";
+
+    /**
+     * The default interval between two compactions, ten minutes.
+     */
+    private static final long DEFAULT_COMPACTION_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * The name of the configuration property holding the maximum number of
+     * history files whose parsed records are kept in memory.
+     */
+    public static final String CACHE_MAX_FILES_PROPERTY
+        = "net.java.sip.communicator.impl.history.CACHE_MAX_FILES";
+
+    /**
+     * The default maximum number of cached history files.
+     */
+    private static final int DEFAULT_CACHE_MAX_FILES = 64;
+
+    /**
+     * The name of the configuration property holding the maximum estimated
+     * size in bytes of the history records kept in memory.
+     */
+    public static final String CACHE_MAX_SIZE_PROPERTY
+        = "net.java.sip.communicator.impl.history.CACHE_MAX_SIZE";
+
+    /**
+     * The default maximum estimated size of cached records, 4 MB.
+     */
+    private static final long DEFAULT_CACHE_MAX_SIZE = 4 * 1024 * 1024;
+
     /**
      * The logger for this class.
      */
@@ -53,7 +109,20 @@ public class HistoryServiceImpl
 
     private final DocumentBuilder builder;
 
-    private final boolean cacheEnabled;
+    /**
+     * The cache of parsed history records shared by all histories.
+     */
+    private final HistoryRecordCache recordCache;
+
+    /**
+     * Whether histories are stored in the segmented format.
+     */
+    private final boolean segmentedStorage;
+
+    /**
+     * The timer running the background compaction of history storages.
+     */
+    private final Timer compactionTimer;
 
     /**
      *  Characters and their replacement in created folder names
@@ -81,12 +150,92 @@ public class HistoryServiceImpl
     public HistoryServiceImpl(BundleContext bundleContext)
         throws Exception
     {
+        ConfigurationService configService
+            = getConfigurationService(bundleContext);
+
         this.builder =
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
+        // the cache is bounded, so unlike the former cache of whole
+        // documents it is safe to have it on by default
+        if (configService.getBoolean(CACHE_ENABLED_PROPERTY, true))
+        {
+            this.recordCache
+                = new HistoryRecordCache(
+                        configService.getInt(
+                            CACHE_MAX_FILES_PROPERTY,
+                            DEFAULT_CACHE_MAX_FILES),
+                        configService.getLong(
+                            CACHE_MAX_SIZE_PROPERTY,
+                            DEFAULT_CACHE_MAX_SIZE));
+        }
+        else
+            this.recordCache = new HistoryRecordCache(0, 0);
+        this.segmentedStorage
+            = !STORAGE_FORMAT_XML.equalsIgnoreCase(
+                configService.getString(
+                    STORAGE_FORMAT_PROPERTY, STORAGE_FORMAT_SEGMENTED));
         this.fileAccessService = getFileAccessService(bundleContext);
+
+        long compactionInterval
+            = configService.getLong(
+                COMPACTION_INTERVAL_PROPERTY, DEFAULT_COMPACTION_INTERVAL);
+        if (segmentedStorage && compactionInterval > 0)
+        {
+            compactionTimer = new Timer("HistoryCompactionTimer", true);
+            compactionTimer.schedule(
+                new CompactionTask(), compactionInterval, compactionInterval);
+        }
+        else
+            compactionTimer = null;
+    }
+
+    /**
+     * Stops the background compaction and releases the storages of all
+     * loaded histories.
+     */
+    void stop()
+    {
+        if (compactionTimer != null)
+            compactionTimer.cancel();
+
+        if (logger.isInfoEnabled())
+            logger.info("Stopping history service " + recordCache);
+
+        synchronized (this.histories)
+        {
+            for (History history : histories.values())
+            {
+                if (history instanceof HistoryImpl)
+                    ((HistoryImpl) history).getStorage().close();
+            }
+        }
+
+        recordCache.clear();
+    }
+
+    /**
+     * Returns the cache of parsed records shared by all histories.
+     *
+     * @return the cache of parsed records
+     */
+    HistoryRecordCache getRecordCache()
+    {
+        return recordCache;
+    }
+
+    /**
+     * Creates the storage backend for a history kept in <tt>directory</tt>
+     * in the configured storage format.
+     *
+     * @param directory the directory of the history
+     * @return the storage backend
+     */
+    HistoryStorage createStorage(File directory)
+    {
+        if (segmentedStorage)
+            return new SegmentedHistoryStorage(directory, this);
+        else
+            return new XmlHistoryStorage(directory, this);
     }
 
     public Iterator<HistoryID> getExistingIDs()
@@ -290,15 +439,6 @@ public class HistoryServiceImpl
         return directory;
     }
 
-    /**
-     * Returns whether caching of readed documents is enabled or desibled.
-     * @return boolean
-     */
-    protected boolean isCacheEnabled()
-    {
-        return cacheEnabled;
-    }
-
     /**
      * Permamently removes local stored History
      *
@@ -315,6 +455,8 @@ public class HistoryServiceImpl
         deleteDirAndContent(dir);
 
         History history = histories.remove(id);
+        if(history instanceof HistoryImpl)
+            ((HistoryImpl) history).getStorage().close();
         if(history == null)
         {
             // well this can be global delete, so lets remove all matching
@@ -328,6 +470,8 @@ public class HistoryServiceImpl
                 Map.Entry<HistoryID, History> entry = iter.next();
                 if(isSubHistory(ids, entry.getKey()))
                 {
+                    if(entry.getValue() instanceof HistoryImpl)
+                        ((HistoryImpl) entry.getValue()).getStorage().close();
                     iter.remove();
                 }
             }
@@ -449,7 +593,9 @@ public class HistoryServiceImpl
             throw new IOException("Cannot move history!");
         }
 
-        histories.remove(oldId);
+        History history = histories.remove(oldId);
+        if(history instanceof HistoryImpl)
+            ((HistoryImpl) history).getStorage().close();
     }
 
     /**
@@ -501,4 +647,38 @@ public class HistoryServiceImpl
     {
         return getDirForHistory(id).exists();
     }
+
+    /**
+     * Periodically gives the storages of the loaded histories the chance to
+     * compact their files.
+     */
+    private class CompactionTask
+        extends TimerTask
+    {
+        @Override
+        public void run()
+        {
+            List<History> loaded;
+            synchronized (histories)
+            {
+                loaded = new ArrayList<History>(histories.values());
+            }
+
+            for (History history : loaded)
+            {
+                if (history instanceof HistoryImpl)
+                {
+                    try
+                    {
+                        ((HistoryImpl) history).getStorage().compact();
+                    }
+                    catch (Throwable t)
+                    {
+                        logger.error("Failed to compact history "
+                            + history.getID(), t);
+                    }
+                }
+            }
+        }
+    }
 }
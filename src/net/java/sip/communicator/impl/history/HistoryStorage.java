@@ -0,0 +1,140 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The on-disk storage backend of a single <tt>HistoryImpl</tt>. A history is
+ * stored as a sequence of files, each named after the timestamp of the first
+ * record it contains (e.g. <tt>1354093427311.xml</tt>), so that the readers
+ * can restrict a query to the files covering a given period. The storage is
+ * responsible for the format of these files and for the way records are
+ * appended and updated.
+ */
+public interface HistoryStorage
+{
+    /**
+     * Returns the names of the files this storage currently consists of,
+     * ordered from the oldest to the newest one.
+     *
+     * @return the names of the files of this storage
+     */
+    public Iterator<String> getFileList();
+
+    /**
+     * Returns the records stored in the file with the given name, ordered as
+     * they were written.
+     *
+     * @param filename the name of the file as returned by
+     * {@link #getFileList()}
+     * @return the records of the file or <tt>null</tt> if the file cannot be
+     * read
+     */
+    public List<HistoryRecord> getRecords(String filename);
+
+    /**
+     * Returns the last <tt>count</tt> records of the given file with a
+     * timestamp before <tt>date</tt>, ordered as they were written.
+     *
+     * @param filename the name of the file as returned by
+     * {@link #getFileList()}
+     * @param date the date before which records are returned or
+     * <tt>null</tt> for no restriction
+     * @param count the maximum number of records to return
+     * @return the records or <tt>null</tt> if the file cannot be read
+     */
+    public List<HistoryRecord> getRecordsBefore(String filename,
+                                                Date date,
+                                                int count);
+
+    /**
+     * Returns the first <tt>count</tt> records of the given file with a
+     * timestamp not before <tt>date</tt>, ordered as they were written.
+     *
+     * @param filename the name of the file as returned by
+     * {@link #getFileList()}
+     * @param date the date from which records are returned or
+     * <tt>null</tt> for no restriction
+     * @param count the maximum number of records to return
+     * @return the records or <tt>null</tt> if the file cannot be read
+     */
+    public List<HistoryRecord> getRecordsAfter(String filename,
+                                               Date date,
+                                               int count);
+
+    /**
+     * Appends a record to the newest file of this storage. Property names
+     * ending with <tt>_CDATA</tt> denote values which may contain markup.
+     *
+     * @param record the record to append
+     * @throws IOException if writing the record fails
+     */
+    public void addRecord(HistoryRecord record)
+        throws IOException;
+
+    /**
+     * Appends records to this storage in the given order, with as few writes
+     * as possible.
+     *
+     * @param records the records to append
+     * @throws IOException if writing the records fails
+     */
+    public void addRecords(List<HistoryRecord> records)
+        throws IOException;
+
+    /**
+     * Updates the first record having <tt>idProperty</tt> equal to
+     * <tt>idValue</tt> by setting (or adding) <tt>property</tt> to
+     * <tt>newValue</tt>.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property
+     * @return <tt>true</tt> if a record was updated
+     * @throws IOException if writing the change fails
+     */
+    public boolean updateRecord(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException;
+
+    /**
+     * Returns the number of records in this storage. Implementations may
+     * return an estimation if an exact count requires reading every file.
+     *
+     * @return the number of records in this storage
+     */
+    public int countRecords();
+
+    /**
+     * Rescans the directory of this storage.
+     */
+    public void reload();
+
+    /**
+     * Gives the storage the chance to reorganize its files in the
+     * background. Called periodically by the <tt>HistoryServiceImpl</tt>.
+     */
+    public void compact();
+
+    /**
+     * Sets the listener notified when records are added, updated or moved
+     * between files.
+     *
+     * @param listener the listener or <tt>null</tt>
+     */
+    public void setStorageListener(HistoryStorageListener listener);
+
+    /**
+     * Releases all resources held by this storage.
+     */
+    public void close();
+}
@@ -0,0 +1,44 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Notified by a <tt>HistoryStorage</tt> about changes of its records, so that
+ * secondary structures such as the <tt>HistoryKeywordIndex</tt> can follow
+ * them incrementally. A record is identified by the name of the file it is
+ * stored in and its position in that file.
+ */
+public interface HistoryStorageListener
+{
+    /**
+     * Called after a record was appended to the storage.
+     *
+     * @param filename the name of the file the record was written to
+     * @param position the position of the record in the file
+     * @param record the record
+     */
+    public void recordAdded(String filename, int position,
+                            HistoryRecord record);
+
+    /**
+     * Called after a record was changed in place.
+     *
+     * @param filename the name of the file holding the record
+     * @param position the position of the record in the file
+     * @param record the record with its new values
+     */
+    public void recordUpdated(String filename, int position,
+                              HistoryRecord record);
+
+    /**
+     * Called after records were moved between files, e.g. by compaction, so
+     * that previously reported positions are no longer valid.
+     */
+    public void recordsRelocated();
+}
@@ -6,20 +6,12 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
 import java.io.*;
-import java.security.*;
-import java.text.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.jitsi.util.xml.XMLUtils;
-import org.w3c.dom.*;
-
 /**
  * @author Alexander Pelov
  */
@@ -31,22 +23,15 @@ public class HistoryWriterImpl
      */
     public static final int MAX_RECORDS_PER_FILE = 150;
 
-    private static final String CDATA_SUFFIX = "_CDATA";
-
-    private Object docCreateLock = new Object();
-
-    private Object docWriteLock = new Object();
+    /**
+     * The suffix of property names whose values may contain markup.
+     */
+    static final String CDATA_SUFFIX = "_CDATA";
 
     private HistoryImpl historyImpl;
 
     private String[] structPropertyNames;
 
-    private Document currentDoc = null;
-
-    private String currentFile = null;
-
-    private int currentDocElements = -1;
-
     protected HistoryWriterImpl(HistoryImpl historyImpl)
     {
         this.historyImpl = historyImpl;
@@ -78,142 +63,63 @@ public class HistoryWriterImpl
     }
 
     /**
-     * Adds new record to the current history document
-     * when the record property name ends with _CDATA this is removed from the
-     * property name and a CDATA text node is created to store the text value
+     * Adds the records to the storage of the history with a single write
+     * where the storage supports it.
+     *
+     * @param records the records to add in order
+     * @throws IOException if writing the records fails
+     */
+    public void addRecords(List<HistoryRecord> records)
+        throws IOException
+    {
+        List<HistoryRecord> sanitized
+            = new ArrayList<HistoryRecord>(records.size());
+
+        for (HistoryRecord record : records)
+        {
+            sanitized.add(new HistoryRecord(record.getPropertyNames(),
+                sanitize(record.getPropertyValues()),
+                record.getTimestamp()));
+        }
+
+        this.historyImpl.getStorage().addRecords(sanitized);
+    }
+
+    /**
+     * Adds new record to the storage of the history. Property names ending
+     * with _CDATA mark values which the storage may keep as CDATA, the
+     * suffix is removed from the stored property name.
      *
      * @param propertyNames String[]
      * @param propertyValues String[]
      * @param date Date
-     * @throws InvalidParameterException
      * @throws IOException
      */
     private void addRecord(String[] propertyNames,
                            String[] propertyValues,
                            Date date)
-        throws InvalidParameterException, IOException
+        throws IOException
     {
-        // Synchronized to assure that two concurrent threads can insert records
-        // safely.
-        synchronized (this.docCreateLock)
-        {
-            if (this.currentDoc == null
-                    || this.currentDocElements > MAX_RECORDS_PER_FILE)
-            {
-                this.createNewDoc(date, this.currentDoc == null);
-            }
-        }
-
-        synchronized (this.currentDoc)
-        {
-            Node root = this.currentDoc.getFirstChild();
-            synchronized (root)
-            {
-                Element elem = this.currentDoc.createElement("record");
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(DATE_FORMAT);
-                elem.setAttribute("timestamp", sdf.format(date));
-
-                for (int i = 0; i < propertyNames.length; i++)
-                {
-                    String propertyName = propertyNames[i];
-
-                    if(propertyName.endsWith(CDATA_SUFFIX))
-                    {
-                        if (propertyValues[i] != null)
-                        {
-                            propertyName = propertyName.replaceFirst(CDATA_SUFFIX, "");
-
-                            Element propertyElement = this.currentDoc
-                                .createElement(propertyName);
-
-                            Text value = this.currentDoc
-                                .createCDATASection(propertyValues[i].replaceAll("\0", " "));
-                            propertyElement.appendChild(value);
-
-                            elem.appendChild(propertyElement);
-                        }
-                    }
-                    else
-                    {
-                        if (propertyValues[i] != null)
-                        {
-                            Element propertyElement = this.currentDoc
-                                .createElement(propertyName);
-
-                            Text value = this.currentDoc
-                                .createTextNode(propertyValues[i].replaceAll("\0", " "));
-                            propertyElement.appendChild(value);
-
-                            elem.appendChild(propertyElement);
-                        }
-                    }
-                }
-
-                root.appendChild(elem);
-                this.currentDocElements++;
-            }
-        }
-
-        // write changes
-        synchronized (this.docWriteLock)
-        {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
-        }
+        this.historyImpl.getStorage().addRecord(
+            new HistoryRecord(propertyNames, sanitize(propertyValues), date));
     }
 
     /**
-     * If no file is currently loaded loads the last opened file. If it does not
-     * exists or if the current file was set - create a new file.
+     * Replaces the null characters, which cannot be stored, in the given
+     * values.
      *
-     * @param date Date
-     * @param loadLastFile boolean
+     * @param propertyValues the values of a record
+     * @return the values without null characters
      */
-    private void createNewDoc(Date date, boolean loadLastFile)
+    private static String[] sanitize(String[] propertyValues)
     {
-        boolean loaded = false;
-
-        if (loadLastFile)
-        {
-            Iterator<String> files = historyImpl.getFileList();
-
-            String file = null;
-            while (files.hasNext())
-            {
-                file = files.next();
-            }
-
-            if (file != null)
-            {
-                this.currentDoc = this.historyImpl.getDocumentForFile(file);
-                this.currentFile = file;
-                loaded = true;
-            }
-
-            // if something happened and file was not loaded
-            // then we must create new one
-            if(this.currentDoc == null)
-            {
-                loaded = false;
-            }
-        }
-
-        if (!loaded)
+        String[] values = new String[propertyValues.length];
+        for (int i = 0; i < propertyValues.length; i++)
         {
-            this.currentFile = Long.toString(date.getTime());
-            this.currentFile += ".xml";
-
-            this.currentDoc = this.historyImpl.createDocument(this.currentFile);
+            if (propertyValues[i] != null)
+                values[i] = propertyValues[i].replaceAll("\0", " ");
         }
-
-        // TODO: Assert: Assert.assertNonNull(this.currentDoc,
-        // "There should be a current document created.");
-
-        this.currentDocElements = this.currentDoc.getFirstChild()
-                .getChildNodes().getLength();
+        return values;
     }
 
     /**
@@ -229,83 +135,21 @@ public class HistoryWriterImpl
             String property, String newValue)
         throws IOException
     {
-        Iterator<String> fileIterator = this.historyImpl.getFileList();
-        String filename = null;
-        while (fileIterator.hasNext())
-        {
-            filename = fileIterator.next();
-
-            Document doc = this.historyImpl.getDocumentForFile(filename);
-
-            if(doc == null)
-                continue;
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            boolean changed = false;
-
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
-            {
-                node = nodes.item(i);
-
-                Element idNode = XMLUtils.findChild((Element)node, idProperty);
-                if(idNode == null)
-                    continue;
-
-                Node nestedNode = idNode.getFirstChild();
-                if(nestedNode == null)
-                    continue;
-
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
-
-                if(!nodeValue.equals(idValue))
-                    continue;
-
-                Element changedNode =
-                    XMLUtils.findChild((Element)node, property);
-
-                if(changedNode != null)
-                {
-                    Node changedNestedNode = changedNode.getFirstChild();
-
-                    changedNestedNode.setNodeValue(newValue);
-                }
-                else
-                {
-                    Element propertyElement = this.currentDoc
-                        .createElement(property);
-
-                    Text value = this.currentDoc
-                        .createTextNode(newValue.replaceAll("\0", " "));
-                    propertyElement.appendChild(value);
-
-                    node.appendChild(propertyElement);
-                }
-
-                changed = true;
-                break;
-            }
-
-            if(changed)
-            {
-                // write changes
-                synchronized (this.docWriteLock)
-                {
-                    this.historyImpl.writeFile(filename, doc);
-                }
-
-                // this prevents that the current writer, which holds
-                // instance for the last document he is editing will not
-                // override our last changes to the document
-                if(filename.equals(this.currentFile))
-                {
-                    this.currentDoc = doc;
-                }
+        this.historyImpl.getStorage().updateRecord(
+            idProperty, idValue, property, newValue.replaceAll("\0", " "));
+    }
 
-                break;
-            }
-        }
+    /**
+     * Removes the <tt>_CDATA</tt> suffix from a property name.
+     *
+     * @param propertyName the property name
+     * @return the property name without the <tt>_CDATA</tt> suffix
+     */
+    static String stripCDataSuffix(String propertyName)
+    {
+        if (propertyName.endsWith(CDATA_SUFFIX))
+            return propertyName.substring(
+                0, propertyName.length() - CDATA_SUFFIX.length());
+        return propertyName;
     }
 }
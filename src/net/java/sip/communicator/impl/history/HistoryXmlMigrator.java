@@ -0,0 +1,146 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Converts the XML files of a history directory into segments of the
+ * <tt>SegmentedHistoryStorage</tt>. Every XML file becomes a segment with the
+ * same name and is then renamed with the {@link #MIGRATED_SUFFIX}, so it is
+ * kept as a backup but no longer picked up by either storage.
+ */
+class HistoryXmlMigrator
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryXmlMigrator.class);
+
+    /**
+     * The suffix appended to the name of XML files which were migrated.
+     */
+    static final String MIGRATED_SUFFIX = ".migrated";
+
+    /**
+     * The history directory.
+     */
+    private final File directory;
+
+    /**
+     * The history service used to parse the XML files.
+     */
+    private final HistoryServiceImpl historyServiceImpl;
+
+    /**
+     * Creates a migrator for the given directory.
+     *
+     * @param directory the history directory
+     * @param historyServiceImpl the history service used to parse XML
+     */
+    HistoryXmlMigrator(File directory, HistoryServiceImpl historyServiceImpl)
+    {
+        this.directory = directory;
+        this.historyServiceImpl = historyServiceImpl;
+    }
+
+    /**
+     * Migrates all XML history files of the directory. Files which cannot be
+     * migrated are left untouched and retried the next time.
+     */
+    void migrate()
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        Arrays.sort(files);
+
+        for (File file : files)
+        {
+            String name = file.getName();
+            String suffix = "." + XmlHistoryStorage.SUPPORTED_FILETYPE;
+
+            if (file.isDirectory() || !name.endsWith(suffix))
+                continue;
+
+            String base = name.substring(0, name.length() - suffix.length());
+            try
+            {
+                Long.parseLong(base);
+            }
+            catch (NumberFormatException e)
+            {
+                continue;
+            }
+
+            try
+            {
+                migrate(file, base);
+            }
+            catch (Exception e)
+            {
+                logger.error("Cannot migrate history file " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Migrates a single XML file.
+     *
+     * @param file the XML file
+     * @param base the timestamp part of the name of the file
+     * @throws Exception if the file cannot be parsed or the segment cannot
+     * be written
+     */
+    private void migrate(File file, String base)
+        throws Exception
+    {
+        Document doc;
+        try
+        {
+            doc = historyServiceImpl.parse(file);
+        }
+        catch (Exception e)
+        {
+            doc = XmlHistoryStorage.getFixedDocument(file, historyServiceImpl);
+
+            if (doc == null)
+                throw e;
+        }
+
+        List<HistoryRecord> records = XmlHistoryStorage.readRecords(doc);
+
+        File segmentFile = new File(directory,
+            base + "." + HistorySegment.EXTENSION);
+        HistorySegment tmp = SegmentedHistoryStorage.writeSegment(
+            new File(directory,
+                segmentFile.getName() + SegmentedHistoryStorage.TEMP_SUFFIX),
+            records);
+        new HistorySegment(segmentFile).getIndexFile().delete();
+        SegmentedHistoryStorage.replaceFile(tmp.getFile(), segmentFile);
+
+        File migrated = new File(directory, file.getName() + MIGRATED_SUFFIX);
+        if (!file.renameTo(migrated))
+        {
+            // never leave both, the records would be migrated twice
+            segmentFile.delete();
+            throw new IOException("Cannot rename migrated file " + file);
+        }
+
+        if (logger.isInfoEnabled())
+            logger.info("Migrated " + records.size()
+                + " history records from " + file);
+    }
+}
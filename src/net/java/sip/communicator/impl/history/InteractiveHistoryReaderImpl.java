@@ -6,18 +6,12 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.w3c.dom.*;
-
 /**
  * The <tt>InteractiveHistoryReaderImpl</tt> is an implementation of the
  * <tt>InteractiveHistoryReader</tt> interface. It allows to search in the
@@ -142,50 +136,43 @@ public class InteractiveHistoryReaderImpl
         Vector<String> filelist
             = HistoryReaderImpl.filterFilesByDate(  history.getFileList(),
                                                     startDate, endDate, true);
+        Map<String, BitSet> candidates
+            = HistoryReaderImpl.findCandidates(history, keywords, field);
         Iterator<String> fileIterator = filelist.iterator();
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
         {
             String filename = fileIterator.next();
-            Document doc = history.getDocumentForFile(filename);
+            BitSet positions = null;
 
-            if(doc == null)
-                continue;
+            if(candidates != null)
+            {
+                positions = candidates.get(filename);
+
+                // no record of the file contains the keywords
+                if(positions == null)
+                    continue;
+            }
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            List<HistoryRecord> records = history.getRecordsForFile(filename);
 
-            for ( int i = nodes.getLength() - 1;
+            if(records == null)
+                continue;
+
+            for ( int i = records.size() - 1;
                   i >= 0 && !query.isCanceled();
                   i--)
             {
-                Node node = nodes.item(i);
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                HistoryRecord record = records.get(i);
 
-                if(HistoryReaderImpl.isInPeriod(timestamp, startDate, endDate))
+                if((positions == null || positions.get(i))
+                    && HistoryReaderImpl.isInPeriod(
+                        record.getTimestamp(), startDate, endDate)
+                    && HistoryReaderImpl.filterByKeyword(
+                        record, keywords, field, caseSensitive))
                 {
-                    NodeList propertyNodes = node.getChildNodes();
-
-                    HistoryRecord record =
-                        HistoryReaderImpl
-                            .filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
-
-                    if(record != null)
-                    {
-                        query.addHistoryRecord(record);
-                        resultCount--;
-                    }
+                    query.addHistoryRecord(record);
+                    resultCount--;
                 }
             }
         }
@@ -0,0 +1,990 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A <tt>HistoryStorage</tt> keeping the records of a history in append-only
+ * binary <tt>HistorySegment</tt>s. New records are appended to the newest
+ * segment, so writing a record costs time proportional to the record and not
+ * to the file it lands in. Small sealed segments are merged in the
+ * background by {@link #compact()}.
+ * <p>
+ * XML files left by the <tt>XmlHistoryStorage</tt> are converted once by the
+ * <tt>HistoryXmlMigrator</tt> when the storage is opened.
+ */
+public class SegmentedHistoryStorage
+    implements HistoryStorage
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentedHistoryStorage.class);
+
+    /**
+     * The number of records after which the newest segment is sealed and a
+     * new one is started.
+     */
+    public static final int MAX_RECORDS_PER_SEGMENT = 1000;
+
+    /**
+     * The suffix of segment files which are being written and are not yet
+     * part of the storage.
+     */
+    static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The suffix of the name under which a segment is kept while the file
+     * replacing it is renamed, on the platforms which cannot rename over an
+     * existing file.
+     */
+    static final String BACKUP_SUFFIX = ".old";
+
+    /**
+     * The suffix of the name under which a segment is kept while the
+     * segment it is merged into is replaced. The name of the segment it is
+     * merged into precedes the suffix.
+     */
+    static final String MERGED_SUFFIX = ".merged";
+
+    /**
+     * The directory holding the segments.
+     */
+    private final File directory;
+
+    /**
+     * The segments of this storage ordered by the timestamp in their names,
+     * i.e. from the oldest to the newest one. Changed only while holding the
+     * lock of this storage; readers use it without locking.
+     */
+    private volatile ConcurrentSkipListMap<Long, HistorySegment> segments
+        = new ConcurrentSkipListMap<Long, HistorySegment>();
+
+    /**
+     * The cache of parsed records shared by all histories.
+     */
+    private final HistoryRecordCache recordCache;
+
+    /**
+     * The listener notified about changed records, if any.
+     */
+    private volatile HistoryStorageListener listener;
+
+    /**
+     * Creates a <tt>SegmentedHistoryStorage</tt> over the given directory,
+     * migrating any XML history files found in it.
+     *
+     * @param directory the directory of the history
+     * @param historyServiceImpl the parent history service, used to parse
+     * XML files during migration
+     */
+    public SegmentedHistoryStorage(File directory,
+                                   HistoryServiceImpl historyServiceImpl)
+    {
+        this.directory = directory;
+        this.recordCache = historyServiceImpl.getRecordCache();
+
+        new HistoryXmlMigrator(directory, historyServiceImpl).migrate();
+
+        loadSegments();
+    }
+
+    /**
+     * Rescans the directory for segment files.
+     */
+    public void reload()
+    {
+        loadSegments();
+
+        HistoryStorageListener listener = this.listener;
+        if (listener != null)
+            listener.recordsRelocated();
+    }
+
+    /**
+     * Opens the segment files found in the directory.
+     */
+    private synchronized void loadSegments()
+    {
+        // readers keep using the old map until the new one is complete
+        ConcurrentSkipListMap<Long, HistorySegment> loaded
+            = new ConcurrentSkipListMap<Long, HistorySegment>();
+
+        File[] files = directory.listFiles();
+        if (files == null)
+            files = new File[0];
+
+        // finish the merges which were interrupted before the temporary
+        // files, the existence of which tells whether they completed, are
+        // deleted below
+        boolean merged = false;
+        for (File file : files)
+        {
+            if (file.getName().endsWith(MERGED_SUFFIX))
+            {
+                recoverMerged(file);
+                merged = true;
+            }
+        }
+        if (merged)
+        {
+            files = directory.listFiles();
+            if (files == null)
+                files = new File[0];
+        }
+
+        for (File file : files)
+        {
+            String name = file.getName();
+
+            if (name.endsWith(BACKUP_SUFFIX))
+            {
+                File original = new File(directory,
+                    name.substring(0, name.length() - BACKUP_SUFFIX.length()));
+
+                // restore a segment the replacing of which was interrupted
+                if (original.exists() || !file.renameTo(original))
+                {
+                    file.delete();
+                    continue;
+                }
+                file = original;
+                name = file.getName();
+            }
+
+            if (name.endsWith(TEMP_SUFFIX))
+            {
+                // leftover of an interrupted compaction or migration
+                file.delete();
+                continue;
+            }
+
+            if (name.endsWith(HistorySegmentIndex.EXTENSION))
+            {
+                String segmentName = name.substring(
+                    0, name.length() - HistorySegmentIndex.EXTENSION.length());
+
+                // the index of a compacted segment
+                if (!new File(directory, segmentName).exists())
+                    file.delete();
+                continue;
+            }
+
+            Long ts = parseSegmentName(name);
+            if (ts == null)
+                continue;
+
+            HistorySegment segment = new HistorySegment(file);
+            try
+            {
+                segment.open();
+                loaded.put(ts, segment);
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot open history segment " + file, e);
+            }
+        }
+
+        for (HistorySegment segment : segments.values())
+            segment.markReplaced();
+        segments = loaded;
+    }
+
+    /**
+     * Restores or deletes a segment set aside by a merge. The merge
+     * completed if the temporary file of the merged segment no longer
+     * exists, in which case the merged segment holds the records of the
+     * segment set aside; otherwise the merged segment never replaced the
+     * segment it was merged into and the segment set aside is restored.
+     *
+     * @param file the file of the segment set aside
+     */
+    private void recoverMerged(File file)
+    {
+        String name = file.getName();
+        name = name.substring(0, name.length() - MERGED_SUFFIX.length());
+
+        int separator = name.lastIndexOf('.');
+        if (separator == -1)
+            return;
+
+        String originalName = name.substring(0, separator);
+        String targetName = name.substring(separator + 1)
+            + "." + HistorySegment.EXTENSION;
+
+        if ((parseSegmentName(originalName) == null)
+                || (parseSegmentName(targetName) == null))
+            return;
+
+        if (new File(directory, targetName).exists()
+                && !new File(directory, targetName + TEMP_SUFFIX).exists())
+        {
+            file.delete();
+            return;
+        }
+
+        File original = new File(directory, originalName);
+
+        if (original.exists() || !file.renameTo(original))
+            logger.error("Cannot restore history segment " + original);
+    }
+
+    /**
+     * Returns the names of the segments of this storage, oldest first.
+     *
+     * @return the names of the segments of this storage
+     */
+    public Iterator<String> getFileList()
+    {
+        List<String> names = new ArrayList<String>(segments.size());
+
+        for (HistorySegment segment : segments.values())
+            names.add(segment.getName());
+
+        return names.iterator();
+    }
+
+    /**
+     * Returns the records of the segment with the given name from the record
+     * cache or reads them from disk.
+     *
+     * @param filename the name of the segment
+     * @return the records of the segment or <tt>null</tt> if the segment no
+     * longer exists or cannot be read
+     */
+    public List<HistoryRecord> getRecords(String filename)
+    {
+        return read(filename, new SegmentReader()
+        {
+            List<HistoryRecord> read(HistorySegment segment)
+                throws IOException
+            {
+                // take the version before reading, records appended
+                // meanwhile only make the cached entry miss next time
+                long version = segment.getVersion();
+                List<HistoryRecord> records
+                    = recordCache.get(segment.getFile(), version);
+
+                if (records != null)
+                    return records;
+
+                records = segment.readRecords();
+
+                // do not cache what may be a mix of two file versions
+                return segment.isReplaced()
+                    ? records
+                    : recordCache.put(segment.getFile(), records, version);
+            }
+        });
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records of the given segment before
+     * <tt>date</tt>. The segment index is used to locate the records, so
+     * only their bytes are read.
+     *
+     * @param filename the name of the segment
+     * @param date the date before which records are returned or
+     * <tt>null</tt>
+     * @param count the maximum number of records to return
+     * @return the records or <tt>null</tt> if the segment cannot be read
+     */
+    public List<HistoryRecord> getRecordsBefore(String filename,
+                                                final Date date,
+                                                final int count)
+    {
+        return read(filename, new SegmentReader()
+        {
+            List<HistoryRecord> read(HistorySegment segment)
+                throws IOException
+            {
+                List<HistoryRecord> cached = recordCache.get(
+                    segment.getFile(), segment.getVersion());
+                if (cached != null)
+                {
+                    return XmlHistoryStorage.filterRecordsBefore(
+                        cached, date, count);
+                }
+
+                List<HistoryRecord> records
+                    = segment.readRecordsBefore(date, count);
+
+                return (records != null)
+                    ? records
+                    : XmlHistoryStorage.filterRecordsBefore(
+                        segment.readRecords(), date, count);
+            }
+        });
+    }
+
+    /**
+     * Returns the first <tt>count</tt> records of the given segment from
+     * <tt>date</tt> on. The segment index is used to locate the records, so
+     * only their bytes are read.
+     *
+     * @param filename the name of the segment
+     * @param date the date from which records are returned or <tt>null</tt>
+     * @param count the maximum number of records to return
+     * @return the records or <tt>null</tt> if the segment cannot be read
+     */
+    public List<HistoryRecord> getRecordsAfter(String filename,
+                                               final Date date,
+                                               final int count)
+    {
+        return read(filename, new SegmentReader()
+        {
+            List<HistoryRecord> read(HistorySegment segment)
+                throws IOException
+            {
+                List<HistoryRecord> cached = recordCache.get(
+                    segment.getFile(), segment.getVersion());
+                if (cached != null)
+                {
+                    return XmlHistoryStorage.filterRecordsAfter(
+                        cached, date, count);
+                }
+
+                List<HistoryRecord> records
+                    = segment.readRecordsAfter(date, count);
+
+                return (records != null)
+                    ? records
+                    : XmlHistoryStorage.filterRecordsAfter(
+                        segment.readRecords(), date, count);
+            }
+        });
+    }
+
+    /**
+     * Reads from the segment with the given name without locking this
+     * storage. If the segment is rewritten while being read, the read is
+     * retried on the new segment.
+     *
+     * @param filename the name of the segment
+     * @param reader reads the records from the segment
+     * @return the records or <tt>null</tt> if the segment no longer exists
+     * or cannot be read
+     */
+    private List<HistoryRecord> read(String filename, SegmentReader reader)
+    {
+        while (true)
+        {
+            HistorySegment segment = getSegment(filename);
+
+            if (segment == null)
+                return null;
+
+            try
+            {
+                List<HistoryRecord> records = reader.read(segment);
+
+                if (!segment.isReplaced())
+                    return records;
+            }
+            catch (IOException e)
+            {
+                if (!segment.isReplaced())
+                {
+                    logger.error("Cannot read history segment " + filename, e);
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the segment with the given name.
+     *
+     * @param filename the name of the segment
+     * @return the segment or <tt>null</tt> if there is no such segment
+     */
+    HistorySegment getSegment(String filename)
+    {
+        Long ts = parseSegmentName(filename);
+
+        return (ts == null) ? null : segments.get(ts);
+    }
+
+    /**
+     * Appends a record to the newest segment, starting a new segment if the
+     * newest one is full.
+     *
+     * @param record the record to append
+     * @throws IOException if writing fails
+     */
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        addRecords(Collections.singletonList(record));
+    }
+
+    /**
+     * Appends records to the newest segment with a single write, starting a
+     * new segment if the newest one is full.
+     *
+     * @param records the records to append in order
+     * @throws IOException if writing fails
+     */
+    public void addRecords(List<HistoryRecord> records)
+        throws IOException
+    {
+        if (records.isEmpty())
+            return;
+
+        String[] filenames = new String[records.size()];
+        int[] positions = new int[records.size()];
+
+        appendRecords(records, filenames, positions);
+
+        // outside of the lock, the listener may read this storage
+        HistoryStorageListener listener = this.listener;
+        if (listener != null)
+        {
+            for (int i = 0; i < filenames.length; i++)
+                listener.recordAdded(filenames[i], positions[i],
+                    records.get(i));
+        }
+    }
+
+    /**
+     * Appends records to the newest segment, starting a new segment if the
+     * newest one is full.
+     *
+     * @param records the records to append in order
+     * @param filenames receives the name of the segment of every record
+     * @param positions receives the position of every record in its segment
+     * @throws IOException if writing fails
+     */
+    private synchronized void appendRecords(List<HistoryRecord> records,
+                                            String[] filenames,
+                                            int[] positions)
+        throws IOException
+    {
+        int from = 0;
+        while (from < records.size())
+        {
+            HistorySegment active = segments.isEmpty()
+                ? null : segments.lastEntry().getValue();
+
+            if (active == null
+                || active.getCount() >= MAX_RECORDS_PER_SEGMENT)
+            {
+                // the full segment is sealed, persist its index
+                if (active != null)
+                    active.writeIndex();
+
+                active = createSegment(
+                    records.get(from).getTimestamp().getTime());
+            }
+
+            int to = Math.min(records.size(),
+                from + MAX_RECORDS_PER_SEGMENT - active.getCount());
+
+            String filename = active.getFile().getName();
+            int count = active.getCount();
+            for (int i = from; i < to; i++)
+            {
+                filenames[i] = filename;
+                positions[i] = count + i - from;
+            }
+
+            active.append(records.subList(from, to));
+            recordCache.invalidate(active.getFile());
+            from = to;
+        }
+    }
+
+    /**
+     * Creates a new empty segment named after <tt>timestamp</tt>, or after
+     * the first free millisecond following the newest segment.
+     *
+     * @param timestamp the timestamp of the first record of the segment
+     * @return the new segment
+     * @throws IOException if the segment cannot be created
+     */
+    private HistorySegment createSegment(long timestamp)
+        throws IOException
+    {
+        long ts = timestamp;
+        if (!segments.isEmpty() && segments.lastKey() >= ts)
+            ts = segments.lastKey() + 1;
+
+        HistorySegment segment = new HistorySegment(
+            new File(directory, segmentName(ts)));
+        segment.create();
+        segments.put(ts, segment);
+
+        return segment;
+    }
+
+    /**
+     * Updates the first record having <tt>idProperty</tt> equal to
+     * <tt>idValue</tt>. Segments are append-only, so the segment holding the
+     * record is rewritten into a temporary file which then replaces it.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property
+     * @return <tt>true</tt> if a record was updated
+     * @throws IOException if rewriting the segment fails
+     */
+    public boolean updateRecord(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        String filename = null;
+        int position = -1;
+        HistoryRecord updated = null;
+
+        synchronized (this)
+        {
+            search:
+            for (Map.Entry<Long, HistorySegment> e : segments.entrySet())
+            {
+                HistorySegment segment = e.getValue();
+                List<HistoryRecord> records = segment.readRecords();
+
+                for (int i = 0; i < records.size(); i++)
+                {
+                    HistoryRecord record = records.get(i);
+
+                    if (!idValue.equals(getValue(record, idProperty)))
+                        continue;
+
+                    updated = withProperty(record, property, newValue);
+                    records.set(i, updated);
+                    segments.put(e.getKey(), rewrite(segment, records));
+
+                    filename = segment.getFile().getName();
+                    position = i;
+                    break search;
+                }
+            }
+        }
+
+        if (updated == null)
+            return false;
+
+        HistoryStorageListener listener = this.listener;
+        if (listener != null)
+            listener.recordUpdated(filename, position, updated);
+
+        return true;
+    }
+
+    /**
+     * Returns the exact number of records using the segment headers.
+     *
+     * @return the number of records in this storage
+     */
+    public int countRecords()
+    {
+        int result = 0;
+
+        for (HistorySegment segment : segments.values())
+            result += segment.getCount();
+
+        return result;
+    }
+
+    /**
+     * Merges runs of adjacent sealed segments whose records fit in a single
+     * segment. The newest segment is never touched as it is still appended
+     * to.
+     */
+    public void compact()
+    {
+        boolean relocated;
+
+        synchronized (this)
+        {
+            relocated = compactSegments();
+        }
+
+        HistoryStorageListener listener = this.listener;
+        if (relocated && listener != null)
+            listener.recordsRelocated();
+    }
+
+    /**
+     * Merges runs of adjacent sealed segments.
+     *
+     * @return <tt>true</tt> if any segments were merged
+     */
+    private boolean compactSegments()
+    {
+        boolean relocated = false;
+
+        if (segments.size() < 3)
+            return relocated;
+
+        List<Long> keys = new ArrayList<Long>(segments.keySet());
+        // leave the active segment alone
+        keys.remove(keys.size() - 1);
+
+        int i = 0;
+        while (i < keys.size())
+        {
+            List<Long> run = new ArrayList<Long>();
+            int total = 0;
+
+            for (int j = i; j < keys.size(); j++)
+            {
+                int count = segments.get(keys.get(j)).getCount();
+
+                if (total + count > MAX_RECORDS_PER_SEGMENT)
+                    break;
+
+                run.add(keys.get(j));
+                total += count;
+            }
+
+            if (run.size() > 1)
+            {
+                relocated = true;
+                try
+                {
+                    merge(run);
+                }
+                catch (IOException e)
+                {
+                    logger.error("Cannot compact history in " + directory, e);
+                    break;
+                }
+            }
+
+            i += Math.max(run.size(), 1);
+        }
+
+        return relocated;
+    }
+
+    /**
+     * Merges the segments with the given keys into the first one of them.
+     * The other segments are set aside under names ending with
+     * {@link #MERGED_SUFFIX} before the merged segment replaces the first
+     * one and are deleted afterwards, so that {@link #loadSegments()} can
+     * tell whether an interrupted merge completed and neither loses nor
+     * duplicates their records.
+     *
+     * @param keys the keys of adjacent segments, oldest first
+     * @throws IOException if writing the merged segment fails
+     */
+    private void merge(List<Long> keys)
+        throws IOException
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+        for (Long key : keys)
+            records.addAll(segments.get(key).readRecords());
+
+        Long first = keys.get(0);
+        HistorySegment target = segments.get(first);
+        HistorySegment tmp = writeSegment(
+            new File(directory, target.getName() + TEMP_SUFFIX), records);
+        List<File> setAside = new ArrayList<File>();
+
+        try
+        {
+            for (int i = 1; i < keys.size(); i++)
+            {
+                File file = segments.get(keys.get(i)).getFile();
+                File aside = new File(
+                    file.getPath() + "." + first + MERGED_SUFFIX);
+
+                if (!file.renameTo(aside))
+                    throw new IOException("Cannot set aside " + file);
+                setAside.add(aside);
+            }
+
+            replaceFile(tmp.getFile(), target.getFile());
+        }
+        catch (IOException e)
+        {
+            boolean restored = true;
+
+            for (int i = 0; i < setAside.size(); i++)
+            {
+                File file = segments.get(keys.get(i + 1)).getFile();
+
+                if (!setAside.get(i).renameTo(file))
+                {
+                    logger.error("Cannot restore " + file + " from "
+                        + setAside.get(i));
+                    restored = false;
+                }
+            }
+
+            // the temporary segment tells loadSegments() to restore the
+            // segments which could not be restored here
+            if (restored)
+                tmp.delete();
+            throw e;
+        }
+
+        segments.put(first, reopen(target));
+
+        for (int i = 1; i < keys.size(); i++)
+        {
+            HistorySegment removed = segments.remove(keys.get(i));
+            File aside = setAside.get(i - 1);
+
+            removed.markReplaced();
+            removed.getIndexFile().delete();
+            recordCache.invalidate(removed.getFile());
+            // loadSegments() deletes what is left
+            if (!aside.delete())
+                logger.warn("Cannot delete compacted segment " + aside);
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Compacted " + keys.size() + " segments in "
+                + directory);
+    }
+
+    /**
+     * Writes <tt>records</tt> into a temporary segment which then replaces
+     * <tt>segment</tt>. If the temporary segment cannot replace
+     * <tt>segment</tt>, it is deleted and <tt>segment</tt> is left as it was.
+     *
+     * @param segment the segment to replace
+     * @param records the new content of the segment
+     * @return the new segment
+     * @throws IOException if writing or replacing fails
+     */
+    private HistorySegment rewrite(HistorySegment segment,
+                                   List<HistoryRecord> records)
+        throws IOException
+    {
+        File target = segment.getFile();
+
+        HistorySegment tmp = writeSegment(
+            new File(directory, target.getName() + TEMP_SUFFIX), records);
+
+        try
+        {
+            replaceFile(tmp.getFile(), target);
+        }
+        catch (IOException e)
+        {
+            tmp.delete();
+            throw e;
+        }
+
+        return reopen(segment);
+    }
+
+    /**
+     * Opens the file of a segment which has been replaced.
+     *
+     * @param segment the segment the file of which has been replaced
+     * @return the new segment
+     * @throws IOException if the new file cannot be opened
+     */
+    private HistorySegment reopen(HistorySegment segment)
+        throws IOException
+    {
+        segment.markReplaced();
+        segment.getIndexFile().delete();
+        recordCache.invalidate(segment.getFile());
+
+        HistorySegment result = new HistorySegment(segment.getFile());
+        result.open();
+        return result;
+    }
+
+    /**
+     * Creates a segment file containing <tt>records</tt>.
+     *
+     * @param file the file to create
+     * @param records the records to write
+     * @return the segment
+     * @throws IOException if writing fails
+     */
+    static HistorySegment writeSegment(File file, List<HistoryRecord> records)
+        throws IOException
+    {
+        HistorySegment segment = new HistorySegment(file);
+        segment.create();
+        if (!records.isEmpty())
+            segment.append(records);
+        return segment;
+    }
+
+    /**
+     * Replaces <tt>target</tt> with <tt>source</tt>. If <tt>target</tt>
+     * cannot be replaced, it is left in place.
+     *
+     * @param source the new file
+     * @param target the file to replace
+     * @throws IOException if the file cannot be replaced
+     */
+    static void replaceFile(File source, File target)
+        throws IOException
+    {
+        if (source.renameTo(target))
+            return;
+
+        // renaming over an existing file fails on some platforms
+        File backup = new File(target.getPath() + BACKUP_SUFFIX);
+
+        backup.delete();
+        if (target.renameTo(backup))
+        {
+            if (source.renameTo(target))
+            {
+                backup.delete();
+                return;
+            }
+            if (!backup.renameTo(target))
+                logger.error("Cannot restore " + target + " from " + backup);
+        }
+        throw new IOException("Cannot replace " + target);
+    }
+
+    /**
+     * Sets the listener notified about changed records.
+     *
+     * @param listener the listener or <tt>null</tt>
+     */
+    public void setStorageListener(HistoryStorageListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Drops the cached records of this storage. Segment files are only kept
+     * open while written or read.
+     */
+    public synchronized void close()
+    {
+        for (HistorySegment segment : segments.values())
+        {
+            segment.markReplaced();
+            recordCache.invalidate(segment.getFile());
+        }
+
+        segments.clear();
+    }
+
+    /**
+     * Returns the value of the property <tt>name</tt> of <tt>record</tt>.
+     *
+     * @param record the record
+     * @param name the property name
+     * @return the value or <tt>null</tt> if the record has no such property
+     */
+    static String getValue(HistoryRecord record, String name)
+    {
+        String[] names = record.getPropertyNames();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(name))
+                return record.getPropertyValues()[i];
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns a copy of <tt>record</tt> with <tt>property</tt> set to
+     * <tt>value</tt>.
+     *
+     * @param record the record to copy
+     * @param property the property to set or add
+     * @param value the new value
+     * @return the changed copy of the record
+     */
+    static HistoryRecord withProperty(HistoryRecord record,
+                                      String property, String value)
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(property))
+            {
+                String[] newValues = values.clone();
+                newValues[i] = value;
+                return new HistoryRecord(names, newValues,
+                    record.getTimestamp());
+            }
+        }
+
+        String[] newNames = new String[names.length + 1];
+        String[] newValues = new String[values.length + 1];
+        System.arraycopy(names, 0, newNames, 0, names.length);
+        System.arraycopy(values, 0, newValues, 0, values.length);
+        newNames[names.length] = property;
+        newValues[values.length] = value;
+
+        return new HistoryRecord(newNames, newValues, record.getTimestamp());
+    }
+
+    /**
+     * Returns the file name of the segment starting at <tt>timestamp</tt>.
+     *
+     * @param timestamp the timestamp of the first record of the segment
+     * @return the file name of the segment
+     */
+    static String segmentName(long timestamp)
+    {
+        return timestamp + "." + HistorySegment.EXTENSION;
+    }
+
+    /**
+     * Parses the timestamp from a segment file name.
+     *
+     * @param name the file name
+     * @return the timestamp or <tt>null</tt> if <tt>name</tt> is not the name
+     * of a segment
+     */
+    static Long parseSegmentName(String name)
+    {
+        String suffix = "." + HistorySegment.EXTENSION;
+
+        if (!name.endsWith(suffix))
+            return null;
+
+        try
+        {
+            return Long.valueOf(
+                name.substring(0, name.length() - suffix.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Reads records from a segment.
+     */
+    private static abstract class SegmentReader
+    {
+        /**
+         * Reads records from <tt>segment</tt>.
+         *
+         * @param segment the segment to read from
+         * @return the records
+         * @throws IOException if reading fails
+         */
+        abstract List<HistoryRecord> read(HistorySegment segment)
+            throws IOException;
+    }
+}
@@ -0,0 +1,945 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.security.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.util.xml.XMLUtils;
+import org.w3c.dom.*;
+
+/**
+ * The legacy <tt>HistoryStorage</tt> which keeps every history file as an
+ * XML document of at most {@link HistoryWriterImpl#MAX_RECORDS_PER_FILE}
+ * records and rewrites the whole document on each change.
+ *
+ * @author Alexander Pelov
+ * @author Yana Stamcheva
+ * @author Damian Minkov
+ */
+public class XmlHistoryStorage
+    implements HistoryStorage
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(XmlHistoryStorage.class);
+
+    /**
+     * The supported filetype.
+     */
+    public static final String SUPPORTED_FILETYPE = "xml";
+
+    /**
+     * The directory holding the files of this storage.
+     */
+    private final File directory;
+
+    /**
+     * The parent history service.
+     */
+    private final HistoryServiceImpl historyServiceImpl;
+
+    /**
+     * The history files mapped by their names.
+     */
+    private final SortedMap<String, File> historyDocuments
+        = new TreeMap<String, File>();
+
+    /**
+     * The cache of parsed records shared by all histories.
+     */
+    private final HistoryRecordCache recordCache;
+
+    /**
+     * The number of times each file was written, used to validate the
+     * records cached for it.
+     */
+    private final Map<String, Long> fileVersions
+        = new HashMap<String, Long>();
+
+    private final Object docCreateLock = new Object();
+
+    private final Object docWriteLock = new Object();
+
+    private volatile Document currentDoc = null;
+
+    private volatile String currentFile = null;
+
+    private int currentDocElements = -1;
+
+    /**
+     * The listener notified about changed records, if any.
+     */
+    private volatile HistoryStorageListener listener;
+
+    /**
+     * Creates a <tt>XmlHistoryStorage</tt> over the given directory.
+     *
+     * @param directory the directory of the history
+     * @param historyServiceImpl the parent history service
+     */
+    public XmlHistoryStorage(File directory,
+                             HistoryServiceImpl historyServiceImpl)
+    {
+        this.directory = directory;
+        this.historyServiceImpl = historyServiceImpl;
+        this.recordCache = historyServiceImpl.getRecordCache();
+
+        loadFileList();
+    }
+
+    /**
+     * Rescans the directory for XML history files.
+     */
+    public void reload()
+    {
+        loadFileList();
+
+        HistoryStorageListener listener = this.listener;
+        if (listener != null)
+            listener.recordsRelocated();
+    }
+
+    /**
+     * Collects the XML history files found in the directory.
+     */
+    private void loadFileList()
+    {
+        synchronized (this.historyDocuments)
+        {
+            this.historyDocuments.clear();
+
+            File[] files = this.directory.listFiles();
+            // TODO: Assert: Assert.assertNonNull(files, "The list of files
+            // should be non-null.");
+
+            for (int i = 0; i < files.length; i++)
+            {
+                if (!files[i].isDirectory())
+                {
+                    String filename = files[i].getName();
+
+                    if (filename.endsWith(SUPPORTED_FILETYPE))
+                    {
+                        this.historyDocuments.put(filename, files[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the XML files of this history.
+     *
+     * @return the names of the XML files of this history
+     */
+    public Iterator<String> getFileList()
+    {
+        synchronized (this.historyDocuments)
+        {
+            return new ArrayList<String>(this.historyDocuments.keySet())
+                .iterator();
+        }
+    }
+
+    /**
+     * Returns the records of the given file from the record cache or parses
+     * the file and converts its <tt>record</tt> elements.
+     *
+     * @param filename the name of the file
+     * @return the records of the file or <tt>null</tt> if it cannot be read
+     */
+    public List<HistoryRecord> getRecords(String filename)
+    {
+        File file = new File(this.directory, filename);
+        long version = getFileVersion(filename);
+        List<HistoryRecord> records = recordCache.get(file, version);
+
+        if(records != null)
+            return records;
+
+        Document doc = getDocumentForFile(filename);
+
+        if(doc == null)
+            return null;
+
+        return recordCache.put(file, readRecords(doc), version);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records of the given file before
+     * <tt>date</tt>. XML files have no index, the whole file is read.
+     *
+     * @param filename the name of the file
+     * @param date the date before which records are returned or
+     * <tt>null</tt>
+     * @param count the maximum number of records to return
+     * @return the records or <tt>null</tt> if the file cannot be read
+     */
+    public List<HistoryRecord> getRecordsBefore(String filename,
+                                                Date date,
+                                                int count)
+    {
+        List<HistoryRecord> records = getRecords(filename);
+
+        return (records == null)
+            ? null
+            : filterRecordsBefore(records, date, count);
+    }
+
+    /**
+     * Returns the first <tt>count</tt> records of the given file from
+     * <tt>date</tt> on. XML files have no index, the whole file is read.
+     *
+     * @param filename the name of the file
+     * @param date the date from which records are returned or <tt>null</tt>
+     * @param count the maximum number of records to return
+     * @return the records or <tt>null</tt> if the file cannot be read
+     */
+    public List<HistoryRecord> getRecordsAfter(String filename,
+                                               Date date,
+                                               int count)
+    {
+        List<HistoryRecord> records = getRecords(filename);
+
+        return (records == null)
+            ? null
+            : filterRecordsAfter(records, date, count);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> of <tt>records</tt> with a timestamp
+     * before <tt>date</tt>.
+     *
+     * @param records the records to filter, in the order they were written
+     * @param date the date before which records are returned or
+     * <tt>null</tt>
+     * @param count the maximum number of records to return
+     * @return the matching records, in the order they were written
+     */
+    static List<HistoryRecord> filterRecordsBefore(List<HistoryRecord> records,
+                                                   Date date,
+                                                   int count)
+    {
+        LinkedList<HistoryRecord> result = new LinkedList<HistoryRecord>();
+
+        for (int i = records.size() - 1; i >= 0 && result.size() < count; i--)
+        {
+            HistoryRecord record = records.get(i);
+
+            if (HistoryReaderImpl.isInPeriod(record.getTimestamp(), null, date))
+                result.addFirst(record);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the first <tt>count</tt> of <tt>records</tt> with a timestamp
+     * not before <tt>date</tt>.
+     *
+     * @param records the records to filter, in the order they were written
+     * @param date the date from which records are returned or <tt>null</tt>
+     * @param count the maximum number of records to return
+     * @return the matching records, in the order they were written
+     */
+    static List<HistoryRecord> filterRecordsAfter(List<HistoryRecord> records,
+                                                  Date date,
+                                                  int count)
+    {
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>();
+
+        for (int i = 0; i < records.size() && result.size() < count; i++)
+        {
+            HistoryRecord record = records.get(i);
+
+            if (HistoryReaderImpl.isInPeriod(record.getTimestamp(), date, null))
+                result.add(record);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of times the given file was written by this
+     * storage.
+     *
+     * @param filename the name of the file
+     * @return the version of the file
+     */
+    private long getFileVersion(String filename)
+    {
+        synchronized (this.fileVersions)
+        {
+            Long version = this.fileVersions.get(filename);
+
+            return (version == null) ? 0 : version;
+        }
+    }
+
+    /**
+     * Converts the <tt>record</tt> elements of <tt>doc</tt> to
+     * <tt>HistoryRecord</tt>s. Property elements without a value are
+     * skipped.
+     *
+     * @param doc the history document
+     * @return the records of the document in document order
+     */
+    static List<HistoryRecord> readRecords(Document doc)
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+        synchronized (doc)
+        {
+            NodeList nodes = doc.getElementsByTagName("record");
+
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                Node node = nodes.item(i);
+
+                Date timestamp;
+                String ts = node.getAttributes().getNamedItem("timestamp")
+                    .getNodeValue();
+                try
+                {
+                    timestamp = sdf.parse(ts);
+                }
+                catch (ParseException e)
+                {
+                    timestamp = new Date(Long.parseLong(ts));
+                }
+
+                ArrayList<String> nameVals = new ArrayList<String>();
+                NodeList propertyNodes = node.getChildNodes();
+                int len = propertyNodes.getLength();
+                for (int j = 0; j < len; j++)
+                {
+                    Node propertyNode = propertyNodes.item(j);
+                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                    {
+                        // Get nested TEXT node's value
+                        Node nodeValue = propertyNode.getFirstChild();
+
+                        if(nodeValue == null)
+                            continue;
+
+                        nameVals.add(propertyNode.getNodeName());
+                        nameVals.add(nodeValue.getNodeValue());
+                    }
+                }
+
+                String[] propertyNames = new String[nameVals.size() / 2];
+                String[] propertyValues = new String[propertyNames.length];
+                for (int j = 0; j < propertyNames.length; j++)
+                {
+                    propertyNames[j] = nameVals.get(j * 2);
+                    propertyValues[j] = nameVals.get(j * 2 + 1);
+                }
+
+                records.add(
+                    new HistoryRecord(propertyNames, propertyValues, timestamp));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Adds new record to the current history document
+     * when the record property name ends with _CDATA this is removed from the
+     * property name and a CDATA text node is created to store the text value
+     *
+     * @param record the record to add
+     * @throws IOException if writing the document fails
+     */
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        addRecords(Collections.singletonList(record));
+    }
+
+    /**
+     * Adds the records to the current history document, which is written
+     * once for all of them (and once more for every new document started
+     * in between).
+     *
+     * @param records the records to add
+     * @throws IOException if writing the document fails
+     */
+    public void addRecords(List<HistoryRecord> records)
+        throws IOException
+    {
+        String[] filenames = new String[records.size()];
+        int[] positions = new int[records.size()];
+
+        // Synchronized to assure that two concurrent threads can insert records
+        // safely.
+        synchronized (this.docCreateLock)
+        {
+            boolean unwritten = false;
+
+            for (int i = 0; i < records.size(); i++)
+            {
+                HistoryRecord record = records.get(i);
+
+                if (this.currentDoc == null
+                        || this.currentDocElements
+                            > HistoryWriterImpl.MAX_RECORDS_PER_FILE)
+                {
+                    // the full document is left, write what was added to it
+                    if (unwritten)
+                    {
+                        writeCurrentDoc();
+                        unwritten = false;
+                    }
+
+                    this.createNewDoc(record.getTimestamp(),
+                        this.currentDoc == null);
+                }
+
+                filenames[i] = this.currentFile;
+                positions[i] = appendRecord(record);
+                unwritten = true;
+            }
+
+            if (unwritten)
+                writeCurrentDoc();
+        }
+
+        HistoryStorageListener listener = this.listener;
+        if (listener != null)
+        {
+            for (int i = 0; i < filenames.length; i++)
+                listener.recordAdded(filenames[i], positions[i],
+                    records.get(i));
+        }
+    }
+
+    /**
+     * Appends a <tt>record</tt> element for the given record to the current
+     * document.
+     *
+     * @param record the record to append
+     * @return the position of the record in the current document
+     */
+    private int appendRecord(HistoryRecord record)
+    {
+        String[] propertyNames = record.getPropertyNames();
+        String[] propertyValues = record.getPropertyValues();
+        Date date = record.getTimestamp();
+
+        synchronized (this.currentDoc)
+        {
+            Node root = this.currentDoc.getFirstChild();
+            synchronized (root)
+            {
+                Element elem = this.currentDoc.createElement("record");
+                SimpleDateFormat sdf
+                    = new SimpleDateFormat(DATE_FORMAT);
+                elem.setAttribute("timestamp", sdf.format(date));
+
+                for (int i = 0; i < propertyNames.length; i++)
+                {
+                    String propertyName = propertyNames[i];
+
+                    if (propertyValues[i] == null)
+                        continue;
+
+                    Text value;
+                    if(propertyName.endsWith(HistoryWriterImpl.CDATA_SUFFIX))
+                    {
+                        propertyName = HistoryWriterImpl
+                            .stripCDataSuffix(propertyName);
+                        value = this.currentDoc
+                            .createCDATASection(propertyValues[i]);
+                    }
+                    else
+                    {
+                        value = this.currentDoc
+                            .createTextNode(propertyValues[i]);
+                    }
+
+                    Element propertyElement = this.currentDoc
+                        .createElement(propertyName);
+                    propertyElement.appendChild(value);
+
+                    elem.appendChild(propertyElement);
+                }
+
+                root.appendChild(elem);
+                this.currentDocElements++;
+
+                return this.currentDoc.getElementsByTagName("record")
+                    .getLength() - 1;
+            }
+        }
+    }
+
+    /**
+     * Writes the current document to its file.
+     *
+     * @throws IOException if writing fails
+     */
+    private void writeCurrentDoc()
+        throws IOException
+    {
+        // write changes
+        synchronized (this.docWriteLock)
+        {
+            this.writeFile(this.currentFile, this.currentDoc);
+        }
+    }
+
+    /**
+     * If no file is currently loaded loads the last opened file. If it does not
+     * exists or if the current file was set - create a new file.
+     *
+     * @param date Date
+     * @param loadLastFile boolean
+     */
+    private void createNewDoc(Date date, boolean loadLastFile)
+    {
+        boolean loaded = false;
+
+        if (loadLastFile)
+        {
+            Iterator<String> files = getFileList();
+
+            String file = null;
+            while (files.hasNext())
+            {
+                file = files.next();
+            }
+
+            if (file != null)
+            {
+                this.currentDoc = getDocumentForFile(file);
+                this.currentFile = file;
+                loaded = true;
+            }
+
+            // if something happened and file was not loaded
+            // then we must create new one
+            if(this.currentDoc == null)
+            {
+                loaded = false;
+            }
+        }
+
+        if (!loaded)
+        {
+            this.currentFile = Long.toString(date.getTime());
+            this.currentFile += "." + SUPPORTED_FILETYPE;
+
+            this.currentDoc = createDocument(this.currentFile);
+        }
+
+        // TODO: Assert: Assert.assertNonNull(this.currentDoc,
+        // "There should be a current document created.");
+
+        this.currentDocElements = this.currentDoc.getFirstChild()
+                .getChildNodes().getLength();
+    }
+
+    /**
+     * Updates a record by searching for record with idProperty which have
+     * idValue and updating/creating the property with newValue.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     * @return <tt>true</tt> if a record was updated
+     * @throws IOException if writing the changed document fails
+     */
+    public boolean updateRecord(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        Iterator<String> fileIterator = getFileList();
+        String filename = null;
+        while (fileIterator.hasNext())
+        {
+            filename = fileIterator.next();
+
+            Document doc = getDocumentForFile(filename);
+
+            if(doc == null)
+                continue;
+
+            NodeList nodes = doc.getElementsByTagName("record");
+
+            boolean changed = false;
+            int position = -1;
+
+            Node node;
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                node = nodes.item(i);
+
+                Element idNode = XMLUtils.findChild((Element)node, idProperty);
+                if(idNode == null)
+                    continue;
+
+                Node nestedNode = idNode.getFirstChild();
+                if(nestedNode == null)
+                    continue;
+
+                // Get nested TEXT node's value
+                String nodeValue = nestedNode.getNodeValue();
+
+                if(!nodeValue.equals(idValue))
+                    continue;
+
+                Element changedNode =
+                    XMLUtils.findChild((Element)node, property);
+
+                if(changedNode != null)
+                {
+                    Node changedNestedNode = changedNode.getFirstChild();
+
+                    changedNestedNode.setNodeValue(newValue);
+                }
+                else
+                {
+                    Element propertyElement = doc.createElement(property);
+
+                    Text value = doc.createTextNode(newValue);
+                    propertyElement.appendChild(value);
+
+                    node.appendChild(propertyElement);
+                }
+
+                changed = true;
+                position = i;
+                break;
+            }
+
+            if(changed)
+            {
+                // write changes
+                synchronized (this.docWriteLock)
+                {
+                    this.writeFile(filename, doc);
+                }
+
+                // this prevents that the current writer, which holds
+                // instance for the last document he is editing will not
+                // override our last changes to the document
+                if(filename.equals(this.currentFile))
+                {
+                    this.currentDoc = doc;
+                }
+
+                HistoryStorageListener listener = this.listener;
+                if (listener != null)
+                {
+                    listener.recordUpdated(filename, position,
+                        readRecords(doc).get(position));
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Count the number of records. Actually only the last file is parsed and
+     * its nodes are counted. We accept that the other files are full with max
+     * records, this way we escape parsing all files.
+     *
+     * @return the estimated number of records
+     */
+    public int countRecords()
+    {
+        int result = 0;
+        String lastFile = null;
+        Iterator<String> filelistIter = getFileList();
+        while (filelistIter.hasNext())
+        {
+            lastFile = filelistIter.next();
+            result += HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+        }
+
+        if(lastFile == null)
+            return result;
+
+        Document doc = getDocumentForFile(lastFile);
+
+        if(doc == null)
+            return result;
+
+        NodeList nodes = doc.getElementsByTagName("record");
+
+        result += nodes.getLength();
+
+        return result;
+    }
+
+    /**
+     * XML files are rewritten on every change, there is nothing to compact.
+     */
+    public void compact()
+    {
+    }
+
+    /**
+     * Sets the listener notified about changed records.
+     *
+     * @param listener the listener or <tt>null</tt>
+     */
+    public void setStorageListener(HistoryStorageListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Drops the file list and the cached records of this storage.
+     */
+    public void close()
+    {
+        synchronized (this.historyDocuments)
+        {
+            for (File file : this.historyDocuments.values())
+                recordCache.invalidate(file);
+
+            this.historyDocuments.clear();
+        }
+    }
+
+    protected Document createDocument(String filename)
+    {
+        Document retVal = null;
+
+        synchronized (this.historyDocuments)
+        {
+            if (this.historyDocuments.containsKey(filename))
+            {
+                retVal = getDocumentForFile(filename);
+            } else {
+                retVal = this.historyServiceImpl.getDocumentBuilder()
+                        .newDocument();
+                retVal.appendChild(retVal.createElement("history"));
+
+                this.historyDocuments.put(
+                    filename, new File(this.directory, filename));
+            }
+        }
+
+        return retVal;
+    }
+
+    protected void writeFile(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
+        File file = new File(this.directory, filename);
+
+        synchronized (this.historyDocuments)
+        {
+            if (!this.historyDocuments.containsKey(filename))
+            {
+                throw new InvalidParameterException("The requested "
+                        + "filename does not exist in the document list.");
+            }
+
+            synchronized (doc)
+            {
+                XMLUtils.writeXML(doc, file);
+            }
+        }
+
+        synchronized (this.fileVersions)
+        {
+            this.fileVersions.put(filename, getFileVersion(filename) + 1);
+        }
+        recordCache.invalidate(file);
+    }
+
+    /**
+     * Returns the document of the given file. The document currently
+     * appended to is returned as is, any other file is parsed from disk.
+     *
+     * @param filename the name of the file
+     * @return the document or <tt>null</tt> if the file cannot be parsed
+     */
+    protected Document getDocumentForFile(String filename)
+            throws InvalidParameterException, RuntimeException {
+        File file;
+
+        synchronized (this.historyDocuments)
+        {
+            file = this.historyDocuments.get(filename);
+
+            if (file == null)
+            {
+                throw new InvalidParameterException("The requested "
+                        + "filename does not exist in the document list.");
+            }
+
+            Document current = this.currentDoc;
+            if (current != null && filename.equals(this.currentFile))
+                return current;
+        }
+
+        Document retVal;
+        try {
+            retVal = this.historyServiceImpl.parse(file);
+        } catch (Exception e)
+        {
+            logger.error("Error occured while parsing XML document.", e);
+
+            // will try to fix the xml file
+            retVal = getFixedDocument(file, historyServiceImpl);
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Methods trying to fix histry xml files if corrupted
+     */
+    /**
+     * Returns the fixed document as xml Document
+     * if file cannot be fixed return null
+     *
+     * @param file File the file trying to fix
+     * @param historyServiceImpl the history service used to parse the file
+     * @return Document the fixed doc
+     */
+    static Document getFixedDocument(File file,
+                                     HistoryServiceImpl historyServiceImpl)
+    {
+        logger.info("Will try to fix file : " + file);
+        StringBuffer resultDocStr = new StringBuffer("<history>");
+
+        try
+        {
+            BufferedReader inReader = new BufferedReader(new FileReader(file));
+            try
+            {
+                String line = null;
+                while ( (line = inReader.readLine()) != null)
+                {
+                    // find the next start of record node
+                    if (line.indexOf("<record") == -1)
+                    {
+                        continue;
+                    }
+
+                    StringBuffer record
+                        = getRecordNodeString(line, inReader);
+
+                    if (record != null
+                        && isValidXML(record.toString(), historyServiceImpl))
+                    {
+                        resultDocStr.append(record);
+                    }
+                }
+            }
+            finally
+            {
+                inReader.close();
+            }
+        }
+        catch (Exception ex1)
+        {
+            logger.error("File cannot be fixed. Erro reading! " +
+                      ex1.getLocalizedMessage());
+        }
+
+        resultDocStr.append("</history>");
+
+        try
+        {
+            Document result =
+                historyServiceImpl.parse(new ByteArrayInputStream(
+                    resultDocStr.toString().getBytes("UTF-8")));
+
+            // parsing is ok . lets overwrite with correct values
+            logger.trace("File fixed will write to disk!");
+            XMLUtils.writeXML(result, file);
+
+            return result;
+        }
+        catch (Exception ex)
+        {
+            logger.error("again cannot parse " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the string containing the record node from the xml -
+     * the supplied Reader
+     * @param startingLine String
+     * @param inReader BufferedReader
+     * @return StringBuffer
+     */
+    private static StringBuffer getRecordNodeString(
+        String startingLine, BufferedReader inReader)
+    {
+        try
+        {
+            StringBuffer result = new StringBuffer(startingLine);
+
+            String line = null;
+            while ( (line = inReader.readLine()) != null)
+            {
+                // find the next start of record node
+                if (line.indexOf("</record>") != -1)
+                {
+                    result.append(line);
+                    break;
+                }
+                result.append(line);
+            }
+
+            return result;
+        }
+        catch (IOException ex)
+        {
+            logger.info("Error reading record " + ex.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the given xml is valid
+     * @param str String
+     * @param historyServiceImpl the history service used to parse
+     * @return boolean
+     */
+    private static boolean isValidXML(String str,
+                                      HistoryServiceImpl historyServiceImpl)
+    {
+        try
+        {
+            historyServiceImpl.parse(
+                new ByteArrayInputStream(str.getBytes("UTF-8")));
+        }
+        catch (Exception ex)
+        {
+            logger.error("not valid xml " + str + " " + ex.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+}
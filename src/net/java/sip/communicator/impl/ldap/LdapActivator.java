@@ -12,6 +12,7 @@ import net.java.sip.communicator.service.contactsource.*;
 import net.java.sip.communicator.service.ldap.*;
 import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.resources.*;
 import org.osgi.framework.*;
 
@@ -44,6 +45,12 @@ public class LdapActivator
      */
     private static ResourceManagementService resourceService = null;
 
+    /**
+     * The <tt>FileAccessService</tt> used to store the replicas of the
+     * directories.
+     */
+    private static FileAccessService fileAccessService = null;
+
     /**
      * Get LDAP service.
      *
@@ -159,6 +166,23 @@ public class LdapActivator
         return resourceService;
     }
 
+    /**
+     * Returns the <tt>FileAccessService</tt> obtained from the bundle context.
+     *
+     * @return the <tt>FileAccessService</tt> obtained from the bundle context
+     */
+    public static FileAccessService getFileAccessService()
+    {
+        if(fileAccessService == null)
+        {
+            fileAccessService
+                = ServiceUtils.getService(
+                        bundleContext,
+                        FileAccessService.class);
+        }
+        return fileAccessService;
+    }
+
     /**
      * Enable contact source service with specified LDAP directory.
      *
@@ -190,6 +214,9 @@ public class LdapActivator
             else
             {
                 cssList.put(css, cssServiceRegistration);
+
+                if(ldapDir instanceof LdapDirectoryImpl)
+                    ((LdapDirectoryImpl) ldapDir).startReplication();
             }
         }
 
@@ -229,6 +256,10 @@ public class LdapActivator
         if(found != null)
         {
             cssList.remove(found);
+
+            LdapDirectory foundDir = found.getLdapDirectory();
+            if(foundDir instanceof LdapDirectoryImpl)
+                ((LdapDirectoryImpl) foundDir).stopReplication();
         }
     }
 }
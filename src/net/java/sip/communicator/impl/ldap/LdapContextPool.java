@@ -0,0 +1,207 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+import javax.naming.*;
+import javax.naming.ldap.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A pool of contexts bound to an LDAP directory, so that a search does not
+ * open a new connection and bind again each time. A context is used by one
+ * search at a time: it is borrowed from the pool and released to it once the
+ * search is over.
+ * <p>
+ * Servers and firewalls drop connections which stay idle for long, so the
+ * contexts idle for longer than <tt>MAX_IDLE_TIME</tt> are closed instead of
+ * being reused.
+ */
+class LdapContextPool
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(LdapContextPool.class);
+
+    /**
+     * The maximum number of idle contexts kept in the pool.
+     */
+    private static final int MAX_IDLE_CONTEXTS = 4;
+
+    /**
+     * The time after which an idle context is closed, in milliseconds.
+     */
+    static final long MAX_IDLE_TIME = 5 * 60 * 1000;
+
+    /**
+     * The environment used to create the contexts.
+     */
+    private final Hashtable<String, String> env;
+
+    /**
+     * The name of the directory, for logging.
+     */
+    private final String name;
+
+    /**
+     * The idle contexts, the most recently released last.
+     */
+    private final LinkedList<IdleContext> idleContexts
+        = new LinkedList<IdleContext>();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param env the environment used to create the contexts
+     * @param name the name of the directory, for logging
+     */
+    LdapContextPool(Hashtable<String, String> env, String name)
+    {
+        this.env = env;
+        this.name = name;
+    }
+
+    /**
+     * Returns an idle context of the pool or, if there is none, a new one.
+     *
+     * @return a context bound to the directory
+     * @throws NamingException if connecting to the directory fails
+     */
+    InitialLdapContext borrow()
+        throws NamingException
+    {
+        synchronized (idleContexts)
+        {
+            closeExpiredContexts();
+
+            // the most recently used context is the most likely to be alive
+            if (!idleContexts.isEmpty())
+                return idleContexts.removeLast().context;
+        }
+        return connect();
+    }
+
+    /**
+     * Creates a new context, bound to the directory, which is not taken from
+     * the pool but may be released to it.
+     *
+     * @return a new context bound to the directory
+     * @throws NamingException if connecting to the directory fails
+     */
+    InitialLdapContext connect()
+        throws NamingException
+    {
+        logger.trace("connecting to directory \"" + name + "\"");
+        long time0 = System.currentTimeMillis();
+        InitialLdapContext context = new InitialLdapContext(env, null);
+        long time1 = System.currentTimeMillis();
+        logger.trace("connection to directory \"" + name + "\" took " +
+                (time1-time0)  + " ms");
+        return context;
+    }
+
+    /**
+     * Returns a borrowed context to the pool, or closes it.
+     *
+     * @param context the context
+     * @param reusable <tt>false</tt> if the connection of the context failed
+     * and the context is to be closed
+     */
+    void release(InitialLdapContext context, boolean reusable)
+    {
+        if (reusable)
+        {
+            synchronized (idleContexts)
+            {
+                closeExpiredContexts();
+
+                if (idleContexts.size() < MAX_IDLE_CONTEXTS)
+                {
+                    idleContexts.addLast(new IdleContext(context));
+                    return;
+                }
+            }
+        }
+        close(context);
+    }
+
+    /**
+     * Closes the idle contexts of the pool.
+     */
+    void closeIdleContexts()
+    {
+        List<IdleContext> contexts;
+
+        synchronized (idleContexts)
+        {
+            contexts = new ArrayList<IdleContext>(idleContexts);
+            idleContexts.clear();
+        }
+        for (IdleContext idleContext : contexts)
+            close(idleContext.context);
+    }
+
+    /**
+     * Closes the contexts which have been idle for too long.
+     */
+    private void closeExpiredContexts()
+    {
+        long now = System.currentTimeMillis();
+
+        while (!idleContexts.isEmpty()
+                && (now - idleContexts.getFirst().releaseTime > MAX_IDLE_TIME))
+            close(idleContexts.removeFirst().context);
+    }
+
+    /**
+     * Closes a context.
+     *
+     * @param context the context
+     */
+    private void close(InitialLdapContext context)
+    {
+        try
+        {
+            context.close();
+        }
+        catch(NamingException e)
+        {
+            logger.trace("disconnection from directory \"" + name +
+                    "\" failed!");
+        }
+    }
+
+    /**
+     * An idle context and the time it was released at.
+     */
+    private static class IdleContext
+    {
+        /**
+         * The context.
+         */
+        final InitialLdapContext context;
+
+        /**
+         * The time the context was released at, in milliseconds.
+         */
+        final long releaseTime = System.currentTimeMillis();
+
+        /**
+         * Creates an idle context.
+         *
+         * @param context the context
+         */
+        IdleContext(InitialLdapContext context)
+        {
+            this.context = context;
+        }
+    }
+}
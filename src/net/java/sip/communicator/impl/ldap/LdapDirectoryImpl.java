@@ -6,15 +6,20 @@
  */
 package net.java.sip.communicator.impl.ldap;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.naming.*;
 import javax.naming.directory.*;
+import javax.naming.ldap.*;
 
 import net.java.sip.communicator.service.ldap.*;
 import net.java.sip.communicator.service.ldap.event.*;
 import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.fileaccess.*;
+
 /**
  * An LdapDirectory stores settings for one directory server
  * and performs ldap operations (search)
@@ -125,6 +130,63 @@ public class LdapDirectoryImpl
     private final Hashtable<String, String> env =
         new Hashtable<String, String>();
 
+    /**
+     * The number of entries the directory is asked to return at once when
+     * searching, so that the first ones are shown without waiting for all
+     * of them.
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * The contexts bound to the directory, reused from one search to the
+     * next.
+     */
+    private final LdapContextPool contextPool;
+
+    /**
+     * The entries recently found in the directory.
+     */
+    private final LdapSearchCache searchCache = new LdapSearchCache();
+
+    /**
+     * Runs the searches, after the delay of their search settings.
+     */
+    private final ScheduledThreadPoolExecutor searchExecutor;
+
+    /**
+     * The time between two synchronizations of the replica of the
+     * directory, in milliseconds.
+     */
+    private static final long REPLICA_SYNC_INTERVAL = 15 * 60 * 1000;
+
+    /**
+     * The time between two complete synchronizations of the replica of the
+     * directory, the only ones which notice deleted entries, in milliseconds.
+     */
+    private static final long REPLICA_FULL_SYNC_INTERVAL = 24 * 60 * 60 * 1000;
+
+    /**
+     * The filter of the entries replicated.
+     */
+    private static final String REPLICA_FILTER = "(objectClass=person)";
+
+    /**
+     * The operational attribute holding the last modification time of an
+     * entry.
+     */
+    private static final String MODIFY_TIMESTAMP_ATTRIBUTE = "modifyTimestamp";
+
+    /**
+     * The local copy of the directory, <tt>null</tt> unless the directory is
+     * replicated and its contact source registered.
+     */
+    private volatile LdapReplica replica = null;
+
+    /**
+     * The periodic synchronization of <tt>replica</tt>.
+     */
+    private ScheduledFuture<?> replicaSync = null;
+
     /**
      * The contructor for this class.
      * Since this element is immutable (otherwise it would be a real pain
@@ -168,8 +230,6 @@ public class LdapDirectoryImpl
         this.env.put("com.sun.jndi.ldap.read.timeout", LDAP_READ_TIMEOUT);
         this.env.put(Context.PROVIDER_URL, settings.getEncryption().
                 protocolString() + settings.getHostname() + portText +"/");
-        //connection pooling
-        this.env.put("com.sun.jndi.ldap.connect.pool", "true");
 
         /* TODO STARTTLS */
         switch(this.settings.getEncryption())
@@ -208,6 +268,29 @@ public class LdapDirectoryImpl
         {
             searchableAttrs.add(s);
         }
+
+        this.contextPool = new LdapContextPool(env, settings.getName());
+
+        this.searchExecutor = new ScheduledThreadPoolExecutor(2,
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread searchThread = new Thread(r,
+                            "LDAP search " + LdapDirectoryImpl.this);
+
+                    // setting the classloader is necessary so that the
+                    // BundleContext can be accessed from classes instantiated
+                    // from JNDI (specifically from our custom SocketFactory)
+                    searchThread.setContextClassLoader(
+                            LdapDirectoryImpl.class.getClassLoader());
+                    searchThread.setDaemon(true);
+                    return searchThread;
+                }
+            });
+        this.searchExecutor.setKeepAliveTime(
+                LdapContextPool.MAX_IDLE_TIME, TimeUnit.MILLISECONDS);
+        this.searchExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -251,40 +334,287 @@ public class LdapDirectoryImpl
     }
 
     /**
-     * Connects to the remote directory
+     * Connects to the remote directory, reusing an idle connection if there
+     * is one.
      */
-    private InitialDirContext connect()
+    private InitialLdapContext connect()
         throws NamingException
     {
-        logger.trace("connecting to directory \"" + this + "\"");
-        long time0 = System.currentTimeMillis();
-        InitialDirContext dirContext =
-            new InitialDirContext(this.env);
-        long time1 = System.currentTimeMillis();
-        logger.trace("connection to directory \"" + this + "\" took " +
-                (time1-time0)  + " ms");
-        return dirContext;
+        return contextPool.borrow();
     }
 
     /**
-     * closes the ldap connection
+     * Releases the ldap connection, which is kept for the next searches.
      */
-    private void disconnect(InitialDirContext dirContext)
+    private void disconnect(InitialLdapContext dirContext)
     {
         if(dirContext == null)
             throw new NullPointerException("dirContext is null");
 
+        contextPool.release(dirContext, true);
+    }
+
+    /**
+     * Closes the idle connections to the directory and forgets the entries
+     * found in it. Called when the directory is removed or the service
+     * stopped; the directory reconnects if it is searched again.
+     */
+    void closeConnections()
+    {
+        stopReplication();
+        contextPool.closeIdleContexts();
+        searchCache.clear();
+    }
+
+    /**
+     * Starts keeping a local copy of the directory, searched instead of the
+     * directory, if the settings say so. The copy is loaded from disk, then
+     * synchronized periodically.
+     */
+    synchronized void startReplication()
+    {
+        if(!settings.isReplicated() || (replica != null))
+            return;
+
+        File file;
+
         try
         {
-            dirContext.close();
+            file = getReplicaFile();
         }
-        catch(NamingException e)
+        catch(Exception e)
         {
-            logger.trace("disconnection from directory \"" + this +
-                    "\" failed!");
+            logger.error("Cannot replicate directory \"" + this + "\"", e);
+            return;
         }
 
-        logger.trace("disconnection achieved!");
+        replica = new LdapReplica(file);
+        replicaSync = searchExecutor.scheduleWithFixedDelay(
+                new ReplicaSyncTask(replica),
+                0,
+                REPLICA_SYNC_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops keeping a local copy of the directory. The copy stays on disk
+     * to be loaded when the replication starts again.
+     */
+    synchronized void stopReplication()
+    {
+        if(replicaSync != null)
+        {
+            replicaSync.cancel(false);
+            replicaSync = null;
+        }
+        replica = null;
+    }
+
+    /**
+     * Stops keeping a local copy of the directory and deletes the copy from
+     * disk. Called when the directory is removed.
+     */
+    synchronized void deleteReplica()
+    {
+        LdapReplica deletedReplica = replica;
+
+        stopReplication();
+        try
+        {
+            // a synchronization still running must not save it again
+            if(deletedReplica == null)
+                deletedReplica = new LdapReplica(getReplicaFile());
+            deletedReplica.delete();
+        }
+        catch(Exception e)
+        {
+            logger.error("Cannot delete the replica of directory \""
+                    + this + "\"", e);
+        }
+    }
+
+    /**
+     * Returns the file the local copy of the directory is kept in.
+     *
+     * @return the file the local copy of the directory is kept in
+     * @throws Exception if the directory of the file cannot be created
+     */
+    private File getReplicaFile()
+        throws Exception
+    {
+        File dir = LdapActivator.getFileAccessService()
+            .getPrivatePersistentDirectory("ldap", FileCategory.CACHE);
+
+        if(!dir.exists() && !dir.mkdirs())
+            throw new IOException("Failed to create " + dir);
+        return new File(dir,
+                "replica" + Math.abs(settings.getName().hashCode()));
+    }
+
+    /**
+     * Returns the attributes holding phone numbers.
+     *
+     * @return the attributes holding phone numbers
+     */
+    private List<String> getPhoneAttributes()
+    {
+        List<String> phoneAttrs = new ArrayList<String>();
+
+        phoneAttrs.addAll(attributesMap.get("workPhone"));
+        phoneAttrs.addAll(attributesMap.get("mobilePhone"));
+        phoneAttrs.addAll(attributesMap.get("homePhone"));
+        return phoneAttrs;
+    }
+
+    /**
+     * Synchronizes a replica of the directory: reads the people modified
+     * since the last synchronization or, once a day, all of them, and saves
+     * the replica to disk.
+     */
+    private class ReplicaSyncTask
+        extends EntryHandler
+        implements Runnable
+    {
+        /**
+         * The synchronized replica.
+         */
+        private final LdapReplica syncedReplica;
+
+        /**
+         * Whether the replica has been loaded from disk.
+         */
+        private boolean loaded = false;
+
+        /**
+         * The entries read during the current synchronization.
+         */
+        private final List<LdapReplica.Entry> entries
+            = new ArrayList<LdapReplica.Entry>();
+
+        /**
+         * The greatest modification time of the entries read during the
+         * current synchronization.
+         */
+        private String modifyTimestamp;
+
+        /**
+         * Creates the synchronization of a replica.
+         *
+         * @param syncedReplica the synchronized replica
+         */
+        ReplicaSyncTask(LdapReplica syncedReplica)
+        {
+            this.syncedReplica = syncedReplica;
+        }
+
+        public void run()
+        {
+            if(!loaded)
+            {
+                syncedReplica.load();
+                loaded = true;
+            }
+
+            String since = syncedReplica.getLastModifyTimestamp();
+            boolean full = (since == null)
+                || (System.currentTimeMillis()
+                        - syncedReplica.getLastFullSyncTime()
+                    > REPLICA_FULL_SYNC_INTERVAL);
+            String searchFilter = full
+                ? REPLICA_FILTER
+                : "(&" + REPLICA_FILTER + "(" + MODIFY_TIMESTAMP_ATTRIBUTE
+                    + ">=" + since + "))";
+
+            SearchControls searchControls
+                = buildSearchControls(new LdapSearchSettingsImpl());
+            List<String> returningAttrs = new ArrayList<String>(
+                    Arrays.asList(searchControls.getReturningAttributes()));
+
+            returningAttrs.add(MODIFY_TIMESTAMP_ATTRIBUTE);
+            searchControls.setReturningAttributes(
+                    returningAttrs.toArray(new String[returningAttrs.size()]));
+
+            entries.clear();
+            modifyTimestamp = null;
+            count = 0;
+            truncated = false;
+
+            try
+            {
+                long time0 = System.currentTimeMillis();
+
+                searchDirectory(searchFilter, searchControls, this);
+
+                // entries missing from a truncated answer are not deleted
+                syncedReplica.update(entries, modifyTimestamp, full,
+                        truncated);
+                syncedReplica.save();
+
+                long time1 = System.currentTimeMillis();
+                logger.trace((full ? "full" : "incremental")
+                        + " synchronization of directory \""
+                        + LdapDirectoryImpl.this + "\" read " + entries.size()
+                        + " entries in " + (time1 - time0) + "ms");
+            }
+            catch(NamingException e)
+            {
+                // the replica is still searched, it is synchronized again
+                // later
+                logger.info("synchronization of directory \""
+                        + LdapDirectoryImpl.this + "\" failed: " + e);
+            }
+            catch(LdapQueryCancelledException e)
+            {
+                logger.trace("synchronization of directory \""
+                        + LdapDirectoryImpl.this + "\" stopped");
+            }
+            finally
+            {
+                entries.clear();
+            }
+        }
+
+        /**
+         * Keeps an entry read from the directory.
+         *
+         * @param searchResult the entry
+         */
+        @Override
+        void entryFound(SearchResult searchResult)
+            throws NamingException,
+                   LdapQueryCancelledException
+        {
+            checkCancel();
+
+            Attribute timestamp = searchResult.getAttributes().get(
+                    MODIFY_TIMESTAMP_ATTRIBUTE);
+
+            if(timestamp != null)
+            {
+                String value = (String) timestamp.get();
+
+                if((value != null)
+                        && ((modifyTimestamp == null)
+                            || (value.compareTo(modifyTimestamp) > 0)))
+                    modifyTimestamp = value;
+            }
+
+            entries.add(
+                    new LdapReplica.Entry(
+                            searchResult.getName(),
+                            retrieveAttributes(searchResult)));
+        }
+
+        /**
+         * Stops the synchronization if the replication has been stopped.
+         */
+        @Override
+        void checkCancel()
+            throws LdapQueryCancelledException
+        {
+            if(replica != syncedReplica)
+                throw new LdapQueryCancelledException();
+        }
     }
 
     /**
@@ -338,170 +668,488 @@ public class LdapDirectoryImpl
             this.performSearch(query, queryString, searchSettings, this);
     }
 
+    /**
+     * Schedules the search of a real query string, after the delay of the
+     * search settings if there is one.
+     *
+     * @param query the initial query
+     * @param realQueryString the query string searched for
+     * @param searchSettings the settings of the search
+     * @param caller the LdapListener notified of the results
+     */
     private void performSearch(final LdapQuery query,
             final String realQueryString,
             final LdapSearchSettings searchSettings,
             final LdapListener caller)
     {
-        Thread searchThread = new Thread()
-        {
-            int cancelState = 0;
+        // the delay lets the user type a few more characters, the search
+        // is canceled meanwhile if they do
+        long delay
+            = searchSettings.isDelaySet() ? searchSettings.getDelay() : 0;
+
+        this.searchExecutor.schedule(
+                new SearchTask(query, realQueryString, searchSettings, caller),
+                delay,
+                TimeUnit.MILLISECONDS);
+    }
 
-            @Override
-            public void run()
-            {
-                logger.trace("starting search for " + realQueryString +
-                        " (initial query: \"" + query.toString() +
-                        "\") on directory \"" + LdapDirectoryImpl.this + "\"");
+    /**
+     * Searches a real query string on a pooled context, asking the directory
+     * for pages of entries (RFC 2696) which are sent to the caller as they
+     * arrive, or takes the entries from the cache if the same search was done
+     * recently.
+     */
+    private class SearchTask
+        extends EntryHandler
+        implements Runnable
+    {
+        /**
+         * The initial query.
+         */
+        private final LdapQuery query;
 
-                SearchControls searchControls =
-                    buildSearchControls(searchSettings);
+        /**
+         * The query string searched for.
+         */
+        private final String realQueryString;
 
-                LdapEvent endEvent = null;
-                InitialDirContext dirContext = null;
+        /**
+         * The settings of the search.
+         */
+        private final LdapSearchSettings searchSettings;
 
-                try
-                {
-                    if(searchSettings.isDelaySet())
-                        Thread.sleep(searchSettings.getDelay());
+        /**
+         * The LdapListener notified of the results.
+         */
+        private final LdapListener caller;
 
-                    checkCancel();
-                    dirContext = connect();
-                    checkCancel();
+        /**
+         * The entries found in the directory.
+         */
+        private final List<LdapReplica.Entry> found
+            = new ArrayList<LdapReplica.Entry>();
 
-                    long time0 = System.currentTimeMillis();
+        /**
+         * The number of times the cancellation was checked, for logging.
+         */
+        private int cancelState = 0;
 
-                    NamingEnumeration<?> results = dirContext.search(
-                            LdapDirectoryImpl.this.settings.getBaseDN(),
-                            buildSearchFilter(realQueryString),
-                            searchControls
-                            );
+        /**
+         * Creates a search.
+         *
+         * @param query the initial query
+         * @param realQueryString the query string searched for
+         * @param searchSettings the settings of the search
+         * @param caller the LdapListener notified of the results
+         */
+        SearchTask(LdapQuery query,
+                   String realQueryString,
+                   LdapSearchSettings searchSettings,
+                   LdapListener caller)
+        {
+            this.query = query;
+            this.realQueryString = realQueryString;
+            this.searchSettings = searchSettings;
+            this.caller = caller;
+        }
 
-                    checkCancel();
+        public void run()
+        {
+            logger.trace("starting search for " + realQueryString +
+                    " (initial query: \"" + query.toString() +
+                    "\") on directory \"" + LdapDirectoryImpl.this + "\"");
 
-                    while (results.hasMore())
-                    {
-                        checkCancel();
+            SearchControls searchControls =
+                buildSearchControls(searchSettings);
+            String searchFilter = buildSearchFilter(realQueryString);
+            String cacheKey = LdapSearchCache.getKey(
+                    searchFilter,
+                    searchControls.getSearchScope(),
+                    searchControls.getCountLimit());
 
-                        SearchResult searchResult =
-                            (SearchResult) results.next();
-                        Map<String, Set<String>> retrievedAttributes =
-                            retrieveAttributes(searchResult);
-                        LdapPersonFound person =
-                            buildPerson(
-                                query,
-                                searchResult.getName(),
-                                retrievedAttributes
-                                );
-                        LdapEvent resultEvent =
-                            new LdapEvent(LdapDirectoryImpl.this,
-                                    LdapEvent.LdapEventCause.NEW_SEARCH_RESULT,
-                                    person);
-                        fireLdapEvent(resultEvent, caller);
-                    }
+            LdapEvent endEvent = null;
+
+            try
+            {
+                checkCancel();
 
-                    long time1 = System.currentTimeMillis();
-                    logger.trace("search for real query \"" + realQueryString +
-                            "\" (initial query: \"" + query.toString() +
-                            "\") on directory \"" + LdapDirectoryImpl.this +
-                            "\" took " + (time1-time0) + "ms");
+                long time0 = System.currentTimeMillis();
+                LdapReplica searchedReplica = replica;
+                List<LdapReplica.Entry> entries;
 
-                    endEvent = new LdapEvent(LdapDirectoryImpl.this,
-                            LdapEvent.LdapEventCause.SEARCH_ACHIEVED, query);
+                if((searchedReplica != null) && searchedReplica.isReady())
+                {
+                    logger.trace("search for real query \"" +
+                            realQueryString + "\" answered from replica");
+                    entries = searchedReplica.search(
+                            realQueryString,
+                            searchableAttrs,
+                            getPhoneAttributes(),
+                            searchControls.getCountLimit());
                 }
-                catch(OperationNotSupportedException e)
+                else
                 {
-                    logger.trace(
-                            "use bind DN without password during search" +
-                            " for real query \"" +
-                            realQueryString + "\" (initial query: \"" +
-                            query.toString() + "\") on directory \"" +
-                            LdapDirectoryImpl.this + "\": " + e);
-                    endEvent = new LdapEvent(
-                            LdapDirectoryImpl.this,
-                            LdapEvent.LdapEventCause.SEARCH_AUTH_ERROR,
-                            query
-                            );
+                    entries = searchCache.get(cacheKey);
+                    if(entries != null)
+                        logger.trace("search for real query \"" +
+                                realQueryString + "\" answered from cache");
                 }
-                catch(AuthenticationException e)
+
+                if(entries != null)
                 {
-                    logger.trace(
-                            "authentication failed during search" +
-                            " for real query \"" +
-                            realQueryString + "\" (initial query: \"" +
-                            query.toString() + "\") on directory \"" +
-                            LdapDirectoryImpl.this + "\": " + e);
-                    endEvent = new LdapEvent(
-                            LdapDirectoryImpl.this,
-                            LdapEvent.LdapEventCause.SEARCH_AUTH_ERROR,
-                            query
-                            );
+                    for(LdapReplica.Entry entry : entries)
+                    {
+                        checkCancel();
+                        firePersonFound(entry);
+                    }
                 }
-                catch(NamingException e)
+                else
                 {
-                    logger.trace(
-                            "an external exception was thrown during search" +
-                            " for real query \"" +
-                            realQueryString + "\" (initial query: \"" +
-                            query.toString() + "\") on directory \"" +
-                            LdapDirectoryImpl.this + "\": " + e);
-                    endEvent = new LdapEvent(
-                            LdapDirectoryImpl.this,
-                            LdapEvent.LdapEventCause.SEARCH_ERROR,
-                            query
-                            );
+                    searchDirectory(searchFilter, searchControls, this);
+                    searchCache.put(cacheKey, found);
                 }
-                catch(LdapQueryCancelledException e)
+
+                long time1 = System.currentTimeMillis();
+                logger.trace("search for real query \"" + realQueryString +
+                        "\" (initial query: \"" + query.toString() +
+                        "\") on directory \"" + LdapDirectoryImpl.this +
+                        "\" took " + (time1-time0) + "ms");
+
+                endEvent = new LdapEvent(LdapDirectoryImpl.this,
+                        LdapEvent.LdapEventCause.SEARCH_ACHIEVED, query);
+            }
+            catch(OperationNotSupportedException e)
+            {
+                logger.trace(
+                        "use bind DN without password during search" +
+                        " for real query \"" +
+                        realQueryString + "\" (initial query: \"" +
+                        query.toString() + "\") on directory \"" +
+                        LdapDirectoryImpl.this + "\": " + e);
+                endEvent = new LdapEvent(
+                        LdapDirectoryImpl.this,
+                        LdapEvent.LdapEventCause.SEARCH_AUTH_ERROR,
+                        query
+                        );
+            }
+            catch(AuthenticationException e)
+            {
+                logger.trace(
+                        "authentication failed during search" +
+                        " for real query \"" +
+                        realQueryString + "\" (initial query: \"" +
+                        query.toString() + "\") on directory \"" +
+                        LdapDirectoryImpl.this + "\": " + e);
+                endEvent = new LdapEvent(
+                        LdapDirectoryImpl.this,
+                        LdapEvent.LdapEventCause.SEARCH_AUTH_ERROR,
+                        query
+                        );
+            }
+            catch(NamingException e)
+            {
+                logger.trace(
+                        "an external exception was thrown during search" +
+                        " for real query \"" +
+                        realQueryString + "\" (initial query: \"" +
+                        query.toString() + "\") on directory \"" +
+                        LdapDirectoryImpl.this + "\": " + e);
+                endEvent = new LdapEvent(
+                        LdapDirectoryImpl.this,
+                        LdapEvent.LdapEventCause.SEARCH_ERROR,
+                        query
+                        );
+            }
+            catch(LdapQueryCancelledException e)
+            {
+                logger.trace("search for real query \"" + realQueryString +
+                        "\" (initial query: \"" + query.toString() +
+                        "\") on " + LdapDirectoryImpl.this +
+                        " cancelled at state " + cancelState);
+                endEvent = new LdapEvent(
+                        LdapDirectoryImpl.this,
+                        LdapEvent.LdapEventCause.SEARCH_CANCELLED,
+                        query
+                        );
+            }
+            finally
+            {
+                fireLdapEvent(endEvent, caller);
+            }
+        }
+
+        /**
+         * Sends an entry found in the directory to the caller.
+         *
+         * @param searchResult the entry
+         */
+        @Override
+        void entryFound(SearchResult searchResult)
+            throws NamingException,
+                   LdapQueryCancelledException
+        {
+            checkCancel();
+
+            LdapReplica.Entry entry
+                = new LdapReplica.Entry(
+                        searchResult.getName(),
+                        retrieveAttributes(searchResult));
+
+            found.add(entry);
+            firePersonFound(entry);
+        }
+
+        /**
+         * Sends an entry found to the caller.
+         *
+         * @param entry the entry
+         */
+        private void firePersonFound(LdapReplica.Entry entry)
+        {
+            LdapPersonFound person =
+                buildPerson(query, entry.getDN(), entry.getAttributes());
+            LdapEvent resultEvent =
+                new LdapEvent(LdapDirectoryImpl.this,
+                        LdapEvent.LdapEventCause.NEW_SEARCH_RESULT,
+                        person);
+            fireLdapEvent(resultEvent, caller);
+        }
+
+        /**
+         * Checks if the query that triggered this search has
+         * been marked as cancelled. If that's the case, the
+         * search thread should be stopped and this method will
+         * send a search cancelled event to the search initiator.
+         * This method should be called by the search thread as
+         * often as possible to quickly interrupt when needed.
+         */
+        @Override
+        void checkCancel()
+            throws LdapQueryCancelledException
+        {
+            if(query.getState() == LdapQuery.State.CANCELLED)
+            {
+                throw new LdapQueryCancelledException();
+            }
+            this.cancelState++;
+        }
+    }
+
+    /**
+     * Receives the entries found by
+     * {@link #searchDirectory(String, SearchControls, EntryHandler)}.
+     */
+    private static abstract class EntryHandler
+    {
+        /**
+         * The number of entries found so far.
+         */
+        int count = 0;
+
+        /**
+         * Whether the directory returned less entries than it has because of
+         * its size limit.
+         */
+        boolean truncated = false;
+
+        /**
+         * Handles an entry found.
+         *
+         * @param searchResult the entry
+         */
+        abstract void entryFound(SearchResult searchResult)
+            throws NamingException,
+                   LdapQueryCancelledException;
+
+        /**
+         * Called between entries and pages, throws if the search is to be
+         * stopped.
+         */
+        void checkCancel()
+            throws LdapQueryCancelledException
+        {
+        }
+    }
+
+    /**
+     * Searches the directory on a pooled context. If the connection of the
+     * pooled context turns out to have been closed, the search is done again
+     * on a new context.
+     *
+     * @param searchFilter the LDAP filter of the search
+     * @param searchControls the controls of the search
+     * @param handler the handler of the entries found
+     */
+    private void searchDirectory(
+            String searchFilter,
+            SearchControls searchControls,
+            EntryHandler handler)
+        throws NamingException,
+               LdapQueryCancelledException
+    {
+        InitialLdapContext dirContext = contextPool.borrow();
+        boolean reconnected = false;
+
+        while(true)
+        {
+            boolean reusable = false;
+
+            try
+            {
+                handler.checkCancel();
+                searchPages(dirContext, searchFilter, searchControls, handler);
+                reusable = true;
+                return;
+            }
+            catch(LdapQueryCancelledException e)
+            {
+                reusable = true;
+                throw e;
+            }
+            catch(CommunicationException e)
+            {
+                // the server may have closed the connection while it was
+                // idle in the pool
+                if(reconnected || (handler.count > 0))
+                    throw e;
+                logger.trace("connection to directory \"" +
+                        this + "\" lost, reconnecting");
+            }
+            finally
+            {
+                contextPool.release(dirContext, reusable);
+            }
+
+            dirContext = contextPool.connect();
+            reconnected = true;
+        }
+    }
+
+    /**
+     * Searches the directory a page of entries at a time (RFC 2696), handing
+     * the entries to the handler as they arrive.
+     *
+     * @param dirContext the context to search on
+     * @param searchFilter the LDAP filter of the search
+     * @param searchControls the controls of the search
+     * @param handler the handler of the entries found
+     */
+    private void searchPages(
+            InitialLdapContext dirContext,
+            String searchFilter,
+            SearchControls searchControls,
+            EntryHandler handler)
+        throws NamingException,
+               LdapQueryCancelledException
+    {
+        long countLimit = searchControls.getCountLimit();
+        int pageSize = ((countLimit > 0) && (countLimit < PAGE_SIZE))
+            ? (int) countLimit
+            : PAGE_SIZE;
+        byte[] cookie = null;
+
+        try
+        {
+            do
+            {
+                handler.checkCancel();
+
+                dirContext.setRequestControls(new Control[]
+                    {
+                        createPagedResultsControl(pageSize, cookie)
+                    });
+
+                NamingEnumeration<SearchResult> results
+                    = dirContext.search(
+                        this.settings.getBaseDN(),
+                        searchFilter,
+                        searchControls);
+
+                try
                 {
-                    logger.trace("search for real query \"" + realQueryString +
-                            "\" (initial query: \"" + query.toString() +
-                            "\") on " + LdapDirectoryImpl.this +
-                            " cancelled at state " + cancelState);
-                    endEvent = new LdapEvent(
-                            LdapDirectoryImpl.this,
-                            LdapEvent.LdapEventCause.SEARCH_CANCELLED,
-                            query
-                            );
+                    while(results.hasMore())
+                    {
+                        SearchResult searchResult = results.next();
 
+                        handler.count++;
+                        handler.entryFound(searchResult);
+                    }
                 }
-                catch(InterruptedException e)
+                catch(SizeLimitExceededException e)
                 {
-                    // whether sleep was interrupted
-                    // is not that important
+                    // we have got as many entries as we, or the server,
+                    // allow
+                    handler.truncated = true;
+                    break;
                 }
                 finally
                 {
-                    fireLdapEvent(endEvent, caller);
-                    if(dirContext != null)
-                        disconnect(dirContext);
+                    results.close();
                 }
+
+                cookie = getCookie(dirContext.getResponseControls());
             }
+            while((cookie != null)
+                    && ((countLimit == 0) || (handler.count < countLimit)));
+        }
+        finally
+        {
+            dirContext.setRequestControls(null);
+        }
+    }
+
+    /**
+     * Creates the control asking for a page of entries. It is not critical,
+     * so servers which do not page results return them all at once.
+     *
+     * @param pageSize the number of entries of the page
+     * @param cookie the cookie returned with the previous page, <tt>null</tt>
+     * for the first page
+     * @return the control asking for a page of entries
+     */
+    private static Control createPagedResultsControl(int pageSize,
+            byte[] cookie)
+        throws NamingException
+    {
+        try
+        {
+            return new PagedResultsControl(
+                    pageSize, cookie, Control.NONCRITICAL);
+        }
+        catch(IOException e)
+        {
+            NamingException ne = new NamingException(
+                    "failed to encode paged results control");
+            ne.setRootCause(e);
+            throw ne;
+        }
+    }
 
-            /**
-             * Checks if the query that triggered this search has
-             * been marked as cancelled. If that's the case, the
-             * search thread should be stopped and this method will
-             * send a search cancelled event to the search initiator.
-             * This method should be called by the search thread as
-             * often as possible to quickly interrupt when needed.
-             */
-            private void checkCancel()
-                throws LdapQueryCancelledException
+    /**
+     * Returns the cookie of the next page of a paged search.
+     *
+     * @param responseControls the controls of the response to the search
+     * @return the cookie of the next page, <tt>null</tt> if there are no more
+     * pages
+     */
+    private static byte[] getCookie(Control[] responseControls)
+    {
+        if(responseControls != null)
+        {
+            for(Control control : responseControls)
             {
-                if(query.getState() == LdapQuery.State.CANCELLED)
+                if(control instanceof PagedResultsResponseControl)
                 {
-                    throw new LdapQueryCancelledException();
+                    byte[] cookie
+                        = ((PagedResultsResponseControl) control).getCookie();
+
+                    return ((cookie == null) || (cookie.length == 0))
+                        ? null
+                        : cookie;
                 }
-                this.cancelState++;
             }
-        };
-
-        // setting the classloader is necessary so that the BundleContext can be
-        // accessed from classes instantiated from JNDI (specifically from our
-        // custom SocketFactory)
-        searchThread.setContextClassLoader(getClass().getClassLoader());
-        searchThread.setDaemon(true);
-        searchThread.start();
+        }
+        return null;
     }
 
     private static String[]
@@ -884,7 +1532,7 @@ public class LdapDirectoryImpl
     public Collection<String> searchChildren(final String dn)
     {
         final Vector<String> nodes = new Vector<String>();
-        InitialDirContext dirContext = null;
+        InitialLdapContext dirContext = null;
 
         if(dn.equals(""))
         {
@@ -967,7 +1615,7 @@ public class LdapDirectoryImpl
     byte[] fetchPhotoForPerson(String dn)
     {
         byte[] photo = null;
-        InitialDirContext dirContext = null;
+        InitialLdapContext dirContext = null;
 
         /* use our custom search control */
 
@@ -1148,6 +1796,9 @@ public class LdapDirectoryImpl
     public void overrideAttributesSearch(String attribute, List<String> names)
     {
         attributesMap.put(attribute, names);
+
+        // the remembered entries lack the attributes of the new names
+        searchCache.clear();
     }
 
     /**
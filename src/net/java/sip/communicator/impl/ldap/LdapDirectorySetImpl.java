@@ -95,6 +95,12 @@ public class LdapDirectorySetImpl
         if(configService != null)
             removed.getSettings().persistentRemove();
 
+        if(removed instanceof LdapDirectoryImpl)
+        {
+            ((LdapDirectoryImpl) removed).closeConnections();
+            ((LdapDirectoryImpl) removed).deleteReplica();
+        }
+
         return removed;
     }
 
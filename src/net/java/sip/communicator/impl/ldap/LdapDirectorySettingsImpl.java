@@ -41,6 +41,7 @@ public class LdapDirectorySettingsImpl
         this.setBaseDN("");
         this.setScope(Scope.defaultValue());
         this.setGlobalPhonePrefix("");
+        this.setReplicated(false);
         // mail
         List<String> lst = new ArrayList<String>();
         lst.add("mail");
@@ -91,6 +92,7 @@ public class LdapDirectorySettingsImpl
         this.setBaseDN(settings.getBaseDN());
         this.setScope(settings.getScope());
         this.setGlobalPhonePrefix(settings.getGlobalPhonePrefix());
+        this.setReplicated(settings.isReplicated());
         this.mapAttributes = settings.mapAttributes;
         this.mailSuffix = settings.mailSuffix;
     }
@@ -165,6 +167,11 @@ public class LdapDirectorySettingsImpl
      */
     private String globalPhonePrefix;
 
+    /**
+     * Whether a copy of the directory is kept locally.
+     */
+    private boolean replicated;
+
     /**
      * Mail suffix.
      */
@@ -445,6 +452,28 @@ public class LdapDirectorySettingsImpl
         this.globalPhonePrefix = prefix;
     }
 
+    /**
+     * Returns whether a copy of the directory is kept locally, so that it is
+     * searched without asking the server.
+     *
+     * @return whether a copy of the directory is kept locally
+     */
+    public boolean isReplicated()
+    {
+        return replicated;
+    }
+
+    /**
+     * Sets whether a copy of the directory is kept locally, so that it is
+     * searched without asking the server.
+     *
+     * @param replicated whether a copy of the directory is kept locally
+     */
+    public void setReplicated(boolean replicated)
+    {
+        this.replicated = replicated;
+    }
+
     /**
      * Checks if both LdapDirectorySettings instance have the same content
      *
@@ -465,7 +494,8 @@ public class LdapDirectorySettingsImpl
             this.getPassword().equals(other.getPassword()) &&
             this.getBaseDN().equals(other.getBaseDN()) &&
             this.getScope().equals(other.getScope()) &&
-            this.getGlobalPhonePrefix().equals(other.getGlobalPhonePrefix());
+            this.getGlobalPhonePrefix().equals(other.getGlobalPhonePrefix()) &&
+            this.isReplicated() == other.isReplicated();
     }
 
     /**
@@ -501,6 +531,7 @@ public class LdapDirectorySettingsImpl
             this.getBaseDN().hashCode());
         hash = 31 * hash + (null == this.getGlobalPhonePrefix() ? 0 :
             this.getGlobalPhonePrefix().hashCode());
+        hash = 31 * hash + (this.isReplicated() ? 1 : 0);
         return hash;
     }
 
@@ -700,6 +731,9 @@ public class LdapDirectorySettingsImpl
         configService.setProperty(
             directoriesPath + "." + node + ".globalPhonePrefix",
                         this.getGlobalPhonePrefix());
+        configService.setProperty(
+            directoriesPath + "." + node + ".replicated",
+            this.isReplicated());
     }
 
     /**
@@ -852,6 +886,9 @@ public class LdapDirectorySettingsImpl
             if (ret != null)
                 setGlobalPhonePrefix(ret);
         }
+
+        this.setReplicated(configService.getBoolean(
+                directoriesPath + "." + node + ".replicated", false));
     }
 
     /**
@@ -910,6 +947,9 @@ public class LdapDirectorySettingsImpl
         configService.setProperty(
             directoriesPath + "." + node + ".globalPhonePrefix",
             null);
+        configService.setProperty(
+            directoriesPath + "." + node + ".replicated",
+            null);
         configService.setProperty(
                 directoriesPath + "." + node,
                 null);
@@ -0,0 +1,147 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Remembers for a while the entries an LDAP directory returned for a search,
+ * so that the same search typed again or the reverse lookup of the number
+ * of a returning caller are answered without asking the directory. Searches
+ * which found nothing, as most reverse lookups do, are remembered for less
+ * time, since the person may be added to the directory in the meantime.
+ * <p>
+ * The entries are kept as their distinguished names and attributes, not as
+ * <tt>LdapPersonFound</tt>s which belong to the query which found them.
+ */
+class LdapSearchCache
+{
+    /**
+     * The time the entries found by a search are kept, in milliseconds.
+     */
+    private static final long RESULT_TTL = 5 * 60 * 1000;
+
+    /**
+     * The time a search which found nothing is remembered, in milliseconds.
+     */
+    private static final long NEGATIVE_RESULT_TTL = 60 * 1000;
+
+    /**
+     * The maximum number of searches remembered.
+     */
+    private static final int MAX_SEARCHES = 128;
+
+    /**
+     * The remembered searches by key, the least recently used first.
+     */
+    private final Map<String, CachedSearch> searches
+        = new LinkedHashMap<String, CachedSearch>(16, 0.75f, true)
+        {
+            /**
+             * Serial version UID.
+             */
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, CachedSearch> eldest)
+            {
+                return size() > MAX_SEARCHES;
+            }
+        };
+
+    /**
+     * Returns the key of a search.
+     *
+     * @param filter the LDAP filter of the search
+     * @param scope the scope of the search
+     * @param countLimit the maximum number of entries of the search, 0 for
+     * no limit
+     * @return the key of the search
+     */
+    static String getKey(String filter, int scope, long countLimit)
+    {
+        return scope + "/" + countLimit + "/" + filter;
+    }
+
+    /**
+     * Returns the entries found by a search, unless it has not been done or
+     * its entries are too old.
+     *
+     * @param key the key of the search
+     * @return the entries found by the search or <tt>null</tt>
+     */
+    synchronized List<LdapReplica.Entry> get(String key)
+    {
+        CachedSearch search = searches.get(key);
+
+        if (search == null)
+            return null;
+
+        if (System.currentTimeMillis() > search.expirationTime)
+        {
+            searches.remove(key);
+            return null;
+        }
+        return search.entries;
+    }
+
+    /**
+     * Remembers the entries found by a completed search.
+     *
+     * @param key the key of the search
+     * @param entries the entries found by the search
+     */
+    synchronized void put(String key, List<LdapReplica.Entry> entries)
+    {
+        long ttl = entries.isEmpty() ? NEGATIVE_RESULT_TTL : RESULT_TTL;
+
+        searches.put(
+                key,
+                new CachedSearch(
+                        Collections.unmodifiableList(entries),
+                        System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Forgets all searches.
+     */
+    synchronized void clear()
+    {
+        searches.clear();
+    }
+
+    /**
+     * The entries found by a search and the time they expire at.
+     */
+    private static class CachedSearch
+    {
+        /**
+         * The entries found by the search.
+         */
+        final List<LdapReplica.Entry> entries;
+
+        /**
+         * The time the entries expire at, in milliseconds.
+         */
+        final long expirationTime;
+
+        /**
+         * Creates a remembered search.
+         *
+         * @param entries the entries found by the search
+         * @param expirationTime the time the entries expire at
+         */
+        CachedSearch(List<LdapReplica.Entry> entries, long expirationTime)
+        {
+            this.entries = entries;
+            this.expirationTime = expirationTime;
+        }
+    }
+}
@@ -84,6 +84,15 @@ public class LdapServiceImpl
     public void stop(BundleContext bc)
     {
         logger.trace("Stopping the LDAP implementation.");
+
+        if(serverSet != null)
+        {
+            for(LdapDirectory server : serverSet)
+            {
+                if(server instanceof LdapDirectoryImpl)
+                    ((LdapDirectoryImpl) server).closeConnections();
+            }
+        }
     }
 
     /**
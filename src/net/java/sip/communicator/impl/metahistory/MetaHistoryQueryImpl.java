@@ -0,0 +1,435 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.metahistory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.metahistory.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Queries the wrapped history services concurrently and merges their sorted
+ * answers, stopping as soon as the requested number of records has been
+ * produced instead of sorting all of them.
+ * <p>
+ * Each service is queried by a task of the executor of the
+ * <tt>MetaHistoryServiceImpl</tt>. The task answering last merges the
+ * records and delivers them, so no thread waits for the others.
+ */
+class MetaHistoryQueryImpl
+    implements MetaHistoryQuery
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger =
+        Logger.getLogger(MetaHistoryQueryImpl.class);
+
+    /**
+     * The order of the records.
+     */
+    private final Comparator<Object> comparator;
+
+    /**
+     * The maximum number of records to produce, or a negative number to
+     * produce all of them.
+     */
+    private final int count;
+
+    /**
+     * Whether the last <tt>count</tt> records are wanted rather than the
+     * first ones.
+     */
+    private final boolean last;
+
+    /**
+     * The listener notified of the records and of the end of the query, or
+     * <tt>null</tt>.
+     */
+    private final MetaHistoryQueryListener listener;
+
+    /**
+     * The tasks querying the services, canceled with the query.
+     */
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    /**
+     * The sorted answers of the services, by service index.
+     */
+    private List<?>[] answers;
+
+    /**
+     * The number of services which have not answered yet.
+     */
+    private int remaining;
+
+    /**
+     * The first error thrown by a service.
+     */
+    private RuntimeException error = null;
+
+    /**
+     * The merged records.
+     */
+    private final List<Object> records = new ArrayList<Object>();
+
+    /**
+     * The status of the query.
+     */
+    private volatile int status = QUERY_IN_PROGRESS;
+
+    /**
+     * Creates a query.
+     *
+     * @param comparator the order of the records
+     * @param count the maximum number of records to produce, or a negative
+     * number to produce all of them
+     * @param last <tt>true</tt> to produce the last <tt>count</tt> records,
+     * <tt>false</tt> to produce the first ones
+     * @param listener the listener notified of the records and of the end of
+     * the query, or <tt>null</tt>
+     */
+    MetaHistoryQueryImpl(Comparator<Object> comparator,
+                         int count,
+                         boolean last,
+                         MetaHistoryQueryListener listener)
+    {
+        this.comparator = comparator;
+        this.count = count;
+        this.last = last;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts querying the services.
+     *
+     * @param executor the executor running the tasks querying the services
+     * @param searches the searches of the services, one per service
+     */
+    void start(ExecutorService executor,
+               List<Callable<Collection<?>>> searches)
+    {
+        synchronized (this)
+        {
+            answers = new List<?>[searches.size()];
+            remaining = searches.size();
+        }
+
+        if (searches.isEmpty())
+        {
+            complete();
+            return;
+        }
+
+        for (int i = 0; i < searches.size(); i++)
+        {
+            final int index = i;
+            final Callable<Collection<?>> search = searches.get(i);
+            Future<?> future = executor.submit(new Runnable()
+            {
+                public void run()
+                {
+                    Collection<?> answer = null;
+
+                    try
+                    {
+                        if (status == QUERY_IN_PROGRESS)
+                            answer = search.call();
+                    }
+                    catch (Throwable t)
+                    {
+                        if (t instanceof ThreadDeath)
+                            throw (ThreadDeath) t;
+                        answerFailed(t);
+                    }
+                    finally
+                    {
+                        answerReceived(index, answer);
+                    }
+                }
+            });
+
+            synchronized (futures)
+            {
+                futures.add(future);
+            }
+            if (status == QUERY_CANCELED)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Records the error thrown by a service.
+     *
+     * @param t the error
+     */
+    private synchronized void answerFailed(Throwable t)
+    {
+        logger.error("Error searching history", t);
+
+        if (error == null)
+            error = (t instanceof RuntimeException)
+                ? (RuntimeException) t
+                : new RuntimeException(t);
+    }
+
+    /**
+     * Stores the answer of a service, sorted, and merges the answers once
+     * all services have answered.
+     *
+     * @param index the index of the service
+     * @param answer the records returned by the service, or <tt>null</tt>
+     */
+    private void answerReceived(int index, Collection<?> answer)
+    {
+        List<Object> sorted;
+
+        if (answer == null)
+            sorted = Collections.emptyList();
+        else
+        {
+            // the answers of most services are already sorted, which the
+            // merge sort of Collections.sort detects in linear time
+            sorted = new ArrayList<Object>(answer);
+            Collections.sort(sorted, comparator);
+        }
+
+        synchronized (this)
+        {
+            answers[index] = sorted;
+            if (--remaining > 0)
+                return;
+        }
+
+        complete();
+    }
+
+    /**
+     * Merges the answers of the services, delivers the records to the
+     * listener and wakes up the threads waiting for them.
+     */
+    private void complete()
+    {
+        List<Object> merged = (answers.length == 0)
+            ? Collections.emptyList()
+            : merge();
+
+        for (Object record : merged)
+        {
+            if (status == QUERY_CANCELED)
+                break;
+
+            synchronized (this)
+            {
+                records.add(record);
+            }
+            if (listener != null)
+                listener.recordReceived(this, record);
+        }
+
+        synchronized (this)
+        {
+            if (status == QUERY_IN_PROGRESS)
+                status = (error == null) ? QUERY_COMPLETED : QUERY_ERROR;
+            notifyAll();
+        }
+
+        if ((listener != null) && (status != QUERY_CANCELED))
+            listener.queryStatusChanged(this);
+    }
+
+    /**
+     * Merges the sorted answers of the services, taking the first or last
+     * <tt>count</tt> records only.
+     *
+     * @return the merged records in chronological order
+     */
+    private List<Object> merge()
+    {
+        PriorityQueue<Cursor> cursors
+            = new PriorityQueue<Cursor>(answers.length);
+        int total = 0;
+
+        for (int i = 0; i < answers.length; i++)
+        {
+            if (!answers[i].isEmpty())
+                cursors.add(new Cursor(i, answers[i]));
+            total += answers[i].size();
+        }
+
+        int size = (count < 0) ? total : Math.min(count, total);
+        List<Object> merged = new ArrayList<Object>(size);
+
+        while ((merged.size() < size) && (status != QUERY_CANCELED))
+        {
+            Cursor cursor = cursors.poll();
+
+            merged.add(cursor.current());
+            if (cursor.advance())
+                cursors.add(cursor);
+        }
+
+        if (last)
+            Collections.reverse(merged);
+        return merged;
+    }
+
+    /**
+     * Waits for the query to end and returns its records.
+     *
+     * @return the records found, sorted by date
+     * @throws RuntimeException if a service failed
+     */
+    List<Object> waitForRecords()
+        throws RuntimeException
+    {
+        boolean interrupted = false;
+
+        synchronized (this)
+        {
+            while (status == QUERY_IN_PROGRESS)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                    cancel();
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (status == QUERY_ERROR)
+            throw error;
+        return getRecords();
+    }
+
+    /**
+     * Cancels this query. The services still searching are interrupted and
+     * no further records are delivered.
+     */
+    public void cancel()
+    {
+        synchronized (this)
+        {
+            if (status != QUERY_IN_PROGRESS)
+                return;
+
+            status = QUERY_CANCELED;
+            notifyAll();
+        }
+
+        synchronized (futures)
+        {
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+
+        if (listener != null)
+            listener.queryStatusChanged(this);
+    }
+
+    /**
+     * Returns the status of this query. One of the static constants QUERY_XXXX
+     * defined in <tt>MetaHistoryQuery</tt>.
+     * @return the status of this query
+     */
+    public int getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * Returns the records delivered so far, sorted by date.
+     * @return the records delivered so far
+     */
+    public synchronized List<Object> getRecords()
+    {
+        return new ArrayList<Object>(records);
+    }
+
+    /**
+     * The position in the sorted answer of a service during the merge,
+     * moving forward when the first records are wanted and backward when
+     * the last ones are.
+     */
+    private class Cursor
+        implements Comparable<Cursor>
+    {
+        /**
+         * The index of the service, which orders records with equal dates.
+         */
+        private final int service;
+
+        /**
+         * The sorted answer of the service.
+         */
+        private final List<?> answer;
+
+        /**
+         * The index of the current record in <tt>answer</tt>.
+         */
+        private int index;
+
+        /**
+         * Creates a cursor on the first record of an answer, or on the last
+         * one if the last records are wanted.
+         *
+         * @param service the index of the service
+         * @param answer the sorted answer of the service
+         */
+        Cursor(int service, List<?> answer)
+        {
+            this.service = service;
+            this.answer = answer;
+            this.index = last ? answer.size() - 1 : 0;
+        }
+
+        /**
+         * Returns the current record.
+         *
+         * @return the current record
+         */
+        Object current()
+        {
+            return answer.get(index);
+        }
+
+        /**
+         * Moves to the next record.
+         *
+         * @return <tt>false</tt> if there are no more records
+         */
+        boolean advance()
+        {
+            if (last)
+                return --index >= 0;
+            return ++index < answer.size();
+        }
+
+        /**
+         * Orders the cursors by their current records, the one to merge
+         * first coming first.
+         *
+         * @param other the cursor to compare to
+         * @return the order of this cursor relative to <tt>other</tt>
+         */
+        public int compareTo(Cursor other)
+        {
+            int result = comparator.compare(current(), other.current());
+
+            if (result == 0)
+                result = service - other.service;
+            return last ? -result : result;
+        }
+    }
+}
@@ -7,6 +7,7 @@
 package net.java.sip.communicator.impl.metahistory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
@@ -27,6 +28,10 @@ import org.osgi.framework.*;
  * The Meta History Service is wrapper around the other known
  * history services. Query them all at once, sort the result and return all
  * merged records in one collection.
+ * <p>
+ * The services are queried concurrently on a small thread pool and their
+ * sorted answers merged, stopping as soon as the requested number of records
+ * has been produced.
  *
  * @author Damian Minkov
  */
@@ -53,6 +58,22 @@ public class MetaHistoryServiceImpl
     private final List<HistorySearchProgressListener> progressListeners
         = new ArrayList<HistorySearchProgressListener>();
 
+    /**
+     * The maximum number of services searched at the same time, one per
+     * kind of history we wrap.
+     */
+    private static final int MAX_SEARCH_THREADS = 3;
+
+    /**
+     * The number of seconds an idle search thread is kept.
+     */
+    private static final long SEARCH_THREAD_KEEP_ALIVE = 60;
+
+    /**
+     * The executor searching the wrapped services, created on first use.
+     */
+    private ExecutorService executor = null;
+
     /**
      * Returns all the records for the descriptor after the given date.
      *
@@ -65,55 +86,36 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByStartDate(String[] services,
-            Object descriptor, Date startDate)
+            Object descriptor, final Date startDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        return find(services, descriptor, -1, false,
+            startDate, null, null,
+            new Search()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact metaContact)
+                {
+                    return mhs.findByStartDate(metaContact, startDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((MetaContact)descriptor, startDate));
+                    return mhs.findByStartDate(room, startDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact metaContact)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((ChatRoom)descriptor, startDate));
+                    return fhs.findByStartDate(metaContact, startDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByStartDate(
-                        (MetaContact)descriptor, startDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(chs.findByStartDate(startDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(startDate, null, null);
 
-        return result;
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findByStartDate(startDate);
+                }
+            });
     }
 
     /**
@@ -128,56 +130,36 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByEndDate(String[] services,
-            Object descriptor, Date endDate)
+            Object descriptor, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        return find(services, descriptor, -1, false,
+            null, endDate, null,
+            new Search()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact metaContact)
+                {
+                    return mhs.findByEndDate(metaContact, endDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((MetaContact)descriptor, endDate));
+                    return mhs.findByEndDate(room, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact metaContact)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((ChatRoom)descriptor, endDate));
+                    return fhs.findByEndDate(metaContact, endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByEndDate(
-                        (MetaContact)descriptor, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByEndDate(endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(null, endDate, null);
 
-        return result;
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findByEndDate(endDate);
+                }
+            });
     }
 
     /**
@@ -193,58 +175,36 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate)
+            Object descriptor, final Date startDate, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        return find(services, descriptor, -1, false,
+            startDate, endDate, null,
+            new Search()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact metaContact)
+                {
+                    return mhs.findByPeriod(metaContact, startDate, endDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor, startDate, endDate));
+                    return mhs.findByPeriod(room, startDate, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact metaContact)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor, startDate, endDate));
+                    return fhs.findByPeriod(metaContact, startDate, endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor, startDate, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByPeriod(startDate, endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(startDate, endDate, null);
 
-        return result;
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findByPeriod(startDate, endDate);
+                }
+            });
     }
 
     /**
@@ -284,75 +244,48 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate,
-            String[] keywords, boolean caseSensitive)
+            Object descriptor, final Date startDate, final Date endDate,
+            final String[] keywords, final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        return find(services, descriptor, -1, false,
+            startDate, endDate, keywords,
+            new Search()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact metaContact)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
+                    return mhs.findByPeriod(
+                        metaContact,
+                        startDate, endDate,
+                        keywords, caseSensitive);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor,
+                    return mhs.findByPeriod(
+                        room,
                         startDate, endDate,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                Collection<CallRecord> cs =
-                    chs.findByPeriod(startDate, endDate);
+                        keywords, caseSensitive);
+                }
 
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact metaContact)
                 {
-                    CallRecord callRecord = iter.next();
-
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                    return fhs.findByPeriod(
+                        metaContact,
+                        startDate, endDate,
+                        keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(startDate, endDate, keywords);
 
-        return result;
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return filterCalls(
+                        chs.findByPeriod(startDate, endDate),
+                        keywords, caseSensitive);
+                }
+            });
     }
 
     /**
@@ -424,72 +357,42 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByKeywords(String[] services,
-            Object descriptor, String[] keywords, boolean caseSensitive)
+            Object descriptor, final String[] keywords,
+            final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        return find(services, descriptor, -1, false,
+            null, null, keywords,
+            new Search()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact metaContact)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (MetaContact)descriptor, keywords, caseSensitive));
+                    return mhs.findByKeywords(
+                        metaContact, keywords, caseSensitive);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (ChatRoom)descriptor,
-                            keywords, caseSensitive));
+                    return mhs.findByKeywords(room, keywords, caseSensitive);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByKeywords(
-                        (MetaContact)descriptor,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
 
-                // this will get all call records
-                Collection<CallRecord> cs =
-                    chs.findByEndDate(new Date());
-
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact metaContact)
                 {
-                    CallRecord callRecord = iter.next();
-
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                    return fhs.findByKeywords(
+                        metaContact, keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(null, null, keywords);
 
-        return result;
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    // this will get all call records
+                    return filterCalls(
+                        chs.findByEndDate(new Date()),
+                        keywords, caseSensitive);
+                }
+            });
     }
 
     /**
@@ -507,64 +410,63 @@ public class MetaHistoryServiceImpl
             Object descriptor, int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
+        return find(services, descriptor, count, true,
+            null, null, null,
+            createFindLastSearch(count));
+    }
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+    /**
+     * Starts searching for the supplied number of recent records, without
+     * waiting for the services to answer.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param count messages count
+     * @param listener the listener notified of the records found and of the
+     *  end of the search
+     * @return the started query, which may be canceled
+     */
+    public MetaHistoryQuery findLast(String[] services,
+            Object descriptor, int count, MetaHistoryQueryListener listener)
+    {
+        return startQuery(services, descriptor, count, true,
+            createFindLastSearch(count), listener);
+    }
+
+    /**
+     * Creates the search of the supplied number of recent records.
+     *
+     * @param count messages count
+     * @return the search of the <tt>count</tt> most recent records
+     */
+    private Search createFindLastSearch(final int count)
+    {
+        return new Search()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            Collection<?> findMessages(
+                MessageHistoryService mhs, MetaContact metaContact)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findLast(
-                            (MetaContact)descriptor,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findLast(
-                            (ChatRoom)descriptor,
-                            count));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+                return mhs.findLast(metaContact, count);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+
+            Collection<?> findMessages(
+                MessageHistoryService mhs, ChatRoom room)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findLast(
-                        (MetaContact)descriptor,
-                        count));
+                return mhs.findLast(room, count);
             }
-            else if(serv instanceof CallHistoryService)
+
+            Collection<?> findFiles(
+                FileHistoryService fhs, MetaContact metaContact)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findLast(count));
-                chs.removeSearchProgressListener(listenWrapper);
+                return fhs.findLast(metaContact, count);
             }
-        }
-        listenWrapper.fireLastProgress(null, null, null);
-
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
 
-        if(startIndex < 0)
-            startIndex = 0;
-
-        return resultAsList.subList(startIndex, resultAsList.size());
+            Collection<?> findCalls(CallHistoryService chs)
+            {
+                return chs.findLast(count);
+            }
+        };
     }
 
     /**
@@ -580,79 +482,39 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findFirstMessagesAfter(String[] services,
-            Object descriptor, Date date, int count)
+            Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        return find(services, descriptor, count, false,
+            date, null, null,
+            new Search()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact metaContact)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
+                    return mhs.findFirstMessagesAfter(
+                        metaContact, date, count);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
+                    return mhs.findFirstMessagesAfter(room, date, count);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findFirstRecordsAfter(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
 
-                Collection<CallRecord> col = chs.findByStartDate(date);
-                if(col.size() > count)
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact metaContact)
                 {
-                    // before we make a sublist make sure there are sorted in the
-                    // right order
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    Collections.sort(l, new RecordsComparator());
-                    result.addAll(l.subList(0, count));
+                    return fhs.findFirstRecordsAfter(
+                        metaContact, date, count);
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(date, null, null);
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-
-        int toIndex = count;
-        if(toIndex > resultAsList.size())
-            toIndex = resultAsList.size();
 
-        return resultAsList.subList(0, toIndex);
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    // the merge takes the first count records
+                    return chs.findByStartDate(date);
+                }
+            });
     }
 
     /**
@@ -668,77 +530,176 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findLastMessagesBefore(String[] services,
-            Object descriptor, Date date, int count)
+            Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        return find(services, descriptor, count, true,
+            date, null, null,
+            new Search()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact metaContact)
+                {
+                    return mhs.findLastMessagesBefore(
+                        metaContact, date, count);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
+                    return mhs.findLastMessagesBefore(room, date, count);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact metaContact)
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
+                    return fhs.findLastRecordsBefore(
+                        metaContact, date, count);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findLastRecordsBefore(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
 
-                Collection<CallRecord> col = chs.findByEndDate(date);
-                if(col.size() > count)
+                Collection<?> findCalls(CallHistoryService chs)
                 {
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    result.addAll(l.subList(l.size() - count, l.size()));
+                    // the merge takes the last count records
+                    return chs.findByEndDate(date);
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
-            }
+            });
+    }
+
+    /**
+     * Queries the given services concurrently and waits for the merged
+     * result.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param count the maximum number of records to return, or a negative
+     *  number to return all of them
+     * @param last <tt>true</tt> to return the last <tt>count</tt> records,
+     *  <tt>false</tt> to return the first ones
+     * @param startDate the start date of the search for progress events
+     * @param endDate the end date of the search for progress events
+     * @param keywords the keywords of the search for progress events
+     * @param search the search to run on each service
+     * @return Collection sorted result that conists of records returned from
+     *  the services we wrap
+     * @throws RuntimeException if one of the services failed
+     */
+    private Collection<Object> find(String[] services,
+            Object descriptor, int count, boolean last,
+            Date startDate, Date endDate, String[] keywords,
+            Search search)
+        throws RuntimeException
+    {
+        MetaHistoryQueryImpl query
+            = startQuery(services, descriptor, count, last, search, null);
+
+        try
+        {
+            return query.waitForRecords();
+        }
+        finally
+        {
+            fireLastProgress(startDate, endDate, keywords);
         }
-        listenWrapper.fireLastProgress(date, null, null);
+    }
+
+    /**
+     * Starts querying the given services concurrently.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param count the maximum number of records to return, or a negative
+     *  number to return all of them
+     * @param last <tt>true</tt> to return the last <tt>count</tt> records,
+     *  <tt>false</tt> to return the first ones
+     * @param search the search to run on each service
+     * @param listener the listener notified of the records, or <tt>null</tt>
+     * @return the started query
+     */
+    private MetaHistoryQueryImpl startQuery(String[] services,
+            final Object descriptor, int count, boolean last,
+            final Search search, MetaHistoryQueryListener listener)
+    {
+        int[] progress = new int[services.length];
+        List<Callable<Collection<?>>> searches
+            = new ArrayList<Callable<Collection<?>>>(services.length);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+        for (int i = 0; i < services.length; i++)
+        {
+            final Object serv = getService(services[i]);
+            final MessageProgressWrapper listenWrapper
+                = new MessageProgressWrapper(progress, i);
 
-        if(startIndex < 0)
-            startIndex = 0;
+            searches.add(new Callable<Collection<?>>()
+            {
+                public Collection<?> call()
+                {
+                    return search.find(serv, descriptor, listenWrapper);
+                }
+            });
+        }
+
+        MetaHistoryQueryImpl query
+            = new MetaHistoryQueryImpl(
+                    new RecordsComparator(), count, last, listener);
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        query.start(getExecutor(), searches);
+        return query;
+    }
+
+    /**
+     * Returns the executor running the searches of the wrapped services,
+     * creating it if needed.
+     *
+     * @return the executor running the searches of the wrapped services
+     */
+    private synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            ThreadPoolExecutor threadPool
+                = new ThreadPoolExecutor(
+                        MAX_SEARCH_THREADS, MAX_SEARCH_THREADS,
+                        SEARCH_THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory()
+                        {
+                            public Thread newThread(Runnable r)
+                            {
+                                Thread t = new Thread(r, "MetaHistorySearch");
+
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+
+            threadPool.allowCoreThreadTimeOut(true);
+            executor = threadPool;
+        }
+        return executor;
+    }
+
+    /**
+     * Keeps the call records whose peers match the given keywords.
+     *
+     * @param calls the call records
+     * @param keywords array of keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the matching call records
+     */
+    private List<CallRecord> filterCalls(Collection<CallRecord> calls,
+            String[] keywords, boolean caseSensitive)
+    {
+        List<CallRecord> result = new ArrayList<CallRecord>();
+
+        for (CallRecord callRecord : calls)
+        {
+            if(matchCallPeer(
+                    callRecord.getPeerRecords(), keywords, caseSensitive))
+                result.add(callRecord);
+        }
+        return result;
     }
 
     /**
@@ -881,6 +842,15 @@ public class MetaHistoryServiceImpl
     {
         bc.removeServiceListener(this);
         services.clear();
+
+        synchronized (this)
+        {
+            if (executor != null)
+            {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
     }
 
     /**
@@ -917,21 +887,165 @@ public class MetaHistoryServiceImpl
         }
     }
 
-    private class MessageProgressWrapper
-        implements MessageHistorySearchProgressListener,
-        CallHistorySearchProgressListener
+    /**
+     * Fires the progress event of the end of a search.
+     *
+     * @param startDate the start date of the search
+     * @param endDate the end date of the search
+     * @param keywords the keywords of the search
+     */
+    private void fireLastProgress(
+        Date startDate, Date endDate, String[] keywords)
     {
-        private final int count;
+        ProgressEvent ev = new ProgressEvent(
+            MetaHistoryServiceImpl.this,
+            startDate,
+            endDate,
+            keywords);
+        ev.setProgress(HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+
+        fireEvent(ev);
+    }
 
-        private int ix;
+    /**
+     * Delivers a progress event to the registered listeners.
+     *
+     * @param ev the event
+     */
+    private void fireEvent(ProgressEvent ev)
+    {
+        Iterable<HistorySearchProgressListener> listeners;
+        synchronized(progressListeners)
+        {
+            listeners
+                = new ArrayList<HistorySearchProgressListener>(
+                        progressListeners);
+        }
+        for (HistorySearchProgressListener listener : listeners)
+            listener.progressChanged(ev);
+    }
 
-        public MessageProgressWrapper(int count)
+    /**
+     * A search run on each of the wrapped services, in one of the search
+     * threads.
+     */
+    private abstract class Search
+    {
+        /**
+         * Searches a service.
+         *
+         * @param serv the service
+         * @param descriptor CallPeer address(String),
+         *  MetaContact or ChatRoom.
+         * @param listenWrapper the listener of the progress of the service
+         * @return the records found or <tt>null</tt> if the service does not
+         *  keep the history of <tt>descriptor</tt>
+         */
+        Collection<?> find(Object serv, Object descriptor,
+                           MessageProgressWrapper listenWrapper)
         {
-            this.count = count;
+            if(serv instanceof MessageHistoryService)
+            {
+                MessageHistoryService mhs =
+                    (MessageHistoryService)serv;
+                mhs.addSearchProgressListener(listenWrapper);
+
+                try
+                {
+                    if(descriptor instanceof MetaContact)
+                        return findMessages(mhs, (MetaContact)descriptor);
+                    else if(descriptor instanceof ChatRoom)
+                        return findMessages(mhs, (ChatRoom)descriptor);
+                }
+                finally
+                {
+                    mhs.removeSearchProgressListener(listenWrapper);
+                }
+            }
+            else if(serv instanceof FileHistoryService
+                    && descriptor instanceof MetaContact)
+            {
+                return findFiles(
+                    (FileHistoryService)serv, (MetaContact)descriptor);
+            }
+            else if(serv instanceof CallHistoryService)
+            {
+                CallHistoryService chs = (CallHistoryService)serv;
+                chs.addSearchProgressListener(listenWrapper);
+
+                try
+                {
+                    return findCalls(chs);
+                }
+                finally
+                {
+                    chs.removeSearchProgressListener(listenWrapper);
+                }
+            }
+            return null;
         }
 
-        public void setIx(int ix)
+        /**
+         * Searches the messages exchanged with a meta contact.
+         *
+         * @param mhs the message history service
+         * @param metaContact the meta contact
+         * @return the messages found
+         */
+        abstract Collection<?> findMessages(
+            MessageHistoryService mhs, MetaContact metaContact);
+
+        /**
+         * Searches the messages of a chat room.
+         *
+         * @param mhs the message history service
+         * @param room the chat room
+         * @return the messages found
+         */
+        abstract Collection<?> findMessages(
+            MessageHistoryService mhs, ChatRoom room);
+
+        /**
+         * Searches the files exchanged with a meta contact.
+         *
+         * @param fhs the file history service
+         * @param metaContact the meta contact
+         * @return the file records found
+         */
+        abstract Collection<?> findFiles(
+            FileHistoryService fhs, MetaContact metaContact);
+
+        /**
+         * Searches the calls.
+         *
+         * @param chs the call history service
+         * @return the call records found
+         */
+        abstract Collection<?> findCalls(CallHistoryService chs);
+    }
+
+    /**
+     * Converts the progress of one of the services searched concurrently
+     * into the progress of the whole search.
+     */
+    private class MessageProgressWrapper
+        implements MessageHistorySearchProgressListener,
+        CallHistorySearchProgressListener
+    {
+        /**
+         * The progress of each of the services of the search, shared by
+         * their wrappers.
+         */
+        private final int[] progress;
+
+        /**
+         * The index of the service of this wrapper.
+         */
+        private final int ix;
+
+        public MessageProgressWrapper(int[] progress, int ix)
         {
+            this.progress = progress;
             this.ix = ix;
         }
 
@@ -944,39 +1058,17 @@ public class MetaHistoryServiceImpl
                 endDate,
                 keywords);
 
-            double part1 = origProgress/
-                ((double)maxVal*count);
-            double convProgress =
-                part1*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE +
-                ix*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE/count;
-
-            ev.setProgress((int)convProgress);
-
-            fireEvent(ev);
-        }
-
-        private void fireEvent(ProgressEvent ev)
-        {
-            Iterable<HistorySearchProgressListener> listeners;
-            synchronized(progressListeners)
+            long total = 0;
+            synchronized(progress)
             {
-                listeners
-                    = new ArrayList<HistorySearchProgressListener>(
-                            progressListeners);
+                progress[ix] = (int)((long)origProgress
+                    * HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / maxVal);
+                for (int p : progress)
+                    total += p;
             }
-            for (HistorySearchProgressListener listener : listeners)
-                listener.progressChanged(ev);
-        }
 
-        public void fireLastProgress(
-            Date startDate, Date endDate, String[] keywords)
-        {
-            ProgressEvent ev = new ProgressEvent(
-                MetaHistoryServiceImpl.this,
-                startDate,
-                endDate,
-                keywords);
-            ev.setProgress(HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+            ev.setProgress((int)(total/progress.length));
 
             fireEvent(ev);
         }
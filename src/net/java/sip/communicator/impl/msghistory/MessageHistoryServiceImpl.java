@@ -65,6 +65,30 @@ public class MessageHistoryServiceImpl
     // the field used to search by keywords
     private static final String SEARCH_FIELD = "msg";
 
+    /**
+     * The name of the property holding the number of queued messages after
+     * which they are written to the history.
+     */
+    private static final String WRITE_BATCH_SIZE_PROPERTY
+        = "net.java.sip.communicator.impl.msghistory.WRITE_BATCH_SIZE";
+
+    /**
+     * The default number of queued messages after which they are written.
+     */
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 50;
+
+    /**
+     * The name of the property holding the maximum time in milliseconds a
+     * message is queued before it is written to the history.
+     */
+    private static final String WRITE_FLUSH_INTERVAL_PROPERTY
+        = "net.java.sip.communicator.impl.msghistory.WRITE_FLUSH_INTERVAL";
+
+    /**
+     * The default maximum time in milliseconds a message is queued.
+     */
+    private static final long DEFAULT_WRITE_FLUSH_INTERVAL = 1000;
+
     /**
      * The BundleContext that we got from the OSGI bus.
      */
@@ -90,6 +114,12 @@ public class MessageHistoryServiceImpl
      */
     private static boolean isHistoryLoggingEnabled;
 
+    /**
+     * The queue writing messages to the histories in the background, so
+     * that message events are not delayed by disk writes.
+     */
+    private volatile MessageHistoryWriteQueue writeQueue;
+
 
     /**
      * Returns the history service.
@@ -313,7 +343,7 @@ public class MessageHistoryServiceImpl
             {
                 History history = this.getHistory(null, item);
 
-                HistoryReader reader = history.getReader();
+                HistoryReader reader = getReader(history);
                 Iterator<HistoryRecord> recs = reader.findLast(count);
                 while (recs.hasNext())
                 {
@@ -365,7 +395,7 @@ public class MessageHistoryServiceImpl
             {
                 History history = this.getHistory(null, item);
 
-                HistoryReader reader = history.getReader();
+                HistoryReader reader = getReader(history);
                 // date param of method is the one saved in receivedTimestamp
                 // the method findFirstRecordsAfter compares to the
                 // attribute timestamp. Most of the times there is 1 or 2 mills
@@ -448,7 +478,7 @@ public class MessageHistoryServiceImpl
             {
                 History history = this.getHistory(null, item);
 
-                HistoryReader reader = history.getReader();
+                HistoryReader reader = getReader(history);
                 Iterator<HistoryRecord> recs
                     = reader.findLastRecordsBefore(date, count);
                 while (recs.hasNext())
@@ -847,6 +877,14 @@ public class MessageHistoryServiceImpl
             configService.removePropertyChangeListener(msgHistoryPropListener);
 
         stopMessageHistoryService();
+
+        // write what is still queued, later messages are written directly
+        MessageHistoryWriteQueue queue = writeQueue;
+        if (queue != null)
+        {
+            writeQueue = null;
+            queue.stop();
+        }
     }
 
     // //////////////////////////////////////////////////////////////////////////
@@ -1038,10 +1076,9 @@ public class MessageHistoryServiceImpl
             Message message, Date messageTimestamp)
     {
         try {
-            HistoryWriter historyWriter = history.getWriter();
             SimpleDateFormat sdf
                 = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            historyWriter.addRecord(new String[] { direction,
+            addRecord(history, new String[] { direction,
                     message.getContent(), message.getContentType(),
                     message.getEncoding(), message.getMessageUID(),
                     message.getSubject(), sdf.format(messageTimestamp) },
@@ -1071,10 +1108,9 @@ public class MessageHistoryServiceImpl
             if(from == null)
                 return;
 
-            HistoryWriter historyWriter = history.getWriter();
             SimpleDateFormat sdf
                 = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            historyWriter.addRecord(new String[] { direction,
+            addRecord(history, new String[] { direction,
                     message.getContent(), message.getContentType(),
                     message.getEncoding(), message.getMessageUID(),
                     from.getContactAddress(),
@@ -1101,10 +1137,9 @@ public class MessageHistoryServiceImpl
     {
         try
         {
-            HistoryWriter historyWriter = history.getWriter();
             SimpleDateFormat sdf
                 = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            historyWriter.addRecord(new String[] { direction,
+            addRecord(history, new String[] { direction,
                     message.getContent(), message.getContentType(),
                     message.getEncoding(), message.getMessageUID(),
                     from.getAddress(),
@@ -1116,6 +1151,51 @@ public class MessageHistoryServiceImpl
         }
     }
 
+    /**
+     * Adds a record with the given values to <tt>history</tt> through the
+     * write queue.
+     *
+     * @param history the history to add the record to
+     * @param propertyValues the values of the record
+     * @param timestamp the timestamp of the record
+     * @throws IOException if the record is written right away and writing
+     * fails
+     */
+    private void addRecord(History history, String[] propertyValues,
+                           Date timestamp)
+        throws IOException
+    {
+        MessageHistoryWriteQueue queue = writeQueue;
+
+        if (queue == null)
+        {
+            history.getWriter().addRecord(propertyValues, timestamp);
+            return;
+        }
+
+        queue.add(history, new HistoryRecord(
+            history.getHistoryRecordsStructure().getPropertyNames(),
+            propertyValues,
+            timestamp));
+    }
+
+    /**
+     * Returns the reader of <tt>history</tt> after writing the messages
+     * queued for it, so that searches see every message.
+     *
+     * @param history the history to read
+     * @return the reader of the history
+     */
+    private HistoryReader getReader(History history)
+    {
+        MessageHistoryWriteQueue queue = writeQueue;
+
+        if (queue != null)
+            queue.flush(history);
+
+        return history.getReader();
+    }
+
     // //////////////////////////////////////////////////////////////////////////
 
     /**
@@ -1529,7 +1609,7 @@ public class MessageHistoryServiceImpl
             try
             {
                 History history = this.getHistory(null, item);
-                readers.put(item, history.getReader());
+                readers.put(item, getReader(history));
             }
             catch (IOException e)
             {
@@ -1574,7 +1654,7 @@ public class MessageHistoryServiceImpl
         {
             // get the readers for this room
             HistoryReader reader =
-                this.getHistoryForMultiChat(room).getReader();
+                getReader(this.getHistoryForMultiChat(room));
 
             // add the progress listeners
             addHistorySearchProgressListeners(reader, 1);
@@ -1611,7 +1691,7 @@ public class MessageHistoryServiceImpl
         {
             // get the readers for this room
             HistoryReader reader =
-                this.getHistoryForMultiChat(room).getReader();
+                getReader(this.getHistoryForMultiChat(room));
 
             // add the progress listeners
             addHistorySearchProgressListeners(reader, 1);
@@ -1649,7 +1729,7 @@ public class MessageHistoryServiceImpl
         {
             // get the readers for this room
             HistoryReader reader =
-                this.getHistoryForMultiChat(room).getReader();
+                getReader(this.getHistoryForMultiChat(room));
 
             // add the progress listeners
             addHistorySearchProgressListeners(reader, 1);
@@ -1711,7 +1791,7 @@ public class MessageHistoryServiceImpl
         {
             // get the readers for this room
             HistoryReader reader =
-                this.getHistoryForMultiChat(room).getReader();
+                getReader(this.getHistoryForMultiChat(room));
 
             // add the progress listeners
             addHistorySearchProgressListeners(reader, 1);
@@ -1768,7 +1848,7 @@ public class MessageHistoryServiceImpl
         {
             // get the readers for this room
             HistoryReader reader =
-                this.getHistoryForMultiChat(room).getReader();
+                getReader(this.getHistoryForMultiChat(room));
 
             // add the progress listeners
             addHistorySearchProgressListeners(reader, 1);
@@ -1827,7 +1907,7 @@ public class MessageHistoryServiceImpl
         {
             // get the readers for this room
             HistoryReader reader =
-                this.getHistoryForMultiChat(room).getReader();
+                getReader(this.getHistoryForMultiChat(room));
 
             // add the progress listeners
             addHistorySearchProgressListeners(reader, 1);
@@ -1868,7 +1948,7 @@ public class MessageHistoryServiceImpl
         {
             // get the readers for this room
             HistoryReader reader =
-                this.getHistoryForMultiChat(room).getReader();
+                getReader(this.getHistoryForMultiChat(room));
             Iterator<HistoryRecord> recs = reader.findLast(count);
             while (recs.hasNext())
             {
@@ -1913,7 +1993,7 @@ public class MessageHistoryServiceImpl
         try
         {
             HistoryReader reader
-                = this.getHistoryForMultiChat(room).getReader();
+                = getReader(this.getHistoryForMultiChat(room));
             Iterator<HistoryRecord> recs
                 = reader.findFirstRecordsAfter(date, count);
             while (recs.hasNext())
@@ -1959,7 +2039,7 @@ public class MessageHistoryServiceImpl
         try
         {
             HistoryReader reader =
-                this.getHistoryForMultiChat(room).getReader();
+                getReader(this.getHistoryForMultiChat(room));
             Iterator<HistoryRecord> recs
                 = reader.findLastRecordsBefore(date, count);
             while (recs.hasNext())
@@ -2273,6 +2353,16 @@ public class MessageHistoryServiceImpl
      */
     private void loadMessageHistoryService()
     {
+        if (writeQueue == null)
+        {
+            writeQueue = new MessageHistoryWriteQueue(
+                configService.getInt(
+                    WRITE_BATCH_SIZE_PROPERTY, DEFAULT_WRITE_BATCH_SIZE),
+                configService.getLong(
+                    WRITE_FLUSH_INTERVAL_PROPERTY,
+                    DEFAULT_WRITE_FLUSH_INTERVAL));
+        }
+
         // start listening for newly register or removed protocol providers
         bundleContext.addServiceListener(this);
 
@@ -2430,6 +2520,10 @@ public class MessageHistoryServiceImpl
     public void eraseLocallyStoredHistory()
         throws IOException
     {
+        MessageHistoryWriteQueue queue = writeQueue;
+        if (queue != null)
+            queue.discardAll();
+
         HistoryID historyId = HistoryID.createFromRawID(
                     new String[] {  "messages" });
         historyService.purgeLocallyStoredHistory(historyId);
@@ -2450,6 +2544,9 @@ public class MessageHistoryServiceImpl
             Contact item = iter.next();
 
             History history = this.getHistory(null, item);
+            MessageHistoryWriteQueue queue = writeQueue;
+            if (queue != null)
+                queue.discard(history);
             historyService.purgeLocallyStoredHistory(history.getID());
         }
     }
@@ -2464,6 +2561,9 @@ public class MessageHistoryServiceImpl
         throws IOException
     {
         History history = this.getHistoryForMultiChat(room);
+        MessageHistoryWriteQueue queue = writeQueue;
+        if (queue != null)
+            queue.discard(history);
         historyService.purgeLocallyStoredHistory(history.getID());
     }
     
@@ -0,0 +1,382 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.msghistory;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Writes message history records in the background so that the protocol
+ * threads delivering messages do not wait for the disk. Records are queued
+ * per <tt>History</tt> and written in batches by a single thread, either
+ * when the queue reaches the batch size or when the oldest queued record
+ * has waited for the flush interval.
+ * <p>
+ * Readers call {@link #flush(History)} before reading a history, so queued
+ * records are always visible to searches.
+ */
+class MessageHistoryWriteQueue
+    implements Runnable
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MessageHistoryWriteQueue.class);
+
+    /**
+     * The records waiting to be written, per history in the order the
+     * histories received their first queued record.
+     */
+    private final Map<History, List<HistoryRecord>> pending
+        = new LinkedHashMap<History, List<HistoryRecord>>();
+
+    /**
+     * The number of queued records which triggers a flush.
+     */
+    private final int batchSize;
+
+    /**
+     * The maximum time in milliseconds a record stays queued.
+     */
+    private final long flushInterval;
+
+    /**
+     * The number of records waiting to be written.
+     */
+    private int queueSize = 0;
+
+    /**
+     * The largest number of records queued at once.
+     */
+    private int maxQueueSize = 0;
+
+    /**
+     * The time the oldest queued record was queued at.
+     */
+    private long oldestQueued = -1;
+
+    /**
+     * The number of batches written.
+     */
+    private long flushCount = 0;
+
+    /**
+     * The time spent writing batches, in milliseconds.
+     */
+    private long totalFlushTime = 0;
+
+    /**
+     * The longest time spent writing a batch, in milliseconds.
+     */
+    private long maxFlushTime = 0;
+
+    /**
+     * The thread writing the queued records, <tt>null</tt> once stopped.
+     */
+    private Thread writerThread;
+
+    /**
+     * Creates the queue and starts its writer thread.
+     *
+     * @param batchSize the number of queued records which triggers a flush
+     * @param flushInterval the maximum time in milliseconds a record stays
+     * queued
+     */
+    MessageHistoryWriteQueue(int batchSize, long flushInterval)
+    {
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = Math.max(1, flushInterval);
+
+        writerThread = new Thread(this, "MessageHistoryWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues a record to be written to <tt>history</tt>. Once the queue is
+     * stopped the record is written right away, after the records still
+     * queued for <tt>history</tt>.
+     *
+     * @param history the history to write the record to
+     * @param record the record
+     */
+    void add(History history, HistoryRecord record)
+    {
+        synchronized (this)
+        {
+            if (writerThread != null)
+            {
+                List<HistoryRecord> records = pending.get(history);
+
+                if (records == null)
+                {
+                    records = new ArrayList<HistoryRecord>();
+                    pending.put(history, records);
+                }
+                records.add(record);
+
+                if (queueSize == 0)
+                    oldestQueued = System.currentTimeMillis();
+                queueSize++;
+                if (queueSize > maxQueueSize)
+                    maxQueueSize = queueSize;
+
+                if (queueSize >= batchSize)
+                    notifyAll();
+                return;
+            }
+        }
+
+        // the history lock orders this write after a flush in progress
+        synchronized (history)
+        {
+            flush(history);
+            write(history, Collections.singletonList(record));
+        }
+    }
+
+    /**
+     * Writes the records queued for <tt>history</tt>, waiting for a batch of
+     * it which is being written by the writer thread.
+     *
+     * @param history the history to flush
+     */
+    void flush(History history)
+    {
+        // the history lock orders this flush after one in progress
+        synchronized (history)
+        {
+            List<HistoryRecord> records;
+
+            synchronized (this)
+            {
+                records = pending.remove(history);
+                if (records == null)
+                    return;
+
+                queueSize -= records.size();
+                if (queueSize == 0)
+                    oldestQueued = -1;
+            }
+
+            write(history, records);
+        }
+    }
+
+    /**
+     * Drops the records queued for <tt>history</tt>, e.g. because the
+     * history is being erased.
+     *
+     * @param history the history whose queued records are dropped
+     */
+    void discard(History history)
+    {
+        synchronized (history)
+        {
+            synchronized (this)
+            {
+                List<HistoryRecord> records = pending.remove(history);
+
+                if (records != null)
+                {
+                    queueSize -= records.size();
+                    if (queueSize == 0)
+                        oldestQueued = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all queued records.
+     */
+    void discardAll()
+    {
+        for (History history : getPendingHistories())
+            discard(history);
+    }
+
+    /**
+     * Writes all queued records.
+     */
+    void flushAll()
+    {
+        for (History history : getPendingHistories())
+            flush(history);
+    }
+
+    /**
+     * Writes all queued records and stops the writer thread. Records added
+     * afterwards are written right away, in order with the records still
+     * queued.
+     */
+    void stop()
+    {
+        Thread thread;
+
+        synchronized (this)
+        {
+            thread = writerThread;
+            writerThread = null;
+            notifyAll();
+        }
+
+        if (thread == null)
+            return;
+
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        // the writer thread flushes before exiting, pick up anything added
+        // meanwhile
+        flushAll();
+
+        if (logger.isInfoEnabled())
+            logger.info("Message history write queue stopped: " + this);
+    }
+
+    /**
+     * Returns the number of records waiting to be written.
+     *
+     * @return the number of records waiting to be written
+     */
+    synchronized int getQueueSize()
+    {
+        return queueSize;
+    }
+
+    /**
+     * Returns the average time in milliseconds spent writing a batch.
+     *
+     * @return the average time in milliseconds spent writing a batch
+     */
+    synchronized long getAverageFlushTime()
+    {
+        return (flushCount == 0) ? 0 : totalFlushTime / flushCount;
+    }
+
+    /**
+     * Returns the longest time in milliseconds spent writing a batch.
+     *
+     * @return the longest time in milliseconds spent writing a batch
+     */
+    synchronized long getMaxFlushTime()
+    {
+        return maxFlushTime;
+    }
+
+    /**
+     * Writes the queued records whenever the batch size or the flush
+     * interval is reached, until the queue is stopped.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                while (writerThread != null)
+                {
+                    long wait = flushInterval;
+
+                    if (queueSize >= batchSize)
+                        break;
+                    if (queueSize > 0)
+                    {
+                        wait = oldestQueued + flushInterval
+                            - System.currentTimeMillis();
+                        if (wait <= 0)
+                            break;
+                    }
+
+                    try
+                    {
+                        wait(wait);
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                }
+            }
+
+            flushAll();
+
+            synchronized (this)
+            {
+                if (writerThread == null)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Returns the histories which have queued records.
+     *
+     * @return the histories which have queued records
+     */
+    private synchronized List<History> getPendingHistories()
+    {
+        return new ArrayList<History>(pending.keySet());
+    }
+
+    /**
+     * Writes <tt>records</tt> to <tt>history</tt> and records the time it
+     * took.
+     *
+     * @param history the history
+     * @param records the records
+     */
+    private void write(History history, List<HistoryRecord> records)
+    {
+        long start = System.currentTimeMillis();
+
+        try
+        {
+            history.getWriter().addRecords(records);
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not add messages to history", e);
+        }
+
+        long time = System.currentTimeMillis() - start;
+
+        synchronized (this)
+        {
+            flushCount++;
+            totalFlushTime += time;
+            if (time > maxFlushTime)
+                maxFlushTime = time;
+        }
+    }
+
+    /**
+     * Returns a description of the state of this queue.
+     *
+     * @return a description of the state of this queue
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "queued=" + queueSize
+            + " maxQueued=" + maxQueueSize
+            + " flushes=" + flushCount
+            + " avgFlushMs=" + getAverageFlushTime()
+            + " maxFlushMs=" + maxFlushTime;
+    }
+}
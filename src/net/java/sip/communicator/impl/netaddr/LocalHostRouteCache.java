@@ -0,0 +1,197 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.netaddr;
+
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Remembers the local address the operating system picked for the
+ * destinations <tt>NetworkAddressManagerServiceImpl.getLocalHost</tt> was
+ * asked about, so that building a message does not need a socket system call
+ * every time. Destinations are grouped by network prefix, a /24 for IPv4 and
+ * a /64 for IPv6, as hosts of the same network are reached the same way.
+ * <p>
+ * The cache is only used while the <tt>NetworkConfigurationWatcher</tt>
+ * monitors the network interfaces, as it is the one clearing it when an
+ * interface or an address goes up or down and after standby.
+ */
+class LocalHostRouteCache
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(LocalHostRouteCache.class);
+
+    /**
+     * The number of bytes of an IPv4 destination used as its prefix.
+     */
+    private static final int INET4_PREFIX_LENGTH = 3;
+
+    /**
+     * The number of bytes of an IPv6 destination used as its prefix.
+     */
+    private static final int INET6_PREFIX_LENGTH = 8;
+
+    /**
+     * The local addresses by destination prefix.
+     */
+    private final ConcurrentMap<String, InetAddress> routes
+        = new ConcurrentHashMap<String, InetAddress>();
+
+    /**
+     * Incremented each time the cache is cleared, so that a lookup which
+     * started before a network change does not store its obsolete result.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * The number of lookups answered by the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of lookups the cache could not answer.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Whether the network interfaces are monitored, and thus the cache used.
+     */
+    private volatile boolean enabled = false;
+
+    /**
+     * Returns the cached local address to use for a destination.
+     *
+     * @param destination the destination
+     * @return the cached local address or <tt>null</tt>
+     */
+    InetAddress get(InetAddress destination)
+    {
+        if (!enabled)
+            return null;
+
+        InetAddress localHost = routes.get(getPrefix(destination));
+
+        if (localHost == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return localHost;
+    }
+
+    /**
+     * Returns the current generation of the cache, to be passed to
+     * {@link #put(InetAddress, InetAddress, int)} with the result of the
+     * lookup started after getting it.
+     *
+     * @return the current generation of the cache
+     */
+    int getGeneration()
+    {
+        return generation.get();
+    }
+
+    /**
+     * Caches the local address found for a destination, unless the cache has
+     * been cleared since the lookup started.
+     *
+     * @param destination the destination
+     * @param localHost the local address to use for <tt>destination</tt>
+     * @param lookupGeneration the generation of the cache when the lookup
+     * started
+     */
+    void put(InetAddress destination, InetAddress localHost,
+             int lookupGeneration)
+    {
+        if (!enabled || (localHost == null))
+            return;
+
+        String prefix = getPrefix(destination);
+
+        routes.put(prefix, localHost);
+
+        // a change raced with the lookup, do not keep its result
+        if (generation.get() != lookupGeneration)
+            routes.remove(prefix, localHost);
+    }
+
+    /**
+     * Clears the cache after a change of the network configuration.
+     */
+    void invalidate()
+    {
+        generation.incrementAndGet();
+        routes.clear();
+
+        if (logger.isDebugEnabled())
+            logger.debug("Local host routes cleared, hits: " + hits.get()
+                + ", misses: " + misses.get());
+    }
+
+    /**
+     * Enables or disables the cache, which is cleared in both cases.
+     *
+     * @param enabled <tt>true</tt> if the network interfaces are monitored
+     * from now on, <tt>false</tt> if they are no longer monitored
+     */
+    void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        invalidate();
+    }
+
+    /**
+     * Returns the number of lookups answered by the cache.
+     *
+     * @return the number of lookups answered by the cache
+     */
+    long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups the cache could not answer.
+     *
+     * @return the number of lookups the cache could not answer
+     */
+    long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Returns the key of the network prefix of a destination.
+     *
+     * @param destination the destination
+     * @return the key of the network prefix of <tt>destination</tt>
+     */
+    private static String getPrefix(InetAddress destination)
+    {
+        byte[] address = destination.getAddress();
+        int length = (address.length == 4)
+            ? INET4_PREFIX_LENGTH
+            : INET6_PREFIX_LENGTH;
+        StringBuilder prefix = new StringBuilder(3 * length);
+
+        for (int i = 0; i < length; i++)
+        {
+            prefix.append(Integer.toHexString(address[i] & 0xFF));
+            prefix.append('.');
+        }
+        // link-local destinations are reached through the interface of
+        // their scope
+        if (destination instanceof Inet6Address)
+            prefix.append(((Inet6Address) destination).getScopeId());
+        return prefix.toString();
+    }
+}
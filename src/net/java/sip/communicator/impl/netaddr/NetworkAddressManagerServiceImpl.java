@@ -76,6 +76,14 @@ public class NetworkAddressManagerServiceImpl
      */
     private NetworkConfigurationWatcher networkConfigurationWatcher = null;
 
+    /**
+     * The local addresses found for the destinations we have been asked
+     * about, cleared by the <tt>networkConfigurationWatcher</tt> when the
+     * network configuration changes.
+     */
+    private final LocalHostRouteCache localHostRouteCache
+        = new LocalHostRouteCache();
+
     /**
      * The service name to use when discovering TURN servers through DNS using
      * SRV requests as per RFC 5766.
@@ -127,8 +135,52 @@ public class NetworkAddressManagerServiceImpl
      * @return an InetAddress instance representing the local host, and that
      * a socket can bind upon or distribute to peers as a contact address.
      */
-    public synchronized InetAddress getLocalHost(
-            InetAddress intendedDestination)
+    public InetAddress getLocalHost(InetAddress intendedDestination)
+    {
+        InetAddress localHost = localHostRouteCache.get(intendedDestination);
+
+        if (localHost != null)
+        {
+            if (logger.isTraceEnabled())
+                logger.trace(
+                        "Returning the cached localhost address '"
+                            + localHost
+                            + "' for intended destination '"
+                            + intendedDestination
+                            + "'");
+            return localHost;
+        }
+
+        int generation = localHostRouteCache.getGeneration();
+
+        localHost = findRoute(intendedDestination);
+
+        // only cache what the routing table told us, not the guesses below
+        if ((localHost != null) && !localHost.isAnyLocalAddress())
+        {
+            localHostRouteCache.put(intendedDestination, localHost, generation);
+            if (logger.isTraceEnabled())
+            {
+                logger.trace(
+                        "Returning the localhost address '" + localHost + "'");
+            }
+            return localHost;
+        }
+        return findFallbackLocalHost(intendedDestination, localHost);
+    }
+
+    /**
+     * Asks the operating system for the local address to use when sending to
+     * a specific destination.
+     *
+     * @param intendedDestination the destination that we'd like to use the
+     * localhost address with.
+     *
+     * @return the local address the operating system would send from to
+     * <tt>intendedDestination</tt>, which may be <tt>null</tt> or the any
+     * local address if it could not tell.
+     */
+    private synchronized InetAddress findRoute(InetAddress intendedDestination)
     {
         InetAddress localHost = null;
 
@@ -186,7 +238,25 @@ public class NetworkAddressManagerServiceImpl
             localHost = localHostFinderSocket.getLocalAddress();
             localHostFinderSocket.disconnect();
         }
+        return localHost;
+    }
 
+    /**
+     * Guesses the local address to use when sending to a specific destination
+     * the route to which the operating system could not tell.
+     *
+     * @param intendedDestination the destination that we'd like to use the
+     * localhost address with.
+     * @param localHost the address returned by
+     * {@link #findRoute(InetAddress)}, <tt>null</tt> or the any local address
+     *
+     * @return an InetAddress instance representing the local host, and that
+     * a socket can bind upon or distribute to peers as a contact address.
+     */
+    private InetAddress findFallbackLocalHost(
+            InetAddress intendedDestination,
+            InetAddress localHost)
+    {
         //windows socket implementations return the any address so we need to
         //find something else here ... InetAddress.getLocalHost seems to work
         //better on windows so let's hope it'll do the trick.
@@ -290,6 +360,28 @@ public class NetworkAddressManagerServiceImpl
         return localHost;
     }
 
+    /**
+     * Returns the number of <tt>getLocalHost</tt> calls answered from the
+     * cache of local addresses, without asking the operating system.
+     *
+     * @return the number of cache hits of <tt>getLocalHost</tt>
+     */
+    public long getLocalHostCacheHitCount()
+    {
+        return localHostRouteCache.getHitCount();
+    }
+
+    /**
+     * Returns the number of <tt>getLocalHost</tt> calls which had to ask the
+     * operating system for a local address while the cache was in use.
+     *
+     * @return the number of cache misses of <tt>getLocalHost</tt>
+     */
+    public long getLocalHostCacheMissCount()
+    {
+        return localHostRouteCache.getMissCount();
+    }
+
     /**
      * Returns the hardware address (i.e. MAC address) of the specified
      * interface name.
@@ -554,7 +646,8 @@ public class NetworkAddressManagerServiceImpl
          NetworkConfigurationChangeListener listener)
      {
          if(networkConfigurationWatcher == null)
-             networkConfigurationWatcher = new NetworkConfigurationWatcher();
+             networkConfigurationWatcher
+                 = new NetworkConfigurationWatcher(localHostRouteCache);
 
          networkConfigurationWatcher
              .addNetworkConfigurationChangeListener(listener);
@@ -61,11 +61,21 @@ public class NetworkConfigurationWatcher
     private NetworkEventDispatcher eventDispatcher =
             new NetworkEventDispatcher();
 
+    /**
+     * The cache of local addresses cleared on network changes.
+     */
+    private final LocalHostRouteCache localHostRouteCache;
+
     /**
      * Inits configuration watcher.
+     *
+     * @param localHostRouteCache the cache of local addresses to clear when
+     * the network configuration changes
      */
-    NetworkConfigurationWatcher()
+    NetworkConfigurationWatcher(LocalHostRouteCache localHostRouteCache)
     {
+        this.localHostRouteCache = localHostRouteCache;
+
         try
         {
             checkNetworkInterfaces(false, 0, true);
@@ -177,6 +187,7 @@ public class NetworkConfigurationWatcher
         {
             this.systemActivityNotificationsService
                 .addSystemActivityChangeListener(this);
+            localHostRouteCache.setEnabled(true);
         }
         else
         {
@@ -188,6 +199,7 @@ public class NetworkConfigurationWatcher
                 // overloaded
                 th.setPriority(Thread.MAX_PRIORITY);
                 th.start();
+                localHostRouteCache.setEnabled(true);
             }
         }
     }
@@ -235,6 +247,9 @@ public class NetworkConfigurationWatcher
                 case ServiceEvent.UNREGISTERING:
                     ((SystemActivityNotificationsService)sService)
                         .removeSystemActivityChangeListener(this);
+                    // we will no longer hear of network changes
+                    if(!isRunning)
+                        localHostRouteCache.setEnabled(false);
                     break;
             }
 
@@ -247,6 +262,8 @@ public class NetworkConfigurationWatcher
      */
     void stop()
     {
+        localHostRouteCache.setEnabled(false);
+
         if(isRunning)
         {
             synchronized(this)
@@ -305,6 +322,8 @@ public class NetworkConfigurationWatcher
      */
     private void downAllInterfaces()
     {
+        localHostRouteCache.invalidate();
+
         Iterator<String> iter = activeInterfaces.keySet().iterator();
         while (iter.hasNext())
         {
@@ -408,6 +427,7 @@ public class NetworkConfigurationWatcher
                         ChangeEvent.IFACE_DOWN));
 
                 activeInterfaces.remove(iface);
+                localHostRouteCache.invalidate();
             }
         }
 
@@ -437,6 +457,7 @@ public class NetworkConfigurationWatcher
                                     ChangeEvent.ADDRESS_DOWN, addr));
 
                     addrIter.remove();
+                    localHostRouteCache.invalidate();
                 }
             }
         }
@@ -476,6 +497,7 @@ public class NetworkConfigurationWatcher
                                                 addr));
 
                     addresses.add(addr);
+                    localHostRouteCache.invalidate();
                 }
             }
         }
@@ -521,6 +543,7 @@ public class NetworkConfigurationWatcher
             }
 
             activeInterfaces.put(entry.getKey(), entry.getValue());
+            localHostRouteCache.invalidate();
         }
     }
 
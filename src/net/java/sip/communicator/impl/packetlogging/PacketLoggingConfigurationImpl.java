@@ -18,6 +18,49 @@ import org.jitsi.service.packetlogging.*;
 public class PacketLoggingConfigurationImpl
     extends PacketLoggingConfiguration
 {
+    /**
+     * The name of the property holding the number of packets which may wait
+     * to be written to file.
+     */
+    public static final String PACKET_LOGGING_QUEUE_SIZE_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_QUEUE_SIZE";
+
+    /**
+     * The name of the property telling whether the threads logging packets
+     * wait when the queue is full instead of dropping their packets.
+     */
+    public static final String PACKET_LOGGING_BLOCK_WHEN_FULL_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging"
+            + ".PACKET_LOGGING_BLOCK_WHEN_FULL";
+
+    /**
+     * The name of the property holding the number of seconds after which
+     * the current file is rotated whatever its size, 0 to rotate on size only.
+     */
+    public static final String PACKET_LOGGING_ROTATION_INTERVAL_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging"
+            + ".PACKET_LOGGING_ROTATION_INTERVAL";
+
+    /**
+     * The default number of packets which may wait to be written to file.
+     */
+    private static final int DEFAULT_QUEUE_SIZE = 2048;
+
+    /**
+     * The number of packets which may wait to be written to file.
+     */
+    private final int queueSize;
+
+    /**
+     * Whether the threads logging packets wait when the queue is full.
+     */
+    private final boolean blockWhenFull;
+
+    /**
+     * The number of seconds after which the current file is rotated.
+     */
+    private final long rotationInterval;
+
     /**
      * Creates new PacketLoggingConfiguration and load values from
      * configuration service and if missing uses already defined
@@ -57,6 +100,46 @@ public class PacketLoggingConfigurationImpl
             configService.getInt(
                 PACKET_LOGGING_FILE_COUNT_PROPERTY_NAME,
                 getLogfileCount()));
+
+        queueSize = configService.getInt(
+                PACKET_LOGGING_QUEUE_SIZE_PROPERTY_NAME,
+                DEFAULT_QUEUE_SIZE);
+        blockWhenFull = configService.getBoolean(
+                PACKET_LOGGING_BLOCK_WHEN_FULL_PROPERTY_NAME,
+                false);
+        rotationInterval = configService.getLong(
+                PACKET_LOGGING_ROTATION_INTERVAL_PROPERTY_NAME,
+                0);
+    }
+
+    /**
+     * Returns the number of packets which may wait to be written to file.
+     * @return the number of packets which may wait to be written to file.
+     */
+    public int getQueueSize()
+    {
+        return queueSize;
+    }
+
+    /**
+     * Returns whether the threads logging packets wait when the queue is
+     * full instead of dropping their packets.
+     * @return <tt>true</tt> if the threads logging packets wait.
+     */
+    public boolean isBlockWhenFull()
+    {
+        return blockWhenFull;
+    }
+
+    /**
+     * Returns the number of seconds after which the current file is rotated
+     * whatever its size.
+     * @return the rotation interval in seconds, 0 if files are rotated on
+     * size only.
+     */
+    public long getRotationInterval()
+    {
+        return rotationInterval;
     }
 
     /**
@@ -7,7 +7,8 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
-import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 import net.java.sip.communicator.util.*;
 
@@ -16,7 +17,12 @@ import org.jitsi.service.packetlogging.*;
 
 /**
  * Packet Logging Service implementation dumping logs in
- * pcap(tcpdump/wireshark) format file.
+ * pcapng(tcpdump/wireshark) format file.
+ * <p>
+ * The logged packets are copied into a preallocated ring buffer and written
+ * by a single thread, in batches, so that the threads sending and receiving
+ * packets never wait for the disk. Each protocol logging packets is an
+ * interface of the pcapng file.
  *
  * @author Damian Minkov
  */
@@ -30,19 +36,98 @@ public class PacketLoggingServiceImpl
             = Logger.getLogger(PacketLoggingServiceImpl.class);
 
     /**
-     * The OutputStream we are currently writing to.
+     * The type of the pcapng section header block.
      */
-    private FileOutputStream outputStream = null;
+    private static final int SECTION_HEADER_BLOCK = 0x0a0d0d0a;
 
     /**
-     * The thread that queues packets and saves them to file.
+     * The type of the pcapng interface description block.
+     */
+    private static final int INTERFACE_DESCRIPTION_BLOCK = 0x00000001;
+
+    /**
+     * The type of the pcapng enhanced packet block.
+     */
+    private static final int ENHANCED_PACKET_BLOCK = 0x00000006;
+
+    /**
+     * The pcapng byte order magic.
+     */
+    private static final int BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+
+    /**
+     * The ethernet link type.
+     */
+    private static final short LINKTYPE_ETHERNET = 1;
+
+    /**
+     * The code of the pcapng option ending the options of a block.
+     */
+    private static final short OPTION_END_OF_OPTIONS = 0;
+
+    /**
+     * The code of the pcapng option naming an interface.
+     */
+    private static final short OPTION_IF_NAME = 2;
+
+    /**
+     * The code of the pcapng option naming the application which wrote a
+     * section.
+     */
+    private static final short OPTION_SHB_USERAPPL = 4;
+
+    /**
+     * The length of the fixed fields of an enhanced packet block.
+     */
+    private static final int ENHANCED_PACKET_BLOCK_LENGTH = 32;
+
+    /**
+     * The size of the buffer collecting the blocks written to file at once.
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The maximum time in milliseconds a packet waits in the write buffer.
+     */
+    private static final long FLUSH_INTERVAL = 500;
+
+    /**
+     * The channel of the file we are currently writing to, used by the
+     * saver thread only.
+     */
+    private FileChannel channel = null;
+
+    /**
+     * The buffer collecting the blocks written to file at once.
+     */
+    private final ByteBuffer writeBuffer
+        = ByteBuffer.allocate(WRITE_BUFFER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * The time the last time the write buffer was written to file.
+     */
+    private long lastFlushTime = 0;
+
+    /**
+     * The time the current file was opened at.
+     */
+    private long fileOpenTime = 0;
+
+    /**
+     * The queue of the packets waiting to be written, created on start.
+     */
+    private volatile PacketRingBuffer ringBuffer = null;
+
+    /**
+     * The thread that saves the queued packets to file.
      */
     private SaverThread saverThread = new SaverThread();
 
     /**
      * The current configuration.
      */
-    private PacketLoggingConfiguration packetLoggingConfiguration = null;
+    private PacketLoggingConfigurationImpl packetLoggingConfiguration = null;
 
     /**
      * The fake ethernet header we use as template.
@@ -119,10 +204,24 @@ public class PacketLoggingServiceImpl
             };
 
     /**
-     * Using this object to lock and protectd the two counters
-     * used for tcp seq and ack numbers.
+     * The ipv4 header of the packet being written.
+     */
+    private final byte[] ipHeader = new byte[ipHeaderTemplate.length];
+
+    /**
+     * The ipv6 header of the packet being written.
+     */
+    private final byte[] ip6Header = new byte[ip6HeaderTemplate.length];
+
+    /**
+     * The udp header of the packet being written.
+     */
+    private final byte[] udpHeader = new byte[udpHeaderTemplate.length];
+
+    /**
+     * The tcp header of the packet being written.
      */
-    private Object tcpCounterLock = new Object();
+    private final byte[] tcpHeader = new byte[tcpHeaderTemplate.length];
 
     /**
      * The seq that the sender will send.
@@ -145,11 +244,17 @@ public class PacketLoggingServiceImpl
     private File[] files;
 
     /**
-     * Starting the packet logger. Generating the files we can use,
-     * rotate any previous files and open the current file for writing.
+     * Starting the packet logger. Creates the queue of packets and starts
+     * the thread writing them; files are rotated and opened when the first
+     * packet is written.
      */
     public void start()
     {
+        PacketLoggingConfigurationImpl cfg = getConfigurationImpl();
+
+        ringBuffer = new PacketRingBuffer(
+            Math.max(1, cfg.getQueueSize()),
+            cfg.isBlockWhenFull());
         saverThread.start();
     }
 
@@ -169,7 +274,7 @@ public class PacketLoggingServiceImpl
                 = PacketLoggingActivator.getFileAccessService()
                     .getPrivatePersistentFile(
                         new File(PacketLoggingActivator.LOGGING_DIR_NAME,
-                            "jitsi" + i + ".pcap").toString(),
+                            "jitsi" + i + ".pcapng").toString(),
                         FileCategory.LOG);
         }
     }
@@ -182,11 +287,7 @@ public class PacketLoggingServiceImpl
     private void rotateFiles()
         throws IOException
     {
-        if(outputStream != null)
-        {
-            outputStream.flush();
-            outputStream.close();
-        }
+        closeFile();
 
         for (int i = getConfiguration().getLogfileCount() - 2; i >= 0; i--)
         {
@@ -201,80 +302,138 @@ public class PacketLoggingServiceImpl
             }
         }
 
-        outputStream = new FileOutputStream(files[0]);
+        channel = new FileOutputStream(files[0]).getChannel();
         written = 0;
-        createGlobalHeader();
+        fileOpenTime = System.currentTimeMillis();
+        createSectionHeader();
+
+        PacketRingBuffer ring = ringBuffer;
+        if (logger.isInfoEnabled() && (ring != null))
+            logger.info("Packet log rotated, packets queued: "
+                + ring.getQueuedCount()
+                + ", dropped: " + ring.getDroppedCount());
     }
 
     /**
-     * Stops the packet logging.
+     * Writes the pending blocks and closes the current file, if any.
+     * @throws IOException
      */
-    public void stop()
+    private void closeFile()
+        throws IOException
     {
-        saverThread.stopRunning();
-
-        if(outputStream != null)
+        if(channel != null)
         {
             try
             {
-                outputStream.flush();
-                outputStream.close();
-            }
-            catch(IOException e)
-            {
-                e.printStackTrace();
+                flushWriteBuffer();
             }
             finally
             {
-                outputStream = null;
+                channel.close();
+                channel = null;
             }
         }
     }
 
     /**
-     * Creates pcap file global header.
+     * Stops the packet logging. The packets already queued are written
+     * before the file is closed.
+     */
+    public void stop()
+    {
+        PacketRingBuffer ring = ringBuffer;
+
+        if (ring != null)
+            ring.close();
+        saverThread.stopRunning();
+    }
+
+    /**
+     * Creates the pcapng section header block and the interface description
+     * blocks of the current file, one interface per protocol.
      * @throws IOException
      */
-    private void createGlobalHeader()
+    private void createSectionHeader()
             throws IOException
     {
-        /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
-
-        /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
-
-        /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
-
-        /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        byte[] application = getOptionValue(
+            System.getProperty("sip-communicator.application.name", "Jitsi"));
+        int length = 28 + getOptionLength(application) + 4;
+
+        writeBuffer.putInt(SECTION_HEADER_BLOCK);
+        writeBuffer.putInt(length);
+        writeBuffer.putInt(BYTE_ORDER_MAGIC);
+        /* major and minor version numbers */
+        writeBuffer.putShort((short) 1);
+        writeBuffer.putShort((short) 0);
+        /* section length, unknown */
+        writeBuffer.putLong(-1L);
+        putOption(writeBuffer, OPTION_SHB_USERAPPL, application);
+        writeBuffer.putInt(OPTION_END_OF_OPTIONS);
+        writeBuffer.putInt(length);
+        written += length;
+
+        for (ProtocolName protocol : ProtocolName.values())
+        {
+            byte[] name = getOptionValue(protocol.name().toLowerCase());
+
+            length = 16 + getOptionLength(name) + 4 + 4;
+
+            writeBuffer.putInt(INTERFACE_DESCRIPTION_BLOCK);
+            writeBuffer.putInt(length);
+            writeBuffer.putShort(LINKTYPE_ETHERNET);
+            writeBuffer.putShort((short) 0);
+            /* max length of captured packets, unlimited */
+            writeBuffer.putInt(0);
+            putOption(writeBuffer, OPTION_IF_NAME, name);
+            writeBuffer.putInt(OPTION_END_OF_OPTIONS);
+            writeBuffer.putInt(length);
+            written += length;
+        }
+    }
+
+    /**
+     * Encodes the value of a pcapng string option.
+     * @param value the value.
+     * @return the UTF-8 bytes of <tt>value</tt>.
+     */
+    private static byte[] getOptionValue(String value)
+    {
+        try
+        {
+            return value.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // UTF-8 is always supported
+            return value.getBytes();
+        }
+    }
+
+    /**
+     * Returns the length of a pcapng option, including its code, length and
+     * padding.
+     * @param value the value of the option.
+     * @return the length of the option.
+     */
+    private static int getOptionLength(byte[] value)
+    {
+        return 4 + ((value.length + 3) & ~3);
+    }
+
+    /**
+     * Writes a pcapng option.
+     * @param buffer the buffer to write to.
+     * @param code the code of the option.
+     * @param value the value of the option.
+     */
+    private static void putOption(ByteBuffer buffer, short code, byte[] value)
+    {
+        buffer.putShort(code);
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+        for (int i = value.length; (i & 3) != 0; i++)
+            buffer.put((byte) 0);
     }
 
     /**
@@ -376,8 +535,10 @@ public class PacketLoggingServiceImpl
             int packetOffset,
             int packetLength)
     {
-        saverThread.queuePacket(
-            new Packet(protocol,
+        PacketRingBuffer ring = ringBuffer;
+
+        if (ring != null)
+            ring.offer(protocol,
                        sourceAddress,
                        sourcePort,
                        destinationAddress,
@@ -386,7 +547,7 @@ public class PacketLoggingServiceImpl
                        sender,
                        packetContent,
                        packetOffset,
-                       packetLength));
+                       packetLength);
     }
 
     /**
@@ -395,6 +556,17 @@ public class PacketLoggingServiceImpl
      * @return the Packet Logging Configuration.
      */
     public PacketLoggingConfiguration getConfiguration()
+    {
+        return getConfigurationImpl();
+    }
+
+    /**
+     * Returns the current Packet Logging Configuration with the settings
+     * specific to this implementation.
+     *
+     * @return the Packet Logging Configuration.
+     */
+    private synchronized PacketLoggingConfigurationImpl getConfigurationImpl()
     {
         if(packetLoggingConfiguration == null)
             packetLoggingConfiguration = new PacketLoggingConfigurationImpl();
@@ -403,34 +575,54 @@ public class PacketLoggingServiceImpl
     }
 
     /**
-     * Dump the packet to the output file stream.
+     * Adds a queued packet to the write buffer as a pcapng enhanced packet
+     * block, opening or rotating the file first if needed. Called by the
+     * saver thread only.
      *
      * @param packet the packet ot save.
      * @throws Exception when error occurs saving to file stream or when
      *  rotating files.
      */
-    private void savePacket(Packet packet)
+    private void savePacket(PacketRingBuffer.Slot packet)
         throws Exception
     {
+        // open files only if needed
+        if(channel == null)
+        {
+            getFileNames();
+            rotateFiles();// this one opens the file for write
+        }
+        else
+        {
+            PacketLoggingConfigurationImpl cfg = getConfigurationImpl();
+            long limit = cfg.getLimit();
+            long interval = cfg.getRotationInterval() * 1000;
+
+            if(((limit > 0) && (written > limit))
+                || ((interval > 0)
+                    && (packet.getTimestamp() - fileOpenTime >= interval)))
+                rotateFiles();
+        }
+
         // if one of the addresses is ipv4 we are using ipv4,
         // local udp addresses come as 0.0.0.0.0....0.0.0 when
         // ipv6 is enabled in the underlying os
-        boolean isIPv4 = packet.sourceAddress.length == 4
-                || packet.destinationAddress.length == 4;
+        boolean isIPv4 = packet.getSourceAddressLength() == 4
+                || packet.getDestinationAddressLength() == 4;
 
         byte[] ipHeader;
 
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
+            ipHeader = this.ipHeader;
             System.arraycopy(
                     ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
-            System.arraycopy(packet.sourceAddress,
+            System.arraycopy(packet.getSourceAddress(),
                     0,
                     ipHeader,
                     12,
                     4);
-            System.arraycopy(packet.destinationAddress,
+            System.arraycopy(packet.getDestinationAddress(),
                     0,
                     ipHeader,
                     16,
@@ -438,16 +630,16 @@ public class PacketLoggingServiceImpl
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
+            ipHeader = this.ip6Header;
             System.arraycopy(
                     ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
-            System.arraycopy(packet.sourceAddress,
+            System.arraycopy(packet.getSourceAddress(),
                     0,
                     ipHeader,
                     8,
                     16);
 
-            System.arraycopy(packet.destinationAddress,
+            System.arraycopy(packet.getDestinationAddress(),
                     0,
                     ipHeader,
                     24,
@@ -456,61 +648,47 @@ public class PacketLoggingServiceImpl
 
         byte[] transportHeader;
         short len;
-        if(packet.transport == TransportName.UDP)
+        if(packet.getTransport() == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
             transportHeader = udpHeader;
             System.arraycopy(udpHeaderTemplate, 0,
                     udpHeader, 0, udpHeader.length);
 
-            writeShort(packet.sourcePort, udpHeader, 0);
-            writeShort(packet.destinationPort, udpHeader, 2);
-            len = (short)(packet.packetLength + udpHeader.length);
+            writeShort(packet.getSourcePort(), udpHeader, 0);
+            writeShort(packet.getDestinationPort(), udpHeader, 2);
+            len = (short)(packet.getContentLength() + udpHeader.length);
             writeShort(len, udpHeader, 4);
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
+            transportHeader = tcpHeader;
             System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
                    0, transportHeader.length);
 
-            writeShort(packet.sourcePort, transportHeader, 0);
-            writeShort(packet.destinationPort, transportHeader, 2);
+            writeShort(packet.getSourcePort(), transportHeader, 0);
+            writeShort(packet.getDestinationPort(), transportHeader, 2);
 
-            len = (short)(packet.packetLength + transportHeader.length);
+            len = (short)(packet.getContentLength() + transportHeader.length);
 
-            if(packet.sender)
+            long seqnum;
+            long acknum;
+            if(packet.isSender())
             {
-                long seqnum;
-                long acknum;
-                synchronized(tcpCounterLock)
-                {
-                    seqnum = srcCount;
-                    srcCount += packet.packetLength;
-                    acknum = dstCount;
-                }
-
-                intToBytes((int)(seqnum & 0xffffffff),
-                       transportHeader, 4);
-                intToBytes((int)(acknum & 0xffffffff),
-                       transportHeader, 8);
+                seqnum = srcCount;
+                srcCount += packet.getContentLength();
+                acknum = dstCount;
             }
             else
             {
-                long seqnum;
-                long acknum;
-                synchronized(tcpCounterLock)
-                {
-                    seqnum = dstCount;
-                    dstCount += packet.packetLength;
-                    acknum = srcCount;
-                }
-
-                intToBytes((int)(seqnum & 0xffffffff),
-                       transportHeader, 4);
-                intToBytes((int)(acknum & 0xffffffff),
-                       transportHeader, 8);
+                seqnum = dstCount;
+                dstCount += packet.getContentLength();
+                acknum = srcCount;
             }
+
+            intToBytes((int)(seqnum & 0xffffffff),
+                   transportHeader, 4);
+            intToBytes((int)(acknum & 0xffffffff),
+                   transportHeader, 8);
         }
 
         // now set ip header total length
@@ -519,7 +697,7 @@ public class PacketLoggingServiceImpl
             short ipTotalLen = (short)(len + ipHeader.length);
             writeShort(ipTotalLen, ipHeader, 2);
 
-            if(packet.transport == TransportName.UDP)
+            if(packet.getTransport() == TransportName.UDP)
                 ipHeader[9] = (byte)0x11;
             else
                 ipHeader[9] = (byte)0x06;
@@ -532,64 +710,97 @@ public class PacketLoggingServiceImpl
         {
             writeShort(len, ipHeader, 4);
 
-            if(packet.transport == TransportName.UDP)
+            if(packet.getTransport() == TransportName.UDP)
                 ipHeader[6] = (byte)0x11;
             else
                 ipHeader[6] = (byte)0x06;
         }
 
-        long current = System.currentTimeMillis();
-        int tsSec = (int)(current/1000);
-        int tsUsec = (int)((current%1000) * 1000);
         int feakHeaderLen = fakeEthernetHeader.length +
                 ipHeader.length + transportHeader.length;
-        int inclLen = packet.packetLength + feakHeaderLen;
-        int origLen = inclLen;
-
-        synchronized(this)
+        int inclLen = packet.getContentLength() + feakHeaderLen;
+        int blockLength
+            = ENHANCED_PACKET_BLOCK_LENGTH + ((inclLen + 3) & ~3);
+        long timestamp = packet.getTimestamp() * 1000;
+
+        ByteBuffer buffer = reserve(blockLength);
+
+        buffer.putInt(ENHANCED_PACKET_BLOCK);
+        buffer.putInt(blockLength);
+        buffer.putInt(packet.getProtocol().ordinal());
+        buffer.putInt((int) (timestamp >>> 32));
+        buffer.putInt((int) timestamp);
+        buffer.putInt(inclLen);
+        buffer.putInt(inclLen);
+        buffer.put(fakeEthernetHeader);
+        buffer.put(ipHeader);
+        buffer.put(transportHeader);
+        buffer.put(packet.getContent(), 0, packet.getContentLength());
+        for (int i = inclLen; (i & 3) != 0; i++)
+            buffer.put((byte) 0);
+        buffer.putInt(blockLength);
+
+        if (buffer != writeBuffer)
         {
-            // open files only if needed
-            if(outputStream == null)
-            {
-                getFileNames();
-                rotateFiles();// this one opens the file for write
-            }
+            buffer.flip();
+            writeFully(buffer);
+        }
 
-            long limit = getConfiguration().getLimit();
+        written += blockLength;
+    }
 
-            if((limit > 0) && (written > limit))
-                rotateFiles();
+    /**
+     * Returns a buffer with room for a block: the write buffer, written to
+     * file first if it lacks room, or a new buffer if the block is larger
+     * than the write buffer.
+     *
+     * @param length the length of the block.
+     * @return the buffer to put the block in.
+     * @throws IOException if writing the write buffer fails.
+     */
+    private ByteBuffer reserve(int length)
+        throws IOException
+    {
+        if (writeBuffer.remaining() < length)
+            flushWriteBuffer();
+        if (writeBuffer.remaining() < length)
+            return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        return writeBuffer;
+    }
+
+    /**
+     * Writes the blocks collected in the write buffer to file.
+     * @throws IOException
+     */
+    private void flushWriteBuffer()
+        throws IOException
+    {
+        lastFlushTime = System.currentTimeMillis();
+
+        if ((channel == null) || (writeBuffer.position() == 0))
+            return;
 
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
-
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
-
-            written += inclLen + 16;
+        writeBuffer.flip();
+        try
+        {
+            writeFully(writeBuffer);
+        }
+        finally
+        {
+            writeBuffer.clear();
         }
     }
 
     /**
-     * Writes int to the file. Used for packet headers.
-     * @param d the value to write.
+     * Writes the remaining bytes of a buffer to file.
+     * @param buffer the buffer.
      * @throws IOException
      */
-    private void addInt(int d)
+    private void writeFully(ByteBuffer buffer)
         throws IOException
     {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
+        while (buffer.hasRemaining())
+            channel.write(buffer);
     }
 
     /**
@@ -647,100 +858,6 @@ public class PacketLoggingServiceImpl
         return total;
     }
 
-    /**
-     * The data we receive and that we will dump in a file.
-     */
-    private static class Packet
-    {
-        /**
-         * The protocol logging this packet.
-         */
-        ProtocolName protocol;
-
-        /**
-         * The source address of the packet.
-         */
-        byte[] sourceAddress;
-
-        /**
-         * The source port of the packet.
-         */
-        int sourcePort;
-
-        /**
-         * The destination address of the packet.
-         */
-        byte[] destinationAddress;
-
-        /**
-         * The destination port of the packet.
-         */
-        int destinationPort;
-
-        /**
-         * Is the packet a udp one.
-         */
-        TransportName transport;
-
-        /**
-         * Are we sending the packet, or false if we are receiving.
-         */
-        boolean sender;
-
-        /**
-         * Array containing packet content.
-         */
-        byte[] packetContent;
-
-        /**
-         * The offset in the packetContent where packet content is.
-         */
-        int packetOffset;
-
-        /**
-         * The length of the packet content.
-         */
-        int packetLength;
-
-        /**
-         * Creates a packet with the needed data.
-         * @param protocol the source protocol that logs this packet.
-         * @param sourceAddress The source address of the packet.
-         * @param sourcePort The source port of the packet.
-         * @param destinationAddress The destination address of the packet.
-         * @param destinationPort The destination port of the packet.
-         * @param transport the transport this packet uses.
-         * @param sender Are we sending the packet,
-         *  or false if we are receiving.
-         * @param packetContent Array containing packet content.
-         * @param packetOffset The offset in the packetContent
-         *  where packet content is.
-         * @param packetLength The length of the packet content.
-         */
-        private Packet(ProtocolName protocol,
-                       byte[] sourceAddress,
-                       int sourcePort,
-                       byte[] destinationAddress,
-                       int destinationPort,
-                       TransportName transport,
-                       boolean sender,
-                       byte[] packetContent,
-                       int packetOffset,
-                       int packetLength)
-        {
-            this.protocol = protocol;
-            this.sourceAddress = sourceAddress;
-            this.sourcePort = sourcePort;
-            this.destinationAddress = destinationAddress;
-            this.destinationPort = destinationPort;
-            this.transport = transport;
-            this.sender = sender;
-            this.packetContent = packetContent;
-            this.packetOffset = packetOffset;
-            this.packetLength = packetLength;
-        }
-    }
-
     /**
      * Dumps packet in separate thread so we don't block
      * our calling thread.
@@ -749,49 +866,42 @@ public class PacketLoggingServiceImpl
         extends Thread
     {
         /**
-         * start/stop indicator.
+         * Creates the thread.
          */
-        private boolean stopped = true;
-
-        /**
-         * List of packets queued to be written in the file.
-         */
-        private final List<Packet> pktsToSave = new ArrayList<Packet>();
+        SaverThread()
+        {
+            super("PacketLoggingSaver");
+            setDaemon(true);
+        }
 
         /**
-         * Sends instant messages in separate thread so we don't block
-         * our calling thread.
+         * Writes the queued packets to file until the queue is closed and
+         * drained.
          */
         @Override
         public void run()
         {
-            stopped = false;
-            while(!stopped)
-            {
-                Packet pktToSave;
+            PacketRingBuffer ring = ringBuffer;
 
-                synchronized(this)
+            try
+            {
+                while(true)
                 {
-                    if(pktsToSave.isEmpty())
+                    PacketRingBuffer.Slot packet = ring.peek();
+
+                    if(packet == null)
                     {
-                        try
-                        {
-                            wait();
-                        }
-                        catch (InterruptedException iex)
-                        {
-                        }
+                        if(ring.isClosed())
+                            break;
+
+                        flush();
+                        ring.await(FLUSH_INTERVAL);
                         continue;
                     }
 
-                    pktToSave = pktsToSave.remove(0);
-                }
-
-                if(pktToSave != null)
-                {
                     try
                     {
-                        savePacket(pktToSave);
+                        savePacket(packet);
                     }
                     catch(Throwable t)
                     {
@@ -804,27 +914,66 @@ public class PacketLoggingServiceImpl
                         else
                             logger.error("Error writing packet to file", t);
                     }
+                    finally
+                    {
+                        ring.release();
+                    }
+
+                    if(System.currentTimeMillis() - lastFlushTime
+                            > FLUSH_INTERVAL)
+                        flush();
+                }
+            }
+            finally
+            {
+                try
+                {
+                    closeFile();
+                }
+                catch(IOException e)
+                {
+                    logger.error("Error closing packet log file", e);
                 }
+
+                if (logger.isInfoEnabled())
+                    logger.info("Packet logging stopped, packets queued: "
+                        + ring.getQueuedCount()
+                        + ", dropped: " + ring.getDroppedCount());
             }
         }
 
         /**
-         * Interrupts this sender so that it would no longer send messages.
+         * Writes the write buffer to file, logging failures.
          */
-        public synchronized void stopRunning()
+        private void flush()
         {
-            stopped = true;
-            notifyAll();
+            try
+            {
+                flushWriteBuffer();
+            }
+            catch(IOException e)
+            {
+                logger.error("Error writing packets to file", e);
+            }
         }
 
         /**
-         * Schedule new packet for save.
-         * @param packet new packet to save.
+         * Waits for the queued packets to be written and the file to be
+         * closed.
          */
-        public synchronized void queuePacket(Packet packet)
+        public void stopRunning()
         {
-            pktsToSave.add(packet);
-            notifyAll();
+            if (!isAlive())
+                return;
+
+            try
+            {
+                join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 }
@@ -61,6 +61,14 @@ public class OperationSetTelephonyConferencingJabberImpl
      */
     private final Object lock = new Object();
 
+    /**
+     * Whether the <tt>CallPeer</tt>s support COIN, by <tt>CallPeer</tt>, as
+     * found by disco#info requests which are not to be repeated for every
+     * conference-info.
+     */
+    private final Map<CallPeerJabberImpl, Boolean> coinSupport
+        = new WeakHashMap<CallPeerJabberImpl, Boolean>();
+
     /**
      * Initializes a new <tt>OperationSetTelephonyConferencingJabberImpl</tt>
      * instance which is to provide telephony conferencing services for the
@@ -91,14 +99,11 @@ public class OperationSetTelephonyConferencingJabberImpl
     {
         if (call.isConferenceFocus())
         {
-            synchronized (lock)
+            // send conference-info to all CallPeers of the specified call.
+            for (Iterator<? extends CallPeer> i = call.getCallPeers();
+                    i.hasNext();)
             {
-                // send conference-info to all CallPeers of the specified call.
-                for (Iterator<? extends CallPeer> i = call.getCallPeers();
-                        i.hasNext();)
-                {
-                    notify(i.next());
-                }
+                notify(i.next());
             }
         }
     }
@@ -125,92 +130,108 @@ public class OperationSetTelephonyConferencingJabberImpl
 
         final CallPeerJabberImpl callPeerJabber = (CallPeerJabberImpl)callPeer;
 
-        final long timeSinceLastCoin = System.currentTimeMillis()
-                - callPeerJabber.getLastConferenceInfoSentTimestamp();
-        if (timeSinceLastCoin < COIN_MIN_INTERVAL)
+        // check that callPeer supports COIN before sending him a
+        // conference-info, without holding the lock while asking him.
+        if (!isCoinSupported(callPeerJabber))
+        {
+            callPeerJabber.setConfInfoScheduled(false);
+            return;
+        }
+
+        synchronized (lock)
         {
-            if (callPeerJabber.isConfInfoScheduled())
+            final long timeSinceLastCoin = System.currentTimeMillis()
+                    - callPeerJabber.getLastConferenceInfoSentTimestamp();
+            if (timeSinceLastCoin < COIN_MIN_INTERVAL)
+            {
+                if (callPeerJabber.isConfInfoScheduled())
+                    return;
+
+                logger.info("Scheduling to send a COIN to " + callPeerJabber);
+                callPeerJabber.setConfInfoScheduled(true);
+                scheduleConferenceInfo(
+                        new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                OperationSetTelephonyConferencingJabberImpl
+                                    .this.notify(callPeerJabber);
+                            }
+                        },
+                        1 + COIN_MIN_INTERVAL - timeSinceLastCoin);
+
                 return;
+            }
+
+            ConferenceInfoUpdate update
+                = getConferenceInfoUpdate(callPeerJabber, false);
+
+            if (update != null)
+            {
+                ConferenceInfoDocument confInfo = update.getDocument();
 
-            logger.info("Scheduling to send a COIN to " + callPeerJabber);
-            callPeerJabber.setConfInfoScheduled(true);
-            new Thread(new Runnable(){
-                @Override
-                public void run()
+                /*
+                 * For COINs (XEP-0298), we use the attributes of the
+                 * conference-info element to piggyback a Jingle SID.
+                 */
+                confInfo.setSid(callPeerJabber.getSID());
+
+                IQ iq = getConferenceInfo(callPeerJabber, confInfo);
+
+                if (iq != null)
                 {
-                    try
-                    {
-                        Thread.sleep(1 + COIN_MIN_INTERVAL - timeSinceLastCoin);
-                    }
-                    catch (InterruptedException ie) {}
-
-                    OperationSetTelephonyConferencingJabberImpl.this
-                            .notify(callPeerJabber);
+                    parentProvider.getConnection().sendPacket(iq);
+                    conferenceInfoSent(update);
                 }
-            }).start();
+            }
+            callPeerJabber.setConfInfoScheduled(false);
+        }
+    }
 
-            return;
+    /**
+     * Determines whether a specific <tt>CallPeer</tt> supports COIN. The
+     * disco#info request which finds out is sent once per <tt>CallPeer</tt>
+     * and its answer is cached. If the request fails, the <tt>CallPeer</tt>
+     * is assumed to support COIN and is asked again next time.
+     *
+     * @param callPeer the <tt>CallPeer</tt> to check
+     * @return <tt>true</tt> if <tt>callPeer</tt> supports COIN or if its
+     * support could not be determined; otherwise, <tt>false</tt>
+     */
+    private boolean isCoinSupported(CallPeerJabberImpl callPeer)
+    {
+        synchronized (coinSupport)
+        {
+            Boolean supported = coinSupport.get(callPeer);
+
+            if (supported != null)
+                return supported;
         }
 
-        // check that callPeer supports COIN before sending him a
-        // conference-info
         String to = getBasicTelephony().getFullCalleeURI(callPeer.getAddress());
 
-        // XXX if this generates actual disco#info requests we might want to
-        // cache it.
         try
         {
             DiscoverInfo discoverInfo
                 = parentProvider.getDiscoveryManager().discoverInfo(to);
+            boolean supported
+                = discoverInfo.containsFeature(
+                        ProtocolProviderServiceJabberImpl.URN_XMPP_JINGLE_COIN);
 
-            if (!discoverInfo.containsFeature(
-                    ProtocolProviderServiceJabberImpl.URN_XMPP_JINGLE_COIN))
-            {
+            if (!supported)
                 logger.info(callPeer.getAddress() + " does not support COIN");
-                callPeerJabber.setConfInfoScheduled(false);
-                return;
+            synchronized (coinSupport)
+            {
+                coinSupport.put(callPeer, supported);
             }
+            return supported;
         }
         catch (XMPPException xmppe)
         {
             logger.warn("Failed to retrieve DiscoverInfo for " + to, xmppe);
+            return true;
         }
-
-        ConferenceInfoDocument currentConfInfo
-                = getCurrentConferenceInfo(callPeerJabber);
-        ConferenceInfoDocument lastSentConfInfo
-                = callPeerJabber.getLastConferenceInfoSent();
-
-        ConferenceInfoDocument diff;
-
-        if (lastSentConfInfo == null)
-            diff = currentConfInfo;
-        else
-            diff = getConferenceInfoDiff(lastSentConfInfo, currentConfInfo);
-
-        if (diff != null)
-        {
-            int newVersion
-                    = lastSentConfInfo == null
-                    ? 1
-                    : lastSentConfInfo.getVersion() + 1;
-            diff.setVersion(newVersion);
-
-            IQ iq = getConferenceInfo(callPeerJabber, diff);
-
-            if (iq != null)
-            {
-                parentProvider.getConnection().sendPacket(iq);
-
-                // We save currentConfInfo, because it is of state "full", while
-                // diff could be a partial
-                currentConfInfo.setVersion(newVersion);
-                callPeerJabber.setLastConferenceInfoSent(currentConfInfo);
-                callPeerJabber.setLastConferenceInfoSentTimestamp(
-                        System.currentTimeMillis());
-            }
-        }
-        callPeerJabber.setConfInfoScheduled(false);
     }
 
     /**
@@ -451,29 +472,6 @@ public class OperationSetTelephonyConferencingJabberImpl
         }
     }
 
-    /**
-     * {@inheritDoc}
-     *
-     * For COINs (XEP-0298), we use the attributes of the
-     * <tt>conference-info</tt> element to piggyback a Jingle SID. This is
-     * temporary and should be removed once we choose a better way to pass the
-     * SID.
-     */
-    @Override
-    protected ConferenceInfoDocument getCurrentConferenceInfo(
-            MediaAwareCallPeer<?,?,?> callPeer)
-    {
-        ConferenceInfoDocument confInfo
-                = super.getCurrentConferenceInfo(callPeer);
-
-        if (callPeer instanceof CallPeerJabberImpl
-                && confInfo != null)
-        {
-            confInfo.setSid(((CallPeerJabberImpl)callPeer).getSID());
-        }
-        return confInfo;
-    }
-
     /**
      * {@inheritDoc}
      */
@@ -35,6 +35,30 @@ public class EventPackageSubscriber
     private static final Logger logger
         = Logger.getLogger(EventPackageSubscriber.class);
 
+    /**
+     * The option tag announcing and requiring the support of RFC 4662
+     * resource list subscriptions.
+     */
+    public static final String EVENTLIST_OPTION = "eventlist";
+
+    /**
+     * The content type of the bodies aggregating the notifications of the
+     * resources of a resource list.
+     */
+    public static final String MULTIPART_CONTENT_TYPE = "multipart";
+
+    /**
+     * The content sub-type of the bodies aggregating the notifications of
+     * the resources of a resource list.
+     */
+    public static final String RELATED_CONTENT_SUB_TYPE = "related";
+
+    /**
+     * The content sub-type of the resource list meta-information documents
+     * (RLMI) describing the resources of a resource list.
+     */
+    public static final String RLMI_XML = "rlmi+xml";
+
     /**
      * The number of seconds before a subscription managed by this instance
      * expires that this subscriber should attempt to refresh it.
@@ -444,6 +468,34 @@ public class EventPackageSubscriber
         }
         req.setHeader(accept);
 
+        // RFC 4662: a subscription to a resource list also accepts the
+        // multipart/related RLMI bodies aggregating the states of the list
+        if (subscription.isEventList())
+        {
+            try
+            {
+                req.addHeader(
+                    headerFactory.createAcceptHeader(
+                        "application",
+                        RLMI_XML));
+                req.addHeader(
+                    headerFactory.createAcceptHeader(
+                        MULTIPART_CONTENT_TYPE,
+                        RELATED_CONTENT_SUB_TYPE));
+                req.setHeader(
+                    headerFactory.createSupportedHeader(EVENTLIST_OPTION));
+            }
+            catch (ParseException e)
+            {
+                logger.error("wrong accept or supported header", e);
+                throw new OperationFailedException(
+                        "An unexpected error occurred while"
+                        + "constructing the event list headers",
+                        OperationFailedException.INTERNAL_ERROR,
+                        e);
+            }
+        }
+
         // Expires
         ExpiresHeader expHeader;
         try
@@ -462,6 +514,25 @@ public class EventPackageSubscriber
         req.setHeader(expHeader);
     }
 
+    /**
+     * Determines whether a specific content type is one of the types of the
+     * bodies which notify the state of a resource list according to RFC 4662.
+     *
+     * @param ctheader the <tt>ContentTypeHeader</tt> of a NOTIFY body
+     * @return <tt>true</tt> if <tt>ctheader</tt> denotes a multipart/related
+     * or an RLMI body; otherwise, <tt>false</tt>
+     */
+    private static boolean isEventListContentType(ContentTypeHeader ctheader)
+    {
+        String type = ctheader.getContentType();
+        String subType = ctheader.getContentSubType();
+
+        return
+            (MULTIPART_CONTENT_TYPE.equalsIgnoreCase(type)
+                    && RELATED_CONTENT_SUB_TYPE.equalsIgnoreCase(subType))
+                || RLMI_XML.equalsIgnoreCase(subType);
+    }
+
     /**
      * Implements {@link MethodProcessor#processRequest(RequestEvent)}. Handles
      * only NOTIFY requests because they are the only requests concerning event
@@ -566,7 +637,10 @@ public class EventPackageSubscriber
         ContentTypeHeader ctheader
             = (ContentTypeHeader) request.getHeader(ContentTypeHeader.NAME);
         if ((ctheader != null)
-                && !ctheader.getContentSubType().equalsIgnoreCase(contentSubType))
+                && !ctheader.getContentSubType().equalsIgnoreCase(contentSubType)
+                && !((subscription != null)
+                        && subscription.isEventList()
+                        && isEventListContentType(ctheader)))
         {
             // send a 415 response (rfc3261)
             Response response;
@@ -1169,6 +1243,21 @@ public class EventPackageSubscriber
             super(toAddress, eventId);
         }
 
+        /**
+         * Determines whether this <tt>Subscription</tt> is a subscription to
+         * a resource list in the sense of RFC 4662 i.e. whether its SUBSCRIBE
+         * requests announce the support of the eventlist extension and its
+         * NOTIFY requests may carry multipart/related bodies. The default
+         * implementation returns <tt>false</tt>.
+         *
+         * @return <tt>true</tt> if this <tt>Subscription</tt> subscribes to a
+         * resource list; otherwise, <tt>false</tt>
+         */
+        protected boolean isEventList()
+        {
+            return false;
+        }
+
         /**
          * Notifies this <tt>Subscription</tt> that an active NOTIFY
          * <tt>Request</tt> has been received and it may process the
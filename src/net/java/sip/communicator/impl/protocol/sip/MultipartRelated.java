@@ -0,0 +1,335 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Splits the multipart/related bodies (RFC 2387) of the NOTIFY requests of
+ * RFC 4662 resource list subscriptions into their parts, which are looked up
+ * by the Content-ID the RLMI document refers to them with.
+ */
+public class MultipartRelated
+{
+    /**
+     * The charset which maps each byte of a body to one char, so that the
+     * offsets found in the text are offsets in the body.
+     */
+    private static final String BYTE_CHARSET = "ISO-8859-1";
+
+    /**
+     * The parts of the body in the order they appear in it.
+     */
+    private final List<Part> parts = new ArrayList<Part>();
+
+    /**
+     * The parts of the body by their Content-ID, without the angle brackets.
+     */
+    private final Map<String, Part> partsByContentId
+        = new HashMap<String, Part>();
+
+    /**
+     * Splits a multipart body into its parts.
+     *
+     * @param content the multipart body
+     * @param boundary the boundary parameter of the content type of
+     * <tt>content</tt>
+     * @throws IllegalArgumentException if <tt>content</tt> does not contain
+     * the first boundary
+     */
+    public MultipartRelated(byte[] content, String boundary)
+        throws IllegalArgumentException
+    {
+        String text;
+        try
+        {
+            text = new String(content, BYTE_CHARSET);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // ISO-8859-1 is always supported
+            throw new IllegalStateException(e);
+        }
+
+        String delimiter = "--" + boundary;
+        int start = text.startsWith(delimiter) ? 0 : nextDelimiter(
+            text, delimiter, 0);
+        if (start == -1)
+            throw new IllegalArgumentException("No boundary " + boundary);
+
+        while (true)
+        {
+            int pos = text.indexOf(delimiter, start) + delimiter.length();
+
+            // the close delimiter ends the body
+            if (text.startsWith("--", pos))
+                break;
+
+            int partStart = text.indexOf('\n', pos);
+            if (partStart == -1)
+                break;
+            partStart++;
+
+            int partEnd = nextDelimiter(text, delimiter, partStart);
+            if (partEnd == -1)
+                break;
+
+            addPart(content, text, partStart, partEnd);
+            start = partEnd;
+        }
+    }
+
+    /**
+     * Returns the index of the line break preceding the next delimiter line
+     * at or after <tt>from</tt>.
+     *
+     * @param text the body
+     * @param delimiter the delimiter
+     * @param from the index to search from
+     * @return the index of the line break preceding the delimiter or
+     * <tt>-1</tt> if there is no further delimiter
+     */
+    private static int nextDelimiter(String text, String delimiter, int from)
+    {
+        int index = text.indexOf("\n" + delimiter, from);
+
+        if (index == -1)
+            return -1;
+        return ((index > 0) && (text.charAt(index - 1) == '\r'))
+            ? index - 1
+            : index;
+    }
+
+    /**
+     * Parses the headers of a part and adds it.
+     *
+     * @param content the body
+     * @param text the body as text
+     * @param start the index the part starts at
+     * @param end the index the part ends at
+     */
+    private void addPart(byte[] content, String text, int start, int end)
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        int pos = start;
+
+        // headers end with an empty line
+        while (pos < end)
+        {
+            int eol = text.indexOf('\n', pos);
+            if ((eol == -1) || (eol > end))
+                eol = end;
+
+            String line = text.substring(pos, eol).trim();
+            pos = Math.min(eol + 1, end);
+
+            if (line.length() == 0)
+                break;
+
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(
+                    line.substring(0, colon).trim().toLowerCase(),
+                    line.substring(colon + 1).trim());
+        }
+
+        byte[] body = new byte[end - pos];
+        System.arraycopy(content, pos, body, 0, body.length);
+
+        Part part = new Part(
+            headers.get("content-type"),
+            stripAngleBrackets(headers.get("content-id")),
+            body);
+
+        parts.add(part);
+        if (part.contentId != null)
+            partsByContentId.put(part.contentId, part);
+    }
+
+    /**
+     * Returns the parts of the body in the order they appear in it.
+     *
+     * @return the parts of the body
+     */
+    public List<Part> getParts()
+    {
+        return parts;
+    }
+
+    /**
+     * Returns the part with the given Content-ID, which is the way RLMI
+     * documents and the start parameter refer to parts.
+     *
+     * @param contentId the Content-ID with or without angle brackets
+     * @return the part or <tt>null</tt> if there is none
+     */
+    public Part getPart(String contentId)
+    {
+        return partsByContentId.get(stripAngleBrackets(contentId));
+    }
+
+    /**
+     * Returns the root part of the body: the one named by the start
+     * parameter or the first one.
+     *
+     * @param start the start parameter of the content type of the body or
+     * <tt>null</tt>
+     * @return the root part or <tt>null</tt> if the body has no parts
+     */
+    public Part getRootPart(String start)
+    {
+        Part root = (start == null) ? null : getPart(start);
+
+        if ((root == null) && !parts.isEmpty())
+            root = parts.get(0);
+        return root;
+    }
+
+    /**
+     * Returns the value of a parameter of a content type, without quotes.
+     *
+     * @param contentType the content type header value
+     * @param name the name of the parameter
+     * @return the value of the parameter or <tt>null</tt>
+     */
+    public static String getParameter(String contentType, String name)
+    {
+        if (contentType == null)
+            return null;
+
+        String[] params = contentType.split(";");
+        for (int i = 1; i < params.length; i++)
+        {
+            int eq = params[i].indexOf('=');
+            if ((eq != -1)
+                    && params[i].substring(0, eq).trim()
+                            .equalsIgnoreCase(name))
+                return unquote(params[i].substring(eq + 1).trim());
+        }
+        return null;
+    }
+
+    /**
+     * Removes the double quotes around a parameter value.
+     *
+     * @param value the value
+     * @return the value without quotes or <tt>null</tt>
+     */
+    public static String unquote(String value)
+    {
+        if ((value != null)
+                && (value.length() >= 2)
+                && value.startsWith("\"")
+                && value.endsWith("\""))
+            return value.substring(1, value.length() - 1);
+        return value;
+    }
+
+    /**
+     * Removes the angle brackets around a Content-ID or a cid.
+     *
+     * @param contentId the Content-ID
+     * @return the Content-ID without brackets or <tt>null</tt>
+     */
+    private static String stripAngleBrackets(String contentId)
+    {
+        if (contentId == null)
+            return null;
+
+        contentId = contentId.trim();
+        if (contentId.startsWith("<") && contentId.endsWith(">"))
+            contentId = contentId.substring(1, contentId.length() - 1);
+        return contentId;
+    }
+
+    /**
+     * A body part.
+     */
+    public static class Part
+    {
+        /**
+         * The value of the Content-Type header of the part.
+         */
+        private final String contentType;
+
+        /**
+         * The Content-ID of the part, without angle brackets.
+         */
+        private final String contentId;
+
+        /**
+         * The body of the part.
+         */
+        private final byte[] content;
+
+        /**
+         * Creates a part.
+         *
+         * @param contentType the Content-Type header value
+         * @param contentId the Content-ID without angle brackets
+         * @param content the body
+         */
+        private Part(String contentType, String contentId, byte[] content)
+        {
+            this.contentType = contentType;
+            this.contentId = contentId;
+            this.content = content;
+        }
+
+        /**
+         * Returns the value of the Content-Type header of the part,
+         * including its parameters.
+         *
+         * @return the Content-Type header value or <tt>null</tt>
+         */
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        /**
+         * Determines whether the part has the given media type, ignoring
+         * the parameters.
+         *
+         * @param type the media type e.g. <tt>application/pidf+xml</tt>
+         * @return <tt>true</tt> if the part has the given media type
+         */
+        public boolean isContentType(String type)
+        {
+            if (contentType == null)
+                return false;
+
+            int semicolon = contentType.indexOf(';');
+            String mediaType = (semicolon == -1)
+                ? contentType
+                : contentType.substring(0, semicolon);
+
+            return mediaType.trim().equalsIgnoreCase(type);
+        }
+
+        /**
+         * Returns the Content-ID of the part, without angle brackets.
+         *
+         * @return the Content-ID or <tt>null</tt>
+         */
+        public String getContentId()
+        {
+            return contentId;
+        }
+
+        /**
+         * Returns the body of the part.
+         *
+         * @return the body of the part
+         */
+        public byte[] getContent()
+        {
+            return content;
+        }
+    }
+}
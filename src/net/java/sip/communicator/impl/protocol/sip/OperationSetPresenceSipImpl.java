@@ -9,6 +9,7 @@ package net.java.sip.communicator.impl.protocol.sip;
 import java.net.URI;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.sip.*;
 import javax.sip.address.*;
@@ -190,6 +191,16 @@ public class OperationSetPresenceSipImpl
     private static final String PACKAGE_ATTRIBUTE = "package";
     private static final String WATCHER_ELEMENT= "watcher";
 
+    // rlmi elements and attributes
+    private static final String RLMI_NS_VALUE   = "urn:ietf:params:xml:ns:rlmi";
+    private static final String LIST_ELEMENT    = "list";
+    private static final String RESOURCE_ELEMENT= "resource";
+    private static final String INSTANCE_ELEMENT= "instance";
+    private static final String URI_ATTRIBUTE   = "uri";
+    private static final String FULLSTATE_ATTRIBUTE = "fullState";
+    private static final String CID_ATTRIBUTE   = "cid";
+    private static final String REASON_ATTRIBUTE= "reason";
+
     /**
      * The <code>EventPackageNotifier</code> which provides the ability of this
      * instance to act as a notifier for the presence event package.
@@ -208,6 +219,33 @@ public class OperationSetPresenceSipImpl
      */
     private final EventPackageSubscriber watcherInfoSubscriber;
 
+    /**
+     * The URI of the resource list (RFC 4662) aggregating the presence of
+     * our contacts or <tt>null</tt> if every contact is subscribed to in its
+     * own dialog.
+     */
+    private final String resourceListUri;
+
+    /**
+     * The current subscription to {@link #resourceListUri} or <tt>null</tt>
+     * if there is none.
+     */
+    private volatile ResourceListSubscription resourceListSubscription = null;
+
+    /**
+     * Whether the server has rejected the subscription to
+     * {@link #resourceListUri} in a way showing it does not support resource
+     * lists, so that we stick to per-contact subscriptions.
+     */
+    private volatile boolean resourceListUnsupported = false;
+
+    /**
+     * The addresses of the contacts whose presence is delivered by the
+     * resource list subscription and which are therefore not polled.
+     */
+    private final Set<String> resourceListMembers
+        = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     /**
      * The authorization handler, asking client for authentication.
      */
@@ -372,6 +410,10 @@ public class OperationSetPresenceSipImpl
 
         this.sipStatusEnum = parentProvider.getSipStatusEnum();
         this.presenceStatus = sipStatusEnum.getStatus(SipStatusEnum.OFFLINE);
+
+        this.resourceListUri
+            = provider.getAccountID().getAccountPropertyString(
+                    SipAccountID.PRESENCE_RLS_URI);
     }
 
     /**
@@ -2854,6 +2896,10 @@ public class OperationSetPresenceSipImpl
              || !contact.isPersistent())
              return;
 
+         // the resource list subscription delivers its presence
+         if (resourceListMembers.contains(contact.getAddress()))
+             return;
+
          // Attempt to subscribe.
          try
          {
@@ -2895,6 +2941,23 @@ public class OperationSetPresenceSipImpl
      */
     private void unsubscribeToAllEventSubscribers()
     {
+        ResourceListSubscription listSubscription = resourceListSubscription;
+
+        resourceListSubscription = null;
+        resourceListMembers.clear();
+        if(listSubscription != null)
+        {
+            try
+            {
+                subscriber.unsubscribe(listSubscription.getAddress(), false);
+            }
+            catch (Throwable ex)
+            {
+                logger.error("Failed to send the unsubscription " +
+                        "for the resource list.", ex);
+            }
+        }
+
         if(this.watcherInfoSubscriber != null)
         {
             try
@@ -3151,11 +3214,16 @@ public class OperationSetPresenceSipImpl
                 return;
             }
 
-            // Subcribe to each contact in the list
-            for (ContactSipImpl contact : ssContactList
-                    .getAllContacts(ssContactList.getRootGroup()))
+            // Subcribe to the resource list or, if there is none, to each
+            // contact in the list. The contacts which are not members of the
+            // resource list will be subscribed to by the polling task.
+            if (!subscribeToResourceList())
             {
-                forcePollContact(contact);
+                for (ContactSipImpl contact : ssContactList
+                        .getAllContacts(ssContactList.getRootGroup()))
+                {
+                    forcePollContact(contact);
+                }
             }
 
             // create the new polling task
@@ -3190,6 +3258,14 @@ public class OperationSetPresenceSipImpl
             }
             // Destroy XCAP contacts
             ssContactList.destroy();
+
+            ResourceListSubscription listSubscription
+                = resourceListSubscription;
+            resourceListSubscription = null;
+            resourceListMembers.clear();
+            if ((subscriber != null) && (listSubscription != null))
+                subscriber.removeSubscription(listSubscription.getAddress());
+
             // if connection failed we have lost network connectivity
             // we must fire that all contacts has gone offline
             for (ContactSipImpl contact : ssContactList
@@ -3283,6 +3359,279 @@ public class OperationSetPresenceSipImpl
         }
     }
 
+    /**
+     * Subscribes to the resource list aggregating the presence of our
+     * contacts, if there is one and the server has not shown that it does
+     * not support resource lists.
+     *
+     * @return <tt>true</tt> if the subscription was sent; <tt>false</tt> if
+     * the contacts have to be subscribed to one by one
+     */
+    private boolean subscribeToResourceList()
+    {
+        if ((resourceListUri == null)
+                || (resourceListUri.length() == 0)
+                || resourceListUnsupported)
+            return false;
+
+        try
+        {
+            ResourceListSubscription listSubscription
+                = new ResourceListSubscription(
+                        parentProvider.parseAddressString(resourceListUri));
+
+            resourceListSubscription = listSubscription;
+            subscriber.subscribe(listSubscription);
+            return true;
+        }
+        catch (ParseException ex)
+        {
+            logger.error("Invalid resource list URI " + resourceListUri, ex);
+            resourceListUnsupported = true;
+        }
+        catch (OperationFailedException ex)
+        {
+            logger.error("Failed to create and send the subcription " +
+                    "for the resource list.", ex);
+        }
+        resourceListSubscription = null;
+        return false;
+    }
+
+    /**
+     * Stops relying on the resource list subscription and subscribes to
+     * each contact of the list in its own dialog.
+     *
+     * @param listSubscription the resource list subscription which failed
+     */
+    private void fallBackToContactSubscriptions(
+            ResourceListSubscription listSubscription)
+    {
+        if (resourceListSubscription != listSubscription)
+            return;
+
+        resourceListSubscription = null;
+        resourceListMembers.clear();
+
+        for (ContactSipImpl contact : ssContactList
+                .getAllContacts(ssContactList.getRootGroup()))
+        {
+            forcePollContact(contact);
+        }
+    }
+
+    /**
+     * Processes the multipart/related body of a NOTIFY of the resource list
+     * subscription: reads the states of the resources from the RLMI root
+     * part and hands the PIDF parts it refers to to
+     * {@link #setPidfPresenceStatus(String)}.
+     *
+     * @param listSubscription the resource list subscription or
+     * <tt>null</tt> for the body of a nested list
+     * @param members the set receiving the addresses of the contacts which
+     * are members of the list
+     * @param body the multipart/related body
+     * @param boundary the boundary parameter of the content type of
+     * <tt>body</tt>
+     * @param start the start parameter of the content type of <tt>body</tt>
+     * or <tt>null</tt>
+     * @return <tt>true</tt> if <tt>body</tt> was a valid resource list
+     * notification; otherwise, <tt>false</tt>
+     */
+    private boolean setResourceListStatus(
+            ResourceListSubscription listSubscription,
+            Set<String> members,
+            byte[] body,
+            String boundary,
+            String start)
+    {
+        if (boundary == null)
+        {
+            logger.error("no boundary in the resource list notification");
+            return false;
+        }
+
+        MultipartRelated multipart;
+        try
+        {
+            multipart = new MultipartRelated(body, boundary);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            logger.error("Malformed resource list notification", ex);
+            return false;
+        }
+
+        MultipartRelated.Part root = multipart.getRootPart(start);
+        if ((root == null)
+                || !root.isContentType(
+                        "application/" + EventPackageSubscriber.RLMI_XML))
+        {
+            logger.error("no rlmi document in the resource list notification");
+            return false;
+        }
+
+        Document doc = convertDocument(new String(root.getContent()));
+        if (doc == null)
+            return false;
+
+        if (logger.isDebugEnabled())
+            logger.debug("parsing:\n" + new String(root.getContent()));
+
+        // <list>
+        NodeList listList
+            = doc.getElementsByTagNameNS(RLMI_NS_VALUE, LIST_ELEMENT);
+        if (listList.getLength() == 0)
+        {
+            listList = doc.getElementsByTagNameNS(ANY_NS, LIST_ELEMENT);
+            if (listList.getLength() == 0)
+            {
+                logger.error("no list element in this document");
+                return false;
+            }
+        }
+        Element list = (Element) listList.item(0);
+
+        // nested lists are notified in the same body, with their own version
+        boolean topLevel = (listSubscription != null);
+        if (topLevel)
+        {
+            int currentVersion = -1;
+            try
+            {
+                currentVersion
+                    = Integer.parseInt(list.getAttribute(VERSION_ATTRIBUTE));
+            }
+            catch (NumberFormatException ex)
+            {
+                logger.error("Cannot parse version!", ex);
+            }
+
+            if((currentVersion != -1)
+                    && (currentVersion <= listSubscription.version))
+            {
+                logger.warn("Document version is old, ignore it.");
+                return true;
+            }
+            listSubscription.version = currentVersion;
+        }
+
+        NodeList resources
+            = list.getElementsByTagNameNS(ANY_NS, RESOURCE_ELEMENT);
+        for (int i = 0; i < resources.getLength(); i++)
+        {
+            Element resource = (Element) resources.item(i);
+
+            // the resources of nested lists are handled with their part
+            if (resource.getParentNode() != list)
+                continue;
+
+            ContactSipImpl contact
+                = resolveContactID(resource.getAttribute(URI_ATTRIBUTE));
+
+            NodeList instances
+                = resource.getElementsByTagNameNS(ANY_NS, INSTANCE_ELEMENT);
+            for (int j = 0; j < instances.getLength(); j++)
+            {
+                Element instance = (Element) instances.item(j);
+                String state = instance.getAttribute(STATE_ATTRIBUTE);
+
+                if (contact != null)
+                    setResourceState(
+                        contact,
+                        state,
+                        instance.getAttribute(REASON_ATTRIBUTE));
+
+                String cid = instance.getAttribute(CID_ATTRIBUTE);
+                MultipartRelated.Part part
+                    = (cid.length() == 0) ? null : multipart.getPart(cid);
+                if (part == null)
+                    continue;
+
+                if (part.isContentType("application/" + PIDF_XML))
+                {
+                    setPidfPresenceStatus(new String(part.getContent()));
+                }
+                else if (part.isContentType(
+                        EventPackageSubscriber.MULTIPART_CONTENT_TYPE + "/"
+                            + EventPackageSubscriber.RELATED_CONTENT_SUB_TYPE))
+                {
+                    setResourceListStatus(
+                        null,
+                        members,
+                        part.getContent(),
+                        MultipartRelated.getParameter(
+                            part.getContentType(), "boundary"),
+                        MultipartRelated.getParameter(
+                            part.getContentType(), "start"));
+                }
+            }
+
+            if (contact != null)
+                members.add(contact.getAddress());
+        }
+
+        // a full state lists all the members, a partial one only changes
+        if (topLevel)
+        {
+            if (Boolean.parseBoolean(list.getAttribute(FULLSTATE_ATTRIBUTE)))
+                resourceListMembers.retainAll(members);
+            resourceListMembers.addAll(members);
+        }
+
+        return true;
+    }
+
+    /**
+     * Applies the subscription state of a resource of the resource list to
+     * the contact it corresponds to, as the per-contact subscriptions do with
+     * their own subscription state.
+     *
+     * @param contact the contact
+     * @param state the state attribute of the instance of the resource
+     * @param reason the reason attribute of the instance of the resource
+     */
+    private void setResourceState(
+            ContactSipImpl contact,
+            String state,
+            String reason)
+    {
+        if (SubscriptionStateHeader.ACTIVE.equalsIgnoreCase(state))
+        {
+            // if contact was in pending state
+            // our authorization request was accepted
+            if(SubscriptionStateHeader.PENDING
+                    .equals(contact.getSubscriptionState())
+               && authorizationHandler != null)
+            {
+                authorizationHandler.processAuthorizationResponse(
+                        new AuthorizationResponse(
+                                AuthorizationResponse.ACCEPT, ""),
+                        contact);
+            }
+            contact.setSubscriptionState(SubscriptionStateHeader.ACTIVE);
+
+            if (!contact.isResolved())
+                finalizeSubscription(contact);
+        }
+        else if (SubscriptionStateHeader.PENDING.equalsIgnoreCase(state))
+        {
+            contact.setSubscriptionState(SubscriptionStateHeader.PENDING);
+        }
+        else if (SubscriptionStateHeader.TERMINATED.equalsIgnoreCase(state))
+        {
+            terminateSubscription(contact);
+
+            if (SubscriptionStateHeader.REJECTED.equalsIgnoreCase(reason))
+            {
+                // as this contact is rejected we mark it as not resolvable
+                // so we won't subscribe again (in offline poll task)
+                contact.setResolvable(false);
+            }
+            contact.setSubscriptionState(SubscriptionStateHeader.TERMINATED);
+        }
+    }
+
     /**
      * Frees allocated resources.
      */
@@ -3620,6 +3969,162 @@ public class OperationSetPresenceSipImpl
         }
     }
 
+    /**
+     * Represents a subscription to the presence event package of a resource
+     * list in the sense of RFC 4662, whose NOTIFY requests carry the
+     * presence of all the resources of the list.
+     */
+    private class ResourceListSubscription
+        extends EventPackageSubscriber.Subscription
+    {
+        /**
+         * The version of the last RLMI document received.
+         */
+        private int version = -1;
+
+        /**
+         * Initializes a new <tt>ResourceListSubscription</tt> to the resource
+         * list with a specific URI.
+         *
+         * @param toAddress the URI of the resource list
+         */
+        public ResourceListSubscription(Address toAddress)
+        {
+            super(toAddress);
+        }
+
+        /**
+         * Announces the support of the eventlist extension.
+         *
+         * @return <tt>true</tt>
+         */
+        @Override
+        protected boolean isEventList()
+        {
+            return true;
+        }
+
+        /**
+         * Fans the presence of the resources of the list out to the
+         * corresponding contacts. A body which is not a resource list
+         * notification means the server treats the URI as a single
+         * presentity, so we fall back to per-contact subscriptions.
+         *
+         * @param requestEvent the <tt>RequestEvent</tt> carrying the NOTIFY
+         * @param rawContent the body of the NOTIFY
+         */
+        @Override
+        protected void processActiveRequest(
+                RequestEvent requestEvent, byte[] rawContent)
+        {
+            if (rawContent == null)
+                return;
+
+            ContentTypeHeader ctheader
+                = (ContentTypeHeader) requestEvent.getRequest()
+                        .getHeader(ContentTypeHeader.NAME);
+
+            if ((ctheader != null)
+                    && EventPackageSubscriber.MULTIPART_CONTENT_TYPE
+                            .equalsIgnoreCase(ctheader.getContentType())
+                    && setResourceListStatus(
+                            this,
+                            new HashSet<String>(),
+                            rawContent,
+                            MultipartRelated.unquote(
+                                ctheader.getParameter("boundary")),
+                            MultipartRelated.unquote(
+                                ctheader.getParameter("start"))))
+                return;
+
+            logger.warn("The server does not support resource lists, "
+                    + "subscribing to each contact.");
+            resourceListUnsupported = true;
+            try
+            {
+                subscriber.unsubscribe(getAddress(), false);
+            }
+            catch (OperationFailedException ex)
+            {
+                logger.error("Failed to send the unsubscription " +
+                        "for the resource list.", ex);
+            }
+            fallBackToContactSubscriptions(this);
+        }
+
+        /**
+         * Falls back to per-contact subscriptions. If the server has shown
+         * that it does not support resource lists, it will not be asked
+         * again.
+         *
+         * @param responseEvent the <tt>ResponseEvent</tt> carrying the
+         * failure response
+         * @param statusCode the status code of the response
+         */
+        @Override
+        protected void processFailureResponse(
+                ResponseEvent responseEvent, int statusCode)
+        {
+            switch (statusCode)
+            {
+            case Response.NOT_FOUND:
+            case Response.FORBIDDEN:
+            case Response.METHOD_NOT_ALLOWED:
+            case Response.BAD_EXTENSION:
+            case Response.BAD_EVENT:
+            case Response.NOT_IMPLEMENTED:
+                resourceListUnsupported = true;
+                break;
+            }
+
+            if (logger.isInfoEnabled())
+                logger.info("Subscription to resource list " + getAddress()
+                        + " failed with " + statusCode
+                        + ", subscribing to each contact.");
+            fallBackToContactSubscriptions(this);
+        }
+
+        /**
+         * Logs the establishment of the subscription.
+         *
+         * @param responseEvent the <tt>ResponseEvent</tt> carrying the
+         * success response
+         * @param statusCode the status code of the response
+         */
+        @Override
+        protected void processSuccessResponse(
+                ResponseEvent responseEvent, int statusCode)
+        {
+            if(logger.isDebugEnabled())
+                logger.debug("Subscribed to resource list " + getAddress()
+                        + ", status: " + statusCode);
+        }
+
+        /**
+         * Falls back to per-contact subscriptions when the server ends the
+         * subscription to the list.
+         *
+         * @param requestEvent the <tt>RequestEvent</tt> carrying the NOTIFY
+         * @param reasonCode the reason of the termination
+         */
+        @Override
+        protected void processTerminatedRequest(
+                RequestEvent requestEvent, String reasonCode)
+        {
+            if (SubscriptionStateHeader.NO_RESOURCE.equalsIgnoreCase(
+                        reasonCode)
+                    || SubscriptionStateHeader.REJECTED.equalsIgnoreCase(
+                        reasonCode))
+                resourceListUnsupported = true;
+
+            if (logger.isInfoEnabled())
+                logger.info("Subscription to resource list " + getAddress()
+                        + " terminated (" + reasonCode
+                        + "), subscribing to each contact.");
+            fallBackToContactSubscriptions(this);
+        }
+    }
+
     /**
      * Represents a subscription to the presence.winfo event package.
      *
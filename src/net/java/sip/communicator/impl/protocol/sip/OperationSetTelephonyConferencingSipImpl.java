@@ -566,39 +566,18 @@ public class OperationSetTelephonyConferencingSipImpl
                 return null;
             }
 
-            ConferenceInfoDocument currentConfInfo
-                    = getCurrentConferenceInfo(callPeer);
-            ConferenceInfoDocument lastSentConfInfo
-                    = callPeer.getLastConferenceInfoSent();
+            // The rest of the code cannot handle a return value of null in
+            // case no NOTIFY needs to be sent, so always send a full document.
+            ConferenceInfoUpdate update
+                    = getConferenceInfoUpdate(callPeer, true);
 
-            //Uncomment this when the rest of the code can handle a return value
-            //of null in case no NOTIFY needs to be sent.
-            /*
-            ConferenceInfoDocument diff
-                    = lastSentConfInfo == null
-                      ? currentConfInfo
-                      :getConferenceInfoDiff(lastSentConfInfo, currentConfInfo);
-            */
-            ConferenceInfoDocument diff = currentConfInfo;
-
-            if (diff == null)
+            if (update == null)
                 return null;
             else
             {
-                int newVersion
-                        = lastSentConfInfo == null
-                        ? 1
-                        : lastSentConfInfo.getVersion() + 1;
-                diff.setVersion(newVersion);
-                currentConfInfo.setVersion(newVersion);
-
-                // We save currentConfInfo, because it is of state "full", while
-                // diff could be a partial
-                callPeer.setLastConferenceInfoSent(currentConfInfo);
-                callPeer.setLastConferenceInfoSentTimestamp(
-                        System.currentTimeMillis());
-
-                String xml = diff.toXml();
+                conferenceInfoSent(update);
+
+                String xml = update.getDocument().toXml();
                 byte[] notifyContent;
                 try
                 {
@@ -923,55 +902,42 @@ public class OperationSetTelephonyConferencingSipImpl
                 logger.info("Scheduling to send a conference-info NOTIFY to "
                         + callPeer);
                 callPeer.setConfInfoScheduled(true);
-                new Thread(new Runnable(){
-                    @Override
-                    public void run()
-                    {
-                        try
-                        {
-                            Thread.sleep(1 + MIN_NOTIFY_INTERVAL
-                                         - timeSinceLastNotify);
-                        }
-                        catch (InterruptedException ie) {}
-
-                        try
-                        {
-                            ConferenceEventPackageNotifier.this.notify(
-                                    subscription, subscriptionState, reason);
-                        }
-                        catch (OperationFailedException e)
+                scheduleConferenceInfo(
+                        new Runnable()
                         {
-                            logger.error("Failed to send NOTIFY request");
-                        }
-                    }
-                }).start();
+                            @Override
+                            public void run()
+                            {
+                                try
+                                {
+                                    ConferenceEventPackageNotifier.this.notify(
+                                            subscription,
+                                            subscriptionState,
+                                            reason);
+                                }
+                                catch (OperationFailedException e)
+                                {
+                                    logger.error(
+                                            "Failed to send NOTIFY request");
+                                }
+                            }
+                        },
+                        1 + MIN_NOTIFY_INTERVAL - timeSinceLastNotify);
 
                 return;
             }
 
-            ConferenceInfoDocument currentConfInfo
-                    = getCurrentConferenceInfo(callPeer);
-            ConferenceInfoDocument lastSentConfInfo
-                    = callPeer.getLastConferenceInfoSent();
+            ConferenceInfoUpdate update
+                    = getConferenceInfoUpdate(callPeer, false);
 
-            ConferenceInfoDocument diff
-                    = lastSentConfInfo == null
-                      ? currentConfInfo
-                      :getConferenceInfoDiff(lastSentConfInfo, currentConfInfo);
-
-            if (diff == null)
+            if (update == null)
             {
                 callPeer.setConfInfoScheduled(false);
                 return; //no change -- no need to send NOTIFY
             }
 
-            int newVersion
-                    = lastSentConfInfo == null
-                    ? 1
-                    : lastSentConfInfo.getVersion() + 1;
-            diff.setVersion(newVersion);
-
-            String xml = diff.toXml();
+            ConferenceInfoDocument confInfo = update.getDocument();
+            String xml = confInfo.toXml();
             byte[] notifyContent;
             try
             {
@@ -1004,16 +970,10 @@ public class OperationSetTelephonyConferencingSipImpl
                     if (logger.isInfoEnabled())
                     {
                         logger.info("Sending conference-info NOTIFY (version "
-                                + newVersion +") to " + callPeer);
+                                + confInfo.getVersion() +") to " + callPeer);
                     }
                     dialog.sendRequest(transac);
-
-                    // We save currentConfInfo, because it is of state "full",
-                    // while diff could be a partial
-                    currentConfInfo.setVersion(newVersion);
-                    callPeer.setLastConferenceInfoSent(currentConfInfo);
-                    callPeer.setLastConferenceInfoSentTimestamp(
-                            System.currentTimeMillis());
+                    conferenceInfoSent(update);
                 }
                 catch (SipException sex)
                 {
@@ -12,6 +12,7 @@ import gov.nist.javax.sip.stack.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import javax.sip.*;
 import javax.sip.address.*;
@@ -75,12 +76,73 @@ public class SipStackSharing
     /**
      * The candidate recipients to choose from when dispatching messages
      * received from one the JAIN-SIP <tt>SipProvider</tt>-s. for thread safety
-     * issues reasons, better iterate on a copy of that set using
-     * <tt>getSipListeners()</tt>.
+     * issues reasons, dispatching uses the immutable index of that set
+     * returned by <tt>getDispatchTable()</tt>.
      */
     private final Set<ProtocolProviderServiceSipImpl> listeners
         = new HashSet<ProtocolProviderServiceSipImpl>();
 
+    /**
+     * The index of the <tt>listeners</tt> used to find the recipient of
+     * incoming requests, or <tt>null</tt> if it has to be rebuilt because
+     * the listeners or their registrations have changed since it was built.
+     */
+    private volatile DispatchTable dispatchTable = null;
+
+    /**
+     * The number of times the <tt>dispatchTable</tt> was dropped, which
+     * tells whether it was dropped while it was being built.
+     */
+    private final AtomicLong dispatchTableVersion = new AtomicLong();
+
+    /**
+     * Drops the <tt>dispatchTable</tt> whenever a listener changes its
+     * registration state, as the contact address custom parameter of an
+     * account is only known once it has started registering.
+     */
+    private final RegistrationStateChangeListener dispatchTableInvalidator
+        = new RegistrationStateChangeListener()
+        {
+            public void registrationStateChanged(
+                    RegistrationStateChangeEvent evt)
+            {
+                invalidateDispatchTable();
+            }
+        };
+
+    /**
+     * The number of requests dispatched by the user part of their
+     * Request-URI, matching a single account.
+     */
+    private final AtomicLong dispatchedByUser = new AtomicLong();
+
+    /**
+     * The number of requests dispatched by the contact address custom
+     * parameter of their Request-URI.
+     */
+    private final AtomicLong dispatchedByCustomParam = new AtomicLong();
+
+    /**
+     * The number of requests dispatched by the host of their To header.
+     */
+    private final AtomicLong dispatchedByToHost = new AtomicLong();
+
+    /**
+     * The number of requests dispatched to an arbitrary account, either
+     * among several matching ones or because none matched.
+     */
+    private final AtomicLong dispatchedArbitrarily = new AtomicLong();
+
+    /**
+     * The number of requests which could not be dispatched.
+     */
+    private final AtomicLong dispatchFailures = new AtomicLong();
+
+    /**
+     * The number of times the <tt>dispatchTable</tt> was built.
+     */
+    private final AtomicLong dispatchTableBuilds = new AtomicLong();
+
     /**
      * The property indicating the preferred UDP and TCP
      * port to bind to for clear communications.
@@ -159,7 +221,12 @@ public class SipStackSharing
         {
             if(this.listeners.size() == 0)
                 startListening();
-            this.listeners.add(listener);
+            if (this.listeners.add(listener))
+            {
+                listener.addRegistrationStateChangeListener(
+                        dispatchTableInvalidator);
+                invalidateDispatchTable();
+            }
             if (logger.isTraceEnabled())
                 logger.trace(this.listeners.size() + " listeners now");
         }
@@ -176,7 +243,12 @@ public class SipStackSharing
     {
         synchronized(this.listeners)
         {
-            this.listeners.remove(listener);
+            if (this.listeners.remove(listener))
+            {
+                listener.removeRegistrationStateChangeListener(
+                        dispatchTableInvalidator);
+                invalidateDispatchTable();
+            }
 
             int listenerCount = listeners.size();
             if (logger.isTraceEnabled())
@@ -187,16 +259,68 @@ public class SipStackSharing
     }
 
     /**
-     * Returns a copy of the <tt>listeners</tt> (= candidate recipients) set.
+     * Returns the index of the <tt>listeners</tt> (= candidate recipients),
+     * building it if the listeners or their registrations have changed since
+     * it was last built.
      *
-     * @return a copy of the <tt>listeners</tt> set.
+     * @return the index of the <tt>listeners</tt>.
      */
-    private Set<ProtocolProviderServiceSipImpl> getSipListeners()
+    private DispatchTable getDispatchTable()
     {
-        synchronized(this.listeners)
+        DispatchTable table = dispatchTable;
+
+        if (table == null)
         {
-            return new HashSet<ProtocolProviderServiceSipImpl>(this.listeners);
+            synchronized(this.listeners)
+            {
+                table = dispatchTable;
+                if (table == null)
+                {
+                    long version = dispatchTableVersion.get();
+
+                    table = new DispatchTable(this.listeners);
+                    dispatchTableBuilds.incrementAndGet();
+
+                    // a registration may have changed while the table was
+                    // being built, outside of the lock, in which case the
+                    // table serves this request only and is built again for
+                    // the next one
+                    if (dispatchTableVersion.get() == version)
+                    {
+                        dispatchTable = table;
+                        if (dispatchTableVersion.get() != version)
+                            dispatchTable = null;
+                    }
+                }
+            }
         }
+        return table;
+    }
+
+    /**
+     * Drops the <tt>dispatchTable</tt> so that it is built again for the
+     * next incoming request.
+     */
+    private void invalidateDispatchTable()
+    {
+        dispatchTableVersion.incrementAndGet();
+        dispatchTable = null;
+    }
+
+    /**
+     * Returns a description of the counters of the dispatching of incoming
+     * requests to the <tt>listeners</tt>.
+     *
+     * @return a description of the dispatching counters.
+     */
+    String getDispatchCounters()
+    {
+        return "byUser=" + dispatchedByUser
+            + " byCustomParam=" + dispatchedByCustomParam
+            + " byToHost=" + dispatchedByToHost
+            + " arbitrarily=" + dispatchedArbitrarily
+            + " failed=" + dispatchFailures
+            + " tableBuilds=" + dispatchTableBuilds;
     }
 
     /**
@@ -412,6 +536,8 @@ public class SipStackSharing
             this.stack.stop();
             if (logger.isTraceEnabled())
                 logger.trace("stopped listening");
+            if (logger.isInfoEnabled())
+                logger.info("Request dispatching: " + getDispatchCounters());
         }
         catch(ObjectInUseException ex)
         {
@@ -820,6 +946,11 @@ public class SipStackSharing
      * Note that this method takes a <tt>Request</tt> as param, and not a
      * <tt>ServerTransaction</tt>, because sometimes <tt>RequestEvent</tt>s
      * have no associated <tt>ServerTransaction</tt>.
+     * <p>
+     * The candidates are looked up in the <tt>DispatchTable</tt> by the user
+     * of the Request-URI and, if several accounts share it, by the contact
+     * address custom parameter, so only the accounts sharing the user are
+     * checked against the address the request was received from.
      *
      * @param request the <tt>Request</tt> to find a recipient for.
      * @return a suitable <tt>ProtocolProviderServiceSipImpl</tt>.
@@ -829,48 +960,35 @@ public class SipStackSharing
         if(request == null)
         {
             logger.error("request shouldn't be null.");
+            dispatchFailures.incrementAndGet();
             return null;
         }
 
-        List<ProtocolProviderServiceSipImpl> currentListenersCopy
-            = new ArrayList<ProtocolProviderServiceSipImpl>(
-                                this.getSipListeners());
+        DispatchTable table = getDispatchTable();
+
+        URI requestURI = request.getRequestURI();
+        String requestUser
+            = requestURI.isSipURI() ? ((SipURI) requestURI).getUser() : null;
 
         // Let's first narrow down candidate choice by comparing
         // addresses and ports (no point in delivering to a provider with a
         // non matching IP address  since they will reject it anyway).
-        filterByAddress(currentListenersCopy, request);
-
-        if(currentListenersCopy.size() == 0)
+        List<ProtocolProviderServiceSipImpl> candidates
+            = filterByAddress(table.getListenersForUser(requestUser), request);
+        ProtocolProviderServiceSipImpl anyListener
+            = candidates.isEmpty()
+                ? findFirstByAddress(table.getListeners(), request)
+                : candidates.get(0);
+
+        if(anyListener == null)
         {
             logger.error("no listeners");
+            dispatchFailures.incrementAndGet();
             return null;
         }
 
-        URI requestURI = request.getRequestURI();
-
         if(requestURI.isSipURI())
         {
-            String requestUser = ((SipURI) requestURI).getUser();
-
-            List<ProtocolProviderServiceSipImpl> candidates =
-                new ArrayList<ProtocolProviderServiceSipImpl>();
-
-            // check if the Request-URI username is
-            // one of ours usernames
-            for(ProtocolProviderServiceSipImpl listener : currentListenersCopy)
-            {
-                String ourUserID = listener.getAccountID().getUserID();
-                //logger.trace(ourUserID + " *** " + requestUser);
-                if(ourUserID.equals(requestUser))
-                {
-                    if (logger.isTraceEnabled())
-                        logger.trace("suitable candidate found: "
-                                + listener.getAccountID());
-                    candidates.add(listener);
-                }
-            }
-
             // the perfect match
             // every other case is approximation
             if(candidates.size() == 1)
@@ -880,6 +998,7 @@ public class SipStackSharing
                 if (logger.isTraceEnabled())
                     logger.trace("Will dispatch to \""
                             + perfectMatch.getAccountID() + "\"");
+                dispatchedByUser.incrementAndGet();
                 return perfectMatch;
             }
 
@@ -888,19 +1007,23 @@ public class SipStackSharing
             {
                 // check if a custom param exists in the contact
                 // address (set for registrar accounts)
-                for (ProtocolProviderServiceSipImpl candidate : candidates)
+                String hostValue = ((SipURI) requestURI).getParameter(
+                        SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
+                if (hostValue != null)
                 {
-                    String hostValue = ((SipURI) requestURI).getParameter(
-                            SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
-                    if (hostValue == null)
-                        continue;
-                    if (hostValue.equals(candidate
-                                .getContactAddressCustomParamValue()))
+                    ProtocolProviderServiceSipImpl candidate
+                        = findFirstByAddress(
+                                table.getListenersForCustomParam(
+                                        requestUser, hostValue),
+                                request);
+
+                    if (candidate != null)
                     {
                         if (logger.isTraceEnabled())
                             logger.trace("Will dispatch to \""
                                     + candidate.getAccountID() + "\" because "
                                     + "\" the custom param was set");
+                        dispatchedByCustomParam.incrementAndGet();
                         return candidate;
                     }
                 }
@@ -910,48 +1033,49 @@ public class SipStackSharing
 
                 // check if the To header field host part
                 // matches any of our SIP hosts
-                for(ProtocolProviderServiceSipImpl candidate : candidates)
+                URI fromURI = ((FromHeader) request
+                        .getHeader(FromHeader.NAME)).getAddress().getURI();
+                URI toURI = ((ToHeader) request
+                        .getHeader(ToHeader.NAME)).getAddress().getURI();
+
+                if(fromURI.isSipURI() && toURI.isSipURI())
                 {
-                    URI fromURI = ((FromHeader) request
-                            .getHeader(FromHeader.NAME)).getAddress().getURI();
-                    if(fromURI.isSipURI() == false)
-                        continue;
-                    SipURI ourURI = (SipURI) candidate
-                        .getOurSipAddress((SipURI) fromURI).getURI();
-                    String ourHost = ourURI.getHost();
-
-                    URI toURI = ((ToHeader) request
-                            .getHeader(ToHeader.NAME)).getAddress().getURI();
-                    if(toURI.isSipURI() == false)
-                        continue;
                     String toHost = ((SipURI) toURI).getHost();
 
-                    //logger.trace(toHost + "***" + ourHost);
-                    if(toHost.equals(ourHost))
+                    for(ProtocolProviderServiceSipImpl candidate : candidates)
                     {
-                        if (logger.isTraceEnabled())
-                            logger.trace("Will dispatch to \""
+                        SipURI ourURI = (SipURI) candidate
+                            .getOurSipAddress((SipURI) fromURI).getURI();
+                        String ourHost = ourURI.getHost();
+
+                        //logger.trace(toHost + "***" + ourHost);
+                        if(toHost.equals(ourHost))
+                        {
+                            if (logger.isTraceEnabled())
+                                logger.trace("Will dispatch to \""
                                     + candidate.getAccountID() + "\" because "
-                                    + "host in the To: is the same as in our AOR");
-                        return candidate;
+                                    + "host in the To: is the same as in our "
+                                    + "AOR");
+                            dispatchedByToHost.incrementAndGet();
+                            return candidate;
+                        }
                     }
                 }
 
                 // fallback on the first candidate
-                ProtocolProviderServiceSipImpl target =
-                    candidates.iterator().next();
+                ProtocolProviderServiceSipImpl target = candidates.get(0);
                 logger.info("Will randomly dispatch to \""
                         + target.getAccountID()
                         + "\" because there is ambiguity on the username from"
                         + " the Request-URI");
                 if (logger.isTraceEnabled())
                     logger.trace("\n" + request);
+                dispatchedArbitrarily.incrementAndGet();
                 return target;
             }
 
             // fallback on any account
-            ProtocolProviderServiceSipImpl target =
-                currentListenersCopy.iterator().next();
+            ProtocolProviderServiceSipImpl target = anyListener;
             if (logger.isDebugEnabled())
                 logger.debug("Will randomly dispatch to \"" + target
                         .getAccountID()
@@ -959,46 +1083,96 @@ public class SipStackSharing
                         + "is unknown or empty");
             if (logger.isTraceEnabled())
                 logger.trace("\n" + request);
+            dispatchedArbitrarily.incrementAndGet();
             return target;
         }
         else
         {
             logger.error("Request-URI is not a SIP URI, dropping");
         }
+        dispatchFailures.incrementAndGet();
         return null;
     }
 
     /**
-     * Removes from the specified list of candidates providers connected to a
+     * Returns the specified candidates except the providers connected to a
      * registrar that does not match the IP address that we are receiving a
      * request from.
      *
      * @param candidates the list of providers we've like to filter.
      * @param request the request that we are currently dispatching
+     * @return the candidates which may receive <tt>request</tt>, in the
+     * order of <tt>candidates</tt>.
      */
-    private void filterByAddress(
+    private static List<ProtocolProviderServiceSipImpl> filterByAddress(
                     List<ProtocolProviderServiceSipImpl> candidates,
                     Request                              request)
     {
-        Iterator<ProtocolProviderServiceSipImpl> iterPP = candidates.iterator();
-        while (iterPP.hasNext())
+        List<ProtocolProviderServiceSipImpl> result = null;
+
+        for (int i = 0; i < candidates.size(); i++)
         {
-            ProtocolProviderServiceSipImpl candidate = iterPP.next();
+            ProtocolProviderServiceSipImpl candidate = candidates.get(i);
 
-            if(candidate.getRegistrarConnection() == null)
+            if (isFromRegistrarOf(candidate, request))
             {
-                //RegistrarLess connections are ok
-                continue;
+                if (result != null)
+                    result.add(candidate);
             }
-
-            if (   !candidate.getRegistrarConnection().isRegistrarless()
-                && !candidate.getRegistrarConnection()
-                        .isRequestFromSameConnection(request))
+            else if (result == null)
             {
-                iterPP.remove();
+                // copy only once something is filtered out
+                result = new ArrayList<ProtocolProviderServiceSipImpl>(
+                        candidates.subList(0, i));
             }
         }
 
+        return (result == null) ? candidates : result;
+    }
+
+    /**
+     * Returns the first of the specified candidates which is not connected
+     * to a registrar that does not match the IP address that we are receiving
+     * a request from.
+     *
+     * @param candidates the list of providers to choose from.
+     * @param request the request that we are currently dispatching
+     * @return the first candidate which may receive <tt>request</tt> or
+     * <tt>null</tt> if there is none.
+     */
+    private static ProtocolProviderServiceSipImpl findFirstByAddress(
+                    List<ProtocolProviderServiceSipImpl> candidates,
+                    Request                              request)
+    {
+        for (ProtocolProviderServiceSipImpl candidate : candidates)
+        {
+            if (isFromRegistrarOf(candidate, request))
+                return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * Determines whether <tt>candidate</tt> may receive <tt>request</tt>,
+     * i.e. whether it is registrarless or <tt>request</tt> comes from the
+     * address its registrar answers from.
+     *
+     * @param candidate the provider to check.
+     * @param request the request that we are currently dispatching
+     * @return <tt>true</tt> if <tt>candidate</tt> may receive
+     * <tt>request</tt>.
+     */
+    private static boolean isFromRegistrarOf(
+                    ProtocolProviderServiceSipImpl candidate,
+                    Request                        request)
+    {
+        SipRegistrarConnection registrarConnection
+            = candidate.getRegistrarConnection();
+
+        //RegistrarLess connections are ok
+        return registrarConnection == null
+            || registrarConnection.isRegistrarless()
+            || registrarConnection.isRequestFromSameConnection(request);
     }
 
     /**
@@ -1350,4 +1524,122 @@ public class SipStackSharing
                     protocolProvider.getRegistrarConnection().getTransport());
         }
     }
+
+    /**
+     * An immutable index of the listeners by the user part of their account
+     * ID and by the contact address custom parameter they register with,
+     * built whenever the listeners or their registrations change.
+     */
+    private static class DispatchTable
+    {
+        /**
+         * All listeners.
+         */
+        private final List<ProtocolProviderServiceSipImpl> listeners;
+
+        /**
+         * The listeners by the user part of their account ID.
+         */
+        private final Map<String, List<ProtocolProviderServiceSipImpl>> byUser
+            = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+
+        /**
+         * The listeners by the user part of their account ID and their
+         * contact address custom parameter, see {@link #key(String, String)}.
+         */
+        private final Map<String, List<ProtocolProviderServiceSipImpl>>
+            byCustomParam
+                = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+
+        /**
+         * Indexes <tt>listeners</tt>.
+         *
+         * @param listeners the listeners to index.
+         */
+        DispatchTable(Collection<ProtocolProviderServiceSipImpl> listeners)
+        {
+            this.listeners
+                = new ArrayList<ProtocolProviderServiceSipImpl>(listeners);
+
+            for (ProtocolProviderServiceSipImpl listener : this.listeners)
+            {
+                String user = listener.getAccountID().getUserID();
+
+                add(byUser, user, listener);
+
+                String customParam
+                    = listener.getContactAddressCustomParamValue();
+                if (customParam != null)
+                    add(byCustomParam, key(user, customParam), listener);
+            }
+        }
+
+        /**
+         * Returns all listeners.
+         *
+         * @return all listeners.
+         */
+        List<ProtocolProviderServiceSipImpl> getListeners()
+        {
+            return listeners;
+        }
+
+        /**
+         * Returns the listeners whose account has the specified user.
+         *
+         * @param user the user part of a Request-URI.
+         * @return the listeners whose account has <tt>user</tt>.
+         */
+        List<ProtocolProviderServiceSipImpl> getListenersForUser(String user)
+        {
+            return get(byUser, user);
+        }
+
+        /**
+         * Returns the listeners whose account has the specified user and
+         * which register with the specified contact address custom parameter.
+         *
+         * @param user the user part of a Request-URI.
+         * @param customParam the value of the contact address custom
+         * parameter of a Request-URI.
+         * @return the matching listeners.
+         */
+        List<ProtocolProviderServiceSipImpl> getListenersForCustomParam(
+                String user,
+                String customParam)
+        {
+            return get(byCustomParam, key(user, customParam));
+        }
+
+        private static String key(String user, String customParam)
+        {
+            return user + '\u0000' + customParam;
+        }
+
+        private static void add(
+                Map<String, List<ProtocolProviderServiceSipImpl>> map,
+                String key,
+                ProtocolProviderServiceSipImpl listener)
+        {
+            List<ProtocolProviderServiceSipImpl> list = map.get(key);
+
+            if (list == null)
+            {
+                list = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+                map.put(key, list);
+            }
+            list.add(listener);
+        }
+
+        private static List<ProtocolProviderServiceSipImpl> get(
+                Map<String, List<ProtocolProviderServiceSipImpl>> map,
+                String key)
+        {
+            List<ProtocolProviderServiceSipImpl> list = map.get(key);
+
+            return (list == null)
+                ? Collections.<ProtocolProviderServiceSipImpl>emptyList()
+                : list;
+        }
+    }
 }
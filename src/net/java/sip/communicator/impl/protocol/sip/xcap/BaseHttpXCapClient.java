@@ -9,6 +9,7 @@ package net.java.sip.communicator.impl.protocol.sip.xcap;
 import java.io.*;
 import java.net.*;
 import java.net.URI;
+import java.util.*;
 
 import javax.sip.address.*;
 
@@ -27,6 +28,8 @@ import org.apache.http.client.*;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.*;
 import org.apache.http.impl.client.*;
+import org.apache.http.impl.conn.*;
+import org.apache.http.util.*;
 import org.osgi.framework.*;
 
 /**
@@ -95,6 +98,42 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     private CertificateService certificateVerification;
 
+    /**
+     * The maximum number of connections kept open to the XCAP server.
+     */
+    private static final int MAX_CONNECTIONS = 4;
+
+    /**
+     * The HTTP client shared by the requests of this client, keeping its
+     * connections open between them. Created on the first request after
+     * connecting.
+     */
+    private DefaultHttpClient httpClient;
+
+    /**
+     * The documents read from the server with their ETags.
+     */
+    private final XCapDocumentCache documentCache = new XCapDocumentCache();
+
+    /**
+     * The responses to the requests sent by {@link #prefetch(List)} which
+     * have not been asked for yet, by the URIs they were read from.
+     */
+    private final Map<URI, XCapHttpResponse> prefetched
+        = new HashMap<URI, XCapHttpResponse>();
+
+    /**
+     * The time in milliseconds during which prefetched responses are served
+     * without asking the server again.
+     */
+    private static final long PREFETCH_VALIDITY = 10000;
+
+    /**
+     * The time the requests of the responses in {@link #prefetched} were
+     * sent at.
+     */
+    private long prefetchTime;
+
     /**
      * Creates an instance of this XCAP client.
      */
@@ -152,6 +191,20 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         this.userAddress = null;
         this.password = null;
         connected = false;
+
+        synchronized (prefetched)
+        {
+            prefetched.clear();
+        }
+
+        DefaultHttpClient client;
+        synchronized (this)
+        {
+            client = httpClient;
+            httpClient = null;
+        }
+        if (client != null)
+            client.getConnectionManager().shutdown();
     }
 
     /**
@@ -179,16 +232,19 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     protected XCapHttpResponse get(URI uri)
             throws XCapException
     {
-        DefaultHttpClient httpClient = null;
         try
         {
-            httpClient = createHttpClient();
-
-            HttpGet getMethod = new HttpGet(uri);
-            getMethod.setHeader("Connection", "close");
+            XCapHttpResponse result;
+            synchronized (prefetched)
+            {
+                if (System.currentTimeMillis() - prefetchTime
+                        > PREFETCH_VALIDITY)
+                    prefetched.clear();
+                result = prefetched.remove(uri);
+            }
+            if (result == null)
+                result = executeGet(uri);
 
-            HttpResponse response = httpClient.execute(getMethod);
-            XCapHttpResponse result = createResponse(response);
             if (logger.isDebugEnabled())
             {
                 byte[] contentBytes = result.getContent();
@@ -227,11 +283,107 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             showError(e, null, errorMessage);
             throw new XCapException(errorMessage, e);
         }
-        finally
+    }
+
+    /**
+     * Gets a resource from the server, revalidating the cached copy of the
+     * resource if there is one.
+     *
+     * @param uri the resource uri.
+     * @return the server response or the cached copy if the server answered
+     * that it has not been modified.
+     * @throws IOException if there is error during reading the resource.
+     */
+    private XCapHttpResponse executeGet(URI uri)
+            throws IOException
+    {
+        XCapHttpResponse cached = documentCache.get(uri);
+
+        HttpGet getMethod = new HttpGet(uri);
+        if (cached != null)
+            getMethod.setHeader(HEADER_IF_NONE_MATCH, cached.getETag());
+
+        HttpResponse response = getHttpClient().execute(getMethod);
+
+        if ((cached != null)
+                && (response.getStatusLine().getStatusCode()
+                        == HttpStatus.SC_NOT_MODIFIED))
+        {
+            EntityUtils.consume(response.getEntity());
+            if (logger.isDebugEnabled())
+                logger.debug("Resource " + uri + " not modified");
+            return cached;
+        }
+
+        XCapHttpResponse result = createResponse(response);
+
+        if (result.getHttpCode() == HttpStatus.SC_OK)
+            documentCache.put(uri, result);
+        else if (result.getHttpCode() == HttpStatus.SC_NOT_FOUND)
+            documentCache.remove(uri);
+        return result;
+    }
+
+    /**
+     * Gets a batch of resources from the server at once, over parallel
+     * connections, so that the {@link #get(XCapResourceId)} calls which
+     * follow return without a round trip. Failures are ignored here and
+     * reported by the {@link #get(XCapResourceId)} calls.
+     *
+     * @param resourceIds the identifiers of the resources.
+     */
+    protected void prefetch(List<XCapResourceId> resourceIds)
+    {
+        List<Thread> threads = new ArrayList<Thread>();
+
+        synchronized (prefetched)
+        {
+            prefetchTime = System.currentTimeMillis();
+        }
+
+        for (XCapResourceId resourceId : resourceIds)
         {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
+            final URI resourceUri = getResourceURI(resourceId);
+            Thread thread = new Thread("XCapPrefetch")
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        XCapHttpResponse response = executeGet(resourceUri);
+
+                        synchronized (prefetched)
+                        {
+                            prefetched.put(resourceUri, response);
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        if (logger.isDebugEnabled())
+                            logger.debug(
+                                "Cannot prefetch resource " + resourceUri, t);
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
         }
+
     }
 
     /**
@@ -276,14 +428,13 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     public XCapHttpResponse put(XCapResource resource)
             throws XCapException
     {
-        DefaultHttpClient httpClient = null;
         try
         {
-            httpClient = createHttpClient();
-
             URI resourceUri = getResourceURI(resource.getId());
+            // the document changes, whichever part of it is put
+            invalidate(resource.getId());
+
             HttpPut putMethod = new HttpPut(resourceUri);
-            putMethod.setHeader("Connection", "close");
             StringEntity stringEntity = new StringEntity(resource.getContent());
             stringEntity.setContentType(resource.getContentType());
             stringEntity.setContentEncoding("UTF-8");
@@ -298,7 +449,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(putMethod);
+            HttpResponse response = getHttpClient().execute(putMethod);
             return createResponse(response);
         }
         catch (IOException e)
@@ -308,11 +459,6 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                     resource.getId().toString());
             throw new XCapException(errorMessage, e);
         }
-        finally
-        {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
-        }
     }
 
     /**
@@ -327,14 +473,12 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             throws XCapException
     {
         assertConnected();
-        DefaultHttpClient httpClient = null;
         try
         {
-            httpClient = createHttpClient();
-
             URI resourceUri = getResourceURI(resourceId);
+            invalidate(resourceId);
+
             HttpDelete deleteMethod = new HttpDelete(resourceUri);
-            deleteMethod.setHeader("Connection", "close");
 
             if (logger.isDebugEnabled())
             {
@@ -344,7 +488,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(deleteMethod);
+            HttpResponse response = getHttpClient().execute(deleteMethod);
             return createResponse(response);
         }
         catch (IOException e)
@@ -354,11 +498,6 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                     resourceId.toString());
             throw new XCapException(errorMessage, e);
         }
-        finally
-        {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
-        }
     }
 
     /**
@@ -415,21 +554,51 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     }
 
     /**
-     * Creates HTTP client with special parameters.
+     * Drops the cached and prefetched copies of the document a resource is
+     * part of, because the resource is being changed.
+     *
+     * @param resourceId the resource identifier.
+     */
+    private void invalidate(XCapResourceId resourceId)
+    {
+        URI documentUri
+            = getResourceURI(new XCapResourceId(resourceId.getDocument()));
+
+        documentCache.remove(documentUri);
+        synchronized (prefetched)
+        {
+            prefetched.remove(documentUri);
+        }
+    }
+
+    /**
+     * Gets the HTTP client shared by the requests of this client, creating
+     * it with special parameters and a pool of persistent connections on the
+     * first request after connecting.
      *
      * @return the HTTP client.
      */
-    private DefaultHttpClient createHttpClient()
+    private synchronized DefaultHttpClient getHttpClient()
         throws IOException
     {
-        XCapCredentialsProvider credentialsProvider
-            = new XCapCredentialsProvider();
-        credentialsProvider.setCredentials(
-            AuthScope.ANY,
-            new UsernamePasswordCredentials(getUserName(), password));
-
-        return HttpUtils.getHttpClient(
-            null , null, uri.getHost(), credentialsProvider);
+        if (httpClient == null)
+        {
+            XCapCredentialsProvider credentialsProvider
+                = new XCapCredentialsProvider();
+            credentialsProvider.setCredentials(
+                AuthScope.ANY,
+                new UsernamePasswordCredentials(getUserName(), password));
+
+            PoolingClientConnectionManager connectionManager
+                = new PoolingClientConnectionManager();
+            connectionManager.setMaxTotal(MAX_CONNECTIONS);
+            connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+
+            httpClient = HttpUtils.getHttpClient(
+                null , null, uri.getHost(), credentialsProvider,
+                connectionManager);
+        }
+        return httpClient;
     }
 
     /**
@@ -458,6 +627,11 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             xcapHttpResponse.setContent(content);
             xcapHttpResponse.setETag(eTag);
         }
+        else
+        {
+            // release the connection to the pool
+            EntityUtils.consume(response.getEntity());
+        }
         xcapHttpResponse.setHttpCode(statusCode);
         return xcapHttpResponse;
     }
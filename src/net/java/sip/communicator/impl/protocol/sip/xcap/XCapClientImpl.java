@@ -8,6 +8,8 @@ package net.java.sip.communicator.impl.protocol.sip.xcap;
 
 import java.io.*;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.sip.address.*;
 
@@ -91,6 +93,20 @@ public class XCapClientImpl extends BaseHttpXCapClient implements XCapClient
                 presContentSupported = true;
             }
         }
+
+        // the contact list reads these documents right after connecting
+        List<XCapResourceId> startupDocuments
+            = new ArrayList<XCapResourceId>();
+        if (resourceListsSupported)
+        {
+            startupDocuments.add(
+                new XCapResourceId(getResourceListsDocument()));
+        }
+        if (presRulesSupported)
+        {
+            startupDocuments.add(new XCapResourceId(getPresRulesDocument()));
+        }
+        prefetch(startupDocuments);
     }
 
     /**
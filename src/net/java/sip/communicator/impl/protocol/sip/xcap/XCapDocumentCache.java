@@ -0,0 +1,273 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.sip.xcap;
+
+import java.io.*;
+import java.net.URI;
+import java.security.*;
+import java.util.*;
+
+import net.java.sip.communicator.impl.protocol.sip.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * Keeps the XCAP documents last read from the server together with their
+ * ETags, in memory and on disk, so that reading them again only costs a
+ * conditional GET answered with 304 Not Modified when they have not changed,
+ * even after a restart.
+ */
+class XCapDocumentCache
+{
+    /**
+     * Class logger.
+     */
+    private static final Logger logger =
+            Logger.getLogger(XCapDocumentCache.class);
+
+    /**
+     * The name of the cache directory.
+     */
+    private static final String CACHE_DIRECTORY = "xcapcache";
+
+    /**
+     * The cached documents by their URIs.
+     */
+    private final Map<URI, XCapHttpResponse> documents
+        = new HashMap<URI, XCapHttpResponse>();
+
+    /**
+     * The directory storing the documents or <tt>null</tt> if they are only
+     * kept in memory.
+     */
+    private final File directory;
+
+    /**
+     * Creates a cache storing its documents in the private cache directory
+     * of the application, or only in memory if there is none.
+     */
+    XCapDocumentCache()
+    {
+        File dir = null;
+
+        try
+        {
+            FileAccessService fileAccessService
+                = SipActivator.getFileAccessService();
+
+            if (fileAccessService != null)
+                dir = fileAccessService.getPrivatePersistentDirectory(
+                        CACHE_DIRECTORY, FileCategory.CACHE);
+            if ((dir != null) && !dir.exists() && !dir.mkdirs())
+                dir = null;
+        }
+        catch (Exception e)
+        {
+            logger.warn("XCAP documents will not be cached on disk", e);
+            dir = null;
+        }
+        directory = dir;
+    }
+
+    /**
+     * Returns the cached document with the given URI.
+     *
+     * @param uri the URI of the document
+     * @return the cached document or <tt>null</tt>
+     */
+    synchronized XCapHttpResponse get(URI uri)
+    {
+        XCapHttpResponse document = documents.get(uri);
+
+        if ((document == null) && (directory != null))
+        {
+            document = load(uri);
+            if (document != null)
+                documents.put(uri, document);
+        }
+        return document;
+    }
+
+    /**
+     * Caches a document read from the server, if it has an ETag to
+     * revalidate it with.
+     *
+     * @param uri the URI of the document
+     * @param document the successful response carrying the document
+     */
+    synchronized void put(URI uri, XCapHttpResponse document)
+    {
+        if (document.getETag() == null)
+        {
+            remove(uri);
+            return;
+        }
+
+        documents.put(uri, document);
+        if (directory != null)
+            store(uri, document);
+    }
+
+    /**
+     * Drops the document with the given URI, e.g. because it has been
+     * changed or deleted.
+     *
+     * @param uri the URI of the document
+     */
+    synchronized void remove(URI uri)
+    {
+        documents.remove(uri);
+        if (directory != null)
+        {
+            File file = getFile(uri);
+
+            if (file.exists() && !file.delete())
+                logger.warn("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Reads a document from disk.
+     *
+     * @param uri the URI of the document
+     * @return the document or <tt>null</tt> if it is not stored or cannot
+     * be read
+     */
+    private XCapHttpResponse load(URI uri)
+    {
+        File file = getFile(uri);
+
+        if (!file.exists())
+            return null;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+
+            // the name is a hash, check we have the right document
+            if (!uri.toString().equals(in.readUTF()))
+                return null;
+
+            XCapHttpResponse document = new XCapHttpResponse();
+            document.setHttpCode(200);
+            document.setETag(in.readUTF());
+            String contentType = in.readUTF();
+            document.setContentType(
+                (contentType.length() == 0) ? null : contentType);
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            document.setContent(content);
+            return document;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot read cached XCAP document " + uri, e);
+            return null;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a document to disk.
+     *
+     * @param uri the URI of the document
+     * @param document the document
+     */
+    private void store(URI uri, XCapHttpResponse document)
+    {
+        File file = getFile(uri);
+        DataOutputStream out = null;
+
+        try
+        {
+            byte[] content = document.getContent();
+            if (content == null)
+                content = new byte[0];
+
+            out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeUTF(uri.toString());
+            out.writeUTF(document.getETag());
+            out.writeUTF(
+                (document.getContentType() == null)
+                    ? ""
+                    : document.getContentType());
+            out.writeInt(content.length);
+            out.write(content);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot cache XCAP document " + uri, e);
+            file.delete();
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the file storing the document with the given URI, named after
+     * the hash of the URI.
+     *
+     * @param uri the URI of the document
+     * @return the file storing the document
+     */
+    private File getFile(URI uri)
+    {
+        StringBuilder name = new StringBuilder();
+
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(
+                    uri.toString().getBytes("UTF-8"));
+
+            for (byte b : hash)
+            {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16));
+                name.append(Character.forDigit(b & 0xF, 16));
+            }
+        }
+        catch (GeneralSecurityException e)
+        {
+            // SHA-1 is always available
+            throw new IllegalStateException(e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // UTF-8 is always available
+            throw new IllegalStateException(e);
+        }
+
+        return new File(directory, name.toString());
+    }
+}
@@ -57,6 +57,17 @@ public class ReplacementServiceDirectImageImpl
     private static final String MAX_IMG_SIZE = 
         "net.java.sip.communicator.impl.replacement.directimage.MAX_IMG_SIZE";
 
+    /**
+     * The time in milliseconds after which the probing of an image link gives
+     * up connecting or waiting for the response.
+     */
+    private static final int PROBE_TIMEOUT = 10000;
+
+    /**
+     * Probes the size and the content type of image links.
+     */
+    private static final LinkMetadataCache.Resolver prober = new ImageProber();
+
     /**
      * Constructor for <tt>ReplacementServiceDirectImageImpl</tt>.
      */
@@ -141,36 +152,22 @@ public class ReplacementServiceDirectImageImpl
      */
     public int getImageSize(String sourceString)
     {
-        int length = -1;
-        try
-        {
-            
-            URL url = new URL(sourceString);
-            String protocol = url.getProtocol();
-            if (protocol.equals("http") || protocol.equals("https"))
-            {
-                HttpURLConnection connection =
-                    (HttpURLConnection)url.openConnection();
-                length = connection.getContentLength();
-                connection.disconnect();
-            }
-            else if (protocol.equals("ftp"))
-            {
-                FTPUtils ftp = new FTPUtils(sourceString);
-                length = ftp.getSize();
-                ftp.disconnect();
-            }
-            
-            if (length > imgMaxSize)
-            {
-                length = -1;
-            }
-        }
-        catch (Exception e)
-        {
-            logger.debug("Failed to get the length of the image in bytes", e);
-        }
-        return length;
+        return getImageSize(getMetadata(sourceString));
+    }
+
+    /**
+     * Returns the size of an image in bytes.
+     * @param metadata the metadata of the image link.
+     * @return the file size in bytes of the image; -1 if the size isn't
+     * available or exceeds the max allowed image size.
+     */
+    private int getImageSize(LinkMetadataCache.Metadata metadata)
+    {
+        long length = metadata.size;
+
+        return ((length > imgMaxSize) || (length > Integer.MAX_VALUE))
+            ? -1
+            : (int) length;
     }
 
     /**
@@ -183,33 +180,111 @@ public class ReplacementServiceDirectImageImpl
     @Override
     public boolean isDirectImage(String sourceString)
     {
-        boolean isDirectImage = false;
-        try
+        return isDirectImage(getMetadata(sourceString));
+    }
+
+    /**
+     * Returns true if the content type of an image link is an image.
+     * @param metadata the metadata of the image link.
+     * @return true if the content type of the resource is an image.
+     */
+    private boolean isDirectImage(LinkMetadataCache.Metadata metadata)
+    {
+        String contentType = metadata.contentType;
+
+        return (contentType != null) && contentType.contains("image");
+    }
+
+    /**
+     * Returns true if the resource pointed by sourceString is an image which
+     * is not larger than the max allowed image size.
+     * @param sourceString the original image link.
+     * @return true if the resource pointed by sourceString is an image which
+     * may be previewed.
+     */
+    public boolean isPreviewableImage(String sourceString)
+    {
+        LinkMetadataCache.Metadata metadata = getMetadata(sourceString);
+
+        return isDirectImage(metadata) && (getImageSize(metadata) != -1);
+    }
+
+    /**
+     * Returns the size and the content type of the resource pointed by
+     * sourceString. They are probed once for both {@link #getImageSize(String)}
+     * and {@link #isDirectImage(String)} and kept in the
+     * <tt>LinkMetadataCache</tt> so that the same link is not probed again
+     * each time it is displayed.
+     *
+     * @param sourceString the image link.
+     * @return the metadata of the image link.
+     */
+    private LinkMetadataCache.Metadata getMetadata(String sourceString)
+    {
+        return LinkMetadataCache.resolve(SOURCE_NAME, sourceString, prober);
+    }
+
+    /**
+     * Probes the size and the content type of the resource pointed by an
+     * image link using a single connection.
+     */
+    private static class ImageProber
+        implements LinkMetadataCache.Resolver
+    {
+        /**
+         * Probes the size and the content type of the resource pointed by an
+         * image link.
+         *
+         * @param sourceString the image link.
+         * @return the size and the content type of the resource.
+         * @throws Exception if probing fails.
+         */
+        public LinkMetadataCache.Metadata resolve(String sourceString)
+            throws Exception
         {
             URL url = new URL(sourceString);
             String protocol = url.getProtocol();
+            long length = -1;
+            String contentType = null;
+
             if (protocol.equals("http") || protocol.equals("https"))
             {
                 HttpURLConnection connection =
                     (HttpURLConnection)url.openConnection();
-                isDirectImage = connection.getContentType().contains("image");
-                connection.disconnect();
+
+                connection.setConnectTimeout(PROBE_TIMEOUT);
+                connection.setReadTimeout(PROBE_TIMEOUT);
+                try
+                {
+                    length = connection.getContentLength();
+                    contentType = connection.getContentType();
+                }
+                finally
+                {
+                    connection.disconnect();
+                }
             }
             else if (protocol.equals("ftp"))
             {
-                if (sourceString.endsWith(".png")
-                    || sourceString.endsWith(".jpg")
-                    || sourceString.endsWith(".gif"))
+                FTPUtils ftp = new FTPUtils(sourceString, PROBE_TIMEOUT);
+
+                try
+                {
+                    length = ftp.getSize();
+                }
+                finally
                 {
-                    isDirectImage = true;
+                    ftp.disconnect();
                 }
+
+                if (sourceString.endsWith(".png"))
+                    contentType = "image/png";
+                else if (sourceString.endsWith(".jpg"))
+                    contentType = "image/jpeg";
+                else if (sourceString.endsWith(".gif"))
+                    contentType = "image/gif";
             }
+            return new LinkMetadataCache.Metadata(length, contentType, null);
         }
-        catch (Exception e)
-        {
-            logger.debug("Failed to retrieve content type information for"
-                + sourceString, e);
-        }
-        return isDirectImage;
     }
 }
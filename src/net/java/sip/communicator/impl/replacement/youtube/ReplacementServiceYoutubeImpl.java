@@ -32,6 +32,17 @@ public class ReplacementServiceYoutubeImpl
         "(?<=>)(https?\\:\\/\\/(www\\.)*?youtube\\.com"
         + "\\/watch\\?v=([a-zA-Z0-9_\\-]+))([?&]\\w+=[\\w-]+)*(?=</A>)";
 
+    /**
+     * The regex used to extract the video ID from a matched link.
+     */
+    private static final Pattern VIDEO_ID_PATTERN
+        = Pattern.compile(
+                "https?:\\/\\/(?:[0-9A-Z-]+\\.)?(?:youtu\\"
+                    + ".be\\/|youtube\\.com\\S*[^\\w\\-\\s])([\\w\\-]{11})"
+                    + "(?=[^\\w\\-]|$)(?![?=&+%\\w]*(?:['\"][^<>]*>|<\\/a>))"
+                    + "[?=&+%\\w]*",
+                Pattern.CASE_INSENSITIVE);
+
     /**
      * Configuration label shown in the config form.
      */
@@ -58,12 +69,7 @@ public class ReplacementServiceYoutubeImpl
      */
     public String getReplacement(String sourceString)
     {
-        final String pattern = "https?:\\/\\/(?:[0-9A-Z-]+\\.)?(?:youtu\\"
-            + ".be\\/|youtube\\.com\\S*[^\\w\\-\\s])([\\w\\-]{11})(?=[^\\"
-            + "w\\-]|$)(?![?=&+%\\w]*(?:['\"][^<>]*>|<\\/a>))[?=&+%\\w]*";
-        final Pattern compiledPattern
-            = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-        Matcher matcher = compiledPattern.matcher(sourceString);
+        Matcher matcher = VIDEO_ID_PATTERN.matcher(sourceString);
         String thumbUrl = sourceString;
         
         while (matcher.find())
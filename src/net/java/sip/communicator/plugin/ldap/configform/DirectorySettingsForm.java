@@ -82,6 +82,12 @@ public class DirectorySettingsForm
     private JCheckBox encryptionBox = new SIPCommCheckBox(
             Resources.getString("impl.ldap.USE_SSL"));
 
+    /**
+     * component holding whether a copy of the directory is kept locally
+     */
+    private JCheckBox replicatedBox = new SIPCommCheckBox(
+            Resources.getString("impl.ldap.REPLICATED"));
+
     /**
      * component displaying the port number
      */
@@ -664,6 +670,16 @@ public class DirectorySettingsForm
         c.anchor = GridBagConstraints.LINE_START;
         searchPanel.add(scopeList, c);
 
+        c.gridx = 1;
+        c.gridy = 3;
+        c.weightx = 0;
+        c.weighty = 0;
+        c.gridwidth = GridBagConstraints.REMAINDER;
+        c.insets = new Insets(2, 5, 2, 5);
+        c.fill = GridBagConstraints.NONE;
+        c.anchor = GridBagConstraints.LINE_START;
+        searchPanel.add(replicatedBox, c);
+
         c.gridx = 0;
         c.gridy = 0;
         c.weightx = 0;
@@ -745,6 +761,7 @@ public class DirectorySettingsForm
         this.baseDNField.setText(settings.getBaseDN());
 
         this.scopeList.setSelectedIndex(settings.getScope().ordinal());
+        this.replicatedBox.setSelected(settings.isReplicated());
         this.authList.setSelectedIndex(settings.getAuth().ordinal());
         this.bindDNField.setEnabled(settings.getAuth() == Auth.SIMPLE);
         this.passwordField.setEnabled(settings.getAuth() == Auth.SIMPLE);
@@ -848,6 +865,8 @@ public class DirectorySettingsForm
                 break;
         }
 
+        settings.setReplicated(replicatedBox.isSelected());
+
         settings.setMailSearchFields(mergeString(mailField.getText()));
         settings.setMailSuffix(mailSuffixField.getText());
         settings.setWorkPhoneSearchFields(
@@ -24,8 +24,9 @@ public interface HistoryService {
 
     /**
      * Property and values used to be set in configuration
-     * Used in implementation to cache every opened history document
-     * or not to cache them and to access them on every read
+     * Used in implementation to cache the records of opened history documents
+     * (within configurable bounds) or not to cache them and to access them on
+     * every read
      */
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
@@ -50,6 +50,18 @@ public interface HistoryWriter {
      */
     void addRecord(String[] propertyValues, Date timestamp) throws IOException;
 
+    /**
+     * Stores the passed records in the order they are given. Implementations
+     * write them with as few disk operations as possible, so adding a batch
+     * is cheaper than adding its records one by one.
+     *
+     * @param records
+     *            The records to be added.
+     *
+     * @throws IOException
+     */
+    void addRecords(List<HistoryRecord> records) throws IOException;
+
     /**
      * Updates a record by searching for record with idProperty which have idValue
      * and updating/creating the property with newValue.
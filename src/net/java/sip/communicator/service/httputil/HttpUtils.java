@@ -24,6 +24,7 @@ import org.apache.http.client.*;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.params.*;
 import org.apache.http.client.utils.*;
+import org.apache.http.conn.*;
 import org.apache.http.conn.scheme.*;
 import org.apache.http.entity.*;
 import org.apache.http.entity.mime.*;
@@ -581,13 +582,52 @@ public class HttpUtils
         final String address,
         CredentialsProvider credentialsProvider)
         throws IOException
+    {
+        return getHttpClient(
+            usernamePropertyName,
+            passwordPropertyName,
+            address,
+            credentialsProvider,
+            null);
+    }
+
+    /**
+     * Returns the preconfigured http client like
+     * {@link #getHttpClient(String, String, String, CredentialsProvider)},
+     * managing its connections with <tt>connectionManager</tt>. Clients
+     * sending many requests to the same server use a pooling connection
+     * manager to keep the connections open between requests.
+     *
+     * @param usernamePropertyName the property to use to retrieve/store
+     * username value if protected site is hit, for username
+     * ConfigurationService service is used.
+     * @param passwordPropertyName the property to use to retrieve/store
+     * password value if protected site is hit, for password
+     * CredentialsStorageService service is used.
+     * @param address the address we will be connecting to
+     * @param credentialsProvider if not null provider will bre reused
+     * in the new client
+     * @param connectionManager the connection manager of the new client or
+     * <tt>null</tt> to use a single connection manager
+     * @return the http client.
+     */
+    public static DefaultHttpClient getHttpClient(
+        String usernamePropertyName,
+        String passwordPropertyName,
+        final String address,
+        CredentialsProvider credentialsProvider,
+        ClientConnectionManager connectionManager)
+        throws IOException
     {
         HttpParams params = new BasicHttpParams();
         params.setParameter(CoreConnectionPNames.SO_TIMEOUT, 10000);
         params.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 10000);
         params.setParameter(ClientPNames.MAX_REDIRECTS, MAX_REDIRECTS);
 
-        DefaultHttpClient httpClient = new DefaultHttpClient(params);
+        DefaultHttpClient httpClient
+            = (connectionManager == null)
+                ? new DefaultHttpClient(params)
+                : new DefaultHttpClient(connectionManager, params);
 
         HttpProtocolParams.setUserAgent(httpClient.getParams(),
             System.getProperty("sip-communicator.application.name")
@@ -263,6 +263,22 @@ public interface LdapDirectorySettings
      */
     public void setGlobalPhonePrefix(String prefix);
 
+    /**
+     * Returns whether a copy of the directory is kept locally, so that it is
+     * searched without asking the server.
+     *
+     * @return whether a copy of the directory is kept locally
+     */
+    public boolean isReplicated();
+
+    /**
+     * Sets whether a copy of the directory is kept locally, so that it is
+     * searched without asking the server.
+     *
+     * @param replicated whether a copy of the directory is kept locally
+     */
+    public void setReplicated(boolean replicated);
+
     /**
      * Saves these settings through the configuration service
      *
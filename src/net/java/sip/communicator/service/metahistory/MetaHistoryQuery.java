@@ -0,0 +1,57 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.metahistory;
+
+import java.util.*;
+
+/**
+ * A search started through the <tt>MetaHistoryService</tt> which queries the
+ * wrapped history services in the background. The merged records are handed
+ * to a <tt>MetaHistoryQueryListener</tt> in chronological order as soon as
+ * all services have answered, and the query may be canceled at any time.
+ */
+public interface MetaHistoryQuery
+{
+    /**
+     * Indicates that this query has been completed.
+     */
+    public static final int QUERY_COMPLETED = 0;
+
+    /**
+     * Indicates that this query has been canceled.
+     */
+    public static final int QUERY_CANCELED = 1;
+
+    /**
+     * Indicates that this query has been stopped because of an error.
+     */
+    public static final int QUERY_ERROR = 2;
+
+    /**
+     * Indicates that this query is in progress.
+     */
+    public static final int QUERY_IN_PROGRESS = 3;
+
+    /**
+     * Cancels this query. The services still searching are interrupted and
+     * no further records are delivered.
+     */
+    public void cancel();
+
+    /**
+     * Returns the status of this query. One of the static constants QUERY_XXXX
+     * defined in this class.
+     * @return the status of this query
+     */
+    public int getStatus();
+
+    /**
+     * Returns the records delivered so far, sorted by date.
+     * @return the records delivered so far
+     */
+    public List<Object> getRecords();
+}
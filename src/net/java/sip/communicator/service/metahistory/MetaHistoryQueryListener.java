@@ -0,0 +1,32 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.metahistory;
+
+/**
+ * Notified of the records found by a <tt>MetaHistoryQuery</tt> and of its
+ * end. The methods are called on the thread which merged the records, not
+ * on the event dispatch thread.
+ */
+public interface MetaHistoryQueryListener
+{
+    /**
+     * Called for each record found by a query, in chronological order.
+     *
+     * @param query the query which found the record
+     * @param record the record, one of the records returned by the wrapped
+     * history services
+     */
+    public void recordReceived(MetaHistoryQuery query, Object record);
+
+    /**
+     * Called once when a query has been completed, canceled or stopped by
+     * an error.
+     *
+     * @param query the query whose status has changed
+     */
+    public void queryStatusChanged(MetaHistoryQuery query);
+}
@@ -180,6 +180,21 @@ public interface MetaHistoryService
             Object descriptor, int count)
         throws RuntimeException;
 
+    /**
+     * Starts searching for the supplied number of recent records, without
+     * waiting for the services to answer.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param count messages count
+     * @param listener the listener notified of the records found and of the
+     *  end of the search
+     * @return the started query, which may be canceled
+     */
+    public MetaHistoryQuery findLast(String[] services,
+            Object descriptor, int count, MetaHistoryQueryListener listener);
+
     /**
      * Returns the supplied number of recent records after the given date
      *
@@ -8,6 +8,7 @@ package net.java.sip.communicator.service.protocol.media;
 
 import java.beans.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
@@ -109,12 +110,59 @@ public abstract class AbstractOperationSetTelephonyConferencing<
     private static final String PARTIAL_NOTIFICATIONS_PROP_NAME
             = "RFC4575_PARTIAL_NOTIFICATIONS_ENABLED";
 
+    /**
+     * The time in milliseconds for which the state of a conference is reused
+     * without being read again, unless the conference changes, so that
+     * notifying all the <tt>CallPeer</tt>s of a conference reads it once.
+     */
+    private static final long CONFERENCE_STATE_MAX_AGE = 200;
+
+    /**
+     * Waits for the time at which the conference-info documents which are
+     * delayed, because they would follow too closely the previous ones sent
+     * to the same <tt>CallPeer</tt>, are to be sent, whatever the protocol.
+     * The sending itself is handed off to {@link #conferenceInfoExecutor}.
+     */
+    private static final ScheduledExecutorService conferenceInfoScheduler
+        = Executors.newSingleThreadScheduledExecutor(
+                new ConferenceInfoThreadFactory("Conference-info scheduler"));
+
+    /**
+     * Sends the delayed conference-info documents. Sending may block, for
+     * instance on network requests, so the documents are not sent by the
+     * single thread of {@link #conferenceInfoScheduler}.
+     */
+    private static final ExecutorService conferenceInfoExecutor
+        = Executors.newCachedThreadPool(
+                new ConferenceInfoThreadFactory("Conference-info notifier"));
+
     /**
      * The <tt>OperationSetBasicTelephony</tt> implementation which this
      * instance uses to carry out tasks such as establishing <tt>Call</tt>s.
      */
     private OperationSetBasicTelephonyT basicTelephony;
 
+    /**
+     * The last read states of the conferences of the <tt>Call</tt>s, by
+     * <tt>Call</tt>.
+     */
+    private final Map<Call, ConferenceState> conferenceStates
+        = new WeakHashMap<Call, ConferenceState>();
+
+    /**
+     * The number of changes of the conferences this instance has been told
+     * about, used to tell whether the states in {@link #conferenceStates} may
+     * be reused. Guarded by <tt>conferenceStates</tt>.
+     */
+    private int conferenceChangeCount = 0;
+
+    /**
+     * The last conference-info documents sent to the <tt>CallPeer</tt>s, by
+     * <tt>CallPeer</tt>.
+     */
+    private final Map<CallPeer, SentConferenceInfo> sentConferenceInfos
+        = new WeakHashMap<CallPeer, SentConferenceInfo>();
+
     /**
      * The <tt>CallPeerListener</tt> which listens to modifications in the
      * properties/state of <tt>CallPeer</tt> so that NOTIFY requests can be sent
@@ -252,6 +300,11 @@ public abstract class AbstractOperationSetTelephonyConferencing<
         }
 
         call.removeCallChangeListener(this);
+
+        synchronized (conferenceStates)
+        {
+            conferenceStates.remove(call);
+        }
     }
 
     /**
@@ -286,6 +339,10 @@ public abstract class AbstractOperationSetTelephonyConferencing<
 
         callPeer.removeCallPeerListener(callPeerListener);
         callPeer.getMediaHandler().removePropertyChangeListener(this);
+        synchronized (sentConferenceInfos)
+        {
+            sentConferenceInfos.remove(callPeer);
+        }
         callPeersChanged(event);
     }
 
@@ -597,7 +654,10 @@ public abstract class AbstractOperationSetTelephonyConferencing<
         CallConference conference = call.getConference();
 
         if (conference == null)
+        {
+            conferenceChanged();
             notifyCallPeers(call);
+        }
         else
         {
             /*
@@ -612,8 +672,11 @@ public abstract class AbstractOperationSetTelephonyConferencing<
 
                 if (opSet instanceof AbstractOperationSetTelephonyConferencing)
                 {
-                    ((AbstractOperationSetTelephonyConferencing) opSet)
-                        .notifyCallPeers(conferenceCall);
+                    AbstractOperationSetTelephonyConferencing conferencing
+                        = (AbstractOperationSetTelephonyConferencing) opSet;
+
+                    conferencing.conferenceChanged();
+                    conferencing.notifyCallPeers(conferenceCall);
                 }
             }
         }
@@ -1000,51 +1063,263 @@ public abstract class AbstractOperationSetTelephonyConferencing<
     }
 
     /**
-     * Creates a <tt>ConferenceInfoDocument</tt> which describes the current
-     * state of the conference in which <tt>callPeer</tt> participates. The
-     * created document contains a "full" description (as opposed to a partial
-     * description, see RFC4575).
+     * Notes that the conferences of the <tt>Call</tt>s of this instance may
+     * have changed, so that their states are read again.
+     */
+    private void conferenceChanged()
+    {
+        synchronized (conferenceStates)
+        {
+            conferenceChangeCount++;
+        }
+    }
+
+    /**
+     * Returns the state of the conference in which a specific <tt>Call</tt>
+     * participates. The state is read once for all the <tt>CallPeer</tt>s to
+     * notify of a change and is given a new version only if it differs from
+     * the previous one.
+     *
+     * @param call the <tt>Call</tt>
+     * @return the state of the conference in which <tt>call</tt>
+     * participates, or <tt>null</tt> if it could not be read
+     */
+    private ConferenceState getConferenceState(Call call)
+    {
+        synchronized (conferenceStates)
+        {
+            ConferenceState state = conferenceStates.get(call);
+            long now = System.currentTimeMillis();
+
+            if ((state != null)
+                    && (state.changeCount == conferenceChangeCount)
+                    && (now - state.readTime < CONFERENCE_STATE_MAX_AGE))
+                return state;
+
+            ConferenceInfoDocument users;
+            try
+            {
+                users = new ConferenceInfoDocument();
+            }
+            catch (XMLException e)
+            {
+                return null;
+            }
+            users.setState(ConferenceInfoDocument.State.FULL);
+
+            List<CallPeer> conferenceCallPeers
+                = CallConference.getCallPeers(call);
+            users.setUserCount(
+                    1 /* the local peer/user */ + conferenceCallPeers.size());
+            for (CallPeer conferenceCallPeer : conferenceCallPeers)
+            {
+                if (conferenceCallPeer instanceof MediaAwareCallPeer<?,?,?>)
+                    addPeerToConferenceInfo(
+                            users,
+                            (MediaAwareCallPeer<?,?,?>)conferenceCallPeer,
+                            true);
+            }
+
+            if ((state == null)
+                    || !conferenceInfoDocumentsMatch(state.users, users))
+            {
+                state
+                    = new ConferenceState(
+                            users,
+                            (state == null) ? 1 : state.version + 1);
+                conferenceStates.put(call, state);
+            }
+            state.readTime = now;
+            state.changeCount = conferenceChangeCount;
+            return state;
+        }
+    }
+
+    /**
+     * Returns the changes of the remote users between two states of a
+     * conference, computed once for all the <tt>CallPeer</tt>s which were
+     * sent the older state.
+     *
+     * @param from the older state
+     * @param to the newer state
+     * @return the changes of the remote users from <tt>from</tt> to
+     * <tt>to</tt>
+     */
+    private UsersChange getUsersChange(ConferenceState from, ConferenceState to)
+    {
+        if (from == to)
+            return UsersChange.NONE;
+
+        synchronized (to.changes)
+        {
+            UsersChange change = to.changes.get(from);
+
+            if (change == null)
+            {
+                change = new UsersChange();
+                for (ConferenceInfoDocument.User user : from.users.getUsers())
+                {
+                    if (to.users.getUser(user.getEntity()) == null)
+                        change.deleted.add(user.getEntity());
+                }
+                for (ConferenceInfoDocument.User user : to.users.getUsers())
+                {
+                    if (!usersMatch(user, from.users.getUser(user.getEntity())))
+                        change.changed.add(user);
+                }
+                to.changes.put(from, change);
+            }
+            return change;
+        }
+    }
+
+    /**
+     * Creates the conference-info document to send to a specific
+     * <tt>CallPeer</tt> in order to update it with the current state of the
+     * conference in which it participates. The state of the remote users is
+     * shared by all the <tt>CallPeer</tt>s of the conference, so only the
+     * local user is described for each of them and, unless a full document is
+     * required, only the users which changed since the last document sent to
+     * <tt>callPeer</tt> are included.
      *
-     * @return a <tt>ConferenceInfoDocument</tt> which describes the current
-     * state of the conference in which this <tt>CallPeer</tt> participates.
+     * @param callPeer the <tt>CallPeer</tt> to send the document to
+     * @param full <tt>true</tt> to create a document with state "full" even
+     * if a partial one would do
+     * @return the update to send, its document having its version set, or
+     * <tt>null</tt> if nothing changed since the last document sent to
+     * <tt>callPeer</tt> and <tt>full</tt> is <tt>false</tt>, or if the
+     * document could not be created
      */
-    protected ConferenceInfoDocument getCurrentConferenceInfo(
-            MediaAwareCallPeer<?,?,?> callPeer)
+    protected ConferenceInfoUpdate getConferenceInfoUpdate(
+            MediaAwareCallPeer<?,?,?> callPeer,
+            boolean full)
     {
+        Call call = callPeer.getCall();
+        if (call == null)
+            return null;
+
+        ConferenceState state = getConferenceState(call);
+        if (state == null)
+            return null;
+
         ConferenceInfoDocument confInfo;
+        ConferenceInfoDocument localUser;
         try
         {
-           confInfo = new ConferenceInfoDocument();
+            confInfo = new ConferenceInfoDocument();
+            localUser = new ConferenceInfoDocument();
         }
         catch (XMLException e)
         {
             return null;
         }
-        confInfo.setState(ConferenceInfoDocument.State.FULL);
-        confInfo.setEntity(getLocalEntity(callPeer));
+        addPeerToConferenceInfo(localUser, callPeer, false);
 
-        Call call = callPeer.getCall();
-        if (call == null)
-            return null;
+        SentConferenceInfo lastSent;
+        synchronized (sentConferenceInfos)
+        {
+            lastSent = sentConferenceInfos.get(callPeer);
+        }
 
-        List<CallPeer> conferenceCallPeers = CallConference.getCallPeers(call);
-        confInfo.setUserCount(
-                1 /* the local peer/user */ + conferenceCallPeers.size());
+        boolean localUserChanged = true;
+        UsersChange change = null;
 
-        /* The local user */
-        addPeerToConferenceInfo(confInfo, callPeer, false);
+        if (lastSent != null)
+        {
+            localUserChanged
+                = !usersMatch(
+                        localUser.getUsers().get(0),
+                        lastSent.localUser.getUsers().get(0));
+            change = getUsersChange(lastSent.state, state);
+            if (!full && !localUserChanged && change.isEmpty())
+                return null;
+        }
 
-        /* Remote users */
-        for (CallPeer conferenceCallPeer : conferenceCallPeers)
+        confInfo.setEntity(getLocalEntity(callPeer));
+        confInfo.setUserCount(state.users.getUserCount());
+        confInfo.setVersion((lastSent == null) ? 1 : lastSent.version + 1);
+
+        /*
+         * When all the users have changed and none has been removed, the
+         * partial document would list them all: send it as a full one, just
+         * in case the receiver lost the previous document somehow.
+         */
+        if (full
+                || (change == null)
+                || !isPartialNotificationEnabled()
+                || (localUserChanged
+                    && change.deleted.isEmpty()
+                    && (change.changed.size()
+                        == state.users.getUsers().size())))
         {
-            if (conferenceCallPeer instanceof MediaAwareCallPeer<?,?,?>)
-                addPeerToConferenceInfo(
-                        confInfo,
-                        (MediaAwareCallPeer<?,?,?>)conferenceCallPeer,
-                        true);
+            confInfo.setState(ConferenceInfoDocument.State.FULL);
+            confInfo.addUser(localUser.getUsers().get(0));
+            for (ConferenceInfoDocument.User user : state.users.getUsers())
+                confInfo.addUser(user);
+        }
+        else
+        {
+            confInfo.setState(ConferenceInfoDocument.State.PARTIAL);
+            confInfo.setUsersState(ConferenceInfoDocument.State.PARTIAL);
+            if (localUserChanged)
+                confInfo.addUser(localUser.getUsers().get(0));
+            for (String entity : change.deleted)
+            {
+                confInfo.addNewUser(entity)
+                    .setState(ConferenceInfoDocument.State.DELETED);
+            }
+            for (ConferenceInfoDocument.User user : change.changed)
+                confInfo.addUser(user);
         }
 
-        return confInfo;
+        return new ConferenceInfoUpdate(callPeer, confInfo, state, localUser);
+    }
+
+    /**
+     * Notes that the document of a specific <tt>ConferenceInfoUpdate</tt> has
+     * been sent, so that the next update sent to the same <tt>CallPeer</tt> is
+     * relative to it.
+     *
+     * @param update the update which has been sent
+     */
+    protected void conferenceInfoSent(ConferenceInfoUpdate update)
+    {
+        synchronized (sentConferenceInfos)
+        {
+            sentConferenceInfos.put(
+                    update.callPeer,
+                    new SentConferenceInfo(
+                            update.document.getVersion(),
+                            update.state,
+                            update.localUser));
+        }
+        update.callPeer.setLastConferenceInfoSentTimestamp(
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Schedules a task sending conference-info documents, for instance when a
+     * document would follow too closely the previous one sent to the same
+     * <tt>CallPeer</tt>. The tasks are run by a pool of threads so that a
+     * task which blocks does not delay the others.
+     *
+     * @param task the task to run
+     * @param delay the time in milliseconds after which to run <tt>task</tt>
+     */
+    protected static void scheduleConferenceInfo(
+            final Runnable task,
+            long delay)
+    {
+        conferenceInfoScheduler.schedule(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        conferenceInfoExecutor.execute(task);
+                    }
+                },
+                delay,
+                TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -1228,124 +1503,6 @@ public abstract class AbstractOperationSetTelephonyConferencing<
         return null;
     }
 
-    /**
-     * @param from A document with state <tt>full</tt> from which to generate a
-     * "diff".
-     * @param to A document with state <tt>full</tt> to which to generate a
-     * "diff"
-     * @return a <tt>ConferenceInfoDocument</tt>, such that when it is applied
-     * to <tt>from</tt> using the procedure defined in section 4.6 of RFC4575,
-     * the result is <tt>to</tt>. May return <tt>null</tt> if <tt>from</tt> and
-     * <tt>to</tt> are not found to be different (that is, in case no document
-     * needs to be sent)
-     */
-    protected ConferenceInfoDocument getConferenceInfoDiff(
-            ConferenceInfoDocument from,
-            ConferenceInfoDocument to)
-        throws IllegalArgumentException
-    {
-        if (from.getState() != ConferenceInfoDocument.State.FULL)
-            throw new IllegalArgumentException("The 'from' document needs to "
-                    + "have state=full");
-        if (to.getState() != ConferenceInfoDocument.State.FULL)
-            throw new IllegalArgumentException("The 'to' document needs to "
-                    + "have state=full");
-
-        if (!isPartialNotificationEnabled())
-        {
-            return conferenceInfoDocumentsMatch(from, to)
-                ? null
-                : to;
-        }
-
-        ConferenceInfoDocument diff;
-        try
-        {
-            diff = new ConferenceInfoDocument();
-        }
-        catch (XMLException e)
-        {
-            return conferenceInfoDocumentsMatch(from, to)
-                    ? null
-                    : to;
-        }
-
-        diff.setState(ConferenceInfoDocument.State.PARTIAL);
-        diff.setUsersState(ConferenceInfoDocument.State.PARTIAL);
-
-        //temporary, used for xmpp only
-        String sid = to.getSid();
-        if (sid != null && !sid.equals(""))
-            diff.setSid(to.getSid());
-
-        diff.setUserCount(to.getUserCount());
-        diff.setEntity(to.getEntity());
-
-        boolean needsPartial = false;
-        boolean hasDifference = false;
-        if (!from.getEntity().equals(to.getEntity())
-                || from.getUserCount() != to.getUserCount())
-        {
-            hasDifference = true;
-        }
-
-        // find users which have been removed in 'to'
-        for (ConferenceInfoDocument.User user : from.getUsers())
-        {
-            if(to.getUser(user.getEntity()) == null)
-            {
-                ConferenceInfoDocument.User deletedUser
-                        = diff.addNewUser(user.getEntity());
-                deletedUser.setState(ConferenceInfoDocument.State.DELETED);
-                hasDifference = true;
-                needsPartial = true;
-            }
-        }
-
-        for (ConferenceInfoDocument.User toUser : to.getUsers())
-        {
-            ConferenceInfoDocument.User fromUser
-                    = from.getUser(toUser.getEntity());
-            if (!usersMatch(toUser, fromUser))
-            {
-                hasDifference = true;
-                diff.addUser(toUser);
-            }
-            else
-            {
-                //if there is a "user" element which didn't change, we skip it
-                //and we need to send state=partial, because otherwise it will
-                //be removed by the recipient
-                needsPartial = true;
-            }
-        }
-
-        if (logger.isDebugEnabled())
-        {
-            logger.debug("Generated partial notification. From: " + from
-                    + "\nTo: " + to + "\nDiff: " + diff + "(hasDifference: "
-                    + hasDifference + ")");
-        }
-
-        if (!hasDifference)
-            return null;
-
-        /*
-         * In some cases (when all the user elements have changed, and none have
-         * been removed) we are essentially generating a full document, but
-         * marking it 'partial'. In this case it is better to send the full
-         * document, just in case the receiver lost the previous document
-         * somehow.
-         */
-        if (!needsPartial)
-        {
-            diff.setState(ConferenceInfoDocument.State.FULL);
-            diff.setUsersState(ConferenceInfoDocument.State.FULL);
-        }
-
-        return diff;
-    }
-
     /**
      * Updates the conference-related properties of a specific <tt>CallPeer</tt>
      * such as <tt>conferenceFocus</tt> and <tt>conferenceMembers</tt> with
@@ -1651,4 +1808,218 @@ public abstract class AbstractOperationSetTelephonyConferencing<
     {
         return null;
     }
+
+    /**
+     * A conference-info document to send to a <tt>CallPeer</tt>, and what is
+     * needed to compute the next one once it is sent.
+     */
+    protected static class ConferenceInfoUpdate
+    {
+        /**
+         * The <tt>CallPeer</tt> to send the document to.
+         */
+        private final MediaAwareCallPeer<?,?,?> callPeer;
+
+        /**
+         * The document to send.
+         */
+        private final ConferenceInfoDocument document;
+
+        /**
+         * The state of the conference described by the document.
+         */
+        private final ConferenceState state;
+
+        /**
+         * A document with the local user described by the document as its
+         * only user.
+         */
+        private final ConferenceInfoDocument localUser;
+
+        /**
+         * Initializes a new <tt>ConferenceInfoUpdate</tt>.
+         *
+         * @param callPeer the <tt>CallPeer</tt> to send the document to
+         * @param document the document to send
+         * @param state the state of the conference described by
+         * <tt>document</tt>
+         * @param localUser a document with the local user described by
+         * <tt>document</tt> as its only user
+         */
+        private ConferenceInfoUpdate(
+                MediaAwareCallPeer<?,?,?> callPeer,
+                ConferenceInfoDocument document,
+                ConferenceState state,
+                ConferenceInfoDocument localUser)
+        {
+            this.callPeer = callPeer;
+            this.document = document;
+            this.state = state;
+            this.localUser = localUser;
+        }
+
+        /**
+         * Gets the document to send.
+         *
+         * @return the document to send
+         */
+        public ConferenceInfoDocument getDocument()
+        {
+            return document;
+        }
+    }
+
+    /**
+     * The remote users of a conference at one point in time, shared by all
+     * the <tt>CallPeer</tt>s of the conference.
+     */
+    private static class ConferenceState
+    {
+        /**
+         * A document with state "full" describing the remote users of the
+         * conference.
+         */
+        final ConferenceInfoDocument users;
+
+        /**
+         * The version of the state, incremented each time it changes.
+         */
+        final int version;
+
+        /**
+         * The changes of the users from the older states, by older state.
+         */
+        final Map<ConferenceState, UsersChange> changes
+            = new WeakHashMap<ConferenceState, UsersChange>();
+
+        /**
+         * The time the conference was last read and found to be in this
+         * state, in milliseconds.
+         */
+        long readTime;
+
+        /**
+         * The number of changes of the conferences when the conference was
+         * last read and found to be in this state.
+         */
+        int changeCount;
+
+        /**
+         * Initializes a new <tt>ConferenceState</tt>.
+         *
+         * @param users a document describing the remote users of the
+         * conference
+         * @param version the version of the state
+         */
+        ConferenceState(ConferenceInfoDocument users, int version)
+        {
+            this.users = users;
+            this.version = version;
+        }
+    }
+
+    /**
+     * The changes of the remote users of a conference between two of its
+     * states.
+     */
+    private static class UsersChange
+    {
+        /**
+         * The absence of changes.
+         */
+        static final UsersChange NONE = new UsersChange();
+
+        /**
+         * The users which have been added or modified.
+         */
+        final List<ConferenceInfoDocument.User> changed
+            = new ArrayList<ConferenceInfoDocument.User>();
+
+        /**
+         * The entities of the users which have been removed.
+         */
+        final List<String> deleted = new ArrayList<String>();
+
+        /**
+         * Determines whether there are no changes.
+         *
+         * @return <tt>true</tt> if no user has been added, modified or
+         * removed
+         */
+        boolean isEmpty()
+        {
+            return changed.isEmpty() && deleted.isEmpty();
+        }
+    }
+
+    /**
+     * The last conference-info document sent to a <tt>CallPeer</tt>.
+     */
+    private static class SentConferenceInfo
+    {
+        /**
+         * The version of the document.
+         */
+        final int version;
+
+        /**
+         * The state of the conference described by the document.
+         */
+        final ConferenceState state;
+
+        /**
+         * A document with the local user described by the document as its
+         * only user.
+         */
+        final ConferenceInfoDocument localUser;
+
+        /**
+         * Initializes a new <tt>SentConferenceInfo</tt>.
+         *
+         * @param version the version of the document
+         * @param state the state of the conference described by the document
+         * @param localUser a document with the local user described by the
+         * document as its only user
+         */
+        SentConferenceInfo(
+                int version,
+                ConferenceState state,
+                ConferenceInfoDocument localUser)
+        {
+            this.version = version;
+            this.state = state;
+            this.localUser = localUser;
+        }
+    }
+
+    /**
+     * Creates the daemon threads which schedule and send the delayed
+     * conference-info documents.
+     */
+    private static class ConferenceInfoThreadFactory
+        implements ThreadFactory
+    {
+        /**
+         * The name of the threads.
+         */
+        private final String name;
+
+        /**
+         * Initializes a new <tt>ConferenceInfoThreadFactory</tt>.
+         *
+         * @param name the name of the threads
+         */
+        ConferenceInfoThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, name);
+
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -36,6 +36,13 @@ public class ConferenceInfoDocument
     private static final Logger logger
             = Logger.getLogger(ConferenceInfoDocument.class);
 
+    /**
+     * The <tt>TransformerFactory</tt> creating the <tt>Transformer</tt>s which
+     * serialize documents, looked up once because the lookup is costly.
+     */
+    private static final TransformerFactory transformerFactory
+            = TransformerFactory.newInstance();
+
     /**
      * The namespace of the conference-info element.
      */
@@ -497,8 +504,13 @@ public class ConferenceInfoDocument
     {
         try
         {
-            Transformer transformer
-                    = TransformerFactory.newInstance().newTransformer();
+            Transformer transformer;
+
+            // TransformerFactory is not thread-safe
+            synchronized (transformerFactory)
+            {
+                transformer = transformerFactory.newTransformer();
+            }
             StringWriter buffer = new StringWriter();
             transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
                     "yes");
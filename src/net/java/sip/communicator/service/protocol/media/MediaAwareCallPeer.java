@@ -123,13 +123,6 @@ public abstract class MediaAwareCallPeer
     private final List<PropertyChangeListener> videoPropertyChangeListeners
         = new LinkedList<PropertyChangeListener>();
 
-    /**
-     * Represents the last Conference Information (RFC4575) document sent to
-     * this <tt>CallPeer</tt>. This is always a document with state "full", even
-     * if the last document actually sent was a "partial"
-     */
-    private ConferenceInfoDocument lastConferenceInfoSent = null;
-
     /**
      * The time (as obtained by <tt>System.currentTimeMillis()</tt>) at which
      * a Conference Information (RFC4575) document was last sent to this
@@ -1060,27 +1053,6 @@ public abstract class MediaAwareCallPeer
         }
     }
 
-    /**
-     * Returns the last <tt>ConferenceInfoDocument</tt> sent by us to this
-     * <tt>CallPeer</tt>. It is a document with state <tt>full</tt>
-     * @return the last <tt>ConferenceInfoDocument</tt> sent by us to this
-     * <tt>CallPeer</tt>. It is a document with state <tt>full</tt>
-     */
-    public ConferenceInfoDocument getLastConferenceInfoSent()
-    {
-        return lastConferenceInfoSent;
-    }
-
-    /**
-     * Sets the last <tt>ConferenceInfoDocument</tt> sent by us to this
-     * <tt>CallPeer</tt>.
-     * @param confInfo the document to set.
-     */
-    public void setLastConferenceInfoSent(ConferenceInfoDocument confInfo)
-    {
-        lastConferenceInfoSent = confInfo;
-    }
-
     /**
      * Gets the time (as obtained by <tt>System.currentTimeMillis()</tt>)
      * at which we last sent a <tt>ConferenceInfoDocument</tt> to this
@@ -1155,8 +1127,8 @@ public abstract class MediaAwareCallPeer
 
     /**
      * Check whether a conference-info document is scheduled to be sent to
-     * this <tt>CallPeer</tt> (i.e. there is a thread which will eventually
-     * (after sleeping a certain amount of time) trigger a document to be sent)
+     * this <tt>CallPeer</tt> (i.e. there is a task which will eventually
+     * (after a certain amount of time) trigger a document to be sent)
      * @return <tt>true</tt> if there is a conference-info document  scheduled
      * to be sent to this <tt>CallPeer</tt> and <tt>false</tt> otherwise.
      */
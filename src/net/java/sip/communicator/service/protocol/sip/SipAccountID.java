@@ -54,6 +54,13 @@ public class SipAccountID
      */
     public static final String OPT_CLIST_PASSWORD = "OPT_CLIST_PASSWORD";
 
+    /**
+     * The name of the property under which the user may specify the URI of
+     * a resource list (RFC 4662) aggregating the presence of the contacts,
+     * which is subscribed to instead of each contact.
+     */
+    public static final String PRESENCE_RLS_URI = "PRESENCE_RLS_URI";
+
     /**
      * Default properties prefix used in jitsi-defaults.properties file
      * for SIP protocol.
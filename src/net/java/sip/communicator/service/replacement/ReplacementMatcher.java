@@ -0,0 +1,461 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.replacement;
+
+import java.util.*;
+import java.util.regex.*;
+
+import net.java.sip.communicator.service.replacement.smilies.*;
+
+/**
+ * Finds the matches of all registered <tt>ReplacementService</tt>s in a chat
+ * message in a single pass over the message. The patterns of the sources are
+ * compiled once and reused until the set of sources or their patterns change.
+ * The smileys of a <tt>SmiliesReplacementService</tt> are looked up in a trie
+ * instead of through the (large) alternation returned by its
+ * {@link ReplacementService#getPattern()}.
+ */
+public class ReplacementMatcher
+{
+    /**
+     * The <tt>ReplacementMatcher</tt> returned by the last call to
+     * {@link #getInstance(Collection)}.
+     */
+    private static ReplacementMatcher instance;
+
+    /**
+     * The <tt>ReplacementService</tt>s which are matched by this instance in
+     * the order in which their matches take precedence over each other.
+     */
+    private final ReplacementService[] sources;
+
+    /**
+     * The objects which describe what the elements of {@link #sources} match
+     * at the time this instance was created i.e. the patterns of the regular
+     * sources and the smiley packs of the smiley sources. Used to tell whether
+     * this instance is still up to date.
+     */
+    private final Object[] sourceKeys;
+
+    /**
+     * The compiled patterns of the elements of {@link #sources} or
+     * <tt>null</tt> for the elements which are matched by
+     * {@link #smileyTries} instead.
+     */
+    private final Pattern[] patterns;
+
+    /**
+     * The tries of the smiley strings of the elements of {@link #sources}
+     * which are <tt>SmiliesReplacementService</tt>s or <tt>null</tt> for the
+     * other elements.
+     */
+    private final SmileyTrie[] smileyTries;
+
+    /**
+     * Initializes a new <tt>ReplacementMatcher</tt> instance which is to
+     * match specific <tt>ReplacementService</tt>s.
+     *
+     * @param sources the <tt>ReplacementService</tt>s to be matched
+     * @param sourceKeys the patterns or smiley packs of <tt>sources</tt>
+     */
+    private ReplacementMatcher(
+            ReplacementService[] sources,
+            Object[] sourceKeys)
+    {
+        this.sources = sources;
+        this.sourceKeys = sourceKeys;
+
+        patterns = new Pattern[sources.length];
+        smileyTries = new SmileyTrie[sources.length];
+        for (int i = 0; i < sources.length; i++)
+        {
+            if (sources[i] instanceof SmiliesReplacementService)
+            {
+                @SuppressWarnings("unchecked")
+                Collection<Smiley> smileys = (Collection<Smiley>) sourceKeys[i];
+
+                smileyTries[i] = new SmileyTrie(smileys);
+            }
+            else
+            {
+                patterns[i]
+                    = Pattern.compile(
+                            (String) sourceKeys[i],
+                            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+            }
+        }
+    }
+
+    /**
+     * Gets a <tt>ReplacementMatcher</tt> which matches specific
+     * <tt>ReplacementService</tt>s. The last returned instance is reused as
+     * long as the sources and their patterns remain the same.
+     *
+     * @param sources the <tt>ReplacementService</tt>s to be matched
+     * @return a <tt>ReplacementMatcher</tt> which matches <tt>sources</tt>
+     */
+    public static synchronized ReplacementMatcher getInstance(
+            Collection<ReplacementService> sources)
+    {
+        ReplacementService[] sourceArray
+            = sources.toArray(new ReplacementService[sources.size()]);
+        Object[] sourceKeys = new Object[sourceArray.length];
+
+        for (int i = 0; i < sourceArray.length; i++)
+        {
+            ReplacementService source = sourceArray[i];
+
+            sourceKeys[i]
+                = (source instanceof SmiliesReplacementService)
+                    ? ((SmiliesReplacementService) source).getSmiliesPack()
+                    : source.getPattern();
+        }
+
+        if ((instance == null)
+                || !instance.matches(sourceArray, sourceKeys))
+            instance = new ReplacementMatcher(sourceArray, sourceKeys);
+        return instance;
+    }
+
+    /**
+     * Determines whether this instance matches specific
+     * <tt>ReplacementService</tt>s with specific patterns or smiley packs.
+     *
+     * @param sources the <tt>ReplacementService</tt>s
+     * @param sourceKeys the patterns or smiley packs of <tt>sources</tt>
+     * @return <tt>true</tt> if this instance matches <tt>sources</tt> with
+     * <tt>sourceKeys</tt>; otherwise, <tt>false</tt>
+     */
+    private boolean matches(ReplacementService[] sources, Object[] sourceKeys)
+    {
+        if (this.sources.length != sources.length)
+            return false;
+        for (int i = 0; i < sources.length; i++)
+        {
+            if (this.sources[i] != sources[i])
+                return false;
+
+            Object sourceKey = sourceKeys[i];
+
+            /*
+             * The smiley packs are compared by identity because a reload
+             * creates a new pack.
+             */
+            if ((sources[i] instanceof SmiliesReplacementService)
+                    ? (this.sourceKeys[i] != sourceKey)
+                    : !this.sourceKeys[i].equals(sourceKey))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts a scan of a specific text for the matches of all sources of this
+     * instance.
+     *
+     * @param text the text to scan
+     * @return a <tt>Scan</tt> which iterates over the matches in <tt>text</tt>
+     */
+    public Scan scan(String text)
+    {
+        return new Scan(text, null);
+    }
+
+    /**
+     * Starts a scan of a specific text for the matches of the smiley sources
+     * of this instance only.
+     *
+     * @param text the text to scan
+     * @return a <tt>Scan</tt> which iterates over the smileys in <tt>text</tt>
+     */
+    public Scan scanSmileys(String text)
+    {
+        return new Scan(text, SmiliesReplacementService.class);
+    }
+
+    /**
+     * Iterates over the non-overlapping matches of the sources of a
+     * <tt>ReplacementMatcher</tt> in a text in the order of their start
+     * indices. When the matches of several sources start at the same index,
+     * the source which comes first in the <tt>ReplacementMatcher</tt> wins.
+     */
+    public class Scan
+    {
+        /**
+         * The text being scanned.
+         */
+        private final String text;
+
+        /**
+         * The <tt>Matcher</tt>s of the sources which are matched through
+         * patterns.
+         */
+        private final Matcher[] matchers;
+
+        /**
+         * The start indices of the next matches of the sources or
+         * <tt>-1</tt> for the sources which have no more matches.
+         */
+        private final int[] starts;
+
+        /**
+         * The end indices of the next matches of the sources.
+         */
+        private final int[] ends;
+
+        /**
+         * The index in the text from which the search for the next match
+         * starts i.e. the end index of the current match.
+         */
+        private int position = 0;
+
+        /**
+         * The index of the source of the current match or <tt>-1</tt> if
+         * there is no current match.
+         */
+        private int current = -1;
+
+        /**
+         * Initializes a new <tt>Scan</tt> of a specific text.
+         *
+         * @param text the text to scan
+         * @param sourceClass the class of the sources to be matched or
+         * <tt>null</tt> to match all sources
+         */
+        private Scan(String text, Class<?> sourceClass)
+        {
+            this.text = text;
+
+            matchers = new Matcher[sources.length];
+            starts = new int[sources.length];
+            ends = new int[sources.length];
+            for (int i = 0; i < sources.length; i++)
+            {
+                if ((sourceClass != null)
+                        && !sourceClass.isInstance(sources[i]))
+                    starts[i] = -1;
+                else
+                {
+                    if (patterns[i] != null)
+                        matchers[i] = patterns[i].matcher(text);
+                    findNext(i, 0);
+                }
+            }
+        }
+
+        /**
+         * Finds the next match in the text.
+         *
+         * @return <tt>true</tt> if a match has been found; <tt>false</tt> if
+         * there are no more matches
+         */
+        public boolean find()
+        {
+            current = -1;
+            for (int i = 0; i < starts.length; i++)
+            {
+                if (starts[i] < 0)
+                    continue;
+                /*
+                 * Skip the matches which overlap with the previous match and
+                 * look for new ones after it.
+                 */
+                if (starts[i] < position)
+                    findNext(i, position);
+                if ((starts[i] >= 0)
+                        && ((current < 0) || (starts[i] < starts[current])))
+                    current = i;
+            }
+            if (current < 0)
+                return false;
+
+            position = ends[current];
+            return true;
+        }
+
+        /**
+         * Finds the next non-empty match of a specific source at or after a
+         * specific index in the text.
+         *
+         * @param i the index of the source
+         * @param from the index in the text to start at
+         */
+        private void findNext(int i, int from)
+        {
+            int length = text.length();
+
+            starts[i] = -1;
+            while (from < length)
+            {
+                if (matchers[i] != null)
+                {
+                    if (!matchers[i].find(from))
+                        return;
+                    starts[i] = matchers[i].start();
+                    ends[i] = matchers[i].end();
+                }
+                else
+                {
+                    long match = smileyTries[i].find(text, from);
+
+                    if (match < 0)
+                        return;
+                    starts[i] = (int) (match >>> 32);
+                    ends[i] = (int) match;
+                }
+                if (ends[i] > starts[i])
+                    return;
+                from = starts[i] + 1;
+                starts[i] = -1;
+            }
+        }
+
+        /**
+         * Gets the start index of the current match.
+         *
+         * @return the start index of the current match
+         */
+        public int start()
+        {
+            return starts[current];
+        }
+
+        /**
+         * Gets the end index of the current match.
+         *
+         * @return the end index of the current match
+         */
+        public int end()
+        {
+            return ends[current];
+        }
+
+        /**
+         * Gets the text of the current match.
+         *
+         * @return the text of the current match
+         */
+        public String group()
+        {
+            return text.substring(starts[current], ends[current]);
+        }
+
+        /**
+         * Gets the <tt>ReplacementService</tt> of the current match.
+         *
+         * @return the <tt>ReplacementService</tt> of the current match
+         */
+        public ReplacementService getSource()
+        {
+            return sources[current];
+        }
+    }
+
+    /**
+     * A case-insensitive trie of the smiley strings of a smiley pack.
+     */
+    private static class SmileyTrie
+    {
+        /**
+         * The root node of this trie.
+         */
+        private final Node root = new Node();
+
+        /**
+         * Initializes a new <tt>SmileyTrie</tt> of the strings of specific
+         * <tt>Smiley</tt>s.
+         *
+         * @param smileys the <tt>Smiley</tt>s the strings of which are to be
+         * added to the new trie
+         */
+        SmileyTrie(Collection<Smiley> smileys)
+        {
+            for (Smiley smiley : smileys)
+            {
+                for (String smileyString : smiley.getSmileyStrings())
+                {
+                    Node node = root;
+
+                    for (int i = 0; i < smileyString.length(); i++)
+                    {
+                        Character c
+                            = Character.toLowerCase(smileyString.charAt(i));
+                        Node child = node.children.get(c);
+
+                        if (child == null)
+                        {
+                            child = new Node();
+                            node.children.put(c, child);
+                        }
+                        node = child;
+                    }
+                    if (node != root)
+                        node.terminal = true;
+                }
+            }
+        }
+
+        /**
+         * Finds the first and longest smiley string in a specific text at or
+         * after a specific index. As the pattern of the smiley service does,
+         * smiley strings which immediately follow an <tt>alt='</tt> or
+         * <tt>alt="</tt> are not matched.
+         *
+         * @param text the text to search in
+         * @param from the index to start at
+         * @return the start index of the found smiley string in the high 32
+         * bits and its end index in the low 32 bits or <tt>-1</tt> if no
+         * smiley string has been found
+         */
+        long find(String text, int from)
+        {
+            int length = text.length();
+
+            for (int start = from; start < length; start++)
+            {
+                Node node = root;
+                int end = -1;
+
+                for (int i = start; i < length; i++)
+                {
+                    node
+                        = node.children.get(
+                                Character.toLowerCase(text.charAt(i)));
+                    if (node == null)
+                        break;
+                    if (node.terminal)
+                        end = i + 1;
+                }
+                if ((end > 0)
+                        && !text.regionMatches(true, start - 5, "alt='", 0, 5)
+                        && !text.regionMatches(
+                                true,
+                                start - 5, "alt=\"", 0, 5))
+                    return (((long) start) << 32) | end;
+            }
+            return -1;
+        }
+
+        /**
+         * A node of a <tt>SmileyTrie</tt>.
+         */
+        private static class Node
+        {
+            /**
+             * The child nodes of this node by the (lower-case) characters
+             * which lead to them.
+             */
+            final Map<Character, Node> children
+                = new HashMap<Character, Node>();
+
+            /**
+             * Whether a smiley string ends at this node.
+             */
+            boolean terminal;
+        }
+    }
+}
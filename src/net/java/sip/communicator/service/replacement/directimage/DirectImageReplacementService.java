@@ -31,4 +31,14 @@ public interface DirectImageReplacementService
      * pointed by sourceString is an image.
      */
     public boolean isDirectImage(String sourceString);
+
+    /**
+     * Checks if the resource pointed by sourceString is an image which is not
+     * larger than the max allowed image size. Its size and content type are
+     * obtained at once.
+     * @param sourceString the image link.
+     * @return true if the resource pointed by sourceString is an image which
+     * may be previewed.
+     */
+    public boolean isPreviewableImage(String sourceString);
 }
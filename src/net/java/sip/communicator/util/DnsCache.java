@@ -0,0 +1,652 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.dns.*;
+
+import org.xbill.DNS.*;
+
+/**
+ * A process-wide cache of the answers to the DNS queries of
+ * <tt>NetworkUtils</tt>, so that reconnecting accounts do not go through the
+ * whole NAPTR, SRV and A/AAAA resolution again.
+ * <p>
+ * Answers are kept for the smallest TTL of their records and answers saying
+ * that a name or a record does not exist for <tt>NEGATIVE_TTL</tt>. An answer
+ * used shortly before it expires is resolved again in the background so that
+ * the next query finds a fresh one. When resolving fails, as when the
+ * resolvers time out, an expired answer is served for a while rather than no
+ * answer at all.
+ * <p>
+ * Concurrent queries for the same record are resolved once. Once loaded by
+ * the DNS bundle, the cache is saved to a file so that after a restart the
+ * answers whose TTL has not run out are available at once and the others are
+ * resolved in the background.
+ */
+public final class DnsCache
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>DnsCache</tt> class for logging
+     * output.
+     */
+    private static final Logger logger = Logger.getLogger(DnsCache.class);
+
+    /**
+     * The time an answer saying that a name or a record does not exist is
+     * kept, in milliseconds.
+     */
+    private static final long NEGATIVE_TTL = 5 * 60 * 1000;
+
+    /**
+     * The longest time an answer is kept, in milliseconds, whatever the TTL
+     * of its records.
+     */
+    private static final long MAX_TTL = 24 * 60 * 60 * 1000;
+
+    /**
+     * The time an expired answer may be served for when resolving fails,
+     * counted from its expiration, in milliseconds.
+     */
+    private static final long MAX_STALE_TIME = 24 * 60 * 60 * 1000;
+
+    /**
+     * The time an expired answer served because resolving failed is served
+     * without trying to resolve again, in milliseconds.
+     */
+    private static final long STALE_ANSWER_TTL = 30 * 1000;
+
+    /**
+     * The fraction of its TTL left under which a used answer is resolved
+     * again in the background.
+     */
+    private static final int PREFETCH_RATIO = 10;
+
+    /**
+     * The maximum number of answers kept.
+     */
+    private static final int MAX_ANSWERS = 256;
+
+    /**
+     * The time between a change of the cache and its saving, in
+     * milliseconds.
+     */
+    private static final long SAVE_DELAY = 60 * 1000;
+
+    /**
+     * The version of the format of the cache file.
+     */
+    private static final int FILE_VERSION = 2;
+
+    /**
+     * Runs the background resolutions, the asynchronous lookups and the
+     * saving of the cache.
+     */
+    private static final ScheduledThreadPoolExecutor executor
+        = PersistentLruMap.createExecutor("DNS cache", 4);
+
+    /**
+     * The answers by query key, the least recently used first.
+     */
+    private static final PersistentLruMap<CachedAnswer> answers
+        = new PersistentLruMap<CachedAnswer>(
+                "DNS cache",
+                "dns",
+                "answers",
+                FILE_VERSION,
+                MAX_ANSWERS,
+                SAVE_DELAY,
+                executor,
+                new AnswerCodec());
+
+    /**
+     * The resolutions in progress by query key.
+     */
+    private static final Map<String, FutureTask<CachedAnswer>> resolutions
+        = new HashMap<String, FutureTask<CachedAnswer>>();
+
+    /**
+     * Prevents the creation of instances.
+     */
+    private DnsCache()
+    {
+    }
+
+    /**
+     * Returns the records of a type for a domain, from the cache if they are
+     * there and have not expired, or else by resolving them.
+     *
+     * @param domain the domain we'd like to resolve
+     * @param type the type of the records
+     * @return the records, or <tt>null</tt> if there are none or they could
+     * not be resolved
+     *
+     * @throws TextParseException if <tt>domain</tt> is not a valid domain name.
+     * @throws DnssecRuntimeException when a DNSSEC validation failure
+     * occurred.
+     */
+    public static Record[] lookup(String domain, int type)
+        throws TextParseException
+    {
+        String key = getKey(domain, type);
+        long now = System.currentTimeMillis();
+        CachedAnswer answer;
+        boolean prefetch = false;
+
+        synchronized (answers)
+        {
+            answer = answers.get(key);
+            if ((answer != null) && (now < answer.expirationTime))
+            {
+                if (!answer.prefetching
+                        && (answer.expirationTime - now
+                            < answer.ttl / PREFETCH_RATIO))
+                {
+                    answer.prefetching = true;
+                    prefetch = true;
+                }
+            }
+            else
+                answer = null;
+        }
+
+        if (answer == null)
+            answer = resolve(domain, type);
+        else if (prefetch)
+            prefetch(domain, type);
+
+        return (answer == null) ? null : answer.getRecords();
+    }
+
+    /**
+     * Runs a task on the executor of the cache, so that a lookup does not
+     * block its caller.
+     *
+     * @param task the task
+     * @return the <tt>Future</tt> of the result of <tt>task</tt>
+     */
+    static <T> Future<T> submit(Callable<T> task)
+    {
+        return executor.submit(task);
+    }
+
+    /**
+     * Resolves the records of a type for a domain, unless they are already
+     * being resolved in which case the result of that resolution is waited
+     * for. When resolving fails, an expired answer is returned if there is
+     * one which is not too old.
+     *
+     * @param domain the domain we'd like to resolve
+     * @param type the type of the records
+     * @return the answer, or <tt>null</tt> if resolving failed and there is
+     * no expired answer to serve
+     *
+     * @throws TextParseException if <tt>domain</tt> is not a valid domain name.
+     * @throws DnssecRuntimeException when a DNSSEC validation failure
+     * occurred.
+     */
+    private static CachedAnswer resolve(String domain, int type)
+        throws TextParseException
+    {
+        String key = getKey(domain, type);
+        FutureTask<CachedAnswer> resolution;
+        boolean resolving = false;
+
+        synchronized (resolutions)
+        {
+            resolution = resolutions.get(key);
+            if (resolution == null)
+            {
+                resolution = new FutureTask<CachedAnswer>(
+                        new Resolution(domain, type));
+                resolutions.put(key, resolution);
+                resolving = true;
+            }
+        }
+
+        if (resolving)
+        {
+            try
+            {
+                resolution.run();
+            }
+            finally
+            {
+                synchronized (resolutions)
+                {
+                    resolutions.remove(key);
+                }
+            }
+        }
+
+        CachedAnswer answer = null;
+
+        try
+        {
+            answer = resolution.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof TextParseException)
+                throw (TextParseException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            logger.error("Failed to resolve " + key, cause);
+        }
+
+        return (answer == null) ? getStaleAnswer(key) : answer;
+    }
+
+    /**
+     * Returns an expired answer to serve because resolving failed, and keeps
+     * serving it for <tt>STALE_ANSWER_TTL</tt> so that the following queries
+     * do not wait for the resolvers again.
+     *
+     * @param key the key of the query
+     * @return the expired answer, or <tt>null</tt> if there is none or it is
+     * too old
+     */
+    private static CachedAnswer getStaleAnswer(String key)
+    {
+        long now = System.currentTimeMillis();
+
+        synchronized (answers)
+        {
+            CachedAnswer answer = answers.get(key);
+
+            if (answer == null)
+                return null;
+            if (now < answer.expirationTime)
+                return answer;
+            if (now - (answer.resolveTime + answer.ttl) > MAX_STALE_TIME)
+            {
+                answers.remove(key);
+                return null;
+            }
+
+            if (logger.isInfoEnabled())
+                logger.info("Resolving " + key + " failed, serving the answer"
+                    + " resolved " + (now - answer.resolveTime) + "ms ago");
+            answers.put(
+                    key,
+                    new CachedAnswer(
+                            answer.domain,
+                            answer.type,
+                            answer.records,
+                            answer.resolveTime,
+                            answer.ttl,
+                            now + STALE_ANSWER_TTL));
+            return answer;
+        }
+    }
+
+    /**
+     * Resolves the records of a type for a domain in the background.
+     *
+     * @param domain the domain we'd like to resolve
+     * @param type the type of the records
+     */
+    private static void prefetch(final String domain, final int type)
+    {
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    resolve(domain, type);
+                }
+                catch (Throwable t)
+                {
+                    logger.info("Failed to prefetch " + getKey(domain, type),
+                        t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stores an answer.
+     *
+     * @param answer the answer
+     */
+    private static void put(CachedAnswer answer)
+    {
+        synchronized (answers)
+        {
+            answers.put(getKey(answer.domain, answer.type), answer);
+            answers.scheduleSave();
+        }
+    }
+
+    /**
+     * Makes all the answers expire, so that they are resolved again but may
+     * still be served if resolving fails, as when the network configuration
+     * changes.
+     */
+    public static void invalidate()
+    {
+        long now = System.currentTimeMillis();
+
+        synchronized (answers)
+        {
+            for (Map.Entry<String, CachedAnswer> entry : answers.entrySet())
+            {
+                CachedAnswer answer = entry.getValue();
+
+                if (now < answer.expirationTime)
+                    entry.setValue(
+                            new CachedAnswer(
+                                    answer.domain,
+                                    answer.type,
+                                    answer.records,
+                                    answer.resolveTime,
+                                    answer.ttl,
+                                    now));
+            }
+        }
+    }
+
+    /**
+     * Forgets all the answers.
+     */
+    public static void clear()
+    {
+        synchronized (answers)
+        {
+            answers.clear();
+            answers.scheduleSave();
+        }
+    }
+
+    /**
+     * Loads the cache from its file and from then on saves it there when it
+     * changes. The answers which have expired are resolved again in the
+     * background.
+     */
+    public static void load()
+    {
+        long now = System.currentTimeMillis();
+
+        for (CachedAnswer answer : answers.load().values())
+        {
+            if ((answer.records != null) && (now >= answer.expirationTime))
+                prefetch(answer.domain, answer.type);
+        }
+    }
+
+    /**
+     * Saves the cache to its file, if it has been loaded.
+     */
+    public static void save()
+    {
+        answers.save();
+    }
+
+    /**
+     * Returns the key of a query.
+     *
+     * @param domain the domain
+     * @param type the type of the records
+     * @return the key of the query
+     */
+    private static String getKey(String domain, int type)
+    {
+        String name = domain.toLowerCase();
+
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        return name + "/" + Type.string(type);
+    }
+
+    /**
+     * Resolves the records of a type for a domain and stores the answer.
+     */
+    private static class Resolution
+        implements Callable<CachedAnswer>
+    {
+        /**
+         * The domain we'd like to resolve.
+         */
+        private final String domain;
+
+        /**
+         * The type of the records.
+         */
+        private final int type;
+
+        /**
+         * Creates a resolution.
+         *
+         * @param domain the domain we'd like to resolve
+         * @param type the type of the records
+         */
+        Resolution(String domain, int type)
+        {
+            this.domain = domain;
+            this.type = type;
+        }
+
+        /**
+         * Resolves the records.
+         *
+         * @return the answer, or <tt>null</tt> if resolving failed
+         * @throws TextParseException if <tt>domain</tt> is not a valid domain
+         * name.
+         */
+        public CachedAnswer call()
+            throws TextParseException
+        {
+            Lookup lookup = NetworkUtils.createLookup(domain, type);
+
+            // we are the cache: ask the resolvers, not the dnsjava cache
+            lookup.setCache(new Cache());
+
+            Record[] records = lookup.run();
+            long now = System.currentTimeMillis();
+            CachedAnswer answer;
+
+            switch (lookup.getResult())
+            {
+            case Lookup.SUCCESSFUL:
+                long ttl = MAX_TTL;
+
+                for (Record record : records)
+                    ttl = Math.min(ttl, record.getTTL() * 1000);
+                answer = new CachedAnswer(
+                        domain, type, records, now, ttl, now + ttl);
+                break;
+            case Lookup.HOST_NOT_FOUND:
+            case Lookup.TYPE_NOT_FOUND:
+                answer = new CachedAnswer(
+                        domain, type, null, now, NEGATIVE_TTL,
+                        now + NEGATIVE_TTL);
+                break;
+            default:
+                if (logger.isInfoEnabled())
+                    logger.info("Failed to resolve " + getKey(domain, type)
+                        + ": " + lookup.getErrorString());
+                return null;
+            }
+
+            put(answer);
+            return answer;
+        }
+    }
+
+    /**
+     * Reads and writes the answers saved to the cache file. The records are
+     * written in wire format.
+     */
+    private static class AnswerCodec
+        implements PersistentLruMap.Codec<CachedAnswer>
+    {
+        /**
+         * Reads an answer saved by <tt>write</tt>.
+         *
+         * @param in the stream to read from
+         * @return the answer
+         * @throws IOException if reading fails
+         */
+        public CachedAnswer read(DataInputStream in)
+            throws IOException
+        {
+            String domain = in.readUTF();
+            int type = in.readInt();
+            long resolveTime = in.readLong();
+            long ttl = in.readLong();
+            int recordCount = in.readInt();
+            Record[] records = null;
+
+            if (recordCount >= 0)
+            {
+                records = new Record[recordCount];
+                for (int i = 0; i < recordCount; i++)
+                {
+                    byte[] wire = new byte[in.readUnsignedShort()];
+
+                    in.readFully(wire);
+                    records[i] = Record.fromWire(wire, Section.ANSWER);
+                }
+            }
+            return new CachedAnswer(
+                    domain, type, records, resolveTime, ttl,
+                    resolveTime + ttl);
+        }
+
+        /**
+         * Writes an answer.
+         *
+         * @param out the stream to write to
+         * @param answer the answer
+         * @throws IOException if writing fails
+         */
+        public void write(DataOutputStream out, CachedAnswer answer)
+            throws IOException
+        {
+            out.writeUTF(answer.domain);
+            out.writeInt(answer.type);
+            out.writeLong(answer.resolveTime);
+            out.writeLong(answer.ttl);
+            if (answer.records == null)
+                out.writeInt(-1);
+            else
+            {
+                out.writeInt(answer.records.length);
+                for (Record record : answer.records)
+                {
+                    byte[] wire = record.toWire(Section.ANSWER);
+
+                    out.writeShort(wire.length);
+                    out.write(wire);
+                }
+            }
+        }
+
+        /**
+         * Keeps the answers which are not too old to be served.
+         *
+         * @param key the key of the query
+         * @param answer the answer
+         * @return <tt>true</tt> if <tt>answer</tt> may still be served
+         */
+        public boolean isPersistent(String key, CachedAnswer answer)
+        {
+            return System.currentTimeMillis()
+                    - (answer.resolveTime + answer.ttl)
+                <= MAX_STALE_TIME;
+        }
+    }
+
+    /**
+     * The answer to a query and the time it expires at.
+     */
+    private static class CachedAnswer
+    {
+        /**
+         * The domain of the query.
+         */
+        final String domain;
+
+        /**
+         * The type of the query.
+         */
+        final int type;
+
+        /**
+         * The records, <tt>null</tt> if there are none.
+         */
+        final Record[] records;
+
+        /**
+         * The time the answer was resolved at, in milliseconds.
+         */
+        final long resolveTime;
+
+        /**
+         * The time the answer is valid for, in milliseconds.
+         */
+        final long ttl;
+
+        /**
+         * The time the answer expires at, in milliseconds.
+         */
+        final long expirationTime;
+
+        /**
+         * Whether the answer is being resolved again in the background.
+         * Guarded by <tt>answers</tt>.
+         */
+        boolean prefetching = false;
+
+        /**
+         * Creates an answer.
+         *
+         * @param domain the domain of the query
+         * @param type the type of the query
+         * @param records the records, <tt>null</tt> if there are none
+         * @param resolveTime the time the answer was resolved at
+         * @param ttl the time the answer is valid for
+         * @param expirationTime the time the answer expires at
+         */
+        CachedAnswer(String domain,
+                     int type,
+                     Record[] records,
+                     long resolveTime,
+                     long ttl,
+                     long expirationTime)
+        {
+            this.domain = domain;
+            this.type = type;
+            this.records = records;
+            this.resolveTime = resolveTime;
+            this.ttl = ttl;
+            this.expirationTime = expirationTime;
+        }
+
+        /**
+         * Returns a copy of the records, which callers may modify.
+         *
+         * @return a copy of the records, or <tt>null</tt> if there are none
+         */
+        Record[] getRecords()
+        {
+            return (records == null) ? null : records.clone();
+        }
+    }
+}
@@ -74,9 +74,26 @@ public class FTPUtils
      * login fails.
      */
     public FTPUtils(String urlString) throws Exception
+    {
+        this(urlString, 0);
+    }
+
+    /**
+     * Parses the URL, connects to the FTP server and then executes the login,
+     * giving up when connecting or reading a response takes too long.
+     *
+     * @param urlString the URL of the file.
+     * @param timeout the time in milliseconds after which connecting or
+     * reading a response fails; 0 to wait for ever.
+     * @throws Exception if something with parsing the URL or connection or
+     * login fails.
+     */
+    public FTPUtils(String urlString, int timeout) throws Exception
     {
         parseUrl(urlString);
-        socket = new Socket( host, port);
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), timeout);
+        socket.setSoTimeout(timeout);
         reader = new BufferedReader(
                 new InputStreamReader(socket.getInputStream()));
         writer = new BufferedWriter(
@@ -6,14 +6,26 @@
  */
 package net.java.sip.communicator.util;
 
-import java.io.*;
-
-import javax.swing.text.html.*;
-import javax.swing.text.html.parser.*;
+import java.util.*;
 
 /**
  * A utility class that allows to extract the text content of an HTML page
  * stripped from all formatting tags.
+ * <p>
+ * The extraction is done by a single pass over the characters of the HTML
+ * which drops tags, comments and the contents of <tt>script</tt> and
+ * <tt>style</tt> elements, decodes character and entity references using the
+ * tables of {@link Entities} and collapses whitespace outside of
+ * <tt>pre</tt> elements. Tags are dropped without leaving whitespace in their
+ * place and the whitespace next to the tags which break the flow of the text
+ * (e.g. <tt>p</tt>, <tt>div</tt> and <tt>br</tt>) is dropped, as the Swing
+ * HTML parser used before did. Unlike that parser, it keeps as text a
+ * <tt>&lt;</tt> which does not start a tag and drops the contents of
+ * <tt>style</tt> elements. It keeps no shared parser
+ * state so it is safe to be called concurrently. Since the same short strings
+ * (e.g. contact status messages) tend to be converted over and over again,
+ * the results for the most recently used of them are remembered.
+ * </p>
  *
  * @author Emil Ivov <emcho at sip-communicator.org>
  * @author Yana Stamcheva
@@ -22,114 +34,338 @@ import javax.swing.text.html.parser.*;
 public class Html2Text
 {
     /**
-     * The <tt>Logger</tt> used by the <tt>Html2Text</tt> class for logging
-     * output.
+     * The maximum number of results kept in {@link #cache}.
+     */
+    private static final int CACHE_SIZE = 256;
+
+    /**
+     * The maximum length of an HTML string for which the extracted text is
+     * kept in {@link #cache}. Longer strings are typically whole messages
+     * which are not converted repeatedly.
+     */
+    private static final int MAX_CACHED_LENGTH = 1024;
+
+    /**
+     * The names of the tags next to which whitespace is dropped because they
+     * break the flow of the text.
      */
-    private static final Logger logger
-        = Logger.getLogger(Html2Text.class);
+    private static final Set<String> FLOW_BREAKING_TAGS
+        = new HashSet<String>(
+                Arrays.asList(
+                        "blockquote", "body", "br", "center", "dd", "dir",
+                        "div", "dl", "form", "h1", "h2", "h3", "h4", "h5",
+                        "h6", "hr", "html", "isindex", "li", "menu",
+                        "noframes", "ol", "p", "pre", "td", "th", "title",
+                        "ul"));
 
     /**
-     * The HTML parser used by {@link #extractText(String)} to parse HTML so
-     * that plain text can be extracted from it.
+     * The texts extracted by {@link #extractText(String)} from short HTML
+     * strings, keyed by the HTML strings themselves, in access order so that
+     * the least recently used is dropped when there are more than
+     * {@link #CACHE_SIZE}. Accessed with its lock held.
      */
-    private static HTMLParserCallback parser;
+    private static final Map<String, String> cache
+        = new LinkedHashMap<String, String>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> e)
+            {
+                return size() > CACHE_SIZE;
+            }
+        };
 
     /**
      * A utility method that allows to extract the text content of an HTML page
-     * stripped from all formatting tags. Method is synchronized to avoid
-     * concurrent access to the underlying <tt>HTMLEditorKit</tt>.
+     * stripped from all formatting tags.
      *
      * @param html the HTML string that we will extract the text from.
      * @return the text content of the <tt>html</tt> parameter.
      */
-    public static synchronized String extractText(String html)
+    public static String extractText(String html)
     {
         if(html == null)
             return null;
 
-        if (parser == null)
-            parser = new HTMLParserCallback();
+        boolean cacheable = (html.length() <= MAX_CACHED_LENGTH);
 
-        try
+        if (cacheable)
         {
-            StringReader in = new StringReader(html);
+            String text;
 
-            try
+            synchronized (cache)
             {
-                return parser.parse(in);
-            }
-            finally
-            {
-                in.close();
+                text = cache.get(html);
             }
+            if (text != null)
+                return text;
         }
-        catch (Exception ex)
+
+        String text = stripTags(html);
+
+        if (cacheable)
         {
-            if (logger.isInfoEnabled())
-                logger.info("Failed to extract plain text from html="+html, ex);
-            return html;
+            synchronized (cache)
+            {
+                cache.put(html, text);
+            }
         }
+        return text;
     }
 
     /**
-     * The ParserCallback that will parse the HTML.
+     * Strips the tags, comments and declarations from a specific HTML string,
+     * decodes its character and entity references and collapses the
+     * whitespace in it.
+     *
+     * @param html the HTML string to extract the text content of
+     * @return the text content of <tt>html</tt>
      */
-    private static class HTMLParserCallback
-        extends HTMLEditorKit.ParserCallback
+    private static String stripTags(String html)
     {
-        /**
-         * The <tt>StringBuilder</tt> which accumulates the parsed text while it
-         * is being parsed.
+        int length = html.length();
+        StringBuilder text = new StringBuilder(length);
+        /*
+         * The name of the element (i.e. script or style) the contents of which
+         * are being skipped or null if the contents are not being skipped.
          */
-        private StringBuilder sb;
-
-        /**
-         * Parses the text contained in the given reader.
-         *
-         * @param in the reader to parse.
-         * @return the parsed text
-         * @throws IOException thrown if we fail to parse the reader.
+        String skipUntilEndOf = null;
+        int preDepth = 0;
+        boolean space = false;
+        /*
+         * Whether whitespace is being dropped because it follows a tag which
+         * breaks the flow of the text.
          */
-        public String parse(Reader in)
-            throws IOException
+        boolean trimSpace = false;
+        int i = 0;
+
+        while (i < length)
         {
-            sb = new StringBuilder();
+            char c = html.charAt(i);
 
-            String s;
+            if (c == '<')
+            {
+                int end;
 
-            try
+                if (html.startsWith("<!--", i))
+                {
+                    end = html.indexOf("-->", i + 4);
+                    i = (end < 0) ? length : (end + 3);
+                    continue;
+                }
+
+                end = findTagEnd(html, i);
+                if (end < 0)
+                {
+                    // A lone '<' is just text.
+                    if (skipUntilEndOf == null)
+                    {
+                        trimSpace = false;
+                        space = appendSpace(text, space);
+                        text.append(c);
+                    }
+                    i++;
+                    continue;
+                }
+
+                String tagName = getTagName(html, i + 1, end);
+                boolean endTag = (html.charAt(i + 1) == '/');
+
+                i = end + 1;
+                if (skipUntilEndOf != null)
+                {
+                    if (endTag && skipUntilEndOf.equals(tagName))
+                        skipUntilEndOf = null;
+                    continue;
+                }
+
+                if (FLOW_BREAKING_TAGS.contains(tagName))
+                {
+                    space = false;
+                    trimSpace = true;
+                }
+                if ("script".equals(tagName) || "style".equals(tagName))
+                {
+                    if (!endTag && (html.charAt(end - 1) != '/'))
+                        skipUntilEndOf = tagName;
+                }
+                else if ("pre".equals(tagName))
+                {
+                    if (endTag)
+                    {
+                        if (preDepth > 0)
+                            preDepth--;
+                    }
+                    else
+                        preDepth++;
+                }
+                continue;
+            }
+
+            i++;
+            if (skipUntilEndOf != null)
+                continue;
+
+            if (c == '&')
             {
-                new ParserDelegator().parse(in, this, /* ignoreCharSet */ true);
-                s = sb.toString();
+                int end = html.indexOf(';', i);
+
+                if ((end > i) && (end - i <= 10))
+                {
+                    int value = getEntityValue(html.substring(i, end));
+
+                    if (value >= 0)
+                    {
+                        trimSpace = false;
+                        space = appendSpace(text, space);
+                        text.appendCodePoint(value);
+                        i = end + 1;
+                        continue;
+                    }
+                }
             }
-            finally
+            else if ((preDepth == 0) && Character.isWhitespace(c))
             {
-                /*
-                 * Since the Html2Text class keeps this instance in a static
-                 * reference, the field sb should be reset to null as soon as
-                 * completing its goad in order to avoid keeping the parsed
-                 * text in memory after it is no longer needed i.e. to prevent
-                 * a memory leak. This method has been converted to return the
-                 * parsed string instead of having a separate getter method for
-                 * the parsed string for the same purpose.
-                 */
-                sb = null;
+                if (!trimSpace)
+                    space = true;
+                continue;
             }
-            return s;
+
+            trimSpace = false;
+            space = appendSpace(text, space);
+            text.append(c);
         }
+        return text.toString();
+    }
+
+    /**
+     * Appends a single space to a specific <tt>StringBuilder</tt> if
+     * whitespace has been skipped since the last appended character and the
+     * <tt>StringBuilder</tt> is not empty.
+     *
+     * @param text the <tt>StringBuilder</tt> to append to
+     * @param space <tt>true</tt> if whitespace has been skipped
+     * @return <tt>false</tt> so that the caller can reset its flag
+     */
+    private static boolean appendSpace(StringBuilder text, boolean space)
+    {
+        if (space && (text.length() != 0))
+            text.append(' ');
+        return false;
+    }
 
-        /**
-         * Appends the given text to the string buffer.
-         *
-         * @param text the text of a text node which has been parsed from the
-         * specified HTML
-         * @param pos the zero-based position of the specified <tt>text</tt> in
-         * the specified HTML
+    /**
+     * Finds the <tt>&gt;</tt> which closes the tag starting at a specific
+     * index in an HTML string, skipping the quoted attribute values which may
+     * contain <tt>&gt;</tt> characters.
+     *
+     * @param html the HTML string
+     * @param start the index of the opening <tt>&lt;</tt>
+     * @return the index of the closing <tt>&gt;</tt> or <tt>-1</tt> if the
+     * <tt>&lt;</tt> at <tt>start</tt> does not start a tag
+     */
+    private static int findTagEnd(String html, int start)
+    {
+        int length = html.length();
+
+        /*
+         * As in HTML 5, a '<' starts a tag only if followed by a tag name, an
+         * end tag, a comment or declaration, or a processing instruction.
          */
-        @Override
-        public void handleText(char[] text, int pos)
+        if (start + 1 >= length)
+            return -1;
+
+        char first = html.charAt(start + 1);
+
+        if (!Character.isLetter(first)
+                && (first != '/')
+                && (first != '!')
+                && (first != '?'))
+            return -1;
+
+        char quote = 0;
+        char previous = 0;
+
+        for (int i = start + 1; i < length; i++)
+        {
+            char c = html.charAt(i);
+
+            if (quote != 0)
+            {
+                if (c == quote)
+                    quote = 0;
+                continue;
+            }
+            if (c == '>')
+                return i;
+            // quotes only delimit attribute values
+            if (((c == '"') || (c == '\'')) && (previous == '='))
+                quote = c;
+            if (!Character.isWhitespace(c))
+                previous = c;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the lower-case name of the tag which starts at a specific index in
+     * an HTML string.
+     *
+     * @param html the HTML string
+     * @param start the index of the first character after the opening
+     * <tt>&lt;</tt>
+     * @param end the index of the closing <tt>&gt;</tt>
+     * @return the lower-case name of the tag
+     */
+    private static String getTagName(String html, int start, int end)
+    {
+        if ((start < end) && (html.charAt(start) == '/'))
+            start++;
+
+        int i = start;
+
+        while ((i < end) && Character.isLetterOrDigit(html.charAt(i)))
+            i++;
+        return html.substring(start, i).toLowerCase();
+    }
+
+    /**
+     * Gets the code point of a character or entity reference.
+     *
+     * @param name the name of the entity or the number of the character
+     * preceded by <tt>#</tt> without the surrounding <tt>&amp;</tt> and
+     * <tt>;</tt>
+     * @return the code point represented by <tt>name</tt> or <tt>-1</tt> if
+     * <tt>name</tt> is not a known entity or a valid character number
+     */
+    private static int getEntityValue(String name)
+    {
+        if (name.charAt(0) == '#')
         {
-            sb.append(text);
+            if (name.length() < 2)
+                return -1;
+
+            int value;
+
+            try
+            {
+                char radix = name.charAt(1);
+
+                if ((radix == 'x') || (radix == 'X'))
+                    value = Integer.parseInt(name.substring(2), 16);
+                else
+                    value = Integer.parseInt(name.substring(1));
+            }
+            catch (NumberFormatException nfe)
+            {
+                return -1;
+            }
+            return Character.isValidCodePoint(value) ? value : -1;
         }
+
+        int value = Entities.HTML40.entityValue(name);
+
+        return (value < 0) ? Entities.XML.entityValue(name) : value;
     }
 }
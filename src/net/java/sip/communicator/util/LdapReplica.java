@@ -0,0 +1,501 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.*;
+
+/**
+ * A local copy of the people of an LDAP directory, searched instead of the
+ * directory so that type-ahead and caller identification need no round trip
+ * to the server and keep working while it is slow or unreachable.
+ * <p>
+ * The copy is kept in a compressed file so that it is available as soon as
+ * the application starts. The <tt>LdapDirectoryImpl</tt> brings it up to date
+ * periodically with the entries modified since the last synchronization and,
+ * less often, by reading the whole directory again, which is the only way
+ * deleted entries are noticed.
+ */
+public class LdapReplica
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(LdapReplica.class);
+
+    /**
+     * The version of the format of the replica file.
+     */
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * The characters ignored when comparing phone numbers.
+     */
+    private static final String PHONE_NUMBER_SEPARATORS = " ()-./";
+
+    /**
+     * The file the replica is kept in.
+     */
+    private final File file;
+
+    /**
+     * The replicated entries by distinguished name.
+     */
+    private final Map<String, Entry> entries
+        = new LinkedHashMap<String, Entry>();
+
+    /**
+     * The greatest modification time of the replicated entries, as returned
+     * by the directory, or <tt>null</tt> if the replica is empty.
+     */
+    private String lastModifyTimestamp = null;
+
+    /**
+     * The time of the last complete synchronization, in milliseconds.
+     */
+    private long lastFullSyncTime = 0;
+
+    /**
+     * Whether the replica has been loaded from its file or synchronized.
+     */
+    private boolean ready = false;
+
+    /**
+     * Whether the file of the replica has been deleted, after which the
+     * replica is no longer saved.
+     */
+    private boolean deleted = false;
+
+    /**
+     * Creates an empty replica.
+     *
+     * @param file the file the replica is kept in
+     */
+    public LdapReplica(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Returns whether the replica has been loaded from its file or
+     * synchronized, and thus can be searched.
+     *
+     * @return whether the replica can be searched
+     */
+    public synchronized boolean isReady()
+    {
+        return ready;
+    }
+
+    /**
+     * Returns the greatest modification time of the replicated entries.
+     *
+     * @return the greatest modification time of the replicated entries, as
+     * returned by the directory, or <tt>null</tt> if the replica is empty
+     */
+    public synchronized String getLastModifyTimestamp()
+    {
+        return lastModifyTimestamp;
+    }
+
+    /**
+     * Returns the time of the last attempt to read the whole directory.
+     *
+     * @return the time of the last complete synchronization, in milliseconds
+     */
+    public synchronized long getLastFullSyncTime()
+    {
+        return lastFullSyncTime;
+    }
+
+    /**
+     * Applies the entries read from the directory.
+     *
+     * @param changed the entries read
+     * @param modifyTimestamp the greatest modification time of the entries
+     * read, or <tt>null</tt> if unknown
+     * @param full <tt>true</tt> if the whole directory was read
+     * @param truncated <tt>true</tt> if the directory did not return all the
+     * entries asked for, in which case the entries not read are kept even
+     * if the whole directory was read
+     */
+    public synchronized void update(Collection<Entry> changed,
+                                    String modifyTimestamp,
+                                    boolean full,
+                                    boolean truncated)
+    {
+        if (full)
+        {
+            // a truncated answer counts as a complete synchronization too,
+            // or it would be tried again at every synchronization
+            lastFullSyncTime = System.currentTimeMillis();
+            if (!truncated)
+            {
+                entries.clear();
+                lastModifyTimestamp = null;
+            }
+        }
+        for (Entry entry : changed)
+            entries.put(entry.dn, entry);
+
+        if ((modifyTimestamp != null)
+                && ((lastModifyTimestamp == null)
+                    || (modifyTimestamp.compareTo(lastModifyTimestamp) > 0)))
+            lastModifyTimestamp = modifyTimestamp;
+        ready = true;
+    }
+
+    /**
+     * Searches the replica the way the directory would search a query
+     * string: an entry matches if one of its name attributes matches the
+     * query string, where <tt>*</tt> stands for any characters and case is
+     * ignored. A query string which is a phone number also matches the
+     * entries with a phone number containing it, separators aside.
+     *
+     * @param queryString the query string, e.g. "*john d*"
+     * @param nameAttributes the attributes matched against the query string
+     * @param phoneAttributes the attributes holding phone numbers
+     * @param countLimit the maximum number of entries returned, 0 for no
+     * limit
+     * @return the matching entries
+     */
+    public synchronized List<Entry> search(
+            String queryString,
+            Collection<String> nameAttributes,
+            Collection<String> phoneAttributes,
+            long countLimit)
+    {
+        Pattern pattern = toPattern(queryString);
+        String phoneNumber = toPhoneNumber(queryString.replace("*", ""));
+        List<Entry> found
+            = new ArrayList<Entry>();
+
+        for (Entry entry : entries.values())
+        {
+            if (matches(entry, nameAttributes, pattern)
+                    || ((phoneNumber != null)
+                        && matchesPhoneNumber(
+                                entry, phoneAttributes, phoneNumber)))
+            {
+                found.add(entry);
+                if ((countLimit > 0) && (found.size() >= countLimit))
+                    break;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Determines whether an attribute of an entry matches a pattern.
+     *
+     * @param entry the entry
+     * @param attributes the attributes to match
+     * @param pattern the pattern
+     * @return <tt>true</tt> if one of the <tt>attributes</tt> of
+     * <tt>entry</tt> matches <tt>pattern</tt>
+     */
+    private static boolean matches(Entry entry,
+                                   Collection<String> attributes,
+                                   Pattern pattern)
+    {
+        for (String attribute : attributes)
+        {
+            Set<String> values = entry.attributes.get(attribute);
+
+            if (values == null)
+                continue;
+            for (String value : values)
+            {
+                if (pattern.matcher(value).matches())
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether a phone number of an entry contains another one.
+     *
+     * @param entry the entry
+     * @param attributes the attributes holding phone numbers
+     * @param phoneNumber the phone number without separators
+     * @return <tt>true</tt> if one of the phone numbers of <tt>entry</tt>
+     * contains <tt>phoneNumber</tt>
+     */
+    private static boolean matchesPhoneNumber(Entry entry,
+                                              Collection<String> attributes,
+                                              String phoneNumber)
+    {
+        for (String attribute : attributes)
+        {
+            Set<String> values = entry.attributes.get(attribute);
+
+            if (values == null)
+                continue;
+            for (String value : values)
+            {
+                String number = toPhoneNumber(value);
+
+                if ((number != null) && number.contains(phoneNumber))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts an LDAP substring filter value to a pattern.
+     *
+     * @param queryString the filter value, e.g. "d*john"
+     * @return the case insensitive pattern matching the same values
+     */
+    private static Pattern toPattern(String queryString)
+    {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        int star;
+
+        while ((star = queryString.indexOf('*', start)) != -1)
+        {
+            if (star > start)
+                regex.append(Pattern.quote(queryString.substring(start, star)));
+            regex.append(".*");
+            start = star + 1;
+        }
+        if (start < queryString.length())
+            regex.append(Pattern.quote(queryString.substring(start)));
+
+        return Pattern.compile(
+                regex.toString(),
+                Pattern.CASE_INSENSITIVE
+                    | Pattern.UNICODE_CASE
+                    | Pattern.DOTALL);
+    }
+
+    /**
+     * Removes the separators of a phone number.
+     *
+     * @param s the string
+     * @return the digits of <tt>s</tt>, with a leading plus sign if any, or
+     * <tt>null</tt> if <tt>s</tt> is not a phone number
+     */
+    private static String toPhoneNumber(String s)
+    {
+        StringBuilder number = new StringBuilder(s.length());
+
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+
+            if (Character.isDigit(c) || ((c == '+') && (number.length() == 0)))
+                number.append(c);
+            else if (PHONE_NUMBER_SEPARATORS.indexOf(c) == -1)
+                return null;
+        }
+        return (number.length() == 0) ? null : number.toString();
+    }
+
+    /**
+     * Loads the replica from its file, if it exists.
+     */
+    public synchronized void load()
+    {
+        if (!file.exists())
+            return;
+
+        DataInputStream in = null;
+
+        try
+        {
+            in = new DataInputStream(
+                    new BufferedInputStream(
+                            new GZIPInputStream(new FileInputStream(file))));
+
+            if (in.readInt() != FILE_VERSION)
+                return;
+
+            String modifyTimestamp = in.readBoolean() ? in.readUTF() : null;
+            long fullSyncTime = in.readLong();
+            int entryCount = in.readInt();
+            List<Entry> loaded
+                = new ArrayList<Entry>(entryCount);
+
+            for (int i = 0; i < entryCount; i++)
+            {
+                String dn = in.readUTF();
+                int attributeCount = in.readInt();
+                Map<String, Set<String>> attributes
+                    = new HashMap<String, Set<String>>();
+
+                for (int j = 0; j < attributeCount; j++)
+                {
+                    String id = in.readUTF();
+                    int valueCount = in.readInt();
+                    Set<String> values = new HashSet<String>();
+
+                    for (int k = 0; k < valueCount; k++)
+                        values.add(in.readUTF());
+                    attributes.put(id, values);
+                }
+                loaded.add(new Entry(dn, attributes));
+            }
+
+            update(loaded, modifyTimestamp, true, false);
+            lastFullSyncTime = fullSyncTime;
+
+            logger.trace("loaded " + entryCount + " entries from " + file);
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to load LDAP replica from " + file, e);
+        }
+        finally
+        {
+            closeStream(in);
+        }
+    }
+
+    /**
+     * Saves the replica to its file. The replica is written to a temporary
+     * file first so that a failure does not lose the previous copy.
+     */
+    public synchronized void save()
+    {
+        if (deleted)
+            return;
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean saved = false;
+
+        try
+        {
+            out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new GZIPOutputStream(
+                                    new FileOutputStream(tmpFile))));
+
+            out.writeInt(FILE_VERSION);
+            out.writeBoolean(lastModifyTimestamp != null);
+            if (lastModifyTimestamp != null)
+                out.writeUTF(lastModifyTimestamp);
+            out.writeLong(lastFullSyncTime);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values())
+            {
+                out.writeUTF(entry.dn);
+                out.writeInt(entry.attributes.size());
+                for (Map.Entry<String, Set<String>> attribute
+                        : entry.attributes.entrySet())
+                {
+                    out.writeUTF(attribute.getKey());
+                    out.writeInt(attribute.getValue().size());
+                    for (String value : attribute.getValue())
+                        out.writeUTF(value);
+                }
+            }
+            out.close();
+            out = null;
+
+            saved = (!file.exists() || file.delete())
+                && tmpFile.renameTo(file);
+            if (!saved)
+                logger.error("Failed to replace LDAP replica " + file);
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to save LDAP replica to " + file, e);
+        }
+        finally
+        {
+            closeStream(out);
+            if (!saved)
+                tmpFile.delete();
+        }
+    }
+
+    /**
+     * Deletes the file of the replica, which is no longer saved afterwards.
+     */
+    public synchronized void delete()
+    {
+        deleted = true;
+        if (file.exists() && !file.delete())
+            logger.error("Failed to delete LDAP replica " + file);
+    }
+
+    /**
+     * Closes a stream, ignoring errors.
+     *
+     * @param stream the stream, possibly <tt>null</tt>
+     */
+    private static void closeStream(Closeable stream)
+    {
+        if (stream == null)
+            return;
+
+        try
+        {
+            stream.close();
+        }
+        catch (IOException e)
+        {
+            logger.debug("Failed to close " + stream, e);
+        }
+    }
+
+    /**
+     * An entry of an LDAP directory.
+     */
+    public static class Entry
+    {
+        /**
+         * The distinguished name of the entry, relative to the base DN.
+         */
+        private final String dn;
+
+        /**
+         * The retrieved attributes of the entry.
+         */
+        private final Map<String, Set<String>> attributes;
+
+        /**
+         * Creates an entry.
+         *
+         * @param dn the distinguished name of the entry
+         * @param attributes the retrieved attributes of the entry
+         */
+        public Entry(String dn, Map<String, Set<String>> attributes)
+        {
+            this.dn = dn;
+            this.attributes = attributes;
+        }
+
+        /**
+         * Returns the distinguished name of the entry.
+         *
+         * @return the distinguished name of the entry, relative to the base
+         * DN
+         */
+        public String getDN()
+        {
+            return dn;
+        }
+
+        /**
+         * Returns the retrieved attributes of the entry.
+         *
+         * @return the retrieved attributes of the entry by name
+         */
+        public Map<String, Set<String>> getAttributes()
+        {
+            return attributes;
+        }
+    }
+}
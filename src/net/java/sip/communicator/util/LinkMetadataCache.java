@@ -0,0 +1,736 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A process-wide cache of what is known about the links shown in chat
+ * messages: the size and the content type of the resources they point to and
+ * the URLs of their preview thumbnails. It spares the replacement sources and
+ * the chat windows from connecting to the same server again each time the
+ * same link appears, as when the history is reloaded or the link is sent to
+ * another chat.
+ * <p>
+ * The metadata of a link is obtained by a <tt>Resolver</tt> on a small pool
+ * of background threads, with a limited number of probes per host at a time.
+ * Concurrent requests for the same link are resolved once. The metadata is
+ * kept for <tt>TTL</tt>, or for <tt>FAILURE_TTL</tt> when resolving failed,
+ * and expired metadata keeps being served while it is resolved again in the
+ * background. Once loaded, the cache is saved to a file so that it survives
+ * restarts.
+ */
+public final class LinkMetadataCache
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>LinkMetadataCache</tt> class for
+     * logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(LinkMetadataCache.class);
+
+    /**
+     * The time the metadata of a link is kept, in milliseconds.
+     */
+    private static final long TTL = 24 * 60 * 60 * 1000;
+
+    /**
+     * The time the result of a failed resolution is kept, in milliseconds.
+     */
+    private static final long FAILURE_TTL = 10 * 60 * 1000;
+
+    /**
+     * The time expired metadata may be served for while it is resolved again,
+     * counted from its expiration, in milliseconds.
+     */
+    private static final long MAX_STALE_TIME = 7 * 24 * 60 * 60 * 1000;
+
+    /**
+     * The maximum number of links the metadata of which is kept.
+     */
+    private static final int MAX_ENTRIES = 1024;
+
+    /**
+     * The maximum number of links of the same host resolved at the same time.
+     */
+    private static final int MAX_PROBES_PER_HOST = 2;
+
+    /**
+     * The maximum length of the links and the strings of their metadata which
+     * are saved to the cache file.
+     */
+    private static final int MAX_SAVED_LENGTH = 4096;
+
+    /**
+     * The time between a change of the cache and its saving, in
+     * milliseconds.
+     */
+    private static final long SAVE_DELAY = 60 * 1000;
+
+    /**
+     * The version of the format of the cache file.
+     */
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Runs the probes and the saving of the cache.
+     */
+    private static final ScheduledThreadPoolExecutor executor
+        = PersistentLruMap.createExecutor("Link metadata cache", 4);
+
+    /**
+     * The metadata by key, the least recently used first.
+     */
+    private static final PersistentLruMap<CachedMetadata> entries
+        = new PersistentLruMap<CachedMetadata>(
+                "link metadata cache",
+                "links",
+                "metadata",
+                FILE_VERSION,
+                MAX_ENTRIES,
+                SAVE_DELAY,
+                executor,
+                new MetadataCodec());
+
+    /**
+     * Whether the current thread is running a <tt>Resolver</tt>. A resolver
+     * which asks the cache for the metadata of another link must not wait for
+     * a probe which may never get a thread or a slot of its host.
+     */
+    private static final ThreadLocal<Boolean> resolving
+        = new ThreadLocal<Boolean>();
+
+    /**
+     * The probes which have been queued or are running, by key.
+     */
+    private static final Map<String, Probe> probes
+        = new HashMap<String, Probe>();
+
+    /**
+     * The number of probes running per host.
+     */
+    private static final Map<String, Integer> runningProbeCounts
+        = new HashMap<String, Integer>();
+
+    /**
+     * The probes waiting for a probe of the same host to complete, by host.
+     */
+    private static final Map<String, Queue<Probe>> waitingProbes
+        = new HashMap<String, Queue<Probe>>();
+
+    /**
+     * Prevents the creation of instances.
+     */
+    private LinkMetadataCache()
+    {
+    }
+
+    /**
+     * Returns the metadata of a link without blocking. If the metadata is not
+     * in the cache, it is resolved in the background and <tt>listener</tt> is
+     * notified once it is available. If it has expired, it is returned and
+     * resolved again in the background.
+     *
+     * @param kind the kind of metadata, which tells apart the metadata
+     * resolved for the same link by different resolvers
+     * @param link the link
+     * @param resolver the <tt>Resolver</tt> which obtains the metadata of
+     * <tt>link</tt> if it is not in the cache
+     * @param listener the <tt>Listener</tt> to be notified once the metadata
+     * of <tt>link</tt> is available if it is not yet, or <tt>null</tt>
+     * @return the metadata of <tt>link</tt>, or <tt>null</tt> if it is being
+     * resolved
+     */
+    public static Metadata get(
+            String kind,
+            String link,
+            Resolver resolver,
+            Listener listener)
+    {
+        String key = getKey(kind, link);
+        CachedMetadata entry = getEntry(key);
+
+        if ((entry != null)
+                && (System.currentTimeMillis() < entry.expirationTime))
+            return entry.metadata;
+
+        probe(kind, link, resolver, (entry == null) ? listener : null);
+        return (entry == null) ? null : entry.metadata;
+    }
+
+    /**
+     * Returns the metadata of a link, from the cache if it is there and has
+     * not expired, or else by resolving it. Blocks while the metadata is being
+     * resolved. When called by a <tt>Resolver</tt>, the metadata is resolved
+     * on the calling thread so that the probes never wait for each other.
+     *
+     * @param kind the kind of metadata, which tells apart the metadata
+     * resolved for the same link by different resolvers
+     * @param link the link
+     * @param resolver the <tt>Resolver</tt> which obtains the metadata of
+     * <tt>link</tt> if it is not in the cache
+     * @return the metadata of <tt>link</tt>; the expired metadata of
+     * <tt>link</tt> or <tt>Metadata.UNKNOWN</tt> if it could not be resolved
+     */
+    public static Metadata resolve(String kind, String link, Resolver resolver)
+    {
+        CachedMetadata entry = getEntry(getKey(kind, link));
+
+        if ((entry != null)
+                && (System.currentTimeMillis() < entry.expirationTime))
+            return entry.metadata;
+
+        if (Boolean.TRUE.equals(resolving.get()))
+        {
+            // resolve in place rather than wait for a thread of the cache
+            return store(getKey(kind, link), runResolver(link, resolver));
+        }
+
+        Probe probe = probe(kind, link, resolver, null);
+
+        try
+        {
+            Metadata metadata = probe.get();
+
+            if (metadata != null)
+                return metadata;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            logger.error("Failed to resolve the metadata of " + link,
+                e.getCause());
+        }
+        return (entry == null) ? Metadata.UNKNOWN : entry.metadata;
+    }
+
+    /**
+     * Returns the entry with a specific key, unless it is too old to be
+     * served.
+     *
+     * @param key the key of the entry
+     * @return the entry with key <tt>key</tt>, or <tt>null</tt> if there is
+     * none or it is too old
+     */
+    private static CachedMetadata getEntry(String key)
+    {
+        synchronized (entries)
+        {
+            CachedMetadata entry = entries.get(key);
+
+            if ((entry != null)
+                    && (System.currentTimeMillis() - entry.expirationTime
+                        > MAX_STALE_TIME))
+            {
+                entries.remove(key);
+                entry = null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Queues the resolution of the metadata of a link, unless it is already
+     * queued or running.
+     *
+     * @param kind the kind of metadata
+     * @param link the link
+     * @param resolver the <tt>Resolver</tt> which obtains the metadata
+     * @param listener the <tt>Listener</tt> to be notified once the metadata
+     * is available, or <tt>null</tt>
+     * @return the <tt>Probe</tt> which resolves the metadata of <tt>link</tt>
+     */
+    private static Probe probe(
+            String kind,
+            String link,
+            Resolver resolver,
+            Listener listener)
+    {
+        String key = getKey(kind, link);
+        Probe probe;
+        boolean start = false;
+
+        synchronized (probes)
+        {
+            probe = probes.get(key);
+            if (probe == null)
+            {
+                probe = new Probe(kind, link, resolver);
+                probes.put(key, probe);
+                start = true;
+            }
+            if ((listener != null) && !probe.listeners.contains(listener))
+                probe.listeners.add(listener);
+        }
+
+        if (start)
+        {
+            synchronized (runningProbeCounts)
+            {
+                Integer count = runningProbeCounts.get(probe.host);
+
+                if (count == null)
+                    count = 0;
+                if (count < MAX_PROBES_PER_HOST)
+                {
+                    runningProbeCounts.put(probe.host, count + 1);
+                    executor.execute(probe);
+                }
+                else
+                {
+                    Queue<Probe> queue = waitingProbes.get(probe.host);
+
+                    if (queue == null)
+                    {
+                        queue = new LinkedList<Probe>();
+                        waitingProbes.put(probe.host, queue);
+                    }
+                    queue.add(probe);
+                }
+            }
+        }
+        return probe;
+    }
+
+    /**
+     * Starts the next probe waiting for a specific host, if any, in place of
+     * one which has completed.
+     *
+     * @param host the host of the completed probe
+     */
+    private static void probeCompleted(String host)
+    {
+        synchronized (runningProbeCounts)
+        {
+            Queue<Probe> queue = waitingProbes.get(host);
+            Probe next = (queue == null) ? null : queue.poll();
+
+            if (next != null)
+            {
+                if (queue.isEmpty())
+                    waitingProbes.remove(host);
+                executor.execute(next);
+            }
+            else
+            {
+                int count = runningProbeCounts.get(host) - 1;
+
+                if (count > 0)
+                    runningProbeCounts.put(host, count);
+                else
+                    runningProbeCounts.remove(host);
+            }
+        }
+    }
+
+    /**
+     * Stores the metadata of a link.
+     *
+     * @param key the key of the metadata
+     * @param entry the metadata and the time it expires at
+     */
+    private static void put(String key, CachedMetadata entry)
+    {
+        synchronized (entries)
+        {
+            entries.put(key, entry);
+            entries.scheduleSave();
+        }
+    }
+
+    /**
+     * Stores the result of a resolution. When the resolution has failed, the
+     * metadata known before, if any, keeps being served for
+     * <tt>FAILURE_TTL</tt>.
+     *
+     * @param key the key of the metadata
+     * @param metadata the resolved metadata or <tt>null</tt> if resolving
+     * failed
+     * @return the stored metadata
+     */
+    private static Metadata store(String key, Metadata metadata)
+    {
+        long now = System.currentTimeMillis();
+
+        if (metadata == null)
+        {
+            CachedMetadata entry = getEntry(key);
+
+            metadata = (entry == null) ? Metadata.UNKNOWN : entry.metadata;
+            put(key, new CachedMetadata(metadata, now + FAILURE_TTL));
+        }
+        else
+            put(key, new CachedMetadata(metadata, now + TTL));
+        return metadata;
+    }
+
+    /**
+     * Runs a <tt>Resolver</tt> on the current thread.
+     *
+     * @param link the link to resolve the metadata of
+     * @param resolver the <tt>Resolver</tt>
+     * @return the metadata of <tt>link</tt> or <tt>null</tt> if resolving
+     * failed
+     */
+    private static Metadata runResolver(String link, Resolver resolver)
+    {
+        Boolean wasResolving = resolving.get();
+
+        resolving.set(Boolean.TRUE);
+        try
+        {
+            return resolver.resolve(link);
+        }
+        catch (Throwable t)
+        {
+            if (t instanceof ThreadDeath)
+                throw (ThreadDeath) t;
+            if (logger.isDebugEnabled())
+                logger.debug("Failed to resolve the metadata of " + link, t);
+            return null;
+        }
+        finally
+        {
+            resolving.set(wasResolving);
+        }
+    }
+
+    /**
+     * Forgets the metadata of all links.
+     */
+    public static void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+            entries.scheduleSave();
+        }
+    }
+
+    /**
+     * Loads the cache from its file and from then on saves it there when it
+     * changes.
+     */
+    public static void load()
+    {
+        entries.load();
+    }
+
+    /**
+     * Saves the cache to its file, if it has been loaded.
+     */
+    public static void save()
+    {
+        entries.save();
+    }
+
+    /**
+     * Returns the key of the metadata of a link.
+     *
+     * @param kind the kind of metadata
+     * @param link the link
+     * @return the key of the metadata of <tt>link</tt>
+     */
+    private static String getKey(String kind, String link)
+    {
+        return kind + " " + link;
+    }
+
+    /**
+     * What is known about a link.
+     */
+    public static class Metadata
+    {
+        /**
+         * The metadata of a link nothing is known about.
+         */
+        public static final Metadata UNKNOWN = new Metadata(-1, null, null);
+
+        /**
+         * The size in bytes of the resource pointed by the link, or
+         * <tt>-1</tt> if it is not known.
+         */
+        public final long size;
+
+        /**
+         * The content type of the resource pointed by the link, or
+         * <tt>null</tt> if it is not known.
+         */
+        public final String contentType;
+
+        /**
+         * The URL of the thumbnail previewing the link, or <tt>null</tt> if
+         * there is none.
+         */
+        public final String thumbnailUrl;
+
+        /**
+         * Creates the metadata of a link.
+         *
+         * @param size the size in bytes of the resource pointed by the link,
+         * or <tt>-1</tt> if it is not known
+         * @param contentType the content type of the resource pointed by the
+         * link, or <tt>null</tt> if it is not known
+         * @param thumbnailUrl the URL of the thumbnail previewing the link, or
+         * <tt>null</tt> if there is none
+         */
+        public Metadata(long size, String contentType, String thumbnailUrl)
+        {
+            this.size = size;
+            this.contentType = contentType;
+            this.thumbnailUrl = thumbnailUrl;
+        }
+    }
+
+    /**
+     * Obtains the metadata of links, typically by connecting to the servers
+     * they point to.
+     */
+    public interface Resolver
+    {
+        /**
+         * Obtains the metadata of a link.
+         *
+         * @param link the link
+         * @return the metadata of <tt>link</tt>
+         * @throws Exception if the metadata cannot be obtained
+         */
+        public Metadata resolve(String link)
+            throws Exception;
+    }
+
+    /**
+     * Notified when the metadata of a link requested through
+     * {@link LinkMetadataCache#get(String, String, Resolver, Listener)}
+     * becomes available.
+     */
+    public interface Listener
+    {
+        /**
+         * Notifies this listener that the metadata of a link is available.
+         * Called on a thread of the cache.
+         *
+         * @param link the link
+         * @param metadata the metadata of <tt>link</tt>
+         */
+        public void metadataResolved(String link, Metadata metadata);
+    }
+
+    /**
+     * Resolves the metadata of a link, stores it and notifies the listeners
+     * waiting for it.
+     */
+    private static class Probe
+        extends FutureTask<Metadata>
+    {
+        /**
+         * The key of the metadata.
+         */
+        final String key;
+
+        /**
+         * The link.
+         */
+        final String link;
+
+        /**
+         * The host of the link, which limits the number of probes running
+         * together.
+         */
+        final String host;
+
+        /**
+         * The listeners to be notified once the metadata is available.
+         * Accessed with the lock on <tt>probes</tt>.
+         */
+        final List<Listener> listeners = new ArrayList<Listener>();
+
+        /**
+         * Creates a probe.
+         *
+         * @param kind the kind of metadata
+         * @param link the link
+         * @param resolver the <tt>Resolver</tt> which obtains the metadata
+         */
+        Probe(String kind, final String link, final Resolver resolver)
+        {
+            super(new Callable<Metadata>()
+            {
+                public Metadata call()
+                {
+                    return runResolver(link, resolver);
+                }
+            });
+
+            this.key = getKey(kind, link);
+            this.link = link;
+
+            String host;
+
+            try
+            {
+                host = new URL(link).getHost();
+            }
+            catch (MalformedURLException e)
+            {
+                host = null;
+            }
+            this.host = (host == null) ? "" : host.toLowerCase();
+        }
+
+        /**
+         * Stores the metadata and notifies the listeners waiting for it.
+         */
+        @Override
+        protected void done()
+        {
+            Metadata metadata = null;
+
+            try
+            {
+                metadata = get();
+            }
+            catch (Exception e)
+            {
+                // the Callable does not throw
+            }
+
+            List<Listener> listeners;
+
+            metadata = store(key, metadata);
+
+            synchronized (probes)
+            {
+                probes.remove(key);
+                listeners = new ArrayList<Listener>(this.listeners);
+            }
+            probeCompleted(host);
+
+            for (Listener listener : listeners)
+            {
+                try
+                {
+                    listener.metadataResolved(link, metadata);
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    logger.error("Failed to notify " + listener, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads and writes the metadata saved to the cache file.
+     */
+    private static class MetadataCodec
+        implements PersistentLruMap.Codec<CachedMetadata>
+    {
+        /**
+         * Reads metadata saved by <tt>write</tt>.
+         *
+         * @param in the stream to read from
+         * @return the metadata and the time it expires at
+         * @throws IOException if reading fails
+         */
+        public CachedMetadata read(DataInputStream in)
+            throws IOException
+        {
+            long size = in.readLong();
+            String contentType = in.readBoolean() ? in.readUTF() : null;
+            String thumbnailUrl = in.readBoolean() ? in.readUTF() : null;
+            long expirationTime = in.readLong();
+
+            return new CachedMetadata(
+                    new Metadata(size, contentType, thumbnailUrl),
+                    expirationTime);
+        }
+
+        /**
+         * Writes metadata.
+         *
+         * @param out the stream to write to
+         * @param entry the metadata and the time it expires at
+         * @throws IOException if writing fails
+         */
+        public void write(DataOutputStream out, CachedMetadata entry)
+            throws IOException
+        {
+            Metadata metadata = entry.metadata;
+
+            out.writeLong(metadata.size);
+            out.writeBoolean(metadata.contentType != null);
+            if (metadata.contentType != null)
+                out.writeUTF(metadata.contentType);
+            out.writeBoolean(metadata.thumbnailUrl != null);
+            if (metadata.thumbnailUrl != null)
+                out.writeUTF(metadata.thumbnailUrl);
+            out.writeLong(entry.expirationTime);
+        }
+
+        /**
+         * Keeps the metadata which is not too old to be served and the
+         * strings of which are not too long to be saved.
+         *
+         * @param key the key of the metadata
+         * @param entry the metadata and the time it expires at
+         * @return <tt>true</tt> if <tt>entry</tt> is to be saved and loaded
+         */
+        public boolean isPersistent(String key, CachedMetadata entry)
+        {
+            Metadata metadata = entry.metadata;
+
+            return
+                (System.currentTimeMillis() - entry.expirationTime
+                        <= MAX_STALE_TIME)
+                    && (key.length() <= MAX_SAVED_LENGTH)
+                    && ((metadata.contentType == null)
+                        || (metadata.contentType.length()
+                            <= MAX_SAVED_LENGTH))
+                    && ((metadata.thumbnailUrl == null)
+                        || (metadata.thumbnailUrl.length()
+                            <= MAX_SAVED_LENGTH));
+        }
+    }
+
+    /**
+     * The metadata of a link and the time it expires at.
+     */
+    private static class CachedMetadata
+    {
+        /**
+         * The metadata.
+         */
+        final Metadata metadata;
+
+        /**
+         * The time the metadata expires at, in milliseconds.
+         */
+        final long expirationTime;
+
+        /**
+         * Creates an entry.
+         *
+         * @param metadata the metadata
+         * @param expirationTime the time the metadata expires at, in
+         * milliseconds
+         */
+        CachedMetadata(Metadata metadata, long expirationTime)
+        {
+            this.metadata = metadata;
+            this.expirationTime = expirationTime;
+        }
+    }
+}
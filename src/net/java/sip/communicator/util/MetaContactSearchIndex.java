@@ -0,0 +1,469 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.service.gui.event.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * A trigram index over the display names and addresses of the
+ * <tt>MetaContact</tt>s and of their protocol contacts, used by the
+ * <tt>MetaContactListSource</tt> to answer the searches typed in the contact
+ * list without matching every contact against the filter.
+ * <p>
+ * A contact matches a filter if one of its names or addresses contains it,
+ * ignoring case, so the index only gives candidates which are then checked.
+ * Filters shorter than a trigram are checked against all contacts, and a
+ * filter extending the previous one, as when the user types one more
+ * character, only checks the previous results.
+ * <p>
+ * The index is built by {@link #build(MetaContactListService)} before the
+ * first search and then kept up to date by the events of the
+ * <tt>MetaContactListService</tt>. Contacts are numbered in the order
+ * they are indexed and a changed contact gets a new number, the postings of
+ * the old one being skipped until the index is compacted.
+ */
+public class MetaContactSearchIndex
+    extends MetaContactListAdapter
+{
+    /**
+     * The length of the indexed substrings.
+     */
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * The separator of the names and addresses of a contact in its search
+     * text, which filters never contain.
+     */
+    private static final char SEPARATOR = '\n';
+
+    /**
+     * The indexed meta contacts by number, <tt>null</tt> for the numbers no
+     * longer used.
+     */
+    private final List<MetaContact> contacts = new ArrayList<MetaContact>();
+
+    /**
+     * The lower case search texts of the indexed contacts by number.
+     */
+    private final List<String> texts = new ArrayList<String>();
+
+    /**
+     * The current numbers of the indexed meta contacts.
+     */
+    private final Map<MetaContact, Integer> numbers
+        = new HashMap<MetaContact, Integer>();
+
+    /**
+     * The numbers of the contacts whose search text contains a trigram, in
+     * increasing order, by trigram.
+     */
+    private final Map<String, IntList> postings
+        = new HashMap<String, IntList>();
+
+    /**
+     * Whether the contact list has been read into the index.
+     */
+    private boolean built = false;
+
+    /**
+     * Incremented on each change of the index.
+     */
+    private int modCount = 0;
+
+    /**
+     * The last filter searched for.
+     */
+    private String lastFilter = null;
+
+    /**
+     * The numbers of the contacts which matched <tt>lastFilter</tt>.
+     */
+    private IntList lastResult = null;
+
+    /**
+     * The value of <tt>modCount</tt> when <tt>lastResult</tt> was computed.
+     */
+    private int lastModCount = -1;
+
+    /**
+     * Returns the meta contacts matching a filter.
+     *
+     * @param filterString the filter
+     * @param query the query to stop searching for when it is canceled, or
+     * <tt>null</tt>
+     * @return the matching meta contacts in the order they were indexed, none
+     * if the index has not been built
+     */
+    public synchronized List<MetaContact> find(String filterString,
+                                               MetaContactQuery query)
+    {
+        String filter = filterString.toLowerCase();
+        IntList candidates;
+
+        if ((lastFilter != null)
+                && (lastModCount == modCount)
+                && filter.contains(lastFilter))
+            candidates = lastResult;
+        else if (filter.length() >= GRAM_LENGTH)
+            candidates = getCandidates(filter);
+        else
+            candidates = null;
+
+        IntList result = new IntList();
+        int size = (candidates == null) ? contacts.size() : candidates.size;
+
+        for (int i = 0; i < size; i++)
+        {
+            if ((query != null) && ((i & 0xFF) == 0) && query.isCanceled())
+                return new ArrayList<MetaContact>();
+
+            int number = (candidates == null) ? i : candidates.values[i];
+
+            if ((contacts.get(number) != null)
+                    && texts.get(number).contains(filter))
+                result.add(number);
+        }
+
+        lastFilter = filter;
+        lastResult = result;
+        lastModCount = modCount;
+
+        List<MetaContact> found = new ArrayList<MetaContact>(result.size);
+        for (int i = 0; i < result.size; i++)
+            found.add(contacts.get(result.values[i]));
+        return found;
+    }
+
+    /**
+     * Returns the contacts whose search text contains the least common
+     * trigram of a filter.
+     *
+     * @param filter the lower case filter
+     * @return the numbers of the candidate contacts
+     */
+    private IntList getCandidates(String filter)
+    {
+        IntList candidates = null;
+
+        for (int i = 0; i + GRAM_LENGTH <= filter.length(); i++)
+        {
+            IntList posting
+                = postings.get(filter.substring(i, i + GRAM_LENGTH));
+
+            if (posting == null)
+                return new IntList();
+            if ((candidates == null) || (posting.size < candidates.size))
+                candidates = posting;
+        }
+        return candidates;
+    }
+
+    /**
+     * Reads a contact list into the index and starts listening for its
+     * changes, unless it has already been done.
+     *
+     * @param contactListService the contact list
+     */
+    public synchronized void build(
+            MetaContactListService contactListService)
+    {
+        if (built)
+            return;
+
+        // listen first so that no change is missed, indexing is idempotent
+        contactListService.addMetaContactListListener(this);
+        indexGroup(contactListService.getRoot());
+        built = true;
+    }
+
+    /**
+     * Indexes or reindexes a meta contact.
+     *
+     * @param metaContact the meta contact
+     */
+    private synchronized void index(MetaContact metaContact)
+    {
+        unindex(metaContact);
+
+        StringBuilder text = new StringBuilder();
+        appendSearchString(text, metaContact.getDisplayName());
+
+        Iterator<Contact> protoContacts = metaContact.getContacts();
+        while (protoContacts.hasNext())
+        {
+            Contact protoContact = protoContacts.next();
+
+            appendSearchString(text, protoContact.getDisplayName());
+            appendSearchString(text, protoContact.getAddress());
+        }
+
+        String searchText = text.toString().toLowerCase();
+        int number = contacts.size();
+
+        contacts.add(metaContact);
+        texts.add(searchText);
+        numbers.put(metaContact, number);
+
+        Set<String> grams = new HashSet<String>();
+        for (int i = 0; i + GRAM_LENGTH <= searchText.length(); i++)
+        {
+            String gram = searchText.substring(i, i + GRAM_LENGTH);
+
+            if ((gram.indexOf(SEPARATOR) == -1) && grams.add(gram))
+            {
+                IntList posting = postings.get(gram);
+
+                if (posting == null)
+                {
+                    posting = new IntList();
+                    postings.put(gram, posting);
+                }
+                posting.add(number);
+            }
+        }
+        modCount++;
+    }
+
+    /**
+     * Appends a name or an address to the search text of a contact.
+     *
+     * @param text the search text
+     * @param searchString the name or address, possibly <tt>null</tt>
+     */
+    private static void appendSearchString(StringBuilder text,
+                                           String searchString)
+    {
+        if (searchString == null)
+            return;
+
+        if (text.length() > 0)
+            text.append(SEPARATOR);
+        text.append(searchString.replace(SEPARATOR, ' '));
+    }
+
+    /**
+     * Removes a meta contact from the index.
+     *
+     * @param metaContact the meta contact
+     */
+    private synchronized void unindex(MetaContact metaContact)
+    {
+        Integer number = numbers.remove(metaContact);
+
+        if (number == null)
+            return;
+
+        contacts.set(number, null);
+        texts.set(number, null);
+        modCount++;
+
+        // compact once most numbers are no longer used
+        if (numbers.size() < contacts.size() / 2)
+            compact();
+    }
+
+    /**
+     * Renumbers the indexed contacts to drop the unused numbers and their
+     * postings.
+     */
+    private void compact()
+    {
+        List<MetaContact> indexed = new ArrayList<MetaContact>(numbers.size());
+
+        for (MetaContact metaContact : contacts)
+        {
+            if (metaContact != null)
+                indexed.add(metaContact);
+        }
+
+        contacts.clear();
+        texts.clear();
+        numbers.clear();
+        postings.clear();
+        for (MetaContact metaContact : indexed)
+            index(metaContact);
+    }
+
+    /**
+     * Indexes the meta contacts of a group and of its subgroups.
+     *
+     * @param group the group
+     */
+    private synchronized void indexGroup(MetaContactGroup group)
+    {
+        Iterator<MetaContact> childContacts = group.getChildContacts();
+        while (childContacts.hasNext())
+            index(childContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            indexGroup(subgroups.next());
+    }
+
+    /**
+     * Removes the meta contacts of a group and of its subgroups from the
+     * index.
+     *
+     * @param group the group
+     */
+    private synchronized void unindexGroup(MetaContactGroup group)
+    {
+        Iterator<MetaContact> childContacts = group.getChildContacts();
+        while (childContacts.hasNext())
+            unindex(childContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            unindexGroup(subgroups.next());
+    }
+
+    /**
+     * Indexes an added meta contact.
+     * @param evt the <tt>MetaContactEvent</tt> that notified us
+     */
+    @Override
+    public void metaContactAdded(MetaContactEvent evt)
+    {
+        index(evt.getSourceMetaContact());
+    }
+
+    /**
+     * Reindexes a renamed meta contact.
+     * @param evt the <tt>MetaContactRenamedEvent</tt> that notified us
+     */
+    @Override
+    public void metaContactRenamed(MetaContactRenamedEvent evt)
+    {
+        index(evt.getSourceMetaContact());
+    }
+
+    /**
+     * Reindexes a modified meta contact.
+     * @param evt the <tt>MetaContactModifiedEvent</tt> that notified us
+     */
+    @Override
+    public void metaContactModified(MetaContactModifiedEvent evt)
+    {
+        index(evt.getSourceMetaContact());
+    }
+
+    /**
+     * Removes a meta contact from the index.
+     * @param evt the <tt>MetaContactEvent</tt> that notified us
+     */
+    @Override
+    public void metaContactRemoved(MetaContactEvent evt)
+    {
+        unindex(evt.getSourceMetaContact());
+    }
+
+    /**
+     * Reindexes the meta contact a protocol contact has been added to.
+     * @param evt the <tt>ProtoContactEvent</tt> that notified us
+     */
+    @Override
+    public void protoContactAdded(ProtoContactEvent evt)
+    {
+        reindexParent(evt.getParent());
+    }
+
+    /**
+     * Reindexes the meta contact of a modified protocol contact.
+     * @param evt the <tt>ProtoContactEvent</tt> that notified us
+     */
+    @Override
+    public void protoContactModified(ProtoContactEvent evt)
+    {
+        reindexParent(evt.getParent());
+    }
+
+    /**
+     * Reindexes the meta contact a protocol contact has been removed from.
+     * @param evt the <tt>ProtoContactEvent</tt> that notified us
+     */
+    @Override
+    public void protoContactRemoved(ProtoContactEvent evt)
+    {
+        reindexParent(evt.getParent());
+    }
+
+    /**
+     * Reindexes the meta contacts a protocol contact has been moved between.
+     * @param evt the <tt>ProtoContactEvent</tt> that notified us
+     */
+    @Override
+    public void protoContactMoved(ProtoContactEvent evt)
+    {
+        reindexParent(evt.getOldParent());
+        reindexParent(evt.getNewParent());
+    }
+
+    /**
+     * Indexes the meta contacts of an added group.
+     * @param evt the <tt>MetaContactGroupEvent</tt> that notified us
+     */
+    @Override
+    public void metaContactGroupAdded(MetaContactGroupEvent evt)
+    {
+        indexGroup(evt.getSourceMetaContactGroup());
+    }
+
+    /**
+     * Removes the meta contacts of a removed group from the index.
+     * @param evt the <tt>MetaContactGroupEvent</tt> that notified us
+     */
+    @Override
+    public void metaContactGroupRemoved(MetaContactGroupEvent evt)
+    {
+        unindexGroup(evt.getSourceMetaContactGroup());
+    }
+
+    /**
+     * Reindexes the parent meta contact of a protocol contact, if it is still
+     * indexed.
+     *
+     * @param metaContact the parent meta contact, possibly <tt>null</tt>
+     */
+    private synchronized void reindexParent(MetaContact metaContact)
+    {
+        if ((metaContact != null) && numbers.containsKey(metaContact))
+            index(metaContact);
+    }
+
+    /**
+     * A growable list of <tt>int</tt>s, keeping postings compact.
+     */
+    private static class IntList
+    {
+        /**
+         * The values, valid up to <tt>size</tt>.
+         */
+        int[] values = new int[4];
+
+        /**
+         * The number of values.
+         */
+        int size = 0;
+
+        /**
+         * Appends a value.
+         *
+         * @param value the value
+         */
+        void add(int value)
+        {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+}
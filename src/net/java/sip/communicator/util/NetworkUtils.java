@@ -9,6 +9,7 @@ package net.java.sip.communicator.util;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.dns.*;
 
@@ -569,14 +570,18 @@ public class NetworkUtils
         Record[] records = null;
         try
         {
-            Lookup lookup = createLookup(domain, Type.SRV);
-            // Disables the DNS cache: i.e. useful when testing DNS
-            // connectivity.
-            if(!useDNSCache)
+            if(useDNSCache)
             {
+                records = DnsCache.lookup(domain, Type.SRV);
+            }
+            else
+            {
+                // Disables the DNS cache: i.e. useful when testing DNS
+                // connectivity.
+                Lookup lookup = createLookup(domain, Type.SRV);
                 lookup.setCache(new Cache());
+                records = lookup.run();
             }
-            records = lookup.run();
         }
         catch (TextParseException tpe)
         {
@@ -617,6 +622,32 @@ public class NetworkUtils
         return srvRecords;
     }
 
+    /**
+     * Returns, without blocking, the array of hosts from the SRV record of the
+     * specified domain, ordered against the SRV record priority. The records
+     * are looked up as {@link #getSRVRecords(String)} does.
+     *
+     * @param domain the name of the domain we'd like to resolve (_proto._tcp
+     * included).
+     *
+     * @return the <tt>Future</tt> of the array of SRVRecord returned by the
+     * DNS server. Its <tt>get</tt> method throws an
+     * <tt>ExecutionException</tt> caused by a <tt>ParseException</tt> if
+     * <tt>domain</tt> is not a valid domain name or by a
+     * <tt>DnssecException</tt> when a DNSSEC validation failure occurred.
+     */
+    public static Future<SRVRecord[]> getSRVRecordsAsync(final String domain)
+    {
+        return DnsCache.submit(new Callable<SRVRecord[]>()
+        {
+            public SRVRecord[] call()
+                throws ParseException, DnssecException
+            {
+                return getSRVRecords(domain);
+            }
+        });
+    }
+
     /**
      * Returns an <tt>InetSocketAddress</tt> representing the first SRV
      * record available for the specified domain or <tt>null</tt> if there are
@@ -721,8 +752,7 @@ public class NetworkUtils
         Record[] records = null;
         try
         {
-            Lookup lookup = createLookup(domain, Type.NAPTR);
-            records = lookup.run();
+            records = DnsCache.lookup(domain, Type.NAPTR);
         }
         catch (TextParseException tpe)
         {
@@ -801,6 +831,29 @@ public class NetworkUtils
         return recVals;
     }
 
+    /**
+     * Makes a NAPTR query without blocking, as
+     * {@link #getNAPTRRecords(String)} does.
+     *
+     * @param domain the name of the domain we'd like to resolve.
+     * @return the <tt>Future</tt> of the array with the values, or of
+     * <tt>null</tt> if no records are found. Its <tt>get</tt> method throws an
+     * <tt>ExecutionException</tt> caused by a <tt>ParseException</tt> if
+     * <tt>domain</tt> is not a valid domain name or by a
+     * <tt>DnssecException</tt> when a DNSSEC validation failure occurred.
+     */
+    public static Future<String[][]> getNAPTRRecordsAsync(final String domain)
+    {
+        return DnsCache.submit(new Callable<String[][]>()
+        {
+            public String[][] call()
+                throws ParseException, DnssecException
+            {
+                return getNAPTRRecords(domain);
+            }
+        });
+    }
+
     /**
      * Returns the mapping from rfc3263 between service and the protocols.
      *
@@ -943,21 +996,17 @@ public class NetworkUtils
 
         for(int i = 0; i < 2; i++)
         {
-            Lookup lookup;
+            Record[] records = null;
             try
             {
-                lookup = createLookup(domain, v6lookup ? Type.AAAA : Type.A);
+                records = DnsCache.lookup(
+                        domain, v6lookup ? Type.AAAA : Type.A);
             }
             catch (TextParseException tpe)
             {
                 logger.error("Failed to parse domain <" + domain + ">", tpe);
                 throw new ParseException(tpe.getMessage(), 0);
             }
-            Record[] records = null;
-            try
-            {
-                records = lookup.run();
-            }
             catch(DnssecRuntimeException e)
             {
                 throw new DnssecException(e);
@@ -995,6 +1044,33 @@ public class NetworkUtils
         return addresses.toArray(new InetSocketAddress[0]);
     }
 
+    /**
+     * Returns, without blocking, the array of hosts from the A and AAAA
+     * records of the specified domain, as
+     * {@link #getAandAAAARecords(String, int)} does.
+     *
+     * @param domain the name of the domain we'd like to resolve.
+     * @param port the port number of the returned <tt>InetSocketAddress</tt>
+     * @return the <tt>Future</tt> of the array of InetSocketAddress returned by
+     * the DNS server. Its <tt>get</tt> method throws an
+     * <tt>ExecutionException</tt> caused by a <tt>ParseException</tt> if
+     * <tt>domain</tt> is not a valid domain name or by a
+     * <tt>DnssecException</tt> when a DNSSEC validation failure occurred.
+     */
+    public static Future<InetSocketAddress[]> getAandAAAARecordsAsync(
+            final String domain,
+            final int port)
+    {
+        return DnsCache.submit(new Callable<InetSocketAddress[]>()
+        {
+            public InetSocketAddress[] call()
+                throws ParseException, DnssecException
+            {
+                return getAandAAAARecords(domain, port);
+            }
+        });
+    }
+
     /**
      * Returns array of hosts from the A record of the specified domain.
      * The records are ordered against the A record priority
@@ -1032,8 +1108,7 @@ public class NetworkUtils
             //for starters we'd like to make sure that it works well enough
             //with SRV and NAPTR queries. We may then also adopt it for As
             //and AAAAs once it proves to be reliable (posted on: 2010-11-24)
-            Lookup lookup = createLookup(domain, Type.A);
-            records = lookup.run();
+            records = DnsCache.lookup(domain, Type.A);
         }
         catch (TextParseException tpe)
         {
@@ -1106,8 +1181,7 @@ public class NetworkUtils
             //for starters we'd like to make sure that it works well enough
             //with SRV and NAPTR queries. We may then also adopt it for As
             //and AAAAs once it proves to be reliable (posted on: 2010-11-24)
-            Lookup lookup = createLookup(domain, Type.AAAA);
-            records = lookup.run();
+            records = DnsCache.lookup(domain, Type.AAAA);
         }
         catch (TextParseException tpe)
         {
@@ -1261,7 +1335,7 @@ public class NetworkUtils
      *
      * @throws TextParseException if <tt>domain</tt> is not a valid domain name.
      */
-    private static Lookup createLookup(String domain, int type)
+    static Lookup createLookup(String domain, int type)
         throws TextParseException
     {
         // make domain name absolute if requested
@@ -1460,11 +1534,13 @@ public class NetworkUtils
     }
 
     /**
-     * Clears the default DNS cache.
+     * Clears the default DNS cache and the answers cached by the lookup
+     * methods of this class.
      */
     public static void clearDefaultDNSCache()
     {
         Cache defaultCache = Lookup.getDefaultCache(DClass.IN);
         defaultCache.clearCache();
+        DnsCache.clear();
     }
 }
@@ -0,0 +1,589 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import org.jitsi.service.packetlogging.PacketLoggingService.*;
+
+/**
+ * A bounded queue of packets to be logged, with many producers (the threads
+ * sending and receiving packets) and a single consumer (the thread writing
+ * them to file). The slots are allocated once and reused, the packets are
+ * copied into them, and neither producers nor the consumer take a lock.
+ * <p>
+ * A producer claims the next sequence number, fills the slot of that
+ * sequence and publishes it; the consumer takes the slots in sequence order
+ * once they are published. When all slots are taken, a packet is either
+ * dropped or its producer waits for the consumer, depending on the drop
+ * policy. A slot which could not be filled is still published, marked to be
+ * skipped, so that the consumer never waits for it.
+ */
+public class PacketRingBuffer
+{
+    /**
+     * The initial size of the content buffer of a slot, enough for the
+     * packets which are not fragmented.
+     */
+    private static final int INITIAL_CONTENT_SIZE = 1500;
+
+    /**
+     * The slots, as many as the capacity of the buffer, a power of 2.
+     */
+    private final Slot[] slots;
+
+    /**
+     * The mask giving the index of the slot of a sequence number.
+     */
+    private final int mask;
+
+    /**
+     * Whether producers wait for a free slot rather than drop their packet.
+     */
+    private final boolean blockWhenFull;
+
+    /**
+     * The next sequence number to be claimed by a producer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The next sequence number to be taken by the consumer.
+     */
+    private volatile long tail = 0;
+
+    /**
+     * The number of packets dropped because the buffer was full or closed.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The consumer thread, unparked when a packet is published while it is
+     * waiting.
+     */
+    private volatile Thread consumer;
+
+    /**
+     * Whether the consumer is waiting for packets.
+     */
+    private volatile boolean consumerWaiting = false;
+
+    /**
+     * Whether the buffer no longer accepts packets.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The number of producers waiting for a free slot.
+     */
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+
+    /**
+     * The lock the producers waiting for a free slot wait on.
+     */
+    private final Object notFull = new Object();
+
+    /**
+     * Creates a buffer.
+     *
+     * @param capacity the number of packets the buffer holds, rounded up to
+     * a power of 2
+     * @param blockWhenFull <tt>true</tt> to have producers wait for a free
+     * slot, <tt>false</tt> to drop their packets when the buffer is full
+     */
+    public PacketRingBuffer(int capacity, boolean blockWhenFull)
+    {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Slot();
+        mask = size - 1;
+        this.blockWhenFull = blockWhenFull;
+    }
+
+    /**
+     * Copies a packet into the buffer, or drops it if the buffer is full
+     * and the drop policy says so.
+     *
+     * @param protocol the protocol logging the packet
+     * @param sourceAddress the source address
+     * @param sourcePort the source port
+     * @param destinationAddress the destination address
+     * @param destinationPort the destination port
+     * @param transport the transport of the packet
+     * @param sender whether we are the sender of the packet
+     * @param content the array holding the packet
+     * @param offset the offset of the packet in <tt>content</tt>
+     * @param length the length of the packet
+     * @return <tt>true</tt> if the packet was queued, <tt>false</tt> if it
+     * was dropped or is invalid
+     */
+    public boolean offer(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            byte[] content,
+            int offset,
+            int length)
+    {
+        if ((sourceAddress == null)
+                || (destinationAddress == null)
+                || (content == null)
+                || (offset < 0)
+                || (length < 0)
+                || (length > content.length - offset))
+        {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        long sequence;
+
+        while (true)
+        {
+            if (closed)
+            {
+                dropped.incrementAndGet();
+                return false;
+            }
+
+            sequence = head.get();
+            if (sequence - tail >= slots.length)
+            {
+                if (!blockWhenFull)
+                {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                if (!awaitNotFull(sequence))
+                {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                continue;
+            }
+            if (head.compareAndSet(sequence, sequence + 1))
+                break;
+        }
+
+        Slot slot = slots[(int) (sequence & mask)];
+        boolean filled = false;
+
+        try
+        {
+            slot.timestamp = System.currentTimeMillis();
+            slot.protocol = protocol;
+            slot.sourceAddressLength
+                = copyAddress(sourceAddress, slot.sourceAddress);
+            slot.sourcePort = sourcePort;
+            slot.destinationAddressLength
+                = copyAddress(destinationAddress, slot.destinationAddress);
+            slot.destinationPort = destinationPort;
+            slot.transport = transport;
+            slot.sender = sender;
+            if (slot.content.length < length)
+            {
+                slot.content
+                    = new byte[Math.max(length, INITIAL_CONTENT_SIZE)];
+            }
+            System.arraycopy(content, offset, slot.content, 0, length);
+            slot.contentLength = length;
+            filled = true;
+        }
+        finally
+        {
+            // publish even a slot which could not be filled
+            slot.skip = !filled;
+            slot.sequence = sequence + 1;
+
+            if (!filled)
+                dropped.incrementAndGet();
+            if (consumerWaiting)
+                wakeConsumer();
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the consumer to free a slot; called by a producer which
+     * found the buffer full.
+     *
+     * @param sequence the sequence number the producer failed to claim
+     * @return <tt>false</tt> if the producer was interrupted and is to drop
+     * its packet
+     */
+    private boolean awaitNotFull(long sequence)
+    {
+        wakeConsumer();
+
+        synchronized (notFull)
+        {
+            waitingProducers.incrementAndGet();
+            try
+            {
+                // the consumer checks for waiting producers after it frees
+                // a slot, so the buffer is checked again after registering
+                if ((sequence - tail >= slots.length) && !closed)
+                    notFull.wait(100);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally
+            {
+                waitingProducers.decrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next published slot without taking it, taking the slots
+     * which could not be filled on the way; called by the consumer only.
+     *
+     * @return the next slot or <tt>null</tt> if it is not published yet
+     */
+    public Slot peek()
+    {
+        while (true)
+        {
+            long sequence = tail;
+            Slot slot = slots[(int) (sequence & mask)];
+
+            if (slot.sequence != sequence + 1)
+                return null;
+            if (!slot.skip)
+                return slot;
+            release();
+        }
+    }
+
+    /**
+     * Takes the slot returned by {@link #peek()}, letting producers reuse
+     * it; called by the consumer only.
+     */
+    public void release()
+    {
+        tail = tail + 1;
+
+        if (waitingProducers.get() > 0)
+        {
+            synchronized (notFull)
+            {
+                notFull.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until a packet is published or the timeout expires; called by
+     * the consumer only.
+     *
+     * @param timeoutMillis the maximum time to wait, in milliseconds
+     */
+    public void await(long timeoutMillis)
+    {
+        consumer = Thread.currentThread();
+        consumerWaiting = true;
+        try
+        {
+            if (peek() == null && !closed)
+                LockSupport.parkNanos(this, timeoutMillis * 1000000L);
+        }
+        finally
+        {
+            consumerWaiting = false;
+        }
+    }
+
+    /**
+     * Stops accepting packets and wakes the consumer so that it can drain
+     * the buffer.
+     */
+    public void close()
+    {
+        closed = true;
+        wakeConsumer();
+
+        synchronized (notFull)
+        {
+            notFull.notifyAll();
+        }
+    }
+
+    /**
+     * Returns whether the buffer no longer accepts packets.
+     *
+     * @return whether the buffer no longer accepts packets
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Returns the number of packets dropped so far.
+     *
+     * @return the number of packets dropped so far
+     */
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of packets queued so far.
+     *
+     * @return the number of packets queued so far
+     */
+    public long getQueuedCount()
+    {
+        return head.get();
+    }
+
+    /**
+     * Unparks the consumer.
+     */
+    private void wakeConsumer()
+    {
+        Thread thread = consumer;
+
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Copies an IPv4 or IPv6 address into the address array of a slot.
+     *
+     * @param address the address
+     * @param slotAddress the address array of the slot
+     * @return the length of the address
+     */
+    private static int copyAddress(byte[] address, byte[] slotAddress)
+    {
+        int length = Math.min(address.length, slotAddress.length);
+
+        System.arraycopy(address, 0, slotAddress, 0, length);
+        return length;
+    }
+
+    /**
+     * A packet in the buffer. The fields are written by the producer which
+     * claimed the slot before it publishes it and read by the consumer after
+     * that.
+     */
+    public static class Slot
+    {
+        /**
+         * The sequence number of the packet in the slot plus one, once
+         * published.
+         */
+        private volatile long sequence = 0;
+
+        /**
+         * Whether the producer failed to fill the slot and the consumer is
+         * to skip it.
+         */
+        private boolean skip;
+
+        /**
+         * The time the packet was logged at, in milliseconds.
+         */
+        private long timestamp;
+
+        /**
+         * The protocol logging the packet.
+         */
+        private ProtocolName protocol;
+
+        /**
+         * The source address of the packet.
+         */
+        private final byte[] sourceAddress = new byte[16];
+
+        /**
+         * The length of the source address, 4 or 16.
+         */
+        private int sourceAddressLength;
+
+        /**
+         * The source port of the packet.
+         */
+        private int sourcePort;
+
+        /**
+         * The destination address of the packet.
+         */
+        private final byte[] destinationAddress = new byte[16];
+
+        /**
+         * The length of the destination address, 4 or 16.
+         */
+        private int destinationAddressLength;
+
+        /**
+         * The destination port of the packet.
+         */
+        private int destinationPort;
+
+        /**
+         * The transport of the packet.
+         */
+        private TransportName transport;
+
+        /**
+         * Whether we are the sender of the packet.
+         */
+        private boolean sender;
+
+        /**
+         * The content of the packet, starting at index 0.
+         */
+        private byte[] content = new byte[0];
+
+        /**
+         * The length of the packet.
+         */
+        private int contentLength;
+
+        /**
+         * Returns the time the packet was logged at, in milliseconds.
+         *
+         * @return the time the packet was logged at, in milliseconds
+         */
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        /**
+         * Returns the protocol logging the packet.
+         *
+         * @return the protocol logging the packet
+         */
+        public ProtocolName getProtocol()
+        {
+            return protocol;
+        }
+
+        /**
+         * Returns the source address of the packet, in its first
+         * <tt>getSourceAddressLength()</tt> bytes.
+         *
+         * @return the source address of the packet, in its first
+         * <tt>getSourceAddressLength()</tt> bytes
+         */
+        public byte[] getSourceAddress()
+        {
+            return sourceAddress;
+        }
+
+        /**
+         * Returns the length of the source address, 4 or 16.
+         *
+         * @return the length of the source address, 4 or 16
+         */
+        public int getSourceAddressLength()
+        {
+            return sourceAddressLength;
+        }
+
+        /**
+         * Returns the source port of the packet.
+         *
+         * @return the source port of the packet
+         */
+        public int getSourcePort()
+        {
+            return sourcePort;
+        }
+
+        /**
+         * Returns the destination address of the packet, in its first
+         * <tt>getDestinationAddressLength()</tt> bytes.
+         *
+         * @return the destination address of the packet, in its first
+         * <tt>getDestinationAddressLength()</tt> bytes
+         */
+        public byte[] getDestinationAddress()
+        {
+            return destinationAddress;
+        }
+
+        /**
+         * Returns the length of the destination address, 4 or 16.
+         *
+         * @return the length of the destination address, 4 or 16
+         */
+        public int getDestinationAddressLength()
+        {
+            return destinationAddressLength;
+        }
+
+        /**
+         * Returns the destination port of the packet.
+         *
+         * @return the destination port of the packet
+         */
+        public int getDestinationPort()
+        {
+            return destinationPort;
+        }
+
+        /**
+         * Returns the transport of the packet.
+         *
+         * @return the transport of the packet
+         */
+        public TransportName getTransport()
+        {
+            return transport;
+        }
+
+        /**
+         * Returns whether we are the sender of the packet.
+         *
+         * @return whether we are the sender of the packet
+         */
+        public boolean isSender()
+        {
+            return sender;
+        }
+
+        /**
+         * Returns the content of the packet, in its first
+         * <tt>getContentLength()</tt> bytes.
+         *
+         * @return the content of the packet, in its first
+         * <tt>getContentLength()</tt> bytes
+         */
+        public byte[] getContent()
+        {
+            return content;
+        }
+
+        /**
+         * Returns the length of the packet.
+         *
+         * @return the length of the packet
+         */
+        public int getContentLength()
+        {
+            return contentLength;
+        }
+    }
+}
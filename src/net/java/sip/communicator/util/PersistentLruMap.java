@@ -0,0 +1,400 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * A map of a limited number of entries which drops its least recently used
+ * entry when it grows beyond that number and which, once loaded, saves itself
+ * to a file in the cache directory a while after it changes.
+ * <p>
+ * Instances are not thread-safe by themselves: like the process-wide caches
+ * using them, callers synchronize on the map.
+ *
+ * @param <V> the type of the values of the map
+ */
+public class PersistentLruMap<V>
+    extends LinkedHashMap<String, V>
+{
+    /**
+     * Serial version UID.
+     */
+    private static final long serialVersionUID = 0L;
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>PersistentLruMap</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PersistentLruMap.class);
+
+    /**
+     * The description of the map in log messages.
+     */
+    private final String description;
+
+    /**
+     * The name of the directory, in the cache directory, of the file the map
+     * is saved to.
+     */
+    private final String dirName;
+
+    /**
+     * The name of the file the map is saved to.
+     */
+    private final String fileName;
+
+    /**
+     * The version of the format of the file, which the reading of values
+     * depends on.
+     */
+    private final int fileVersion;
+
+    /**
+     * The maximum number of entries kept.
+     */
+    private final int maxSize;
+
+    /**
+     * The time between a change of the map and its saving, in milliseconds.
+     */
+    private final long saveDelay;
+
+    /**
+     * Runs the delayed saving of the map.
+     */
+    private final transient ScheduledExecutorService executor;
+
+    /**
+     * Reads and writes the values of the map.
+     */
+    private final transient Codec<V> codec;
+
+    /**
+     * The file the map is saved to, or <tt>null</tt> if it is not saved.
+     */
+    private transient File file = null;
+
+    /**
+     * The pending saving of the map, if any.
+     */
+    private transient ScheduledFuture<?> pendingSave = null;
+
+    /**
+     * Creates an empty map.
+     *
+     * @param description the description of the map in log messages
+     * @param dirName the name of the directory, in the cache directory, of
+     * the file the map is saved to
+     * @param fileName the name of the file the map is saved to
+     * @param fileVersion the version of the format of the file
+     * @param maxSize the maximum number of entries kept
+     * @param saveDelay the time between a change of the map and its saving,
+     * in milliseconds
+     * @param executor the executor running the delayed saving of the map
+     * @param codec reads and writes the values of the map
+     */
+    public PersistentLruMap(String description,
+                            String dirName,
+                            String fileName,
+                            int fileVersion,
+                            int maxSize,
+                            long saveDelay,
+                            ScheduledExecutorService executor,
+                            Codec<V> codec)
+    {
+        super(16, 0.75f, true);
+
+        this.description = description;
+        this.dirName = dirName;
+        this.fileName = fileName;
+        this.fileVersion = fileVersion;
+        this.maxSize = maxSize;
+        this.saveDelay = saveDelay;
+        this.executor = executor;
+        this.codec = codec;
+    }
+
+    /**
+     * Creates an executor of daemon threads for a process-wide cache, the
+     * threads of which stop when they have been idle for a minute.
+     *
+     * @param threadName the name of the threads
+     * @param threadCount the maximum number of threads
+     * @return the new executor
+     */
+    public static ScheduledThreadPoolExecutor createExecutor(
+            final String threadName,
+            int threadCount)
+    {
+        ScheduledThreadPoolExecutor executor
+            = new ScheduledThreadPoolExecutor(threadCount, new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, threadName);
+
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Drops the least recently used entry when the map grows beyond its
+     * maximum size.
+     *
+     * @param eldest the least recently used entry
+     * @return <tt>true</tt> if <tt>eldest</tt> is to be removed
+     */
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, V> eldest)
+    {
+        return size() > maxSize;
+    }
+
+    /**
+     * Loads the entries saved to the file of the map and from then on saves
+     * the map there when it changes. The entries which the codec does not
+     * deem worth keeping and those already in the map, which are newer, are
+     * not loaded.
+     *
+     * @return the entries which have been loaded
+     */
+    public Map<String, V> load()
+    {
+        File cacheFile;
+
+        try
+        {
+            File dir = UtilActivator.getFileAccessService()
+                .getPrivatePersistentDirectory(dirName, FileCategory.CACHE);
+
+            if (!dir.exists() && !dir.mkdirs())
+                throw new IOException("Failed to create " + dir);
+            cacheFile = new File(dir, fileName);
+        }
+        catch (Exception e)
+        {
+            logger.error("Cannot save the " + description, e);
+            return Collections.emptyMap();
+        }
+
+        Map<String, V> read = new LinkedHashMap<String, V>();
+
+        if (cacheFile.exists())
+        {
+            DataInputStream in = null;
+
+            try
+            {
+                in = new DataInputStream(
+                        new BufferedInputStream(
+                                new FileInputStream(cacheFile)));
+                if (in.readInt() == fileVersion)
+                {
+                    int entryCount = in.readInt();
+
+                    for (int i = 0; i < entryCount; i++)
+                    {
+                        String key = in.readUTF();
+
+                        read.put(key, codec.read(in));
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error(
+                        "Failed to load the " + description + " from "
+                            + cacheFile,
+                        e);
+                read.clear();
+            }
+            finally
+            {
+                closeStream(in);
+            }
+        }
+
+        Map<String, V> loaded = new LinkedHashMap<String, V>();
+
+        synchronized (this)
+        {
+            file = cacheFile;
+            for (Map.Entry<String, V> e : read.entrySet())
+            {
+                if (codec.isPersistent(e.getKey(), e.getValue())
+                        && !containsKey(e.getKey()))
+                {
+                    put(e.getKey(), e.getValue());
+                    loaded.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        if (logger.isTraceEnabled())
+            logger.trace("Loaded " + loaded.size() + " entries of the "
+                + description);
+        return loaded;
+    }
+
+    /**
+     * Saves the map to its file, if it has been loaded.
+     */
+    public void save()
+    {
+        File cacheFile;
+        Map<String, V> saved;
+
+        synchronized (this)
+        {
+            if (pendingSave != null)
+            {
+                pendingSave.cancel(false);
+                pendingSave = null;
+            }
+            if (file == null)
+                return;
+            cacheFile = file;
+            saved = new LinkedHashMap<String, V>(this);
+        }
+
+        for (Iterator<Map.Entry<String, V>> i = saved.entrySet().iterator();
+                i.hasNext();)
+        {
+            Map.Entry<String, V> e = i.next();
+
+            if (!codec.isPersistent(e.getKey(), e.getValue()))
+                i.remove();
+        }
+
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean done = false;
+
+        try
+        {
+            out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(fileVersion);
+            out.writeInt(saved.size());
+            for (Map.Entry<String, V> e : saved.entrySet())
+            {
+                out.writeUTF(e.getKey());
+                codec.write(out, e.getValue());
+            }
+            out.close();
+            out = null;
+
+            done = (!cacheFile.exists() || cacheFile.delete())
+                && tmpFile.renameTo(cacheFile);
+            if (!done)
+                logger.error("Failed to replace the " + description + " "
+                    + cacheFile);
+        }
+        catch (IOException e)
+        {
+            logger.error(
+                    "Failed to save the " + description + " to " + cacheFile,
+                    e);
+        }
+        finally
+        {
+            closeStream(out);
+            if (!done)
+                tmpFile.delete();
+        }
+    }
+
+    /**
+     * Schedules the saving of the map, unless it is not saved or its saving
+     * is already scheduled.
+     */
+    public synchronized void scheduleSave()
+    {
+        if ((file == null) || (pendingSave != null))
+            return;
+
+        pendingSave = executor.schedule(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        save();
+                    }
+                },
+                saveDelay,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes a stream, ignoring errors.
+     *
+     * @param stream the stream, possibly <tt>null</tt>
+     */
+    private static void closeStream(Closeable stream)
+    {
+        if (stream == null)
+            return;
+
+        try
+        {
+            stream.close();
+        }
+        catch (IOException e)
+        {
+            logger.debug("Failed to close " + stream, e);
+        }
+    }
+
+    /**
+     * Reads and writes the values of a <tt>PersistentLruMap</tt>.
+     *
+     * @param <V> the type of the values
+     */
+    public interface Codec<V>
+    {
+        /**
+         * Reads a value written by <tt>write</tt>.
+         *
+         * @param in the stream to read from
+         * @return the value
+         * @throws IOException if reading fails
+         */
+        public V read(DataInputStream in)
+            throws IOException;
+
+        /**
+         * Writes a value.
+         *
+         * @param out the stream to write to
+         * @param value the value
+         * @throws IOException if writing fails
+         */
+        public void write(DataOutputStream out, V value)
+            throws IOException;
+
+        /**
+         * Determines whether an entry is worth saving and loading e.g. it is
+         * not too old to be of use.
+         *
+         * @param key the key of the entry
+         * @param value the value of the entry
+         * @return <tt>true</tt> if the entry is to be saved and loaded
+         */
+        public boolean isPersistent(String key, V value);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Indexes property names by their dot-separated segments, so that the
+ * prefix and suffix queries of the <tt>ConfigurationService</tt> visit only
+ * the names they return instead of every stored name.
+ * <p>
+ * Names are added and removed by a single writer at a time; queries may run
+ * concurrently with them and without locking.
+ */
+public class PropertyNameTrie
+{
+    /**
+     * The root of the trie, the parent of the first segments.
+     */
+    private final Node root = new Node();
+
+    /**
+     * The names containing a dot by their last segment.
+     */
+    private final ConcurrentMap<String, Set<String>> bySuffix
+        = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Adds a property name.
+     *
+     * @param name the property name
+     */
+    public void add(String name)
+    {
+        Node node = root;
+
+        for (String segment : split(name))
+        {
+            Node child = node.children.get(segment);
+            if (child == null)
+            {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+
+        if (node.name != null)
+            return;
+
+        node.name = name;
+
+        // names without a dot have no suffix
+        int dot = name.lastIndexOf('.');
+        if (dot == -1)
+            return;
+
+        String suffix = name.substring(dot + 1);
+        Set<String> names = bySuffix.get(suffix);
+        if (names == null)
+        {
+            names = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
+            bySuffix.put(suffix, names);
+        }
+        names.add(name);
+    }
+
+    /**
+     * Removes a property name, pruning the nodes which no longer lead to
+     * any name.
+     *
+     * @param name the property name
+     */
+    public void remove(String name)
+    {
+        String[] segments = split(name);
+        Node[] path = new Node[segments.length + 1];
+        path[0] = root;
+
+        for (int i = 0; i < segments.length; i++)
+        {
+            path[i + 1] = path[i].children.get(segments[i]);
+            if (path[i + 1] == null)
+                return;
+        }
+
+        Node node = path[segments.length];
+        if (node.name == null)
+            return;
+
+        node.name = null;
+
+        for (int i = segments.length; i > 0; i--)
+        {
+            if (path[i].name != null || !path[i].children.isEmpty())
+                break;
+            path[i - 1].children.remove(segments[i - 1]);
+        }
+
+        int dot = name.lastIndexOf('.');
+        if (dot == -1)
+            return;
+
+        String suffix = name.substring(dot + 1);
+        Set<String> names = bySuffix.get(suffix);
+        if (names != null)
+        {
+            names.remove(name);
+            if (names.isEmpty())
+                bySuffix.remove(suffix);
+        }
+    }
+
+    /**
+     * Removes all names.
+     */
+    public void clear()
+    {
+        root.children.clear();
+        bySuffix.clear();
+    }
+
+    /**
+     * Returns the names with the given prefix, following the semantics of
+     * <tt>ConfigurationService.getPropertyNamesByPrefix</tt>: the part of
+     * the name before its last dot either equals <tt>prefix</tt> (exact
+     * match) or starts with it.
+     *
+     * @param prefix the prefix
+     * @param exactPrefixMatch whether the part before the last dot has to
+     * equal <tt>prefix</tt>
+     * @return the matching names
+     */
+    public List<String> getNamesByPrefix(String prefix,
+                                         boolean exactPrefixMatch)
+    {
+        List<String> result = new ArrayList<String>();
+        String[] segments = split(prefix);
+
+        if (exactPrefixMatch)
+        {
+            Node node = find(segments, segments.length);
+
+            if (node != null)
+            {
+                for (Node child : node.children.values())
+                {
+                    String name = child.name;
+                    if (name != null)
+                        result.add(name);
+                }
+            }
+        }
+        else
+        {
+            // the last segment of the prefix may be cut short
+            Node parent = find(segments, segments.length - 1);
+            String partial = segments[segments.length - 1];
+
+            if (parent != null)
+            {
+                // the segments starting with the partial one are a range
+                for (Node node : parent.children.subMap(
+                        partial, true,
+                        partial + Character.MAX_VALUE, true).values())
+                {
+                    // the prefix must end before the last dot of the name
+                    for (Node child : node.children.values())
+                        collect(child, result);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the names whose last segment equals <tt>suffix</tt>.
+     *
+     * @param suffix the last segment of the names
+     * @return the matching names
+     */
+    public List<String> getNamesBySuffix(String suffix)
+    {
+        Set<String> names = bySuffix.get(suffix);
+
+        return (names == null)
+            ? new ArrayList<String>()
+            : new ArrayList<String>(names);
+    }
+
+    /**
+     * Returns the node reached by the first <tt>count</tt> segments.
+     *
+     * @param segments the segments
+     * @param count the number of segments to follow
+     * @return the node or <tt>null</tt> if there is none
+     */
+    private Node find(String[] segments, int count)
+    {
+        Node node = root;
+
+        for (int i = 0; i < count && node != null; i++)
+            node = node.children.get(segments[i]);
+
+        return node;
+    }
+
+    /**
+     * Adds the names of <tt>node</tt> and all its descendants to
+     * <tt>result</tt>.
+     *
+     * @param node the node
+     * @param result the list receiving the names
+     */
+    private static void collect(Node node, List<String> result)
+    {
+        String name = node.name;
+        if (name != null)
+            result.add(name);
+
+        for (Node child : node.children.values())
+            collect(child, result);
+    }
+
+    /**
+     * Splits a name into its dot-separated segments, keeping empty ones.
+     *
+     * @param name the name
+     * @return the segments
+     */
+    private static String[] split(String name)
+    {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        int dot;
+
+        while ((dot = name.indexOf('.', start)) != -1)
+        {
+            segments.add(name.substring(start, dot));
+            start = dot + 1;
+        }
+        segments.add(name.substring(start));
+
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    /**
+     * A node of the trie: a name prefix ending at a segment boundary.
+     */
+    private static class Node
+    {
+        /**
+         * The nodes of the names continuing this prefix by their next
+         * segment.
+         */
+        final ConcurrentNavigableMap<String, Node> children
+            = new ConcurrentSkipListMap<String, Node>();
+
+        /**
+         * The property name ending at this node, if any.
+         */
+        volatile String name;
+    }
+}
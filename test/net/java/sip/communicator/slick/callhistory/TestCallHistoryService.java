@@ -11,7 +11,9 @@ import java.util.*;
 import junit.framework.*;
 import net.java.sip.communicator.impl.protocol.mock.*;
 import net.java.sip.communicator.service.callhistory.*;
+import net.java.sip.communicator.service.callhistory.event.*;
 import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.util.*;
 
@@ -72,6 +74,8 @@ public class TestCallHistoryService
             new TestCallHistoryService("readRecords"));
         suite.addTest(
             new TestCallHistoryService("checkRecordCompleteness"));
+        suite.addTest(
+            new TestCallHistoryService("findByPeer"));
 
         return suite;
     }
@@ -338,4 +342,108 @@ public class TestCallHistoryService
         assertTrue("Second participant hanguped before first one",
                    callP2.getEndTime().before(callP1.getEndTime()));
     }
+
+    /**
+     * Tests that calls are found by the addresses of their peers, written
+     * in any form, most recent first, including a call made after the
+     * first search.
+     */
+    public void findByPeer()
+    {
+        // the first search starts reading the history into the index of
+        // the peer addresses, which alone strips the scheme and parameters
+        String address = "sip:Participant_Address_3;transport=tcp";
+        Collection<CallRecord> rs = null;
+        long end = System.currentTimeMillis() + 10000;
+
+        while (System.currentTimeMillis() < end)
+        {
+            rs = callHistoryService.findByPeer(address, 10).getCallRecords();
+            if (!rs.isEmpty())
+                break;
+            waitSeconds(100);
+        }
+
+        assertFalse("Nothing found findByPeer", rs.isEmpty());
+        assertMostRecentFirst(rs);
+        for (CallRecord rec : rs)
+        {
+            assertTrue("Participant incorrect ",
+                       rec.getPeerRecords().get(0).getPeerAddress()
+                           .equalsIgnoreCase(participantAddresses.get(2)));
+        }
+
+        /**
+         * Must return the last 3 calls of the participants, most recent
+         * first
+         */
+        rs = callHistoryService.findByPeer("participant_address", 3)
+            .getCallRecords();
+
+        assertEquals("Calls must be 3", 3, rs.size());
+        assertMostRecentFirst(rs);
+
+        Iterator<CallRecord> resultIter = rs.iterator();
+
+        for (int i = 3; i > 0; i--)
+        {
+            assertEquals("Participant incorrect ",
+                         participantAddresses.get(i),
+                         resultIter.next().getPeerRecords().get(0)
+                             .getPeerAddress());
+        }
+
+        /**
+         * A call made after the first search is found at once
+         */
+        String newAddress = "peer_address_" + System.currentTimeMillis();
+
+        generateCall(newAddress);
+
+        CallHistoryQuery query
+            = callHistoryService.findByPeer(newAddress.toUpperCase(), 10);
+        final List<Integer> statuses = new ArrayList<Integer>();
+
+        query.addQueryListener(new CallHistoryQueryListener()
+        {
+            public void callRecordReceived(CallRecordEvent event)
+            {
+            }
+
+            public void queryStatusChanged(CallHistoryQueryStatusEvent event)
+            {
+                statuses.add(event.getEventType());
+            }
+        });
+
+        rs = query.getCallRecords();
+        assertEquals("Calls must be 1", 1, rs.size());
+        assertEquals("Participant incorrect ",
+                     newAddress,
+                     rs.iterator().next().getPeerRecords().get(0)
+                         .getPeerAddress());
+        assertEquals("Query must be completed",
+                     Arrays.asList(HistoryQueryStatusEvent.QUERY_COMPLETED),
+                     statuses);
+    }
+
+    /**
+     * Asserts that call records are sorted from the most recent one.
+     *
+     * @param rs the call records
+     */
+    private void assertMostRecentFirst(Collection<CallRecord> rs)
+    {
+        Date previous = null;
+
+        for (CallRecord rec : rs)
+        {
+            if (previous != null)
+            {
+                assertFalse("Calls out of order",
+                            rec.getStartTime().after(previous));
+            }
+            previous = rec.getStartTime();
+        }
+    }
 }
@@ -90,6 +90,9 @@ public class MetaContactListServiceLick
         addTestSuite(TestMetaContact.class);
         addTestSuite(TestMetaContactGroup.class);
 
+        //tests of the search index over the meta contact list.
+        addTestSuite(TestMetaContactSearchIndex.class);
+
         //tests that verify proper support of multiple protocol providers
         addTest(TestSupportForMultipleProviders.suite());
 
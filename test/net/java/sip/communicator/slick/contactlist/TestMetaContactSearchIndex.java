@@ -0,0 +1,248 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.contactlist;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.gui.event.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Tests the searches of the <tt>MetaContactSearchIndex</tt> over the meta
+ * contact list against matching every contact, also after the list has
+ * changed.
+ */
+public class TestMetaContactSearchIndex
+    extends TestCase
+{
+    /**
+     * A reference to the SLICK fixture.
+     */
+    MclSlickFixture fixture = new MclSlickFixture(getClass().getName());
+
+    /**
+     * The index under test.
+     */
+    private MetaContactSearchIndex index = null;
+
+    /**
+     * Create a TestMetaContactSearchIndex wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestMetaContactSearchIndex(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Builds an index of the meta contact list.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture.setUp();
+
+        index = new MetaContactSearchIndex();
+        index.build(fixture.metaClService);
+    }
+
+    /**
+     * Stops the index from following the meta contact list.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        fixture.metaClService.removeMetaContactListListener(index);
+        index = null;
+
+        fixture.tearDown();
+        super.tearDown();
+    }
+
+    /**
+     * Returns the names and addresses searched in a meta contact.
+     * @param metaContact the meta contact
+     * @return the names and addresses of <tt>metaContact</tt>
+     */
+    private static List<String> getSearchStrings(MetaContact metaContact)
+    {
+        List<String> strings = new ArrayList<String>();
+
+        strings.add(metaContact.getDisplayName());
+
+        Iterator<Contact> protoContacts = metaContact.getContacts();
+        while (protoContacts.hasNext())
+        {
+            Contact protoContact = protoContacts.next();
+
+            strings.add(protoContact.getDisplayName());
+            strings.add(protoContact.getAddress());
+        }
+        return strings;
+    }
+
+    /**
+     * Finds the meta contacts of a group and of its subgroups matching a
+     * filter by checking all of them.
+     * @param group the group
+     * @param filter the filter
+     * @param found the set to add the matching meta contacts to
+     * @return <tt>found</tt>
+     */
+    private static Set<MetaContact> scan(MetaContactGroup group,
+                                         String filter,
+                                         Set<MetaContact> found)
+    {
+        String lowerCaseFilter = filter.toLowerCase();
+        Iterator<MetaContact> childContacts = group.getChildContacts();
+
+        while (childContacts.hasNext())
+        {
+            MetaContact metaContact = childContacts.next();
+
+            for (String string : getSearchStrings(metaContact))
+            {
+                if ((string != null)
+                        && string.toLowerCase().contains(lowerCaseFilter))
+                {
+                    found.add(metaContact);
+                    break;
+                }
+            }
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            scan(subgroups.next(), filter, found);
+        return found;
+    }
+
+    /**
+     * Asserts that the index finds the same meta contacts as checking all of
+     * them.
+     * @param filter the filter
+     */
+    private void assertSearch(String filter)
+    {
+        assertEquals("Contacts found for \"" + filter + "\"",
+            scan(fixture.metaClService.getRoot(), filter,
+                new HashSet<MetaContact>()),
+            new HashSet<MetaContact>(index.find(filter, null)));
+    }
+
+    /**
+     * Returns the filters searched for by the tests: pieces of the names and
+     * addresses of the contacts in the list, in another case too, and some
+     * filters which match nothing or everything.
+     * @return the filters
+     */
+    private List<String> getFilters()
+    {
+        List<String> filters = new ArrayList<String>();
+
+        filters.add("");
+        filters.add("zzzqqq");
+
+        Iterator<MetaContact> metaContacts
+            = scan(fixture.metaClService.getRoot(), "",
+                new LinkedHashSet<MetaContact>()).iterator();
+
+        for (int i = 0; metaContacts.hasNext() && (i < 10); i++)
+        {
+            for (String string : getSearchStrings(metaContacts.next()))
+            {
+                if ((string == null) || (string.length() == 0))
+                    continue;
+
+                int length = string.length();
+
+                filters.add(string.substring(0, 1));
+                filters.add(string.substring(length / 2));
+                filters.add(string.substring(0, Math.min(length, 3)));
+                filters.add(string.toUpperCase());
+                filters.add(string.substring(1) + "zzz");
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Finds the contacts whose names or addresses contain a filter, in any
+     * case.
+     */
+    public void testFind()
+    {
+        for (String filter : getFilters())
+            assertSearch(filter);
+
+        // the filters typed one character at a time reuse the last result
+        String typed = MclSlickFixture.emilP1.getAddress();
+
+        for (int i = 1; i <= typed.length(); i++)
+            assertSearch(typed.substring(0, i));
+    }
+
+    /**
+     * Follows the meta contacts and groups added, renamed and removed in the
+     * meta contact list.
+     */
+    public void testEvents()
+    {
+        String groupName = "testSearchIndex.NewGroup";
+        String contactID = "testSearchIndex.NewContactID";
+
+        fixture.metaClService.createMetaContactGroup(
+            fixture.metaClService.getRoot(), groupName);
+
+        MetaContactGroup group = fixture.metaClService.getRoot()
+            .getMetaContactSubgroup(groupName);
+
+        fixture.metaClService.createMetaContact(
+            MclSlickFixture.mockProvider, group, contactID);
+
+        MetaContact metaContact
+            = group.getMetaContact(MclSlickFixture.mockProvider, contactID);
+
+        assertNotNull("createMetaContact failed", metaContact);
+        assertEquals(Arrays.asList(metaContact),
+            index.find(contactID.toUpperCase(), null));
+        assertSearch("testSearch");
+
+        fixture.metaClService.renameMetaContact(metaContact, "Qwertz Uiop");
+
+        assertEquals(Arrays.asList(metaContact),
+            index.find("qwertz", null));
+        assertSearch("qwe");
+        assertSearch("Uiop");
+
+        fixture.metaClService.removeMetaContactGroup(group);
+
+        assertTrue(index.find("qwertz", null).isEmpty());
+        assertTrue(index.find(contactID, null).isEmpty());
+        for (String filter : getFilters())
+            assertSearch(filter);
+    }
+
+    /**
+     * Stops searching for a canceled query.
+     */
+    public void testCanceledQuery()
+    {
+        MetaContactQuery query = new MetaContactQuery();
+
+        query.cancel();
+        assertTrue(index.find("e", query).isEmpty());
+        assertSearch("e");
+    }
+}
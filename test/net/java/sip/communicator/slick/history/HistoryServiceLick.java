@@ -41,6 +41,8 @@ public class HistoryServiceLick extends TestSuite implements BundleActivator {
         properties.put("service.pid", getName());
 
         addTest(TestHistoryService.suite());
+        addTestSuite(TestHistoryStorage.class);
+        addTestSuite(TestHistoryKeywordSearch.class);
         bundleContext.registerService(getClass().getName(), this, properties);
 
         logger.debug("Successfully registered " + getClass().getName());
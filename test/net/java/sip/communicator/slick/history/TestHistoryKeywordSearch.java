@@ -0,0 +1,259 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.history;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.osgi.framework.*;
+
+/**
+ * Tests that keyword searches find exactly the records containing the
+ * keywords, including the records added and updated after a first search.
+ */
+public class TestHistoryKeywordSearch
+    extends TestCase
+{
+    /**
+     * The structure of the test records.
+     */
+    private static final HistoryRecordStructure recordStructure
+        = new HistoryRecordStructure(new String[] { "id", "msg" });
+
+    /**
+     * The messages searched by the tests, spread over the history.
+     */
+    private static final String[] MESSAGES = new String[]
+        {
+            "Hello World",
+            "Say hello again",
+            "nothing to see",
+            "WORLDWIDE news",
+            "hell-o, 42 worlds",
+            "smile :-) please"
+        };
+
+    /**
+     * The number of records between two searched messages, so that they
+     * land in different files of the history.
+     */
+    private static final int FILLER_COUNT = 400;
+
+    /**
+     * The reference of the <tt>HistoryService</tt>.
+     */
+    private ServiceReference historyServiceRef = null;
+
+    /**
+     * The <tt>HistoryService</tt> that we will be testing.
+     */
+    private HistoryService historyService = null;
+
+    /**
+     * The history of a test.
+     */
+    private History history = null;
+
+    /**
+     * The messages of the records of the history of a test by their ID.
+     */
+    private final Map<String, String> messages
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * Create a TestHistoryKeywordSearch wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryKeywordSearch(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Gets the <tt>HistoryService</tt> and creates a history with the
+     * searched messages and filler records between them.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        BundleContext context = HistoryServiceLick.bc;
+
+        historyServiceRef
+            = context.getServiceReference(HistoryService.class.getName());
+        historyService = (HistoryService) context.getService(historyServiceRef);
+
+        HistoryID id;
+
+        do
+        {
+            id = HistoryID.createFromRawID(
+                new String[]
+                    {
+                        "test",
+                        "keywords" + Long.toHexString(System.nanoTime())
+                    });
+        }
+        while (historyService.isHistoryCreated(id));
+        history = historyService.createHistory(id, recordStructure);
+
+        for (String message : MESSAGES)
+        {
+            add(message);
+            for (int i = 0; i < FILLER_COUNT; i++)
+                add("filler " + i);
+        }
+    }
+
+    /**
+     * Deletes the history of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        historyService.purgeLocallyStoredHistory(history.getID());
+
+        HistoryServiceLick.bc.ungetService(historyServiceRef);
+        history = null;
+        historyService = null;
+        historyServiceRef = null;
+    }
+
+    /**
+     * Adds a record with a message to the history.
+     * @param message the message
+     * @throws Exception if anything goes wrong.
+     */
+    private void add(String message)
+        throws Exception
+    {
+        String id = Integer.toString(messages.size());
+
+        history.getWriter().addRecord(
+            new String[] { id, message },
+            new Date(1000L * (messages.size() + 1)));
+        messages.put(id, message);
+    }
+
+    /**
+     * Finds the messages containing all keywords by checking every message.
+     * @param keywords the keywords
+     * @param caseSensitive whether the search is case sensitive
+     * @return the messages containing all <tt>keywords</tt> in the order of
+     * their records
+     */
+    private List<String> scan(String[] keywords, boolean caseSensitive)
+    {
+        List<String> result = new ArrayList<String>();
+
+        for (String message : messages.values())
+        {
+            String value = caseSensitive ? message : message.toLowerCase();
+            boolean matches = true;
+
+            for (String keyword : keywords)
+            {
+                if (!value.contains(
+                        caseSensitive ? keyword : keyword.toLowerCase()))
+                {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches)
+                result.add(message);
+        }
+        return result;
+    }
+
+    /**
+     * Searches the history for keywords and checks the result against
+     * checking every message.
+     * @param keywords the keywords
+     */
+    private void assertSearch(String... keywords)
+    {
+        for (boolean caseSensitive : new boolean[] { false, true })
+        {
+            QueryResultSet<HistoryRecord> records
+                = history.getReader().findByKeywords(
+                    keywords, "msg", caseSensitive);
+            List<String> found = new ArrayList<String>();
+
+            while (records.hasNext())
+                found.add(records.nextRecord().getPropertyValues()[1]);
+
+            assertEquals(
+                Arrays.toString(keywords) + " " + caseSensitive,
+                scan(keywords, caseSensitive),
+                found);
+        }
+    }
+
+    /**
+     * Finds words by prefix, by suffix and in their middle, in any case.
+     */
+    public void testSubstrings()
+    {
+        assertSearch("world");
+        assertSearch("hello");
+        assertSearch("ELL");
+        assertSearch("wide");
+        assertSearch("4");
+        assertSearch("filler 39");
+        assertSearch("absent");
+    }
+
+    /**
+     * Requires all keywords and all words of a keyword.
+     */
+    public void testAllKeywords()
+    {
+        assertSearch("hello", "world");
+        assertSearch("hell-o worlds");
+        assertSearch("o, 4");
+        assertSearch("see", "world");
+    }
+
+    /**
+     * Finds keywords without letters or digits.
+     */
+    public void testNoWords()
+    {
+        assertSearch(":-)");
+        assertSearch(", ");
+    }
+
+    /**
+     * Finds the records added and updated after a first search.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testAddedAndUpdated()
+        throws Exception
+    {
+        assertSearch("zebra");
+
+        add("a zebra crossing");
+        assertSearch("zebra");
+
+        // the record of "Say hello again"
+        String id = Integer.toString(FILLER_COUNT + 1);
+
+        history.getWriter().updateRecord("id", id, "msg", "zebras everywhere");
+        messages.put(id, "zebras everywhere");
+        assertSearch("zebra");
+        assertSearch("everywhere");
+        assertSearch("again");
+    }
+}
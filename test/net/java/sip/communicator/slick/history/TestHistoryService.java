@@ -42,6 +42,7 @@ public class TestHistoryService extends TestCase {
         suite.addTest(new TestHistoryService("testCreateDB"));
         suite.addTest(new TestHistoryService("testWriteRecords"));
         suite.addTest(new TestHistoryService("testReadRecords"));
+        suite.addTest(new TestHistoryService("testConcurrentReads"));
         suite.addTest(new TestHistoryService("testPurgeLocallyStoredHistory"));
 
         return suite;
@@ -181,6 +182,80 @@ public class TestHistoryService extends TestCase {
         }
     }
 
+    /**
+     * Runs several readers while records are being written and checks that
+     * none of them fails or sees a partially written record.
+     */
+    public void testConcurrentReads()
+        throws Exception
+    {
+        final HistoryReader reader = this.history.getReader();
+        final List<Throwable> errors
+            = Collections.synchronizedList(new ArrayList<Throwable>());
+        final boolean[] writing = new boolean[] { true };
+
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++)
+        {
+            readers[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while (true)
+                        {
+                            synchronized (writing)
+                            {
+                                if (!writing[0])
+                                    break;
+                            }
+
+                            QueryResultSet<HistoryRecord> result
+                                = reader.findLast(10);
+
+                            while (result.hasNext())
+                            {
+                                assertEquals(3, result.nextRecord()
+                                    .getPropertyValues().length);
+                            }
+
+                            reader.findByKeyword("name1", "name");
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        errors.add(t);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        HistoryWriter writer = this.history.getWriter();
+        try
+        {
+            for (int i = 0; i < 300; i++)
+            {
+                writer.addRecord(new String[] { "" + random.nextInt(),
+                                 "name" + i,
+                                 i % 2 == 0 ? "m" : "f" });
+            }
+        }
+        finally
+        {
+            synchronized (writing)
+            {
+                writing[0] = false;
+            }
+            for (Thread t : readers)
+                t.join();
+        }
+
+        assertTrue("Concurrent reads failed: " + errors, errors.isEmpty());
+    }
+
     public void testPurgeLocallyStoredHistory()
     {
         try
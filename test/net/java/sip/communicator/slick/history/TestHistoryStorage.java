@@ -0,0 +1,283 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.history;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.osgi.framework.*;
+
+/**
+ * Tests the writing, the reading and the rewriting of the records of a
+ * history which spans several files of the history storage.
+ */
+public class TestHistoryStorage
+    extends TestCase
+{
+    /**
+     * The structure of the test records.
+     */
+    private static final HistoryRecordStructure recordStructure
+        = new HistoryRecordStructure(new String[] { "id", "msg" });
+
+    /**
+     * The number of records written by a test, enough for several files of
+     * the storage.
+     */
+    private static final int RECORD_COUNT = 2500;
+
+    /**
+     * The reference of the <tt>HistoryService</tt>.
+     */
+    private ServiceReference historyServiceRef = null;
+
+    /**
+     * The <tt>HistoryService</tt> that we will be testing.
+     */
+    private HistoryService historyService = null;
+
+    /**
+     * The ID of the history of a test.
+     */
+    private HistoryID historyID = null;
+
+    /**
+     * Create a TestHistoryStorage wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryStorage(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Gets the <tt>HistoryService</tt> and creates a history with the test
+     * records.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        BundleContext context = HistoryServiceLick.bc;
+
+        historyServiceRef
+            = context.getServiceReference(HistoryService.class.getName());
+        historyService = (HistoryService) context.getService(historyServiceRef);
+
+        historyID = newHistoryID();
+
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+        for (int i = 0; i < RECORD_COUNT; i++)
+            records.add(record(i));
+        historyService.createHistory(historyID, recordStructure)
+            .getWriter().addRecords(records);
+    }
+
+    /**
+     * Deletes the history of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        historyService.purgeLocallyStoredHistory(historyID);
+
+        HistoryServiceLick.bc.ungetService(historyServiceRef);
+        historyService = null;
+        historyServiceRef = null;
+    }
+
+    /**
+     * Creates the ID of a history which does not exist.
+     * @return the ID of a history which does not exist
+     */
+    private HistoryID newHistoryID()
+    {
+        HistoryID id;
+
+        do
+        {
+            id = HistoryID.createFromRawID(
+                new String[]
+                    {
+                        "test",
+                        "storage" + Long.toHexString(System.nanoTime())
+                    });
+        }
+        while (historyService.isHistoryCreated(id));
+        return id;
+    }
+
+    /**
+     * Moves the history of the test and opens it again, which reads its
+     * files from disk.
+     * @return the history of the test
+     * @throws Exception if anything goes wrong.
+     */
+    private History reopen()
+        throws Exception
+    {
+        HistoryID movedID = newHistoryID();
+
+        historyService.moveHistory(historyID, movedID);
+        historyID = movedID;
+        return historyService.createHistory(historyID, recordStructure);
+    }
+
+    /**
+     * Creates a record.
+     * @param i the number of the record, which is its timestamp in seconds
+     * and is in its message
+     * @return the record
+     */
+    private static HistoryRecord record(int i)
+    {
+        return new HistoryRecord(
+            recordStructure.getPropertyNames(),
+            new String[]
+                {
+                    Integer.toString(i),
+                    "message " + i + " \u00e9\u4e2d"
+                },
+            new Date(1000L * (i + 1)));
+    }
+
+    /**
+     * Asserts that records are the records with the given numbers.
+     * @param records the records
+     * @param first the number of the first record
+     * @param last the number of the last record
+     */
+    private static void assertRecords(QueryResultSet<HistoryRecord> records,
+                                      int first,
+                                      int last)
+    {
+        for (int i = first; i <= last; i++)
+        {
+            assertTrue("record " + i, records.hasNext());
+
+            HistoryRecord expected = record(i);
+            HistoryRecord actual = records.nextRecord();
+
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertTrue(Arrays.equals(expected.getPropertyNames(),
+                                     actual.getPropertyNames()));
+            assertTrue(Arrays.equals(expected.getPropertyValues(),
+                                     actual.getPropertyValues()));
+        }
+        assertFalse(records.hasNext());
+    }
+
+    /**
+     * Reads back all records, also after the history has been moved and its
+     * files have been opened again.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testReadAll()
+        throws Exception
+    {
+        History history = historyService.getHistory(historyID);
+
+        assertEquals(RECORD_COUNT, history.getReader().countRecords());
+        assertRecords(history.getReader().findByStartDate(new Date(0)),
+                      0, RECORD_COUNT - 1);
+
+        history = reopen();
+
+        assertEquals(RECORD_COUNT, history.getReader().countRecords());
+        assertRecords(history.getReader().findByStartDate(new Date(0)),
+                      0, RECORD_COUNT - 1);
+    }
+
+    /**
+     * Appends records to the history and reads the last ones.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testAppend()
+        throws Exception
+    {
+        History history = historyService.getHistory(historyID);
+        HistoryWriter writer = history.getWriter();
+
+        writer.addRecord(record(RECORD_COUNT));
+        writer.addRecords(
+            Arrays.asList(record(RECORD_COUNT + 1), record(RECORD_COUNT + 2)));
+
+        assertEquals(RECORD_COUNT + 3, history.getReader().countRecords());
+        assertRecords(history.getReader().findLast(5),
+                      RECORD_COUNT - 2, RECORD_COUNT + 2);
+    }
+
+    /**
+     * Reads the records around dates, within a file and across the files
+     * of the storage.
+     */
+    public void testReadAroundDate()
+    {
+        HistoryReader reader = historyService.getHistory(historyID).getReader();
+
+        assertRecords(
+            reader.findLastRecordsBefore(record(6).getTimestamp(), 3), 3, 5);
+        assertRecords(
+            reader.findLastRecordsBefore(record(1).getTimestamp(), 3), 0, 0);
+        assertRecords(
+            reader.findFirstRecordsAfter(record(6).getTimestamp(), 3), 6, 8);
+        assertRecords(
+            reader.findFirstRecordsAfter(record(991).getTimestamp(), 20),
+            991, 1010);
+        assertRecords(
+            reader.findLastRecordsBefore(record(2010).getTimestamp(), 20),
+            1990, 2009);
+        assertRecords(
+            reader.findByPeriod(record(995).getTimestamp(),
+                                record(1005).getTimestamp()),
+            995, 1004);
+        assertFalse(
+            reader.findFirstRecordsAfter(
+                    record(RECORD_COUNT).getTimestamp(), 5)
+                .hasNext());
+    }
+
+    /**
+     * Updates a record, which rewrites the file holding it, and reads it
+     * back, also after the history has been opened again.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testUpdateRecord()
+        throws Exception
+    {
+        History history = historyService.getHistory(historyID);
+
+        history.getWriter().updateRecord("id", "1500", "msg", "updated");
+
+        history = reopen();
+
+        QueryResultSet<HistoryRecord> records
+            = history.getReader().findByPeriod(record(1499).getTimestamp(),
+                                               record(1502).getTimestamp());
+
+        assertEquals(record(1499).getPropertyValues()[1],
+                     records.nextRecord().getPropertyValues()[1]);
+
+        HistoryRecord updated = records.nextRecord();
+
+        assertEquals(record(1500).getTimestamp(), updated.getTimestamp());
+        assertEquals("1500", updated.getPropertyValues()[0]);
+        assertEquals("updated", updated.getPropertyValues()[1]);
+        assertEquals(record(1501).getPropertyValues()[1],
+                     records.nextRecord().getPropertyValues()[1]);
+        assertFalse(records.hasNext());
+        assertEquals(RECORD_COUNT, history.getReader().countRecords());
+    }
+}
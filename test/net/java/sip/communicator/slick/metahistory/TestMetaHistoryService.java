@@ -105,6 +105,10 @@ public class TestMetaHistoryService
             new TestMetaHistoryService("fileTests"));
         suite.addTest(
             new TestMetaHistoryService("metaTests"));
+        suite.addTest(
+            new TestMetaHistoryService("mergeTests"));
+        suite.addTest(
+            new TestMetaHistoryService("queryTests"));
         suite.addTest(
             new TestMetaHistoryService("testPurgeLocalContactListCopy"));
 
@@ -933,6 +937,223 @@ public class TestMetaHistoryService
         assertEquals("MessageRecords must be 2", 2, getMessages(rs).size());
     }
 
+    /**
+     * Checks that the records of the services are merged in date order and
+     * that the first and last records of the merge are the ones of the
+     * whole result.
+     */
+    public void mergeTests()
+    {
+        String[] services = new String[]{
+            MessageHistoryService.class.getName(),
+            FileHistoryService.class.getName(),
+            CallHistoryService.class.getName()};
+
+        List<Object> all = new ArrayList<Object>(
+            metaHistoryService.findByStartDate(
+                services, testMetaContact, controlDate1));
+
+        assertEquals("Records must be 12", 12, all.size());
+        assertDateOrder(all);
+
+        List<Object> rs = new ArrayList<Object>(
+            metaHistoryService.findLast(services, testMetaContact, 4));
+
+        assertDateOrder(rs);
+        assertEquals("Wrong last records",
+            describe(all.subList(all.size() - 4, all.size())),
+            describe(rs));
+
+        rs = new ArrayList<Object>(
+            metaHistoryService.findFirstMessagesAfter(
+                services, testMetaContact, controlDate1, 5));
+
+        assertDateOrder(rs);
+        assertEquals("Wrong first records",
+            describe(all.subList(0, 5)), describe(rs));
+
+        List<Object> period = new ArrayList<Object>(
+            metaHistoryService.findByPeriod(
+                services, testMetaContact, controlDate1, controlDate2));
+
+        assertEquals("Records must be 6", 6, period.size());
+        assertDateOrder(period);
+
+        rs = new ArrayList<Object>(
+            metaHistoryService.findLastMessagesBefore(
+                services, testMetaContact, controlDate2, 3));
+
+        assertDateOrder(rs);
+        assertEquals("Wrong records before date",
+            describe(period.subList(3, 6)), describe(rs));
+    }
+
+    /**
+     * Checks that a query delivers the records of the synchronous search to
+     * its listener, in order, then its completion once, and that a
+     * canceled query ends.
+     */
+    public void queryTests()
+    {
+        String[] services = new String[]{
+            MessageHistoryService.class.getName(),
+            FileHistoryService.class.getName(),
+            CallHistoryService.class.getName()};
+
+        final List<Object> received = new ArrayList<Object>();
+        final List<Integer> statuses = new ArrayList<Integer>();
+        MetaHistoryQueryListener listener = new MetaHistoryQueryListener()
+        {
+            public void recordReceived(MetaHistoryQuery query, Object record)
+            {
+                synchronized (received)
+                {
+                    received.add(record);
+                }
+            }
+
+            public void queryStatusChanged(MetaHistoryQuery query)
+            {
+                synchronized (received)
+                {
+                    statuses.add(query.getStatus());
+                    received.notifyAll();
+                }
+            }
+        };
+
+        MetaHistoryQuery query
+            = metaHistoryService.findLast(
+                services, testMetaContact, 4, listener);
+
+        waitForStatus(received, statuses);
+
+        List<Object> expected = new ArrayList<Object>(
+            metaHistoryService.findLast(services, testMetaContact, 4));
+
+        synchronized (received)
+        {
+            assertEquals("Wrong statuses",
+                Arrays.asList(MetaHistoryQuery.QUERY_COMPLETED), statuses);
+            assertEquals("Wrong received records",
+                describe(expected), describe(received));
+        }
+        assertEquals(MetaHistoryQuery.QUERY_COMPLETED, query.getStatus());
+        assertEquals("Wrong query records",
+            describe(expected), describe(query.getRecords()));
+
+        synchronized (received)
+        {
+            received.clear();
+            statuses.clear();
+        }
+
+        query = metaHistoryService.findLast(
+            services, testMetaContact, 4, listener);
+        query.cancel();
+
+        waitForStatus(received, statuses);
+
+        synchronized (received)
+        {
+            assertEquals("Status must be fired once", 1, statuses.size());
+
+            int status = statuses.get(0);
+
+            assertTrue("Wrong status " + status,
+                status == MetaHistoryQuery.QUERY_CANCELED
+                    || status == MetaHistoryQuery.QUERY_COMPLETED);
+            if (status == MetaHistoryQuery.QUERY_COMPLETED)
+            {
+                assertEquals("Wrong received records",
+                    describe(expected), describe(received));
+            }
+        }
+    }
+
+    /**
+     * Waits for a query listener to be told the end of its query.
+     *
+     * @param received the records received by the listener, notified with
+     * the statuses
+     * @param statuses the statuses received by the listener
+     */
+    private void waitForStatus(List<Object> received, List<Integer> statuses)
+    {
+        synchronized (received)
+        {
+            long end = System.currentTimeMillis() + 10000;
+
+            while (statuses.isEmpty() && (System.currentTimeMillis() < end))
+            {
+                try
+                {
+                    received.wait(100);
+                }
+                catch (InterruptedException ex)
+                {
+                    fail("interrupted");
+                }
+            }
+            assertFalse("Query did not end", statuses.isEmpty());
+        }
+    }
+
+    /**
+     * Asserts that records are sorted by date.
+     *
+     * @param rs the records
+     */
+    private void assertDateOrder(List<Object> rs)
+    {
+        for (int i = 1; i < rs.size(); i++)
+        {
+            assertFalse("Records out of order at " + i + ": " + describe(rs),
+                getDate(rs.get(i)).before(getDate(rs.get(i - 1))));
+        }
+    }
+
+    /**
+     * Describes records by their type and date, so that the records found
+     * by different searches can be compared.
+     *
+     * @param rs the records
+     * @return the descriptions of <tt>rs</tt>
+     */
+    private List<String> describe(List<Object> rs)
+    {
+        List<String> result = new ArrayList<String>();
+
+        for (Object item : rs)
+        {
+            result.add(
+                item.getClass().getSimpleName()
+                    + "@" + getDate(item).getTime());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the date of a record of the message, call or file history.
+     *
+     * @param item the record
+     * @return the date of <tt>item</tt>
+     */
+    private Date getDate(Object item)
+    {
+        if(item instanceof MessageDeliveredEvent)
+            return ((MessageDeliveredEvent)item).getTimestamp();
+        else if(item instanceof MessageReceivedEvent)
+            return ((MessageReceivedEvent)item).getTimestamp();
+        else if(item instanceof CallRecord)
+            return ((CallRecord)item).getStartTime();
+        else if(item instanceof FileRecord)
+            return ((FileRecord)item).getDate();
+
+        fail("Unexpected record " + item);
+        return null;
+    }
+
     /**
      * Removes the locally stored contact list copy. The purpose of this is to
      * leave the local list empty for a next round of testing.
@@ -90,6 +90,10 @@ public class TestMsgHistoryService
             new TestMsgHistoryService("writeRecordsToMultiChat"));
         suite.addTest(
             new TestMsgHistoryService("readRecordsFromMultiChat"));
+        suite.addTest(
+            new TestMsgHistoryService("testQueuedRecords"));
+        suite.addTest(
+            new TestMsgHistoryService("testEraseQueuedRecords"));
         suite.addTest(
             new TestMsgHistoryService("testPurgeLocalContactListCopy"));
 
@@ -613,6 +617,92 @@ public class TestMsgHistoryService
                    msgs.contains(messagesToSend[2].getContent()));
     }
 
+    /**
+     * Delivers messages faster than they are written, from two threads, and
+     * checks that searches made right after find all of them in the order of
+     * their delivery.
+     *
+     * @throws Exception if anything goes wrong
+     */
+    public void testQueuedRecords()
+        throws Exception
+    {
+        final String marker = "queued" + System.nanoTime();
+        final int count = 120;
+        final List<String> delivered
+            = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[2];
+
+        for (int t = 0; t < threads.length; t++)
+        {
+            final String contact
+                = (t == 0) ? TEST_CONTACT_NAME_1 : TEST_CONTACT_NAME_2;
+
+            threads[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < count; i++)
+                    {
+                        // distinct timestamps keep the order of the messages
+                        synchronized (delivered)
+                        {
+                            String content = marker + " " + delivered.size();
+
+                            mockBImOpSet.deliverMessage(
+                                contact, mockBImOpSet.createMessage(content));
+                            delivered.add(content);
+                            waitWrite(2);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        List<String> found = getMessages(
+            msgHistoryService.findByKeyword(testMetaContact, marker));
+
+        assertEquals(delivered.size(), found.size());
+        assertTrue(found.containsAll(delivered));
+
+        found = getMessages(msgHistoryService.findLast(testMetaContact, 10));
+        assertEquals(
+            delivered.subList(delivered.size() - 10, delivered.size()),
+            found);
+    }
+
+    /**
+     * Erases the history of a contact right after messages have been
+     * delivered and checks that none of them is written afterwards.
+     *
+     * @throws Exception if anything goes wrong
+     */
+    public void testEraseQueuedRecords()
+        throws Exception
+    {
+        String marker = "erased" + System.nanoTime();
+
+        for (int i = 0; i < 5; i++)
+        {
+            mockBImOpSet.deliverMessage(
+                TEST_CONTACT_NAME_1,
+                mockBImOpSet.createMessage(marker + " " + i));
+        }
+        msgHistoryService.eraseLocallyStoredHistory(testMetaContact);
+
+        // give queued messages the time to be written in the background
+        waitWrite(2000);
+
+        assertTrue(
+            msgHistoryService.findByKeyword(testMetaContact, marker)
+                .isEmpty());
+        assertTrue(msgHistoryService.findLast(testMetaContact, 10).isEmpty());
+    }
+
     /**
      * Removes the locally stored contact list copy. The purpose of this is to
      * leave the local list empty for a next round of testing.
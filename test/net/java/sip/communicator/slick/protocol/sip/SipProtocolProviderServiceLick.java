@@ -88,6 +88,9 @@ public class SipProtocolProviderServiceLick
         // xcap parsing tests
         addTest(TestXCapParse.suite());
 
+        // multipart/related body tests
+        addTestSuite(TestMultipartRelated.class);
+
         //proxy detection tests
         addTestSuite(TestAutoProxyDetection.class);
 
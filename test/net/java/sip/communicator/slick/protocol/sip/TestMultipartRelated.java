@@ -0,0 +1,181 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.protocol.sip;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.sip.*;
+
+/**
+ * Tests the splitting of multipart/related bodies by
+ * <tt>MultipartRelated</tt>.
+ */
+public class TestMultipartRelated extends TestCase
+{
+    /**
+     * The RLMI document of the test bodies.
+     */
+    private static final String RLMI
+        = "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\" version=\"1\">"
+            + "<resource uri=\"sip:bob@example.com\">"
+            + "<instance id=\"1\" state=\"active\" cid=\"bob@example.com\"/>"
+            + "</resource></list>";
+
+    /**
+     * The PIDF document of the test bodies, with a non-ASCII note.
+     */
+    private static final String PIDF
+        = "<presence entity=\"sip:bob@example.com\">"
+            + "<note>B\u00f6b \u4e2d</note></presence>";
+
+    /**
+     * Create a TestMultipartRelated wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestMultipartRelated(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Builds an RFC 4662 body with a preamble, using the given line break.
+     * @param eol the line break
+     * @return the body
+     * @throws Exception if anything goes wrong.
+     */
+    private static byte[] body(String eol) throws Exception
+    {
+        String text
+            = "This is a preamble" + eol
+                + "--50UBfW7LSCVLtggUPe5z" + eol
+                + "Content-Transfer-Encoding: binary" + eol
+                + "Content-ID: <nXYxAE@pres.example.com>" + eol
+                + "Content-Type: application/rlmi+xml;charset=\"UTF-8\"" + eol
+                + eol
+                + RLMI + eol
+                + "--50UBfW7LSCVLtggUPe5z" + eol
+                + "content-id:   <bob@example.com>  " + eol
+                + "CONTENT-TYPE: application/pidf+xml;charset=UTF-8" + eol
+                + eol
+                + PIDF + eol
+                + "--50UBfW7LSCVLtggUPe5z--" + eol
+                + "An epilogue" + eol;
+
+        return text.getBytes("UTF-8");
+    }
+
+    /**
+     * Checks the parts of a body built by {@link #body(String)}.
+     * @param multipart the parsed body
+     * @throws Exception if anything goes wrong.
+     */
+    private static void assertParts(MultipartRelated multipart)
+        throws Exception
+    {
+        List<MultipartRelated.Part> parts = multipart.getParts();
+
+        assertEquals(2, parts.size());
+
+        MultipartRelated.Part rlmi = parts.get(0);
+
+        assertEquals("nXYxAE@pres.example.com", rlmi.getContentId());
+        assertTrue(rlmi.isContentType("application/rlmi+xml"));
+        assertEquals(RLMI, new String(rlmi.getContent(), "UTF-8"));
+
+        MultipartRelated.Part pidf = multipart.getPart("<bob@example.com>");
+
+        assertSame(parts.get(1), pidf);
+        assertSame(pidf, multipart.getPart("bob@example.com"));
+        assertTrue(pidf.isContentType("APPLICATION/PIDF+XML"));
+        assertFalse(pidf.isContentType("application/pidf"));
+        assertEquals(PIDF, new String(pidf.getContent(), "UTF-8"));
+    }
+
+    /**
+     * Splits a body with CRLF line breaks.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testCrlf() throws Exception
+    {
+        assertParts(new MultipartRelated(body("\r\n"), "50UBfW7LSCVLtggUPe5z"));
+    }
+
+    /**
+     * Splits a body with LF line breaks.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testLf() throws Exception
+    {
+        assertParts(new MultipartRelated(body("\n"), "50UBfW7LSCVLtggUPe5z"));
+    }
+
+    /**
+     * Finds the root part through the start parameter or else takes the
+     * first part.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testRootPart() throws Exception
+    {
+        MultipartRelated multipart
+            = new MultipartRelated(body("\r\n"), "50UBfW7LSCVLtggUPe5z");
+        List<MultipartRelated.Part> parts = multipart.getParts();
+
+        assertSame(parts.get(1), multipart.getRootPart("<bob@example.com>"));
+        assertSame(parts.get(0), multipart.getRootPart(null));
+        assertSame(parts.get(0), multipart.getRootPart("<unknown>"));
+    }
+
+    /**
+     * Rejects a body without the boundary and stops at a body which is cut
+     * short.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testMalformed() throws Exception
+    {
+        try
+        {
+            new MultipartRelated("no parts".getBytes("UTF-8"), "xyz");
+            fail("parsed a body without boundary");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+
+        byte[] body = body("\r\n");
+        String text = new String(body, "UTF-8");
+        byte[] truncated
+            = text.substring(0, text.indexOf("content-id:")).getBytes("UTF-8");
+        MultipartRelated multipart
+            = new MultipartRelated(truncated, "50UBfW7LSCVLtggUPe5z");
+
+        assertEquals(1, multipart.getParts().size());
+        assertNull(multipart.getPart("bob@example.com"));
+    }
+
+    /**
+     * Reads the parameters of content types.
+     */
+    public void testGetParameter()
+    {
+        String contentType
+            = "multipart/related;type=\"application/rlmi+xml\";"
+                + " start=\"<nXYxAE@pres.example.com>\" ;"
+                + " BOUNDARY=50UBfW7LSCVLtggUPe5z";
+
+        assertEquals("application/rlmi+xml",
+                     MultipartRelated.getParameter(contentType, "type"));
+        assertEquals("<nXYxAE@pres.example.com>",
+                     MultipartRelated.getParameter(contentType, "start"));
+        assertEquals("50UBfW7LSCVLtggUPe5z",
+                     MultipartRelated.getParameter(contentType, "boundary"));
+        assertNull(MultipartRelated.getParameter(contentType, "charset"));
+        assertNull(MultipartRelated.getParameter(null, "type"));
+        assertEquals("\"", MultipartRelated.unquote("\""));
+    }
+}
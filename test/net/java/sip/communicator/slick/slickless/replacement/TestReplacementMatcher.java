@@ -0,0 +1,278 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.replacement;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.replacement.*;
+import net.java.sip.communicator.service.replacement.smilies.*;
+
+/**
+ * Tests the precedence of the matches of several replacement sources and the
+ * smiley trie of the <tt>ReplacementMatcher</tt>.
+ */
+public class TestReplacementMatcher extends TestCase
+{
+    /**
+     * Create a TestReplacementMatcher wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestReplacementMatcher(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates a fake implementing an interface, answering each method of a
+     * name with a fixed value.
+     * @param type the interface
+     * @param values the answers by method name
+     * @return the fake
+     */
+    private static <T> T fake(Class<T> type, final Map<String, Object> values)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            TestReplacementMatcher.class.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    String name = method.getName();
+
+                    if (name.equals("equals"))
+                        return proxy == args[0];
+                    if (name.equals("hashCode"))
+                        return System.identityHashCode(proxy);
+                    if (!values.containsKey(name))
+                        throw new UnsupportedOperationException(name);
+                    return values.get(name);
+                }
+            }));
+    }
+
+    /**
+     * Creates a source matched through its pattern.
+     * @param name the name of the source
+     * @param pattern the pattern of the source
+     * @return the source
+     */
+    private static ReplacementService source(String name, String pattern)
+    {
+        Map<String, Object> values = new HashMap<String, Object>();
+
+        values.put("getSourceName", name);
+        values.put("getPattern", pattern);
+        return fake(ReplacementService.class, values);
+    }
+
+    /**
+     * Creates a smiley source.
+     * @param smileyStrings the strings of each smiley of the source
+     * @return the source
+     */
+    private static SmiliesReplacementService smileys(
+            List<String>... smileyStrings)
+    {
+        Collection<Smiley> pack = new ArrayList<Smiley>();
+
+        for (List<String> strings : smileyStrings)
+        {
+            Map<String, Object> values = new HashMap<String, Object>();
+
+            values.put("getSmileyStrings", strings);
+            pack.add(fake(Smiley.class, values));
+        }
+
+        Map<String, Object> values = new HashMap<String, Object>();
+
+        values.put("getSourceName", "smiley");
+        values.put("getSmiliesPack", pack);
+        return fake(SmiliesReplacementService.class, values);
+    }
+
+    /**
+     * Scans a text.
+     * @param scan the scan of the text
+     * @return the matches as the source name, a colon and the matched text
+     */
+    private static List<String> matches(ReplacementMatcher.Scan scan)
+    {
+        List<String> matches = new ArrayList<String>();
+        int end = 0;
+
+        while (scan.find())
+        {
+            assertTrue(scan.start() >= end);
+            end = scan.end();
+            matches.add(scan.getSource().getSourceName() + ":" + scan.group());
+        }
+        return matches;
+    }
+
+    /**
+     * Scans a text for the matches of sources.
+     * @param text the text
+     * @param sources the sources in the order of their precedence
+     * @return the matches as the source name, a colon and the matched text
+     */
+    private static List<String> scan(String text,
+                                     ReplacementService... sources)
+    {
+        return matches(
+            ReplacementMatcher.getInstance(Arrays.asList(sources)).scan(text));
+    }
+
+    /**
+     * Takes the matches in the order of their start indices and, of the
+     * matches starting at the same index, the one of the first source.
+     */
+    public void testPrecedence()
+    {
+        ReplacementService url = source("url", "https?://\\S+");
+        ReplacementService host = source("host", "[a-z]+\\.org");
+        ReplacementService word = source("word", "http");
+
+        assertEquals(
+            Arrays.asList("host:jitsi.org", "url:http://jitsi.org/x"),
+            scan("see jitsi.org at http://jitsi.org/x", url, host));
+        assertEquals(
+            Arrays.asList("word:http"),
+            scan("http://a", word, url));
+        assertEquals(
+            Arrays.asList("url:http://a"),
+            scan("http://a", url, word));
+        assertEquals(Collections.emptyList(), scan("nothing", url, host));
+    }
+
+    /**
+     * Skips the matches which overlap with a previous match, finding the
+     * next ones of their source after it.
+     */
+    public void testOverlap()
+    {
+        ReplacementService ab = source("ab", "ab");
+        ReplacementService bc = source("bc", "bc");
+
+        assertEquals(
+            Arrays.asList("ab:ab", "bc:bc"),
+            scan("abcbc", ab, bc));
+        assertEquals(
+            Arrays.asList("ab:ab", "ab:ab", "bc:bc"),
+            scan("ababcxbc", bc, ab));
+        // case-insensitive
+        assertEquals(Arrays.asList("ab:AB"), scan("xAB", ab));
+    }
+
+    /**
+     * Ignores the empty matches of a pattern.
+     */
+    public void testEmptyMatches()
+    {
+        assertEquals(
+            Arrays.asList("x:xx", "x:x"),
+            scan("axxbx", source("x", "x*")));
+    }
+
+    /**
+     * Finds the longest smiley string at the first index, in any case, and
+     * not right after an alt attribute.
+     */
+    @SuppressWarnings("unchecked")
+    public void testSmileyTrie()
+    {
+        SmiliesReplacementService smileys
+            = smileys(
+                Arrays.asList(":)", ":-)"),
+                Arrays.asList(":-))"),
+                Arrays.asList(":P", "(y)"));
+
+        assertEquals(
+            Arrays.asList("smiley::-))", "smiley::)", "smiley::p",
+                "smiley:(Y)"),
+            scan(":-)):) :p (Y)", smileys));
+        assertEquals(
+            Arrays.asList("smiley::-)"),
+            scan("a :-) b :", smileys));
+        assertEquals(Arrays.asList("smiley::)", "smiley::)"),
+            scan(":):)", smileys));
+        assertEquals(
+            Arrays.asList("smiley::)"),
+            scan("<img alt=':)'> <img ALT=\":)\"> :)", smileys));
+        assertEquals(Collections.emptyList(), scan(":-(", smileys));
+    }
+
+    /**
+     * Scans for the smileys only when asked to.
+     */
+    @SuppressWarnings("unchecked")
+    public void testScanSmileys()
+    {
+        ReplacementService url = source("url", "https?://\\S+");
+        SmiliesReplacementService smileys
+            = smileys(Arrays.asList(":)", ":/"));
+        ReplacementMatcher matcher
+            = ReplacementMatcher.getInstance(
+                Arrays.<ReplacementService>asList(url, smileys));
+
+        assertEquals(
+            Arrays.asList("url:http://a:)", "smiley::/"),
+            matches(matcher.scan("http://a:) :/")));
+        assertEquals(
+            Arrays.asList("smiley::/", "smiley::)", "smiley::/"),
+            matches(matcher.scanSmileys("http://a:) :/")));
+    }
+
+    /**
+     * Reuses the last matcher while the sources and their patterns and
+     * smiley packs stay the same.
+     */
+    @SuppressWarnings("unchecked")
+    public void testGetInstance()
+    {
+        Map<String, Object> urlValues = new HashMap<String, Object>();
+
+        urlValues.put("getSourceName", "url");
+        urlValues.put("getPattern", "https?://\\S+");
+
+        ReplacementService url = fake(ReplacementService.class, urlValues);
+        Map<String, Object> smileyValues = new HashMap<String, Object>();
+
+        smileyValues.put("getSourceName", "smiley");
+        smileyValues.put("getSmiliesPack", new ArrayList<Smiley>());
+
+        SmiliesReplacementService smileys
+            = fake(SmiliesReplacementService.class, smileyValues);
+        List<ReplacementService> sources
+            = Arrays.<ReplacementService>asList(url, smileys);
+        ReplacementMatcher matcher = ReplacementMatcher.getInstance(sources);
+
+        assertSame(matcher, ReplacementMatcher.getInstance(sources));
+        assertNotSame(
+            matcher,
+            ReplacementMatcher.getInstance(
+                Arrays.<ReplacementService>asList(smileys, url)));
+
+        // an equal pattern
+        matcher = ReplacementMatcher.getInstance(sources);
+        urlValues.put("getPattern", new String("https?://\\S+"));
+        assertSame(matcher, ReplacementMatcher.getInstance(sources));
+
+        // a changed pattern
+        urlValues.put("getPattern", "https://\\S+");
+        assertNotSame(matcher, ReplacementMatcher.getInstance(sources));
+
+        // a reloaded smiley pack, even if equal
+        matcher = ReplacementMatcher.getInstance(sources);
+        smileyValues.put("getSmiliesPack", new ArrayList<Smiley>());
+        assertNotSame(matcher, ReplacementMatcher.getInstance(sources));
+    }
+}
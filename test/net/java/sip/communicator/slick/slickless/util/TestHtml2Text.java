@@ -0,0 +1,184 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.util;
+
+import junit.framework.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Tests the extraction of text from HTML by the Html2Text class.
+ */
+public class TestHtml2Text extends TestCase
+{
+    /**
+     * Create a TestHtml2Text wrapper over the test with the specified name.
+     * @param name the name of the test to run
+     */
+    public TestHtml2Text(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Drops the tags, without whitespace in their place, and collapses
+     * whitespace.
+     */
+    public void testTags()
+    {
+        assertNull(Html2Text.extractText(null));
+        assertEquals("", Html2Text.extractText(""));
+        assertEquals("plain", Html2Text.extractText("plain"));
+        assertEquals("bold and italic",
+            Html2Text.extractText("<b>bold</b> and <I>italic</I>"));
+        assertEquals("Hi there",
+            Html2Text.extractText(
+                "<html>\n<body>  Hi \n\t there </body></html>"));
+        assertEquals("ab", Html2Text.extractText("a<br>b"));
+        assertEquals("ab", Html2Text.extractText("a<br/>b"));
+        assertEquals("onetwo",
+            Html2Text.extractText("<p>one</p><p>two</p>"));
+        assertEquals("text",
+            Html2Text.extractText("<!DOCTYPE html><?xml x?>text"));
+    }
+
+    /**
+     * Drops the whitespace next to the tags which break the flow of the text,
+     * as the Swing HTML parser did.
+     */
+    public void testFlowBreakingTags()
+    {
+        assertEquals("ab",
+            Html2Text.extractText("<div>a</div> <div>b</div>"));
+        assertEquals("ab", Html2Text.extractText("<p>a</p>\n<p>b</p>"));
+        assertEquals("ab", Html2Text.extractText("a <br> b"));
+        assertEquals("xy", Html2Text.extractText("<li>x</li> <li>y</li>"));
+        assertEquals("Hi therebye",
+            Html2Text.extractText(
+                "<html><body><p>Hi <i>there</i></p>\n<p>bye</p>"
+                    + "</body></html>"));
+        assertEquals("& x", Html2Text.extractText("<p> &amp; x</p>"));
+        // other tags keep the whitespace next to them
+        assertEquals("a b c", Html2Text.extractText("a <b>b</b> c"));
+        assertEquals("a b", Html2Text.extractText("a <table> b"));
+    }
+
+    /**
+     * Decodes the character and entity references.
+     */
+    public void testEntities()
+    {
+        assertEquals("&<>\"\u00a0\u00e9",
+            Html2Text.extractText("&amp;&lt;&gt;&quot;&nbsp;&eacute;"));
+        assertEquals("AB\u20ac",
+            Html2Text.extractText("&#65;&#x42;&#8364;"));
+        assertEquals("&apos; '", Html2Text.extractText("&amp;apos; &apos;"));
+        // unknown or unterminated references are text
+        assertEquals("&bogus; &#xZZ; a&b &amp",
+            Html2Text.extractText("&bogus; &#xZZ; a&b &amp"));
+        assertEquals("&#1114112;", Html2Text.extractText("&#1114112;"));
+    }
+
+    /**
+     * Drops the comments.
+     */
+    public void testComments()
+    {
+        assertEquals("ab", Html2Text.extractText("a<!-- <b>c</b> -->b"));
+        assertEquals("a", Html2Text.extractText("a<!-- unterminated"));
+    }
+
+    /**
+     * Drops the contents of <tt>script</tt> and <tt>style</tt> elements.
+     */
+    public void testScriptAndStyle()
+    {
+        assertEquals("t",
+            Html2Text.extractText(
+                "<script type=\"text/javascript\">var x = '<b>';</script>t"));
+        assertEquals("t",
+            Html2Text.extractText("<STYLE>p { color: red }</STYLE>t"));
+        assertEquals("t", Html2Text.extractText("<script src=\"x.js\"/>t"));
+        assertEquals("", Html2Text.extractText("<style>unterminated"));
+    }
+
+    /**
+     * Keeps the whitespace in <tt>pre</tt> elements.
+     */
+    public void testPre()
+    {
+        assertEquals("a\n  bc",
+            Html2Text.extractText("<pre>a\n  b</pre>   c"));
+        assertEquals("x\n\ty\n z",
+            Html2Text.extractText(
+                "<pre>x\n<pre>\ty</pre>\n</pre> <pre> z</pre>"));
+    }
+
+    /**
+     * Ends tags at the first <tt>&gt;</tt> outside of quoted attribute values
+     * and keeps as text what does not look like a tag.
+     */
+    public void testMalformedTags()
+    {
+        assertEquals("link",
+            Html2Text.extractText("<a title=\"x > y\">link</a>"));
+        assertEquals("after",
+            Html2Text.extractText("<img src='a>b' alt = \"c>d\">after"));
+        assertEquals("don't",
+            Html2Text.extractText("<span class=x>don't</span>"));
+        assertEquals("a < b", Html2Text.extractText("a < b"));
+        assertEquals("1<2 and 3>2", Html2Text.extractText("1<2 and 3>2"));
+        assertEquals("a<b", Html2Text.extractText("a<b"));
+        assertEquals("x<", Html2Text.extractText("x<"));
+        assertEquals("a<a href=\"b>c",
+            Html2Text.extractText("a<a href=\"b>c"));
+    }
+
+    /**
+     * Differs from the Swing HTML parser used before, which dropped a
+     * <tt>&lt;</tt> which does not start a tag and kept the contents of
+     * <tt>style</tt> elements.
+     */
+    public void testDifferencesFromSwingParser()
+    {
+        // was "56"
+        assertEquals("5<6", Html2Text.extractText("5<6"));
+        // was "a b and c > d"
+        assertEquals("a < b and c > d",
+            Html2Text.extractText("a < b and c > d"));
+        // was "a"
+        assertEquals("a<b", Html2Text.extractText("a<b"));
+        // was "p{}x"
+        assertEquals("x", Html2Text.extractText("<style>p{}</style>x"));
+        // was "?xml x?>text"
+        assertEquals("text", Html2Text.extractText("<?xml x?>text"));
+        // was "&apos;"
+        assertEquals("'", Html2Text.extractText("&apos;"));
+        // was " ZZ;"
+        assertEquals("&#xZZ;", Html2Text.extractText("&#xZZ;"));
+    }
+
+    /**
+     * Returns the same text for strings converted again, after many others.
+     */
+    public void testCache()
+    {
+        for (int round = 0; round < 2; round++)
+        {
+            for (int i = 0; i < 600; i++)
+            {
+                assertEquals("status " + i,
+                    Html2Text.extractText("<i>status</i> " + i));
+            }
+        }
+
+        StringBuilder longHtml = new StringBuilder();
+
+        for (int i = 0; i < 500; i++)
+            longHtml.append("<b>x</b>");
+        assertEquals(500, Html2Text.extractText(longHtml.toString()).length());
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.util;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Tests the searches and the synchronizations of the <tt>LdapReplica</tt>.
+ */
+public class TestLdapReplica extends TestCase
+{
+    /**
+     * The attributes matched against query strings.
+     */
+    private static final List<String> NAME_ATTRIBUTES
+        = Arrays.asList("cn", "mail");
+
+    /**
+     * The attributes holding phone numbers.
+     */
+    private static final List<String> PHONE_ATTRIBUTES
+        = Arrays.asList("telephoneNumber", "mobile");
+
+    /**
+     * The file of the replica under test.
+     */
+    private File file;
+
+    /**
+     * The replica under test.
+     */
+    private LdapReplica replica;
+
+    /**
+     * Create a TestLdapReplica wrapper over the test with the specified name.
+     * @param name the name of the test to run
+     */
+    public TestLdapReplica(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates a replica of a few people.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        file = File.createTempFile("replica", null);
+        file.delete();
+        replica = new LdapReplica(file);
+        replica.update(
+            Arrays.asList(
+                entry("uid=john", "cn", "John Doe", "mail", "jd@example.com",
+                      "telephoneNumber", "+33 (1) 23-45-67-89"),
+                entry("uid=jane", "cn", "Jane D\u00f6e",
+                      "mobile", "06 12 34 56 78"),
+                entry("uid=bob", "cn", "Bob a.b. Smith",
+                      "telephoneNumber", "ext. 42")),
+            "20130101000000Z",
+            true,
+            false);
+    }
+
+    /**
+     * Deletes the file of the replica.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+        super.tearDown();
+    }
+
+    /**
+     * Creates an entry.
+     * @param dn the distinguished name of the entry
+     * @param attributes the names and values of its attributes
+     * @return the entry
+     */
+    private static LdapReplica.Entry entry(String dn,
+                                               String... attributes)
+    {
+        Map<String, Set<String>> map = new HashMap<String, Set<String>>();
+
+        for (int i = 0; i < attributes.length; i += 2)
+        {
+            Set<String> values = map.get(attributes[i]);
+
+            if (values == null)
+            {
+                values = new HashSet<String>();
+                map.put(attributes[i], values);
+            }
+            values.add(attributes[i + 1]);
+        }
+        return new LdapReplica.Entry(dn, map);
+    }
+
+    /**
+     * Searches the replica.
+     * @param queryString the query string
+     * @return the distinguished names of the entries found, sorted
+     */
+    private Set<String> search(String queryString)
+    {
+        return search(queryString, 0);
+    }
+
+    /**
+     * Searches the replica.
+     * @param queryString the query string
+     * @param countLimit the maximum number of entries returned
+     * @return the distinguished names of the entries found, sorted
+     */
+    private Set<String> search(String queryString, long countLimit)
+    {
+        Set<String> dns = new TreeSet<String>();
+
+        for (LdapReplica.Entry entry
+                : replica.search(queryString, NAME_ATTRIBUTES,
+                                 PHONE_ATTRIBUTES, countLimit))
+            dns.add(entry.getDN());
+        return dns;
+    }
+
+    /**
+     * Builds a set of strings.
+     * @param strings the strings
+     * @return the set of <tt>strings</tt>
+     */
+    private static Set<String> set(String... strings)
+    {
+        return new TreeSet<String>(Arrays.asList(strings));
+    }
+
+    /**
+     * Matches the name attributes the way an LDAP substring filter does,
+     * ignoring case.
+     */
+    public void testNameMatching()
+    {
+        assertEquals(set("uid=john"), search("*john d*"));
+        assertEquals(set("uid=john", "uid=jane"), search("j*"));
+        assertEquals(set("uid=john", "uid=jane"), search("*D*"));
+        assertEquals(set("uid=jane"), search("*D\u00d6E"));
+        assertEquals(set("uid=john"), search("*@example.com"));
+        assertEquals(set("uid=john"), search("john doe"));
+        assertEquals(set(), search("john"));
+        assertEquals(set(), search("*smith*x"));
+        // the query string is not a regular expression
+        assertEquals(set("uid=bob"), search("*a.b.*"));
+        assertEquals(set(), search("*a?b*"));
+        assertEquals(set(), search("*[*"));
+    }
+
+    /**
+     * Matches phone numbers containing the query string, separators aside.
+     */
+    public void testPhoneNumberMatching()
+    {
+        assertEquals(set("uid=john"), search("*+33 1 23*"));
+        assertEquals(set("uid=john"), search("*6789*"));
+        assertEquals(set("uid=jane"), search("0612.34"));
+        assertEquals(set("uid=john", "uid=jane"), search("*2*3*"));
+        // neither phone numbers nor names
+        assertEquals(set(), search("*42x*"));
+        assertEquals(set(), search("ext. 42"));
+        assertEquals(set(), search("*42*"));
+    }
+
+    /**
+     * Returns at most the number of entries asked for.
+     */
+    public void testCountLimit()
+    {
+        assertEquals(1, search("*", 1).size());
+        assertEquals(3, search("*", 0).size());
+    }
+
+    /**
+     * Adds the entries of an incremental synchronization, replaces all
+     * entries after a complete one and keeps them after a truncated one,
+     * which still counts as a complete synchronization.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testUpdate() throws Exception
+    {
+        assertTrue(replica.isReady());
+        long fullSyncTime = replica.getLastFullSyncTime();
+
+        assertTrue(fullSyncTime > 0);
+
+        replica.update(
+            Arrays.asList(entry("uid=john", "cn", "Johnny")),
+            "20120101000000Z",
+            false,
+            false);
+        assertEquals(set("uid=john"), search("johnny"));
+        assertEquals(set(), search("john doe"));
+        assertEquals(3, search("*").size());
+        assertEquals("20130101000000Z", replica.getLastModifyTimestamp());
+        assertEquals(fullSyncTime, replica.getLastFullSyncTime());
+
+        Thread.sleep(5);
+        replica.update(
+            Arrays.asList(entry("uid=ann", "cn", "Ann")),
+            "20140101000000Z",
+            true,
+            true);
+        assertEquals(4, search("*").size());
+        assertEquals("20140101000000Z", replica.getLastModifyTimestamp());
+        assertTrue(replica.getLastFullSyncTime() > fullSyncTime);
+
+        replica.update(
+            Arrays.asList(entry("uid=ann", "cn", "Ann")),
+            null,
+            true,
+            false);
+        assertEquals(set("uid=ann"), search("*"));
+        assertNull(replica.getLastModifyTimestamp());
+    }
+
+    /**
+     * Loads the replica it saved and saves nothing once deleted.
+     */
+    public void testSaveLoadDelete()
+    {
+        replica.save();
+        assertTrue(file.exists());
+
+        LdapReplica loaded = new LdapReplica(file);
+
+        assertFalse(loaded.isReady());
+        loaded.load();
+        assertTrue(loaded.isReady());
+        assertEquals(
+            replica.getLastModifyTimestamp(),
+            loaded.getLastModifyTimestamp());
+        assertEquals(
+            replica.getLastFullSyncTime(),
+            loaded.getLastFullSyncTime());
+        replica = loaded;
+        assertEquals(set("uid=jane"), search("*d\u00f6e"));
+        assertEquals(set("uid=john"), search("*6789*"));
+
+        replica.delete();
+        assertFalse(file.exists());
+        replica.save();
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.util;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.packetlogging.PacketLoggingService.*;
+
+/**
+ * Tests the queueing of packets by the <tt>PacketRingBuffer</tt>.
+ */
+public class TestPacketRingBuffer extends TestCase
+{
+    /**
+     * An IPv4 address.
+     */
+    private static final byte[] IPV4 = new byte[] { 10, 0, 0, 1 };
+
+    /**
+     * An IPv6 address.
+     */
+    private static final byte[] IPV6 = new byte[16];
+
+    /**
+     * Create a TestPacketRingBuffer wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestPacketRingBuffer(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Offers a packet the content of which is its number.
+     * @param ring the buffer
+     * @param n the number of the packet
+     * @return the result of the offer
+     */
+    private static boolean offer(PacketRingBuffer ring, int n)
+    {
+        byte[] content = new byte[] { 0, (byte) n, (byte) (n >> 8), 0 };
+
+        return ring.offer(ProtocolName.SIP, IPV4, 5060, IPV6, n,
+                          TransportName.UDP, true, content, 1, 2);
+    }
+
+    /**
+     * Takes the next packet and checks that it has the given number.
+     * @param ring the buffer
+     * @param n the expected number of the packet
+     */
+    private static void take(PacketRingBuffer ring, int n)
+    {
+        PacketRingBuffer.Slot slot = ring.peek();
+
+        assertNotNull("packet " + n, slot);
+        assertEquals(2, slot.getContentLength());
+        byte[] content = slot.getContent();
+
+        assertEquals(n, (content[0] & 0xFF) | (content[1] << 8));
+        assertEquals(n, slot.getDestinationPort());
+        assertEquals(4, slot.getSourceAddressLength());
+        assertEquals(16, slot.getDestinationAddressLength());
+        assertTrue(Arrays.equals(
+            IPV4, Arrays.copyOf(slot.getSourceAddress(), 4)));
+        ring.release();
+    }
+
+    /**
+     * Drops the packets offered while all slots are taken, with a capacity
+     * rounded up to a power of 2.
+     */
+    public void testDropWhenFull()
+    {
+        PacketRingBuffer ring = new PacketRingBuffer(3, false);
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(offer(ring, i));
+        assertFalse(offer(ring, 4));
+        assertEquals(1, ring.getDroppedCount());
+
+        take(ring, 0);
+        assertTrue(offer(ring, 5));
+        for (int i : new int[] { 1, 2, 3, 5 })
+            take(ring, i);
+        assertNull(ring.peek());
+        assertEquals(5, ring.getQueuedCount());
+    }
+
+    /**
+     * Reuses the slots in sequence order many times over.
+     */
+    public void testWraparound()
+    {
+        PacketRingBuffer ring = new PacketRingBuffer(4, false);
+        int next = 0;
+
+        for (int round = 0; round < 100; round++)
+        {
+            int count = 1 + (round % 4);
+
+            for (int i = 0; i < count; i++)
+                assertTrue(offer(ring, next + i));
+            for (int i = 0; i < count; i++)
+                take(ring, next + i);
+            assertNull(ring.peek());
+            next += count;
+        }
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    /**
+     * Drops invalid packets without taking a slot.
+     */
+    public void testInvalidPacket()
+    {
+        PacketRingBuffer ring = new PacketRingBuffer(2, true);
+
+        assertFalse(ring.offer(ProtocolName.SIP, IPV4, 1, IPV4, 2,
+                               TransportName.TCP, false, new byte[4], 2, 3));
+        assertFalse(ring.offer(ProtocolName.SIP, null, 1, IPV4, 2,
+                               TransportName.TCP, false, new byte[4], 0, 4));
+        assertFalse(ring.offer(ProtocolName.SIP, IPV4, 1, IPV4, 2,
+                               TransportName.TCP, false, null, 0, 0));
+        assertEquals(3, ring.getDroppedCount());
+        assertEquals(0, ring.getQueuedCount());
+        assertNull(ring.peek());
+
+        assertTrue(offer(ring, 7));
+        take(ring, 7);
+    }
+
+    /**
+     * Makes the producers wait for free slots rather than drop packets and
+     * keeps the order of the packets of each producer.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testBlockWhenFull() throws Exception
+    {
+        final PacketRingBuffer ring = new PacketRingBuffer(2, true);
+        final int producers = 3;
+        final int count = 300;
+        Thread[] threads = new Thread[producers];
+
+        for (int p = 0; p < producers; p++)
+        {
+            final int producer = p;
+
+            threads[p] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < count; i++)
+                        offer(ring, producer * count + i);
+                }
+            };
+            threads[p].start();
+        }
+
+        int[] next = new int[producers];
+        int taken = 0;
+        long deadline = System.currentTimeMillis() + 30000;
+
+        while (taken < producers * count)
+        {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+
+            PacketRingBuffer.Slot slot = ring.peek();
+
+            if (slot == null)
+            {
+                ring.await(10);
+                continue;
+            }
+
+            byte[] content = slot.getContent();
+            int n = (content[0] & 0xFF) | ((content[1] & 0xFF) << 8);
+            int producer = n / count;
+
+            assertEquals(producer * count + next[producer], n);
+            next[producer]++;
+            taken++;
+            ring.release();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    /**
+     * Drops the packets offered after the buffer is closed and releases the
+     * producers waiting for a free slot.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testClose() throws Exception
+    {
+        final PacketRingBuffer ring = new PacketRingBuffer(1, true);
+        final boolean[] result = new boolean[] { true };
+
+        assertTrue(offer(ring, 0));
+
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                result[0] = offer(ring, 1);
+            }
+        };
+
+        producer.start();
+        Thread.sleep(50);
+        ring.close();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertFalse(result[0]);
+        assertTrue(ring.isClosed());
+        take(ring, 0);
+        assertNull(ring.peek());
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.util;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Tests the prefix and suffix queries of the <tt>PropertyNameTrie</tt>
+ * against the semantics of the <tt>ConfigurationService</tt>.
+ */
+public class TestPropertyNameTrie extends TestCase
+{
+    /**
+     * The names stored in the trie of a test.
+     */
+    private static final String[] NAMES = new String[]
+        {
+            "net.java.sip.communicator.impl.gui.SHOW_DIAL",
+            "net.java.sip.communicator.impl.gui.main.WIDTH",
+            "net.java.sip.communicator.impl.gui.main.HEIGHT",
+            "net.java.sip.communicator.impl.guix.ENABLED",
+            "net.java.sip.communicator.impl.protocol.jabber.acc1",
+            "net.java.sip.communicator.impl.protocol.jabber.acc1.USER_ID",
+            "net.java.sip.communicator.impl.protocol.sip.acc2.USER_ID",
+            "net.java.sip.communicator.impl.protocol.sip.acc2.ENABLED",
+            "net.java.sip.communicator.impl.protocol.sip",
+            "plain",
+            "a..b",
+            "trailing.",
+        };
+
+    /**
+     * The trie under test.
+     */
+    private PropertyNameTrie trie;
+
+    /**
+     * Create a TestPropertyNameTrie wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestPropertyNameTrie(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Fills the trie.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        trie = new PropertyNameTrie();
+        for (String name : NAMES)
+            trie.add(name);
+    }
+
+    /**
+     * Finds the names with a prefix the way the <tt>ConfigurationService</tt>
+     * specifies it, by checking every name.
+     * @param names the names
+     * @param prefix the prefix
+     * @param exactPrefixMatch whether the part of a name before its last dot
+     * has to equal <tt>prefix</tt>
+     * @return the matching names
+     */
+    private static Set<String> byPrefix(Collection<String> names,
+                                        String prefix,
+                                        boolean exactPrefixMatch)
+    {
+        Set<String> result = new TreeSet<String>();
+
+        for (String name : names)
+        {
+            int dot = name.lastIndexOf('.');
+
+            if (dot == -1)
+                continue;
+
+            String namePrefix = name.substring(0, dot);
+
+            if (exactPrefixMatch
+                    ? namePrefix.equals(prefix)
+                    : namePrefix.startsWith(prefix))
+                result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the names with a last segment by checking every name.
+     * @param names the names
+     * @param suffix the last segment
+     * @return the matching names
+     */
+    private static Set<String> bySuffix(Collection<String> names,
+                                        String suffix)
+    {
+        Set<String> result = new TreeSet<String>();
+
+        for (String name : names)
+        {
+            int dot = name.lastIndexOf('.');
+
+            if ((dot != -1) && name.substring(dot + 1).equals(suffix))
+                result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Checks the queries of the trie against checking every name.
+     * @param names the names in the trie
+     */
+    private void assertQueries(Collection<String> names)
+    {
+        String[] prefixes = new String[]
+            {
+                "net.java.sip.communicator.impl.gui",
+                "net.java.sip.communicator.impl.gu",
+                "net.java.sip.communicator.impl.protocol",
+                "net.java.sip.communicator.impl.protocol.sip.acc2",
+                "net.java.sip.communicator.impl.protocol.jabber.acc1",
+                "net.java.sip.communicator.impl.",
+                "net",
+                "plain",
+                "a.",
+                "a",
+                "trailing",
+                "missing.prefix",
+            };
+
+        for (String prefix : prefixes)
+        {
+            for (boolean exact : new boolean[] { true, false })
+            {
+                assertEquals(
+                    prefix + " " + exact,
+                    byPrefix(names, prefix, exact),
+                    new TreeSet<String>(
+                        trie.getNamesByPrefix(prefix, exact)));
+            }
+        }
+
+        for (String suffix
+                : new String[] { "USER_ID", "ENABLED", "b", "", "plain" })
+        {
+            assertEquals(
+                suffix,
+                bySuffix(names, suffix),
+                new TreeSet<String>(trie.getNamesBySuffix(suffix)));
+        }
+    }
+
+    /**
+     * Answers the queries as checking every name does.
+     */
+    public void testQueries()
+    {
+        assertQueries(Arrays.asList(NAMES));
+    }
+
+    /**
+     * Adds a name once only.
+     */
+    public void testAddTwice()
+    {
+        trie.add(NAMES[0]);
+        assertEquals(
+            Arrays.asList(NAMES[0]),
+            trie.getNamesBySuffix("SHOW_DIAL"));
+    }
+
+    /**
+     * Forgets removed names but keeps the names under and above them.
+     */
+    public void testRemove()
+    {
+        List<String> names = new ArrayList<String>(Arrays.asList(NAMES));
+
+        for (String removed
+                : new String[]
+                    {
+                        "net.java.sip.communicator.impl.protocol.jabber.acc1",
+                        "net.java.sip.communicator.impl.guix.ENABLED",
+                        "net.java.sip.communicator.impl.protocol.sip",
+                        "a..b",
+                        "never.added",
+                    })
+        {
+            trie.remove(removed);
+            names.remove(removed);
+            assertQueries(names);
+        }
+
+        trie.clear();
+        assertQueries(Collections.<String>emptyList());
+    }
+}